@@ -0,0 +1,177 @@
+package com.vitea.marketplace.benchmarks;
+
+import com.vitea.marketplace.db.H2DatabaseUtil;
+import com.vitea.marketplace.db.PersistencePipeline;
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderStatus;
+import com.vitea.marketplace.models.OrderType;
+import com.vitea.marketplace.models.Side;
+import com.vitea.marketplace.services.ItemService;
+import com.vitea.marketplace.services.MatchingEngine;
+import com.vitea.marketplace.services.OrderSequencer;
+import com.vitea.marketplace.services.OrderService;
+import com.vitea.marketplace.services.UserService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The MatchingEngine's hot paths, called directly on one engine, with the benchmark thread standing in
+// for the matching thread. The book holds bookDepth resting bids spread over up to 100 price levels
+// and quantities 1 to 10. Every operation puts the book back the way it found it (a resting order is
+// cancelled again, a filled one is replaced), so the depth stays fixed for the whole run; the figures
+// therefore cover a pair of engine calls each.
+//
+// Fills queue their status updates and trade for the persistence writer, as in production. The orders
+// are never inserted into the database, so referential integrity is switched off for the run.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatchingEngineBenchmark {
+
+    private static final int ITEM_ID = 1;
+    private static final int BUYER_ID = 1;
+    private static final int SELLER_ID = 2;
+    private static final int MAX_QUANTITY = 10;
+    private static final int PRICE_LEVELS = 100;
+    private static final double TOP_PRICE = 101.0; // One bid per quantity, above all the others
+    private static final int OPEN_QUANTITY = 999; // Only the resting unpriced bid has this quantity
+    private static final int UNMATCHED_QUANTITY = 500; // No bid has this quantity
+
+    @Param({"100", "10000", "100000"})
+    private int bookDepth;
+
+    private Connection connection;
+    private OrderService orderService;
+    private MatchingEngine engine;
+    private long nextOrderId;
+    private long[] restingIds; // The deep bids, in the order cancelAtDepth visits them
+    private double[] restingPrices;
+    private int[] restingQuantities;
+    private int cancelCursor;
+    private int quantityCursor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        connection = H2DatabaseUtil.initializeDatabase();
+        H2DatabaseUtil.resetAllTables(connection);
+        new UserService(connection).createUser("Buyer");
+        new UserService(connection).createUser("Seller");
+        new ItemService(connection).createItem("Benchmark Item");
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SET REFERENTIAL_INTEGRITY FALSE");
+        }
+        orderService = new OrderService(connection, 1, OrderSequencer.DEFAULT_RING_SIZE, OrderSequencer.BackpressurePolicy.BLOCK,
+                PersistencePipeline.DurabilityMode.ASYNC);
+        engine = new MatchingEngine(ITEM_ID, orderService);
+        nextOrderId = 1_000_000_000L;
+
+        Random random = new Random(42);
+        restingIds = new long[bookDepth];
+        restingPrices = new double[bookDepth];
+        restingQuantities = new int[bookDepth];
+        for (int i = 0; i < bookDepth; i++) {
+            restingPrices[i] = 100.0 - random.nextInt(PRICE_LEVELS) * 0.01;
+            restingQuantities[i] = 1 + random.nextInt(MAX_QUANTITY);
+            restingIds[i] = submit(BUYER_ID, Side.BUY, OrderType.AT_PRICE, restingPrices[i], restingQuantities[i]).getId();
+        }
+        for (int quantity = 1; quantity <= MAX_QUANTITY; quantity++) {
+            submit(BUYER_ID, Side.BUY, OrderType.AT_PRICE, TOP_PRICE, quantity);
+        }
+        submit(BUYER_ID, Side.BUY, OrderType.OPEN, null, OPEN_QUANTITY);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearTrades() throws SQLException {
+        orderService.flush();
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("TRUNCATE TABLE TRADES"); // Keeps the writer's inserts from slowing down as the table grows
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        engine.reset();
+        orderService.shutdown();
+        H2DatabaseUtil.resetAllTables(connection);
+        connection.close();
+    }
+
+    // An ask above every bid: looks at the bids of its quantity once, then rests
+    @Benchmark
+    public boolean submitNonCrossing() {
+        Order ask = submit(SELLER_ID, Side.SELL, OrderType.AT_PRICE, 200.0, nextQuantity());
+        return engine.cancelOrder(ask.getId());
+    }
+
+    // An ask that trades with the best bid of its quantity; the bid is then replaced
+    @Benchmark
+    public Order submitCrossing() {
+        int quantity = nextQuantity();
+        Order ask = submit(SELLER_ID, Side.SELL, OrderType.AT_PRICE, TOP_PRICE, quantity);
+        if (ask.getStatus() != OrderStatus.FILLED) {
+            throw new IllegalStateException("Crossing ask did not trade");
+        }
+        return submit(BUYER_ID, Side.BUY, OrderType.AT_PRICE, TOP_PRICE, quantity);
+    }
+
+    // Cancels bids from all over the book, each replaced by an equal one at the back of its level
+    @Benchmark
+    public Order cancelAtDepth() {
+        int slot = cancelCursor;
+        cancelCursor = (cancelCursor + 7919) % bookDepth; // A prime stride visits every slot in a scattered order
+        if (!engine.cancelOrder(restingIds[slot])) {
+            throw new IllegalStateException("Bid " + restingIds[slot] + " was not resting");
+        }
+        Order replacement = submit(BUYER_ID, Side.BUY, OrderType.AT_PRICE, restingPrices[slot], restingQuantities[slot]);
+        restingIds[slot] = replacement.getId();
+        return replacement;
+    }
+
+    // Two unpriced OPEN orders trade at the fallback price, taken from the best priced orders
+    @Benchmark
+    public Order fallbackPrice() {
+        Order ask = submit(SELLER_ID, Side.SELL, OrderType.OPEN, null, OPEN_QUANTITY);
+        if (ask.getStatus() != OrderStatus.FILLED) {
+            throw new IllegalStateException("OPEN ask did not trade");
+        }
+        return submit(BUYER_ID, Side.BUY, OrderType.OPEN, null, OPEN_QUANTITY);
+    }
+
+    // An ask priced through every bid, but with a quantity none of them has. The book is indexed by
+    // quantity, so this should cost about as much as submitNonCrossing at any depth; a scan over
+    // mismatched quantities would show up as a drop with bookDepth.
+    @Benchmark
+    public boolean exactQuantityMismatch() {
+        Order ask = submit(SELLER_ID, Side.SELL, OrderType.AT_PRICE, 1.0, UNMATCHED_QUANTITY);
+        return engine.cancelOrder(ask.getId());
+    }
+
+    private Order submit(int userId, Side side, OrderType orderType, Double price, int quantity) {
+        return engine.submitOrder(new Order(nextOrderId++, userId, ITEM_ID, side, orderType, price, OrderStatus.OPEN, LocalDateTime.now(), quantity));
+    }
+
+    private int nextQuantity() {
+        quantityCursor = quantityCursor % MAX_QUANTITY + 1;
+        return quantityCursor;
+    }
+}
@@ -0,0 +1,197 @@
+package com.vitea.marketplace.benchmarks;
+
+import com.vitea.marketplace.db.H2DatabaseUtil;
+import com.vitea.marketplace.db.PersistencePipeline;
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderStatus;
+import com.vitea.marketplace.models.OrderType;
+import com.vitea.marketplace.models.Side;
+import com.vitea.marketplace.models.TickSize;
+import com.vitea.marketplace.models.Trade;
+import com.vitea.marketplace.services.ItemService;
+import com.vitea.marketplace.services.OrderSequencer;
+import com.vitea.marketplace.services.OrderService;
+import com.vitea.marketplace.services.UserService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Each OrderService method that runs SQL, against ORDERS and TRADES pre-populated with `rows` orders
+// over ten items. Orders come in buy/sell pairs; three pairs in four are FILLED with a trade between
+// them, the rest are OPEN. The service persists in SYNC mode, so the writes are timed with their
+// statement, not handed to the writer thread.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrderServiceBenchmark {
+
+    private static final int ITEMS = 10;
+    private static final int BUYER_ID = 1;
+    private static final int SELLER_ID = 2;
+    private static final int ID_STRIDE = 7919; // Prime, so the cursors visit every pair in a scattered order
+
+    @Param({"10000", "100000"})
+    private int rows;
+
+    private Connection connection;
+    private OrderService orderService;
+    private int pairs;
+    private int pairCursor;
+    private int itemCursor;
+    private long nextOrderId;
+    private long nextTradeId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        connection = H2DatabaseUtil.initializeDatabase();
+        H2DatabaseUtil.resetAllTables(connection);
+        new UserService(connection).createUser("Buyer");
+        new UserService(connection).createUser("Seller");
+        ItemService itemService = new ItemService(connection);
+        for (int item = 1; item <= ITEMS; item++) {
+            itemService.createItem("Benchmark Item " + item);
+        }
+        pairs = rows / 2;
+        populate();
+        orderService = new OrderService(connection, 1, OrderSequencer.DEFAULT_RING_SIZE, OrderSequencer.BackpressurePolicy.BLOCK,
+                PersistencePipeline.DurabilityMode.SYNC);
+        nextOrderId = pairs * 2L + 1;
+        nextTradeId = pairs + 1;
+    }
+
+    // One JDBC batch per thousand rows, in a single transaction
+    private void populate() throws SQLException {
+        LocalDateTime start = LocalDateTime.now().minusDays(1);
+        connection.setAutoCommit(false);
+        try (PreparedStatement orders = connection.prepareStatement(PersistencePipeline.INSERT_ORDER_SQL);
+             PreparedStatement trades = connection.prepareStatement(PersistencePipeline.INSERT_TRADE_SQL)) {
+            for (int pair = 0; pair < pairs; pair++) {
+                int itemId = itemFor(pair);
+                OrderStatus status = isFilled(pair) ? OrderStatus.FILLED : OrderStatus.OPEN;
+                LocalDateTime timestamp = start.plusNanos(pair * 1000L);
+                double price = 100.0 + pair % 50;
+                // Filled pairs traded at one price; open pairs are a bid and an ask that do not cross
+                Order buy = newOrder(buyOrderId(pair), BUYER_ID, itemId, Side.BUY, status == OrderStatus.FILLED ? price : price - 50.0, timestamp);
+                Order sell = newOrder(sellOrderId(pair), SELLER_ID, itemId, Side.SELL, price, timestamp.plusNanos(1));
+                PersistencePipeline.bindOrder(orders, buy, status);
+                orders.addBatch();
+                PersistencePipeline.bindOrder(orders, sell, status);
+                orders.addBatch();
+                if (status == OrderStatus.FILLED) {
+                    PersistencePipeline.bindTrade(trades, new Trade(pair + 1, BUYER_ID, buy.getId(), SELLER_ID, sell.getId(), itemId, price, timestamp, 1));
+                    trades.addBatch();
+                }
+                if (pair % 500 == 499) {
+                    orders.executeBatch();
+                    trades.executeBatch();
+                }
+            }
+            orders.executeBatch();
+            trades.executeBatch();
+            connection.commit();
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        orderService.shutdown();
+        H2DatabaseUtil.resetAllTables(connection);
+        connection.close();
+    }
+
+    @Benchmark
+    public OrderStatus getPersistedOrderStatus() {
+        return orderService.getPersistedOrderStatus(buyOrderId(nextPair()));
+    }
+
+    // The open orders of one item, about a fortieth of the table
+    @Benchmark
+    public List<Order> getOpenOrdersByItem() {
+        return orderService.getOpenOrdersByItem(nextItem());
+    }
+
+    // The trades of one item, about a thirteenth of the table
+    @Benchmark
+    public List<Trade> getTradesByItem() {
+        return orderService.getTradesByItem(nextItem());
+    }
+
+    @Benchmark
+    public void insertOrder() {
+        orderService.insertOrder(newOrder(nextOrderId++, BUYER_ID, nextItem(), Side.BUY, 10.0, LocalDateTime.now()));
+    }
+
+    // Reads the order's item and current status, then writes the new one. The order is not live, so
+    // no engine is involved; a FILLED order stays FILLED, which keeps the table the same for every call.
+    @Benchmark
+    public void updateOrderStatus() {
+        int pair = nextPair();
+        while (!isFilled(pair)) {
+            pair = nextPair();
+        }
+        orderService.updateOrderStatus(sellOrderId(pair), OrderStatus.FILLED);
+    }
+
+    // Another trade between an existing filled pair
+    @Benchmark
+    public void insertTrade() {
+        int pair = nextPair();
+        orderService.insertTrade(new Trade(nextTradeId++, BUYER_ID, buyOrderId(pair), SELLER_ID, sellOrderId(pair), itemFor(pair),
+                100.0, LocalDateTime.now(), 1));
+    }
+
+    private static Order newOrder(long id, int userId, int itemId, Side side, double price, LocalDateTime timestamp) {
+        Order order = new Order(id, userId, itemId, side, OrderType.AT_PRICE, price, OrderStatus.OPEN, timestamp, 1);
+        order.applyTickSize(TickSize.DEFAULT);
+        order.setSequence(id);
+        return order;
+    }
+
+    private static long buyOrderId(int pair) {
+        return pair * 2L + 1;
+    }
+
+    private static long sellOrderId(int pair) {
+        return pair * 2L + 2;
+    }
+
+    private static int itemFor(int pair) {
+        return pair % ITEMS + 1;
+    }
+
+    private static boolean isFilled(int pair) {
+        return pair % 4 != 0;
+    }
+
+    private int nextPair() {
+        pairCursor = (pairCursor + ID_STRIDE) % pairs;
+        return pairCursor;
+    }
+
+    private int nextItem() {
+        itemCursor = itemCursor % ITEMS + 1;
+        return itemCursor;
+    }
+}
@@ -0,0 +1,154 @@
+package com.vitea.marketplace.benchmarks;
+
+import com.vitea.marketplace.db.H2DatabaseUtil;
+import com.vitea.marketplace.db.PersistencePipeline;
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderStatus;
+import com.vitea.marketplace.models.OrderType;
+import com.vitea.marketplace.models.Side;
+import com.vitea.marketplace.services.ItemService;
+import com.vitea.marketplace.services.OrderSequencer;
+import com.vitea.marketplace.services.OrderService;
+import com.vitea.marketplace.services.UserService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// The same operations as MatchingEngineBenchmark, but entered the way callers enter them: through
+// OrderService.submitOrder and cancelOrder, so each one also crosses the shard's ring, waits for the
+// matching thread to end its batch and is persisted in the given durability mode. The difference
+// between the two benchmarks at a depth is the cost of the sequencer path around the engine.
+//
+// The book is the one MatchingEngineBenchmark builds, and every operation again leaves it as it
+// found it. Orders are inserted into the database as in production; the finished ones and their
+// trades are deleted after each iteration so the tables stay the size of the book.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SequencedOrderBenchmark {
+
+    private static final int ITEM_ID = 1;
+    private static final int BUYER_ID = 1;
+    private static final int SELLER_ID = 2;
+    private static final int MAX_QUANTITY = 10;
+    private static final int PRICE_LEVELS = 100;
+    private static final double TOP_PRICE = 101.0; // One bid per quantity, above all the others
+
+    @Param({"100", "10000", "100000"})
+    private int bookDepth;
+
+    @Param({"ASYNC", "GROUP_COMMIT"})
+    private PersistencePipeline.DurabilityMode durability;
+
+    private Connection connection;
+    private OrderService orderService;
+    private long[] restingIds; // The deep bids, in the order cancelAtDepth visits them
+    private double[] restingPrices;
+    private int[] restingQuantities;
+    private int cancelCursor;
+    private int quantityCursor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        connection = H2DatabaseUtil.initializeDatabase();
+        H2DatabaseUtil.resetAllTables(connection);
+        new UserService(connection).createUser("Buyer");
+        new UserService(connection).createUser("Seller");
+        new ItemService(connection).createItem("Benchmark Item");
+        orderService = new OrderService(connection, 1, OrderSequencer.DEFAULT_RING_SIZE, OrderSequencer.BackpressurePolicy.BLOCK, durability);
+
+        // Entered asynchronously, so building a deep book does not take a batch per order
+        Random random = new Random(42);
+        restingIds = new long[bookDepth];
+        restingPrices = new double[bookDepth];
+        restingQuantities = new int[bookDepth];
+        List<CompletableFuture<Order>> resting = new ArrayList<>(bookDepth + MAX_QUANTITY);
+        for (int i = 0; i < bookDepth; i++) {
+            restingPrices[i] = 100.0 - random.nextInt(PRICE_LEVELS) * 0.01;
+            restingQuantities[i] = 1 + random.nextInt(MAX_QUANTITY);
+            resting.add(orderService.submitOrderAsync(BUYER_ID, ITEM_ID, Side.BUY, OrderType.AT_PRICE, restingPrices[i], restingQuantities[i]));
+        }
+        for (int quantity = 1; quantity <= MAX_QUANTITY; quantity++) {
+            resting.add(orderService.submitOrderAsync(BUYER_ID, ITEM_ID, Side.BUY, OrderType.AT_PRICE, TOP_PRICE, quantity));
+        }
+        for (int i = 0; i < bookDepth; i++) {
+            restingIds[i] = resting.get(i).join().getId();
+        }
+        resting.forEach(CompletableFuture::join);
+        orderService.flush();
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearFinishedOrders() throws SQLException {
+        orderService.flush();
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("TRUNCATE TABLE TRADES");
+            stmt.execute("DELETE FROM ORDERS WHERE STATUS <> 'OPEN'");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        orderService.shutdown();
+        H2DatabaseUtil.resetAllTables(connection);
+        connection.close();
+    }
+
+    // An ask above every bid rests, then is cancelled: two commands
+    @Benchmark
+    public boolean submitNonCrossing() {
+        Order ask = orderService.submitOrder(SELLER_ID, ITEM_ID, Side.SELL, OrderType.AT_PRICE, 200.0, nextQuantity());
+        return orderService.cancelOrder(ask.getId());
+    }
+
+    // An ask that trades with the best bid of its quantity; the bid is then replaced: two commands
+    @Benchmark
+    public Order submitCrossing() {
+        int quantity = nextQuantity();
+        Order ask = orderService.submitOrder(SELLER_ID, ITEM_ID, Side.SELL, OrderType.AT_PRICE, TOP_PRICE, quantity);
+        if (ask.getStatus() != OrderStatus.FILLED) {
+            throw new IllegalStateException("Crossing ask did not trade");
+        }
+        return orderService.submitOrder(BUYER_ID, ITEM_ID, Side.BUY, OrderType.AT_PRICE, TOP_PRICE, quantity);
+    }
+
+    // Cancels bids from all over the book, each replaced by an equal one at the back of its level: two commands
+    @Benchmark
+    public Order cancelAtDepth() {
+        int slot = cancelCursor;
+        cancelCursor = (cancelCursor + 7919) % bookDepth; // A prime stride visits every slot in a scattered order
+        if (!orderService.cancelOrder(restingIds[slot])) {
+            throw new IllegalStateException("Bid " + restingIds[slot] + " was not resting");
+        }
+        Order replacement = orderService.submitOrder(BUYER_ID, ITEM_ID, Side.BUY, OrderType.AT_PRICE, restingPrices[slot], restingQuantities[slot]);
+        restingIds[slot] = replacement.getId();
+        return replacement;
+    }
+
+    private int nextQuantity() {
+        quantityCursor = quantityCursor % MAX_QUANTITY + 1;
+        return quantityCursor;
+    }
+}
@@ -0,0 +1,101 @@
+package com.vitea.marketplace.api;
+
+import com.vitea.marketplace.models.OrderStatus;
+import com.vitea.marketplace.models.OrderType;
+import com.vitea.marketplace.models.Side;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+// Reference client for BinaryOrderServer. Sending and receiving are independent: orders and cancels go
+// out as soon as they are called, and responses are read one at a time with readMessage, so a client
+// can keep many orders in flight from one thread (or read on another). Neither direction allocates.
+public class BinaryOrderClient implements AutoCloseable {
+
+    private static final OrderStatus[] STATUSES = OrderStatus.values();
+
+    // Receives decoded responses; the arguments are only primitives and enum constants
+    public interface MessageHandler {
+        default void onAck(long clientOrderId, long orderId, OrderStatus status, int quantity) {
+        }
+
+        default void onFill(long clientOrderId, long orderId, long tradeId, double price, int quantity) {
+        }
+
+        default void onReject(long clientOrderId, byte reason) {
+        }
+    }
+
+    private final SocketChannel channel; // Blocking
+    private final ByteBuffer out = ByteBuffer.allocateDirect(BinaryProtocol.MESSAGE_BYTES);
+    private final ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024); // Always in write mode
+    private long nextClientOrderId;
+
+    public BinaryOrderClient(int port) throws IOException {
+        this.channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+
+    // Sends a new order and returns the client order id its responses will carry. A null price is
+    // sent as NaN (no price).
+    public synchronized long newOrder(int userId, int itemId, Side side, OrderType orderType, Double price, int quantity) throws IOException {
+        long clientOrderId = ++nextClientOrderId;
+        out.clear();
+        BinaryProtocol.putNewOrder(out, clientOrderId, userId, itemId, (byte) side.ordinal(), (byte) orderType.ordinal(),
+                price != null ? price : Double.NaN, quantity);
+        send();
+        return clientOrderId;
+    }
+
+    // Sends a cancel for an order id from an ACK and returns the client order id its response will carry
+    public synchronized long cancel(long orderId) throws IOException {
+        long clientOrderId = ++nextClientOrderId;
+        out.clear();
+        BinaryProtocol.putCancel(out, clientOrderId, orderId);
+        send();
+        return clientOrderId;
+    }
+
+    private void send() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+    }
+
+    // Blocks until the next response has arrived and passes it to the handler
+    public void readMessage(MessageHandler handler) throws IOException {
+        while (in.position() < BinaryProtocol.MESSAGE_BYTES) {
+            if (channel.read(in) < 0) {
+                throw new EOFException("Server closed the connection");
+            }
+        }
+        byte type = in.get(0);
+        long clientOrderId = in.getLong(1);
+        switch (type) {
+            case BinaryProtocol.ACK:
+                handler.onAck(clientOrderId, in.getLong(9), STATUSES[in.get(17)], in.getInt(18));
+                break;
+            case BinaryProtocol.FILL:
+                handler.onFill(clientOrderId, in.getLong(9), in.getLong(17), in.getDouble(25), in.getInt(33));
+                break;
+            case BinaryProtocol.REJECT:
+                handler.onReject(clientOrderId, in.get(9));
+                break;
+            default:
+                throw new IOException("Unknown message type " + type);
+        }
+        in.flip().position(BinaryProtocol.MESSAGE_BYTES);
+        in.compact();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
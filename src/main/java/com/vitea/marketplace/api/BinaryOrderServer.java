@@ -0,0 +1,371 @@
+package com.vitea.marketplace.api;
+
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderStatus;
+import com.vitea.marketplace.models.OrderType;
+import com.vitea.marketplace.models.Side;
+import com.vitea.marketplace.models.Trade;
+import com.vitea.marketplace.services.OrderService;
+import com.vitea.marketplace.services.TradeListener;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Serves the BinaryProtocol on a loopback port. One selector thread reads every connection and decodes
+// messages straight out of its direct buffer into OrderService calls; it never waits for a match.
+// Acks, fills and rejects are written by whichever thread produces them, normally the matching thread,
+// directly into the connection's socket, so a response leaves as soon as the engine's batch is
+// released (after its commit under group commit). What the socket does not take at once is kept in
+// the connection's buffer and finished by the selector thread; a client that lets that buffer fill up
+// is disconnected.
+//
+// Orders entered here get their ids before they are submitted, so fills can be routed to the
+// connection that entered the order even when they happen on entry. A fill goes out with the batch
+// that made the trade, and never ahead of the order's own ack. An order stops being tracked when it
+// leaves the book by any path, or when its connection closes.
+public class BinaryOrderServer implements AutoCloseable {
+
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private static final int WRITE_BUFFER_BYTES = 256 * 1024;
+    private static final Side[] SIDES = Side.values();
+    private static final OrderType[] ORDER_TYPES = OrderType.values();
+
+    // Where the fill of an order entered here goes. Orders trade their whole quantity at once, so there
+    // is at most one fill; it waits here if it is released before the ack. Guarded by the session.
+    private static final class Owner {
+        final Session session;
+        final long clientOrderId;
+        boolean acked;
+        boolean fillPending;
+        long tradeId;
+        double price;
+        int quantity;
+
+        Owner(Session session, long clientOrderId) {
+            this.session = session;
+            this.clientOrderId = clientOrderId;
+        }
+    }
+
+    // One client connection. Reads happen on the selector thread only; writes come from any thread and
+    // are serialized on the session.
+    private final class Session {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+        final ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES); // Always in write mode
+        boolean waitingToWrite; // OP_WRITE is registered; guarded by this
+        volatile boolean closed;
+
+        Session(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.key = channel.register(selector, SelectionKey.OP_READ, this);
+            sessions.add(this);
+        }
+
+        synchronized void ack(long clientOrderId, long orderId, OrderStatus status, int quantity) {
+            if (reserve()) {
+                BinaryProtocol.putAck(out, clientOrderId, orderId, (byte) status.ordinal(), quantity);
+                flush();
+            }
+        }
+
+        // Acks a new order, followed by its fill if that was released first
+        synchronized void ack(Owner owner, long orderId, OrderStatus status, int quantity) {
+            owner.acked = true;
+            ack(owner.clientOrderId, orderId, status, quantity);
+            if (owner.fillPending) {
+                owner.fillPending = false;
+                fill(owner, orderId, owner.tradeId, owner.price, owner.quantity);
+            }
+        }
+
+        synchronized void fill(Owner owner, long orderId, long tradeId, double price, int quantity) {
+            if (!owner.acked) {
+                owner.fillPending = true;
+                owner.tradeId = tradeId;
+                owner.price = price;
+                owner.quantity = quantity;
+                return;
+            }
+            if (reserve()) {
+                BinaryProtocol.putFill(out, owner.clientOrderId, orderId, tradeId, price, quantity);
+                flush();
+            }
+        }
+
+        synchronized void reject(long clientOrderId, byte reason) {
+            if (reserve()) {
+                BinaryProtocol.putReject(out, clientOrderId, reason);
+                flush();
+            }
+        }
+
+        private boolean reserve() {
+            if (closed) {
+                return false;
+            }
+            if (out.remaining() < BinaryProtocol.MESSAGE_BYTES) {
+                close(); // Not reading its responses
+                return false;
+            }
+            return true;
+        }
+
+        // Writes what the socket takes now and leaves the rest to the selector thread
+        synchronized void flush() {
+            if (closed) {
+                return;
+            }
+            try {
+                if (!waitingToWrite) {
+                    out.flip();
+                    channel.write(out);
+                    out.compact();
+                }
+                boolean pending = out.position() > 0;
+                if (pending != waitingToWrite) {
+                    waitingToWrite = pending;
+                    key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                    if (pending) {
+                        selector.wakeup();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }
+
+        // On the selector thread, when the socket can take more
+        synchronized void writePending() {
+            waitingToWrite = false;
+            flush();
+        }
+
+        void close() {
+            closed = true;
+            sessions.remove(this);
+            owners.values().removeIf(owner -> owner.session == this); // Its orders stay in the book, but nobody hears about them
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    private final OrderService orderService;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private final Map<Long, Owner> owners = new ConcurrentHashMap<>(); // Open orders entered here, by order id
+    private final TradeListener tradeListener = new TradeListener() {
+        @Override
+        public void onTrade(Trade trade) {
+            fill(trade.getBuyOrderId(), trade);
+            fill(trade.getSellOrderId(), trade);
+        }
+
+        @Override
+        public void onOrderRetired(int itemId, long orderId, OrderStatus status) {
+            owners.remove(orderId); // Cancelled here or through any other path
+        }
+    };
+    private volatile boolean stopping;
+
+    public BinaryOrderServer(int port, OrderService orderService) throws IOException {
+        this.orderService = orderService;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        } catch (IOException e) {
+            selector.close();
+            serverChannel.close();
+            throw e;
+        }
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        orderService.addTradeListener(tradeListener);
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // Orders entered here that are still open and whose connection is still up
+    public int getTrackedOrderCount() {
+        return owners.size();
+    }
+
+    // Serves until stop() or close() is called
+    public void run() throws IOException {
+        try {
+            serve();
+        } catch (ClosedSelectorException e) {
+            // Closed from another thread
+        }
+    }
+
+    private void serve() throws IOException {
+        while (!stopping) {
+            selector.select();
+            Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+            while (selected.hasNext()) {
+                SelectionKey key = selected.next();
+                selected.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Session session = (Session) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        read(session);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        session.writePending();
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    session.close(); // The client went away, or its session was closed while writing
+                }
+            }
+        }
+    }
+
+    public void stop() {
+        stopping = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void close() throws IOException {
+        stop();
+        orderService.removeTradeListener(tradeListener);
+        for (Session session : sessions) {
+            session.close();
+        }
+        serverChannel.close();
+        selector.close();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client = serverChannel.accept();
+        if (client == null) {
+            return;
+        }
+        client.configureBlocking(false);
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true); // Every response is latency-critical
+        new Session(client);
+    }
+
+    private void read(Session session) throws IOException {
+        ByteBuffer in = session.in;
+        if (session.channel.read(in) < 0) {
+            session.close();
+            return;
+        }
+        int end = in.position();
+        int start = 0;
+        while (end - start >= BinaryProtocol.MESSAGE_BYTES) {
+            decode(session, in, start);
+            start += BinaryProtocol.MESSAGE_BYTES;
+        }
+        in.flip().position(start);
+        in.compact();
+    }
+
+    // Reads the message at offset in place and hands it to the service
+    private void decode(Session session, ByteBuffer in, int offset) {
+        byte type = in.get(offset);
+        long clientOrderId = in.getLong(offset + 1);
+        if (type == BinaryProtocol.NEW_ORDER) {
+            newOrder(session, clientOrderId, in.getInt(offset + 9), in.getInt(offset + 13), in.get(offset + 17), in.get(offset + 18),
+                    in.getDouble(offset + 19), in.getInt(offset + 27));
+        } else if (type == BinaryProtocol.CANCEL) {
+            cancel(session, clientOrderId, in.getLong(offset + 9));
+        } else {
+            session.reject(clientOrderId, BinaryProtocol.REJECT_INVALID);
+        }
+    }
+
+    private void newOrder(Session session, long clientOrderId, int userId, int itemId, byte side, byte orderType, double price, int quantity) {
+        boolean hasPrice = !Double.isNaN(price);
+        if (side < 0 || side >= SIDES.length || orderType < 0 || orderType >= ORDER_TYPES.length || quantity < 1
+                || (ORDER_TYPES[orderType] == OrderType.AT_PRICE && !hasPrice) || Double.isInfinite(price)) {
+            session.reject(clientOrderId, BinaryProtocol.REJECT_INVALID);
+            return;
+        }
+        long orderId = orderService.reserveOrderId();
+        Owner owner = new Owner(session, clientOrderId);
+        owners.put(orderId, owner);
+        if (session.closed) {
+            owners.remove(orderId); // Closed by another thread meanwhile, after it dropped its owners
+            return;
+        }
+        CompletableFuture<Order> submitted;
+        try {
+            submitted = orderService.submitOrderAsync(orderId, userId, itemId, SIDES[side], ORDER_TYPES[orderType],
+                    hasPrice ? price : null, quantity, LocalDateTime.now());
+        } catch (RuntimeException e) {
+            submitted = CompletableFuture.failedFuture(e);
+        }
+        submitted.whenComplete((order, error) -> {
+            if (error != null) {
+                owners.remove(orderId);
+                session.reject(clientOrderId, BinaryProtocol.REJECT_ENGINE);
+            } else {
+                session.ack(owner, orderId, order.getStatus(), order.getQuantity());
+            }
+        });
+    }
+
+    private void cancel(Session session, long clientOrderId, long orderId) {
+        CompletableFuture<Boolean> cancelled;
+        try {
+            cancelled = orderService.cancelOrderAsync(orderId);
+        } catch (RuntimeException e) {
+            cancelled = CompletableFuture.failedFuture(e);
+        }
+        cancelled.whenComplete((done, error) -> {
+            if (error != null) {
+                session.reject(clientOrderId, BinaryProtocol.REJECT_ENGINE);
+            } else if (done) {
+                session.ack(clientOrderId, orderId, OrderStatus.CANCELLED, 0);
+            } else {
+                session.reject(clientOrderId, BinaryProtocol.REJECT_NOT_OPEN);
+            }
+        });
+    }
+
+    // On the matching thread: each side of the trade entered here hears about it once the batch is
+    // released. The Trade is reused by the engine, so its fields are copied now.
+    private void fill(long orderId, Trade trade) {
+        Owner owner = owners.remove(orderId);
+        if (owner != null) {
+            long tradeId = trade.getId();
+            double price = trade.getPrice();
+            int quantity = trade.getQuantity();
+            orderService.afterBatch(trade.getItemId(), () -> owner.session.fill(owner, orderId, tradeId, price, quantity));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.vitea.marketplace.api;
+
+import java.nio.ByteBuffer;
+
+// Fixed-length binary order entry, spoken by BinaryOrderServer and BinaryOrderClient. Every message is
+// MESSAGE_BYTES long, starts with its type byte and is read in place with absolute gets, so decoding
+// never copies or allocates. Numbers are big-endian; unused bytes are zero.
+//
+// Client to server:
+//   NEW_ORDER  type, long client order id @1, int user id @9, int item id @13, byte side @17 (0 BUY,
+//              1 SELL), byte order type @18 (0 AT_PRICE, 1 OPEN), double price @19 (NaN for none),
+//              int quantity @27
+//   CANCEL     type, long client order id @1, long order id @9
+//
+// Server to client:
+//   ACK        type, long client order id @1, long order id @9, byte status @17 (OrderStatus ordinal:
+//              OPEN, FILLED or CANCELLED), int quantity @18
+//   FILL       type, long client order id @1, long order id @9, long trade id @17, double price @25,
+//              int quantity @33
+//   REJECT     type, long client order id @1, byte reason @9
+//
+// The client order id is the client's own correlation number and is echoed back. A new order is
+// answered by an ACK (or a REJECT) and, whenever it trades, a FILL; an order that trades on entry may
+// see its FILL before its ACK. A cancel is answered by an ACK with status CANCELLED or a REJECT.
+public final class BinaryProtocol {
+
+    public static final int MESSAGE_BYTES = 40;
+    public static final int DEFAULT_PORT = 7071;
+
+    public static final byte NEW_ORDER = 1;
+    public static final byte CANCEL = 2;
+    public static final byte ACK = 3;
+    public static final byte FILL = 4;
+    public static final byte REJECT = 5;
+
+    public static final byte REJECT_INVALID = 1; // Malformed message, bad side, type, price or quantity
+    public static final byte REJECT_NOT_OPEN = 2; // Cancel of an unknown, filled or cancelled order
+    public static final byte REJECT_ENGINE = 3; // The matching shard did not accept the command
+
+    private BinaryProtocol() {
+    }
+
+    public static void putNewOrder(ByteBuffer buffer, long clientOrderId, int userId, int itemId, byte side, byte orderType, double price, int quantity) {
+        int start = begin(buffer, NEW_ORDER);
+        buffer.putLong(start + 1, clientOrderId)
+                .putInt(start + 9, userId)
+                .putInt(start + 13, itemId)
+                .put(start + 17, side)
+                .put(start + 18, orderType)
+                .putDouble(start + 19, price)
+                .putInt(start + 27, quantity);
+    }
+
+    public static void putCancel(ByteBuffer buffer, long clientOrderId, long orderId) {
+        int start = begin(buffer, CANCEL);
+        buffer.putLong(start + 1, clientOrderId).putLong(start + 9, orderId);
+    }
+
+    public static void putAck(ByteBuffer buffer, long clientOrderId, long orderId, byte status, int quantity) {
+        int start = begin(buffer, ACK);
+        buffer.putLong(start + 1, clientOrderId).putLong(start + 9, orderId).put(start + 17, status).putInt(start + 18, quantity);
+    }
+
+    public static void putFill(ByteBuffer buffer, long clientOrderId, long orderId, long tradeId, double price, int quantity) {
+        int start = begin(buffer, FILL);
+        buffer.putLong(start + 1, clientOrderId)
+                .putLong(start + 9, orderId)
+                .putLong(start + 17, tradeId)
+                .putDouble(start + 25, price)
+                .putInt(start + 33, quantity);
+    }
+
+    public static void putReject(ByteBuffer buffer, long clientOrderId, byte reason) {
+        int start = begin(buffer, REJECT);
+        buffer.putLong(start + 1, clientOrderId).put(start + 9, reason);
+    }
+
+    // Zeroes the message's slot at the buffer's position, writes its type and moves past it
+    private static int begin(ByteBuffer buffer, byte type) {
+        int start = buffer.position();
+        for (int i = 0; i < MESSAGE_BYTES; i += Long.BYTES) {
+            buffer.putLong(start + i, 0L);
+        }
+        buffer.put(start, type);
+        buffer.position(start + MESSAGE_BYTES);
+        return start;
+    }
+}
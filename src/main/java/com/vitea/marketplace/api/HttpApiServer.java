@@ -0,0 +1,311 @@
+package com.vitea.marketplace.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderType;
+import com.vitea.marketplace.models.Side;
+import com.vitea.marketplace.models.Trade;
+import com.vitea.marketplace.services.ItemService;
+import com.vitea.marketplace.services.OrderBookSnapshot;
+import com.vitea.marketplace.services.OrderService;
+import com.vitea.marketplace.services.UserService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+// Order entry and market data over HTTP/JSON on a loopback port, backed by the same services as the
+// CLI. Every request runs on a thread of its own: a virtual thread when the JVM has them (Java 21+),
+// so thousands of open connections cost little more than their sockets while each handler simply
+// blocks until its shard has matched the order. Older JVMs fall back to a cached platform thread pool.
+//
+//   POST   /orders                 {"user", "item", "side", "orderType", "price", "quantity"} -> 201 order
+//   DELETE /orders/{id}            -> 200 {"id", "cancelled": true}, or 404
+//   GET    /orderbook/{item}[?top=N] -> {"itemId", "version", "orders", "unmatchedOrders"}
+//   GET    /trades/{item}          -> {"itemId", "trades", "averagePrice", "volumeWeightedAveragePrice"}
+//   GET    /metrics                -> {"totalExecutedTrades", "totalUnmatchedOrders"}
+//
+// Users and items are ids or names. Errors are {"error": message} with a 4xx status.
+public class HttpApiServer implements AutoCloseable {
+
+    public static final int DEFAULT_PORT = 8080;
+
+    // Thrown by a handler to answer with a status other than 500
+    private static final class ApiException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        ApiException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange, String pathArgument) throws IOException;
+    }
+
+    private final OrderService orderService;
+    private final ToIntFunction<String> userIds; // Name to id, -1 if unknown
+    private final ToIntFunction<String> itemIds;
+    private final HttpServer server;
+    private final ExecutorService requestExecutor;
+    private final boolean virtualThreads;
+
+    public HttpApiServer(int port, OrderService orderService, UserService userService, ItemService itemService) throws IOException {
+        this.orderService = orderService;
+        this.userIds = userService::getUserIdByName;
+        this.itemIds = itemService::getItemIdByName;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+        this.virtualThreads = virtual != null;
+        this.requestExecutor = virtual != null ? virtual : Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "http-api");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(requestExecutor);
+        route("/orders", this::handleOrders);
+        route("/orderbook", this::handleOrderBook);
+        route("/trades", this::handleTrades);
+        route("/metrics", this::handleMetrics);
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() is looked up at run time so the build keeps its older
+    // release target; null when the running JVM does not have it
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    // Stops accepting, then lets requests already being handled finish
+    @Override
+    public void close() {
+        server.stop(0);
+        requestExecutor.shutdown();
+        try {
+            requestExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void route(String prefix, Handler handler) {
+        server.createContext(prefix, exchange -> {
+            try {
+                String rest = exchange.getRequestURI().getRawPath().substring(prefix.length());
+                if (!rest.isEmpty() && !rest.startsWith("/")) {
+                    throw new ApiException(404, "Not found: " + exchange.getRequestURI().getPath());
+                }
+                String argument = rest.length() > 1 ? URLDecoder.decode(rest.substring(1), StandardCharsets.UTF_8) : null;
+                handler.handle(exchange, argument);
+            } catch (ApiException e) {
+                sendError(exchange, e.status, e.getMessage());
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+            } catch (RuntimeException e) {
+                System.err.println("Error handling " + exchange.getRequestMethod() + " " + exchange.getRequestURI() + ": " + e.getMessage());
+                sendError(exchange, 500, "Internal error");
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+
+    private void handleOrders(HttpExchange exchange, String orderId) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (orderId == null && method.equals("POST")) {
+            Order order = submit(Json.parseObject(readBody(exchange)));
+            StringBuilder json = new StringBuilder(256);
+            Json.appendOrder(json, order);
+            send(exchange, 201, json);
+        } else if (orderId != null && method.equals("DELETE")) {
+            long id = parseNumber(orderId, "order id");
+            if (!orderService.cancelOrder(id)) {
+                throw new ApiException(404, "Order " + id + " not found or no longer open");
+            }
+            send(exchange, 200, new StringBuilder("{\"id\":").append(id).append(",\"cancelled\":true}"));
+        } else {
+            throw new ApiException(405, method + " is not supported here");
+        }
+    }
+
+    private Order submit(Map<String, Object> request) {
+        int userId = resolve(request.get("user"), userIds, "user");
+        int itemId = resolve(request.get("item"), itemIds, "item");
+        Side side = Side.valueOf(requiredString(request, "side").toUpperCase());
+        OrderType orderType = OrderType.valueOf(requiredString(request, "orderType").toUpperCase());
+        Object priceValue = request.get("price");
+        if (priceValue != null && !(priceValue instanceof Double)) {
+            throw new IllegalArgumentException("price must be a number or null");
+        }
+        Double price = (Double) priceValue;
+        if (orderType == OrderType.AT_PRICE && price == null) {
+            throw new IllegalArgumentException("AT_PRICE orders require a price");
+        }
+        Object quantityValue = request.get("quantity");
+        if (!(quantityValue instanceof Double) || (Double) quantityValue != Math.rint((Double) quantityValue) || (Double) quantityValue < 1) {
+            throw new IllegalArgumentException("quantity must be a positive whole number");
+        }
+        return orderService.submitOrder(userId, itemId, side, orderType, price, ((Double) quantityValue).intValue());
+    }
+
+    private void handleOrderBook(HttpExchange exchange, String item) throws IOException {
+        requireGet(exchange);
+        int itemId = resolve(item, itemIds, "item");
+        String top = queryParameter(exchange, "top");
+        OrderBookSnapshot snapshot;
+        if (top != null) {
+            int levels = (int) parseNumber(top, "top");
+            if (levels < 1) {
+                throw new IllegalArgumentException("top must be at least 1");
+            }
+            snapshot = orderService.getOrderBookSnapshot(itemId, levels);
+        } else {
+            snapshot = orderService.getOrderBookSnapshot(itemId);
+        }
+        List<Order> orders = snapshot.getOrders();
+        StringBuilder json = new StringBuilder(128 + orders.size() * 192);
+        json.append("{\"itemId\":").append(itemId).append(",\"version\":").append(snapshot.getVersion()).append(",\"orders\":");
+        Json.appendArray(json, orders, Json::appendOrder);
+        json.append(",\"unmatchedOrders\":").append(snapshot.getOrderCount()).append('}');
+        send(exchange, 200, json);
+    }
+
+    private void handleTrades(HttpExchange exchange, String item) throws IOException {
+        requireGet(exchange);
+        int itemId = resolve(item, itemIds, "item");
+        List<Trade> trades = orderService.queryTradeHistory(itemId);
+        StringBuilder json = new StringBuilder(128 + trades.size() * 192);
+        json.append("{\"itemId\":").append(itemId).append(",\"trades\":");
+        Json.appendArray(json, trades, Json::appendTrade);
+        json.append(",\"averagePrice\":");
+        Json.appendNumber(json, orderService.getAverageTradePrice(itemId));
+        json.append(",\"volumeWeightedAveragePrice\":");
+        Json.appendNumber(json, orderService.getVolumeWeightedAveragePrice(itemId));
+        json.append('}');
+        send(exchange, 200, json);
+    }
+
+    private void handleMetrics(HttpExchange exchange, String argument) throws IOException {
+        requireGet(exchange);
+        if (argument != null) {
+            throw new ApiException(404, "Not found: " + exchange.getRequestURI().getPath());
+        }
+        send(exchange, 200, new StringBuilder("{\"totalExecutedTrades\":").append(orderService.getTotalExecutedTrades())
+                .append(",\"totalUnmatchedOrders\":").append(orderService.getTotalUnmatchedOrders()).append('}'));
+    }
+
+    // A JSON number is an id, a JSON string is an id or a name
+    private static int resolve(Object idOrName, ToIntFunction<String> lookup, String kind) {
+        if (idOrName == null) {
+            throw new IllegalArgumentException("Missing " + kind);
+        }
+        int id;
+        if (idOrName instanceof Double) {
+            id = ((Double) idOrName).intValue();
+        } else {
+            String text = idOrName.toString();
+            try {
+                id = Integer.parseInt(text);
+            } catch (NumberFormatException e) {
+                id = lookup.applyAsInt(text);
+            }
+        }
+        if (id == -1) {
+            throw new ApiException(404, "Unknown " + kind + ": " + idOrName);
+        }
+        return id;
+    }
+
+    private static String requiredString(Map<String, Object> request, String name) {
+        Object value = request.get(name);
+        if (!(value instanceof String)) {
+            throw new IllegalArgumentException("Missing " + name);
+        }
+        return (String) value;
+    }
+
+    private static long parseNumber(String text, String name) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + text);
+        }
+    }
+
+    private static void requireGet(HttpExchange exchange) {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            throw new ApiException(405, exchange.getRequestMethod() + " is not supported here");
+        }
+    }
+
+    private static String queryParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0 && pair.substring(0, equals).equals(name)) {
+                return URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream body = exchange.getRequestBody()) {
+            return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        Json.appendString(json, message);
+        json.append('}');
+        try {
+            send(exchange, status, json);
+        } catch (IOException e) {
+            // The client went away
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, CharSequence json) throws IOException {
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
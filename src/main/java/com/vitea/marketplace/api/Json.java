@@ -0,0 +1,237 @@
+package com.vitea.marketplace.api;
+
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.Trade;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+// Just enough JSON for the HTTP API: writing its responses, and reading the flat request objects it
+// accepts (string, number, boolean and null members, no nesting).
+final class Json {
+
+    private Json() {
+    }
+
+    // Parses {"name": value, ...}. Numbers are returned as Double, so callers convert them to the type
+    // they expect.
+    static Map<String, Object> parseObject(String text) {
+        Parser parser = new Parser(text);
+        Map<String, Object> members = parser.readObject();
+        parser.skipWhitespace();
+        if (parser.position != text.length()) {
+            throw parser.error("Unexpected content after the object");
+        }
+        return members;
+    }
+
+    static void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\r': json.append("\\r"); break;
+                case '\t': json.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+
+    // NaN and infinities are not JSON; an empty book or history reports them as null
+    static void appendNumber(StringBuilder json, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            json.append("null");
+        } else {
+            json.append(value);
+        }
+    }
+
+    static <T> void appendArray(StringBuilder json, List<T> values, BiConsumer<StringBuilder, T> appender) {
+        json.append('[');
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appender.accept(json, values.get(i));
+        }
+        json.append(']');
+    }
+
+    static void appendOrder(StringBuilder json, Order order) {
+        json.append("{\"id\":").append(order.getId())
+                .append(",\"userId\":").append(order.getUserId())
+                .append(",\"itemId\":").append(order.getItemId())
+                .append(",\"side\":\"").append(order.getSide())
+                .append("\",\"orderType\":\"").append(order.getOrderType())
+                .append("\",\"price\":");
+        if (order.getPrice() == null) {
+            json.append("null");
+        } else {
+            appendNumber(json, order.getPrice());
+        }
+        json.append(",\"quantity\":").append(order.getQuantity())
+                .append(",\"status\":\"").append(order.getStatus())
+                .append("\",\"timestamp\":\"").append(order.getTimestamp())
+                .append("\"}");
+    }
+
+    static void appendTrade(StringBuilder json, Trade trade) {
+        json.append("{\"id\":").append(trade.getId())
+                .append(",\"itemId\":").append(trade.getItemId())
+                .append(",\"buyerId\":").append(trade.getBuyerId())
+                .append(",\"buyOrderId\":").append(trade.getBuyOrderId())
+                .append(",\"sellerId\":").append(trade.getSellerId())
+                .append(",\"sellOrderId\":").append(trade.getSellOrderId())
+                .append(",\"price\":");
+        appendNumber(json, trade.getPrice());
+        json.append(",\"quantity\":").append(trade.getQuantity())
+                .append(",\"timestamp\":\"").append(trade.getTimestamp())
+                .append("\"}");
+    }
+
+    private static final class Parser {
+        private final String text;
+        private int position;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        Map<String, Object> readObject() {
+            Map<String, Object> members = new LinkedHashMap<>();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                position++;
+                return members;
+            }
+            while (true) {
+                skipWhitespace();
+                String name = readString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                members.put(name, readValue());
+                skipWhitespace();
+                char next = next();
+                if (next == '}') {
+                    return members;
+                }
+                if (next != ',') {
+                    throw error("Expected ',' or '}'");
+                }
+            }
+        }
+
+        private Object readValue() {
+            char c = peek();
+            if (c == '"') {
+                return readString();
+            }
+            if (text.startsWith("null", position)) {
+                position += 4;
+                return null;
+            }
+            if (text.startsWith("true", position)) {
+                position += 4;
+                return Boolean.TRUE;
+            }
+            if (text.startsWith("false", position)) {
+                position += 5;
+                return Boolean.FALSE;
+            }
+            int start = position;
+            while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+                position++;
+            }
+            if (start == position) {
+                throw error("Expected a string, number, boolean or null");
+            }
+            try {
+                return Double.valueOf(text.substring(start, position));
+            } catch (NumberFormatException e) {
+                throw error("Invalid number " + text.substring(start, position));
+            }
+        }
+
+        private String readString() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                char escaped = next();
+                switch (escaped) {
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'u':
+                        if (position + 4 > text.length()) {
+                            throw error("Truncated \\u escape");
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Invalid \\u escape");
+                        }
+                        position += 4;
+                        break;
+                    default: value.append(escaped); // \" \\ \/
+                }
+            }
+        }
+
+        void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private void expect(char expected) {
+            if (next() != expected) {
+                position--;
+                throw error("Expected '" + expected + "'");
+            }
+        }
+
+        private char peek() {
+            if (position >= text.length()) {
+                throw error("Unexpected end of JSON");
+            }
+            return text.charAt(position);
+        }
+
+        private char next() {
+            char c = peek();
+            position++;
+            return c;
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + position);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.vitea.marketplace.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Accepts CLI command lines on a loopback TCP port, so one warm process (JVM, database, engines) serves
+// many short-lived clients. A single selector thread does all socket I/O without blocking; complete
+// lines are handed to one command thread, which runs them one at a time in arrival order, like the
+// interactive prompt does. Whatever a command prints to System.out or System.err on the command thread
+// is captured and sent back as its response; output from every other thread still goes to the
+// server's own console.
+//
+// Protocol: the client sends a command line terminated by '\n' (arguments separated by spaces, quoted
+// when they contain one). The server answers with a header line "<exit code> <body length>\n" followed
+// by that many bytes of UTF-8 output. A connection may carry any number of commands. The line
+// STOP_COMMAND stops the server.
+public class CommandServer implements AutoCloseable {
+
+    public static final int DEFAULT_PORT = 7070;
+    public static final String STOP_COMMAND = "stop-server";
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+
+    // Runs one command line; its output goes to System.out and System.err
+    public interface CommandExecutor {
+        int execute(String line);
+    }
+
+    // Per client: bytes of the line being read and responses waiting to be written
+    private static final class Connection {
+        final ByteBuffer readBuffer = ByteBuffer.allocate(MAX_LINE_BYTES);
+        final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    }
+
+    private static final class Response {
+        final SelectionKey key;
+        final ByteBuffer bytes;
+
+        Response(SelectionKey key, ByteBuffer bytes) {
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+
+    // Sends the command thread's writes to the current response and everyone else's to the console
+    private static final class RoutingOutputStream extends OutputStream {
+        private final PrintStream console;
+        private final ThreadLocal<ByteArrayOutputStream> capture = new ThreadLocal<>();
+
+        RoutingOutputStream(PrintStream console) {
+            this.console = console;
+        }
+
+        @Override
+        public void write(int b) {
+            ByteArrayOutputStream target = capture.get();
+            if (target != null) {
+                target.write(b);
+            } else {
+                console.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            ByteArrayOutputStream target = capture.get();
+            if (target != null) {
+                target.write(bytes, offset, length);
+            } else {
+                console.write(bytes, offset, length);
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (capture.get() == null) {
+                console.flush();
+            }
+        }
+    }
+
+    private final CommandExecutor executor;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService commandThread;
+    private final Queue<Response> responses; // Filled by the command thread, written by the selector thread
+    private final PrintStream originalOut;
+    private final PrintStream originalErr;
+    private final RoutingOutputStream routedOut;
+    private final RoutingOutputStream routedErr;
+    private volatile boolean stopping;
+
+    public CommandServer(int port, CommandExecutor executor) throws IOException {
+        this.executor = executor;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        } catch (IOException e) {
+            selector.close();
+            serverChannel.close();
+            throw e;
+        }
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.commandThread = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "command-server"));
+        this.responses = new ConcurrentLinkedQueue<>();
+        this.originalOut = System.out;
+        this.originalErr = System.err;
+        this.routedOut = new RoutingOutputStream(originalOut);
+        this.routedErr = new RoutingOutputStream(originalErr);
+        System.setOut(new PrintStream(routedOut, true));
+        System.setErr(new PrintStream(routedErr, true));
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // Serves until a client sends STOP_COMMAND or stop() is called
+    public void run() throws IOException {
+        while (!stopping || hasPendingWrites()) {
+            selector.select(1000);
+            Response response;
+            while ((response = responses.poll()) != null) {
+                if (response.key.isValid()) {
+                    ((Connection) response.key.attachment()).pendingWrites.add(response.bytes);
+                    response.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+            Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+            while (selected.hasNext()) {
+                SelectionKey key = selected.next();
+                selected.remove();
+                try {
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        if (key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key);
+                        }
+                    }
+                } catch (IOException e) {
+                    close(key); // The client went away
+                }
+            }
+        }
+    }
+
+    public void stop() {
+        stopping = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void close() throws IOException {
+        stop();
+        commandThread.shutdown();
+        try {
+            commandThread.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client = serverChannel.accept();
+        if (client == null) {
+            return;
+        }
+        client.configureBlocking(false);
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true); // Responses are small and awaited
+        client.register(selector, SelectionKey.OP_READ, new Connection());
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer buffer = connection.readBuffer;
+        if (client.read(buffer) < 0) {
+            close(key);
+            return;
+        }
+        int start = 0;
+        for (int i = 0; i < buffer.position(); i++) {
+            if (buffer.get(i) == '\n') {
+                String line = new String(buffer.array(), start, i - start, StandardCharsets.UTF_8).trim();
+                start = i + 1;
+                if (!line.isEmpty()) {
+                    dispatch(key, line);
+                }
+            }
+        }
+        if (start == 0 && !buffer.hasRemaining()) {
+            close(key); // No line end within MAX_LINE_BYTES
+            return;
+        }
+        buffer.flip().position(start);
+        buffer.compact();
+    }
+
+    // Runs the line on the command thread and queues the response for the selector thread
+    private void dispatch(SelectionKey key, String line) {
+        if (line.equals(STOP_COMMAND)) {
+            responses.add(new Response(key, encode(0, "Server stopping.\n".getBytes(StandardCharsets.UTF_8))));
+            stop();
+            return;
+        }
+        commandThread.execute(() -> {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            routedOut.capture.set(output);
+            routedErr.capture.set(output);
+            int exitCode;
+            try {
+                exitCode = executor.execute(line);
+            } catch (RuntimeException e) {
+                System.out.println("Error executing command: " + e.getMessage());
+                exitCode = 1;
+            } finally {
+                System.out.flush();
+                System.err.flush();
+                routedOut.capture.remove();
+                routedErr.capture.remove();
+            }
+            responses.add(new Response(key, encode(exitCode, output.toByteArray())));
+            selector.wakeup();
+        });
+    }
+
+    private static ByteBuffer encode(int exitCode, byte[] body) {
+        byte[] header = (exitCode + " " + body.length + "\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer bytes = ByteBuffer.allocate(header.length + body.length);
+        bytes.put(header).put(body).flip();
+        return bytes;
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        Queue<ByteBuffer> pending = ((Connection) key.attachment()).pendingWrites;
+        while (!pending.isEmpty()) {
+            ByteBuffer head = pending.peek();
+            client.write(head);
+            if (head.hasRemaining()) {
+                return; // Socket buffer is full; wait for the next OP_WRITE
+            }
+            pending.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private boolean hasPendingWrites() {
+        if (!responses.isEmpty()) {
+            return true;
+        }
+        for (SelectionKey key : selector.keys()) {
+            Object connection = key.attachment();
+            if (key.isValid() && connection != null && !((Connection) connection).pendingWrites.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
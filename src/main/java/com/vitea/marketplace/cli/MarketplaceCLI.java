@@ -1,13 +1,28 @@
 package com.vitea.marketplace.cli;
 
+import com.vitea.marketplace.api.BinaryOrderServer;
+import com.vitea.marketplace.api.BinaryProtocol;
+import com.vitea.marketplace.api.HttpApiServer;
+import com.vitea.marketplace.db.ConnectionPool;
 import com.vitea.marketplace.db.H2DatabaseUtil;
+import com.vitea.marketplace.db.StatementCache;
 import com.vitea.marketplace.db.DataLoader;
+import com.vitea.marketplace.db.OrderFileLoader;
+import com.vitea.marketplace.journal.EventJournal;
+import com.vitea.marketplace.journal.JournalRecovery;
+import com.vitea.marketplace.journal.MarketSnapshot;
+import com.vitea.marketplace.marketdata.UdpMarketDataFeed;
+import com.vitea.marketplace.models.Item;
 import com.vitea.marketplace.models.OrderType;
 import com.vitea.marketplace.models.Side;
 import com.vitea.marketplace.models.OrderStatus;
 import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.services.DepthSnapshot;
+import com.vitea.marketplace.services.EngineRuntime;
+import com.vitea.marketplace.services.OrderBookSnapshot;
 import com.vitea.marketplace.services.OrderService;
 import com.vitea.marketplace.services.ItemService;
+import com.vitea.marketplace.services.SnapshotScheduler;
 import com.vitea.marketplace.services.UserService;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
@@ -15,11 +30,18 @@ import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.sql.Connection; // Added this import
 import java.sql.SQLException; // Added this import
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.concurrent.Callable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 @Command(name = "marketplace",
@@ -30,10 +52,13 @@ import java.util.List;
             MarketplaceCLI.SubmitOrderCommand.class,
             MarketplaceCLI.CancelOrderCommand.class,
             MarketplaceCLI.QueryOrderBookCommand.class,
+            MarketplaceCLI.QueryDepthCommand.class,
             MarketplaceCLI.QueryTradeHistoryCommand.class,
             MarketplaceCLI.CreateUserCommand.class,
             MarketplaceCLI.CreateItemCommand.class,
-            MarketplaceCLI.QueryMetricsCommand.class
+            MarketplaceCLI.QueryMetricsCommand.class,
+            MarketplaceCLI.LoadOrdersCommand.class,
+            MarketplaceCLI.ServeCommand.class
         }
 )
 public class MarketplaceCLI implements Callable<Integer> {
@@ -42,6 +67,8 @@ public class MarketplaceCLI implements Callable<Integer> {
     private static OrderService orderService;
     private static ItemService itemService;
     private static UserService userService;
+    private static EventJournal journal; // Set when the service runs with -Dmarketplace.journal=<file>
+    private static SnapshotScheduler snapshots; // Periodic snapshots next to the journal, if enabled
 
     // Setters for testing purposes (keep for now, may remove later if no longer needed)
     public static void setOrderService(OrderService service) {
@@ -57,18 +84,58 @@ public class MarketplaceCLI implements Callable<Integer> {
     }
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("client")) {
+            // Forwards to a running `serve` process; no database or engines of our own
+            System.exit(MarketplaceClient.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
         Connection connection = null; // Declare connection here
         try {
             connection = H2DatabaseUtil.initializeDatabase();
 
-            // Initialize services with the database connection
-            userService = new UserService(connection);
-            itemService = new ItemService(connection);
-            orderService = new OrderService(connection);
-            
-            // Load seed data on startup
-            DataLoader dataLoader = new DataLoader(itemService, userService, orderService, connection);
-            dataLoader.loadSeedData();
+            // A writer connection per matching shard, plus a shared pool for queries and user/item writes
+            ConnectionPool connectionPool = new ConnectionPool(EngineRuntime.defaultShardCount(), ConnectionPool.DEFAULT_POOL_SIZE);
+            // With a journal, the database is rebuilt from it before the services read their state
+            // With a snapshot as well, the resting orders come from it and older records only add history
+            JournalRecovery recovery = null;
+            MarketSnapshot snapshot = null;
+            Path snapshotPath = null;
+            String journalPath = System.getProperty("marketplace.journal");
+            if (journalPath != null) {
+                EventJournal.FsyncPolicy fsyncPolicy = EventJournal.FsyncPolicy.valueOf(System.getProperty("marketplace.journal.fsync", "BATCH"));
+                journal = EventJournal.open(Paths.get(journalPath), fsyncPolicy);
+                snapshotPath = Paths.get(System.getProperty("marketplace.snapshot", journalPath + ".snapshot"));
+                if (Files.exists(snapshotPath)) {
+                    try {
+                        snapshot = MarketSnapshot.read(snapshotPath);
+                    } catch (IOException e) {
+                        System.err.println("Ignoring snapshot, replaying the whole journal: " + e.getMessage());
+                    }
+                }
+                recovery = JournalRecovery.recover(journal, snapshot, connectionPool);
+            }
+            userService = new UserService(connectionPool);
+            itemService = new ItemService(connectionPool);
+            orderService = new OrderService(connectionPool);
+            if (journal != null) {
+                userService.setJournal(journal);
+                itemService.setJournal(journal);
+                orderService.setJournal(journal);
+            }
+
+            if (recovery != null && (recovery.getEventCount() > 0 || recovery.isFromSnapshot())) {
+                int restored = orderService.restoreOpenOrders(snapshot);
+                System.out.println("Recovered " + (snapshot != null ? "a snapshot of " + snapshot.getOpenOrderCount() + " open orders and " : "")
+                        + recovery.getEventCount() + " journal events: " + recovery.getOrderCount() + " orders, "
+                        + recovery.getTradeCount() + " trades, " + restored + " open orders restored.");
+            } else {
+                // Load seed data on startup
+                DataLoader dataLoader = new DataLoader(itemService, userService, orderService, connection);
+                dataLoader.loadSeedData();
+            }
+            long snapshotInterval = Long.getLong("marketplace.snapshot.interval", 300);
+            if (journal != null && snapshotInterval > 0) {
+                snapshots = new SnapshotScheduler(orderService, snapshotPath, snapshotInterval);
+            }
 
             CommandLine commandLine = new CommandLine(new MarketplaceCLI());
 
@@ -95,15 +162,20 @@ public class MarketplaceCLI implements Callable<Integer> {
                 } catch (Exception e) {
                     System.err.println("Error in interactive mode: " + e.getMessage());
                 }
+                shutdownServices(); // Drain the matching shards and pending DB writes before exiting
                 System.exit(0);
             } else {
                 // Batch mode
                 int exitCode = commandLine.execute(args);
+                shutdownServices();
                 System.exit(exitCode);
             }
         } catch (SQLException e) {
             System.err.println("Database connection error: " + e.getMessage());
             System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Error opening journal: " + e.getMessage());
+            System.exit(1);
         } finally {
             if (connection != null) {
                 try {
@@ -115,6 +187,20 @@ public class MarketplaceCLI implements Callable<Integer> {
         }
     }
 
+    private static void shutdownServices() {
+        if (snapshots != null) {
+            snapshots.close(); // A last snapshot, while the shards can still capture
+        }
+        orderService.shutdown();
+        if (journal != null) {
+            try {
+                journal.close(); // After the shards, which append until their last batch
+            } catch (IOException e) {
+                System.err.println("Error closing journal: " + e.getMessage());
+            }
+        }
+    }
+
     // Helper method to split command line arguments, respecting quotes
     private static String[] splitCommandline(String line) {
         List<String> arguments = new ArrayList<>();
@@ -165,9 +251,21 @@ public class MarketplaceCLI implements Callable<Integer> {
         @Parameters(index = "0", description = "Item name")
         private String name;
 
+        @Option(names = "--tick-size", description = "Smallest price increment for the item (default: 0.01)")
+        private Double tickSize;
+
         @Override
         public Integer call() throws Exception {
-            itemService.createItem(name);
+            Item item = itemService.createItem(name);
+            if (item != null && tickSize != null) {
+                try {
+                    orderService.setTickSize(item.getId(), tickSize);
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    System.out.println(e.getMessage());
+                    return 1;
+                }
+                System.out.println("Tick size for " + item.getName() + ": " + tickSize);
+            }
             return 0;
         }
     }
@@ -227,7 +325,7 @@ public class MarketplaceCLI implements Callable<Integer> {
     @Command(name = "cancel-order", description = "Cancels an existing order.")
     static class CancelOrderCommand implements Callable<Integer> {
         @Parameters(index = "0", description = "Order ID to cancel")
-        private int orderId;
+        private long orderId;
 
         @Override
         public Integer call() throws Exception {
@@ -245,18 +343,52 @@ public class MarketplaceCLI implements Callable<Integer> {
         @Parameters(index = "0", description = "Item ID or Name")
         private String itemIdOrName;
 
+        @Option(names = "--top", description = "Only show the best N price levels of each side")
+        private Integer topLevels;
+
         @Override
         public Integer call() throws Exception {
             int itemId = parseItemId(itemIdOrName);
             if (itemId == -1) { System.out.println("Invalid Item ID or Name: " + itemIdOrName); return 1; }
+            if (topLevels != null && topLevels < 1) { System.out.println("--top must be at least 1."); return 1; }
 
+            OrderBookSnapshot snapshot = topLevels != null ? orderService.getOrderBookSnapshot(itemId, topLevels) : orderService.getOrderBookSnapshot(itemId);
             System.out.println("Order Book for Item ID: " + itemId);
-            orderService.queryOrderBook(itemId).forEach(order -> System.out.println("- " + order));
-            System.out.println("Unmatched Orders: " + orderService.getUnmatchedOrderCount(itemId));
+            snapshot.getOrders().forEach(order -> System.out.println("- " + order));
+            System.out.println("Unmatched Orders: " + snapshot.getOrderCount());
             return 0;
         }
     }
 
+    @Command(name = "query-depth", description = "Shows the aggregated quantity and order count of the best price levels of an item.")
+    static class QueryDepthCommand implements Callable<Integer> {
+        @Parameters(index = "0", description = "Item ID or Name")
+        private String itemIdOrName;
+
+        @Option(names = "--levels", description = "Price levels to show on each side (default: ${DEFAULT-VALUE})")
+        private int levels = 10;
+
+        @Override
+        public Integer call() throws Exception {
+            int itemId = parseItemId(itemIdOrName);
+            if (itemId == -1) { System.out.println("Invalid Item ID or Name: " + itemIdOrName); return 1; }
+            if (levels < 1) { System.out.println("--levels must be at least 1."); return 1; }
+
+            DepthSnapshot depth = orderService.getDepthSnapshot(itemId);
+            System.out.println("Depth for Item ID: " + itemId);
+            printLevels("Bids", depth, Side.BUY);
+            printLevels("Asks", depth, Side.SELL);
+            return 0;
+        }
+
+        private void printLevels(String title, DepthSnapshot depth, Side side) {
+            System.out.println(title + " (" + depth.getLevelCount(side) + " levels):");
+            for (DepthSnapshot.Level level : depth.getLevels(side, levels)) {
+                System.out.printf("  %.2f  quantity %d  orders %d%n", level.getPrice(), level.getQuantity(), level.getOrderCount());
+            }
+        }
+    }
+
     @Command(name = "query-trade-history", description = "Queries the trade history for a specific item.")
     static class QueryTradeHistoryCommand implements Callable<Integer> {
         @Parameters(index = "0", description = "Item ID or Name")
@@ -270,6 +402,7 @@ public class MarketplaceCLI implements Callable<Integer> {
             System.out.println("Trade History for Item ID: " + itemId);
             orderService.queryTradeHistory(itemId).forEach(trade -> System.out.println("- " + trade));
             System.out.println("Average Trade Price: " + orderService.getAverageTradePrice(itemId));
+            System.out.println("Volume Weighted Average Price: " + orderService.getVolumeWeightedAveragePrice(itemId));
             return 0;
         }
     }
@@ -281,8 +414,139 @@ public class MarketplaceCLI implements Callable<Integer> {
             System.out.println("Marketplace Metrics:");
             System.out.println("  Total Executed Trades: " + orderService.getTotalExecutedTrades());
             System.out.println("  Total Unmatched Orders: " + orderService.getTotalUnmatchedOrders());
+            ConnectionPool pool = orderService.getConnectionPool();
+            System.out.printf("  Connection Pool: %d acquisitions, %d waited, avg wait %.1f us, max wait %.1f us%n",
+                    pool.getAcquisitions(), pool.getWaitedAcquisitions(), pool.getAverageWaitMicros(), pool.getMaxWaitNanos() / 1000.0);
+            StatementCache statements = pool.getStatementCache();
+            System.out.println("  Statement Cache: " + statements.getHits() + " hits, " + statements.getMisses() + " misses, " + statements.size() + " cached");
+            return 0;
+        }
+    }
+
+    @Command(name = "load-orders", description = "Streams a CSV or binary order file through the matching engines.")
+    static class LoadOrdersCommand implements Callable<Integer> {
+        @Parameters(index = "0", description = "Order file: CSV lines of user,item,side,order_type,price,quantity[,timestamp], or binary records (.bin)")
+        private String file;
+
+        @Option(names = "--format", description = "CSV or BINARY (default: BINARY for .bin files, CSV otherwise)")
+        private OrderFileLoader.Format format;
+
+        @Option(names = "--batch-size", description = "Orders in flight before the loader waits for them (default: " + OrderFileLoader.DEFAULT_BATCH_SIZE + ")")
+        private int batchSize = OrderFileLoader.DEFAULT_BATCH_SIZE;
+
+        @Override
+        public Integer call() throws Exception {
+            Path path = Paths.get(file);
+            if (!Files.isReadable(path)) { System.out.println("Cannot read order file: " + file); return 1; }
+            if (batchSize < 1) { System.out.println("--batch-size must be at least 1."); return 1; }
+
+            OrderFileLoader loader = new OrderFileLoader(orderService, userService::getUserIdByName, itemService::getItemIdByName, batchSize);
+            OrderFileLoader.Result result;
+            try {
+                result = loader.load(path, format != null ? format : OrderFileLoader.formatOf(path));
+            } catch (IOException e) {
+                System.out.println("Error reading order file: " + e.getMessage());
+                return 1;
+            }
+            System.out.printf("Loaded %d orders in %.2f s (%.0f orders/sec).%n",
+                    result.getOrders(), result.getElapsedNanos() / 1e9, result.getOrdersPerSecond());
+            System.out.println("Trades: " + result.getTrades() + ", orders filled: " + result.getFilled() + ", rejected: " + result.getRejected());
+            return result.getRejected() == 0 ? 0 : 1;
+        }
+    }
+
+    @Command(name = "serve", description = "Keeps this process running and executes commands sent by `client` over a local socket.")
+    static class ServeCommand implements Callable<Integer> {
+        private static volatile boolean serving;
+
+        @Option(names = "--port", description = "Loopback port to listen on (default: " + CommandServer.DEFAULT_PORT + ")")
+        private int port = CommandServer.DEFAULT_PORT;
+
+        @Option(names = "--http-port", description = "Also serve the HTTP/JSON API on this loopback port (e.g. " + HttpApiServer.DEFAULT_PORT + ")")
+        private Integer httpPort;
+
+        @Option(names = "--binary-port", description = "Also serve the binary order-entry protocol on this loopback port (e.g. " + BinaryProtocol.DEFAULT_PORT + ")")
+        private Integer binaryPort;
+
+        @Option(names = "--market-data", description = "Publish UDP market data to host:port, a loopback port or a multicast group, "
+                + "conflating level updates over an optional interval, e.g. 239.1.1.1:9000@100 (ms). Repeatable.")
+        private List<String> marketDataSubscribers;
+
+        private CommandLine remoteCommands;
+
+        @Override
+        public Integer call() throws Exception {
+            if (serving) {
+                System.out.println("Already serving.");
+                return 1;
+            }
+            List<InetSocketAddress> feedAddresses = new ArrayList<>();
+            List<Long> feedConflation = new ArrayList<>();
+            for (String subscriber : marketDataSubscribers != null ? marketDataSubscribers : List.<String>of()) {
+                int at = subscriber.indexOf('@');
+                int colon = subscriber.lastIndexOf(':', at < 0 ? subscriber.length() : at);
+                try {
+                    feedAddresses.add(new InetSocketAddress(subscriber.substring(0, colon), Integer.parseInt(subscriber.substring(colon + 1, at < 0 ? subscriber.length() : at))));
+                    feedConflation.add(at < 0 ? 0 : Long.parseLong(subscriber.substring(at + 1)));
+                } catch (RuntimeException e) {
+                    System.out.println("Invalid market data subscriber, expected host:port[@ms]: " + subscriber);
+                    return 1;
+                }
+            }
+            serving = true;
+            try (CommandServer server = new CommandServer(port, this::executeRemote);
+                 HttpApiServer api = httpPort != null ? new HttpApiServer(httpPort, orderService, userService, itemService) : null;
+                 BinaryOrderServer binary = binaryPort != null ? new BinaryOrderServer(binaryPort, orderService) : null;
+                 UdpMarketDataFeed feed = !feedAddresses.isEmpty() ? new UdpMarketDataFeed() : null) {
+                if (api != null) {
+                    api.start();
+                    System.out.println("HTTP API on http://127.0.0.1:" + api.getPort() + "/ (" + (api.usesVirtualThreads() ? "virtual" : "platform") + " threads).");
+                }
+                if (binary != null) {
+                    Thread binaryThread = new Thread(() -> {
+                        try {
+                            binary.run();
+                        } catch (IOException e) {
+                            System.err.println("Binary order server stopped: " + e.getMessage());
+                        }
+                    }, "binary-order-server");
+                    binaryThread.setDaemon(true);
+                    binaryThread.start();
+                    System.out.println("Binary order entry on 127.0.0.1:" + binary.getPort() + ".");
+                }
+                if (feed != null) {
+                    for (int i = 0; i < feedAddresses.size(); i++) {
+                        feed.addSubscriber(feedAddresses.get(i), feedConflation.get(i));
+                        System.out.println("Market data to " + feedAddresses.get(i) + (feedConflation.get(i) > 0 ? ", conflated over " + feedConflation.get(i) + " ms." : "."));
+                    }
+                    orderService.addMarketDataListener(feed);
+                }
+                System.out.println("Serving on 127.0.0.1:" + server.getPort() + ". Send '" + CommandServer.STOP_COMMAND + "' to stop.");
+                server.run();
+                if (feed != null) {
+                    orderService.removeMarketDataListener(feed); // Then closing it sends what is still queued
+                }
+            } finally {
+                serving = false;
+            }
             return 0;
         }
+
+        // Runs on the server's command thread. The CommandLine is reused for every command (picocli resets
+        // options between executions) and created once the server routes System.out, so each command's
+        // output reaches its client.
+        private int executeRemote(String line) {
+            if (remoteCommands == null) {
+                remoteCommands = new CommandLine(new MarketplaceCLI())
+                        .setOut(new PrintWriter(System.out, true))
+                        .setErr(new PrintWriter(System.err, true));
+            }
+            if (line.equalsIgnoreCase("help")) {
+                remoteCommands.usage(remoteCommands.getOut());
+                return 0;
+            }
+            return remoteCommands.execute(splitCommandline(line));
+        }
     }
 
     private static int parseUserId(String idOrName) {
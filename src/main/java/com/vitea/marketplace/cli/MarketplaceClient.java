@@ -0,0 +1,131 @@
+package com.vitea.marketplace.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// Thin client for a server started with `serve`: forwards a CLI command to it and prints the response,
+// without starting a database or engines of its own. With no command it reads commands from standard
+// input over one connection, like the interactive prompt.
+//
+//   client [--port <port>] <command> [arguments...]
+public class MarketplaceClient implements AutoCloseable {
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final InputStream in;
+
+    public MarketplaceClient(int port) throws IOException {
+        this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        this.out = socket.getOutputStream();
+        this.in = new BufferedInputStream(socket.getInputStream());
+    }
+
+    public static int run(String[] args) {
+        int port = CommandServer.DEFAULT_PORT;
+        int first = 0;
+        if (args.length >= 2 && args[0].equals("--port")) {
+            try {
+                port = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid port: " + args[1]);
+                return 1;
+            }
+            first = 2;
+        }
+        try (MarketplaceClient client = new MarketplaceClient(port)) {
+            if (first == args.length) {
+                return client.interactive();
+            }
+            StringBuilder line = new StringBuilder();
+            for (int i = first; i < args.length; i++) {
+                if (line.length() > 0) {
+                    line.append(' ');
+                }
+                line.append(args[i].indexOf(' ') >= 0 || args[i].isEmpty() ? '"' + args[i] + '"' : args[i]);
+            }
+            return client.forward(line.toString());
+        } catch (IOException e) {
+            System.err.println("Cannot reach the marketplace server on port " + port + ": " + e.getMessage());
+            return 1;
+        }
+    }
+
+    // A command's exit code and everything it printed on the server
+    public static final class Response {
+        private final int exitCode;
+        private final String output;
+
+        Response(int exitCode, String output) {
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+    }
+
+    // Sends one command line and waits for its response
+    public Response send(String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        String header = readHeader();
+        int space = header.indexOf(' ');
+        int exitCode = Integer.parseInt(header.substring(0, space));
+        byte[] body = in.readNBytes(Integer.parseInt(header.substring(space + 1)));
+        return new Response(exitCode, new String(body, StandardCharsets.UTF_8));
+    }
+
+    private int forward(String line) throws IOException {
+        Response response = send(line);
+        System.out.print(response.getOutput());
+        System.out.flush();
+        return response.getExitCode();
+    }
+
+    private int interactive() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        int exitCode = 0;
+        while (true) {
+            System.out.print("marketplace> ");
+            String line = reader.readLine();
+            if (line == null || line.equalsIgnoreCase("exit")) {
+                return exitCode;
+            }
+            if (!line.isBlank()) {
+                exitCode = forward(line.trim());
+            }
+        }
+    }
+
+    private String readHeader() throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(16);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("Server closed the connection");
+            }
+            header.write(b);
+        }
+        return header.toString(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,200 @@
+package com.vitea.marketplace.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Hands out H2 connections so that no JDBC connection is ever used by two threads at once.
+// Every matching shard gets a dedicated writer connection that only its persistence path uses.
+// Queries and the low-volume user/item writes borrow a connection from a shared pool for the
+// duration of one statement. Matching writes never wait behind a query, and queries never wait
+// behind each other unless the pool is exhausted. Time spent waiting for a pooled connection is
+// recorded so an undersized pool shows up in the metrics. Prepared statements are cached per
+// connection in the pool's StatementCache.
+public class ConnectionPool implements AutoCloseable {
+
+    public static final int DEFAULT_POOL_SIZE = 4;
+
+    private final Connection[] writerConnections;
+    private final List<Connection> pooledConnections;
+    private final BlockingQueue<Connection> idleConnections;
+    private final boolean ownsConnections;
+    private final StatementCache statementCache;
+    private final LongAdder acquisitions;
+    private final LongAdder waitedAcquisitions;
+    private final LongAdder totalWaitNanos;
+    private final AtomicLong maxWaitNanos;
+
+    // Opens one writer connection per shard plus a shared pool of poolSize connections
+    public ConnectionPool(int writerCount, int poolSize) throws SQLException {
+        this(H2DatabaseUtil.DB_URL, H2DatabaseUtil.DB_USER, writerCount, poolSize);
+    }
+
+    // As above, against the database at the given URL
+    public ConnectionPool(String url, String user, int writerCount, int poolSize) throws SQLException {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1: " + poolSize);
+        }
+        this.writerConnections = new Connection[writerCount];
+        this.pooledConnections = new ArrayList<>(poolSize);
+        this.idleConnections = new ArrayBlockingQueue<>(poolSize);
+        this.ownsConnections = true;
+        this.statementCache = new StatementCache();
+        try {
+            for (int i = 0; i < writerCount; i++) {
+                writerConnections[i] = H2DatabaseUtil.getConnection(url, user);
+            }
+            for (int i = 0; i < poolSize; i++) {
+                Connection connection = H2DatabaseUtil.getConnection(url, user);
+                pooledConnections.add(connection);
+                idleConnections.add(connection);
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+        this.acquisitions = new LongAdder();
+        this.waitedAcquisitions = new LongAdder();
+        this.totalWaitNanos = new LongAdder();
+        this.maxWaitNanos = new AtomicLong();
+    }
+
+    // Wraps a single caller-owned connection as a pool of one with no writer connections. Borrowers
+    // take turns on it, and close() leaves it open.
+    public ConnectionPool(Connection connection) {
+        this.writerConnections = new Connection[0];
+        this.pooledConnections = new ArrayList<>(1);
+        this.idleConnections = new ArrayBlockingQueue<>(1);
+        this.ownsConnections = false;
+        this.statementCache = new StatementCache();
+        pooledConnections.add(connection);
+        idleConnections.add(connection);
+        this.acquisitions = new LongAdder();
+        this.waitedAcquisitions = new LongAdder();
+        this.totalWaitNanos = new LongAdder();
+        this.maxWaitNanos = new AtomicLong();
+    }
+
+    public StatementCache getStatementCache() {
+        return statementCache;
+    }
+
+    public int getWriterCount() {
+        return writerConnections.length;
+    }
+
+    public int getPoolSize() {
+        return pooledConnections.size();
+    }
+
+    public Connection getWriterConnection(int shardIndex) {
+        if (shardIndex < 0 || shardIndex >= writerConnections.length) {
+            throw new IllegalArgumentException("No writer connection for shard " + shardIndex + " (" + writerConnections.length + " writers)");
+        }
+        return writerConnections[shardIndex];
+    }
+
+    // Borrows a pooled connection, blocking until one is free; close the lease to hand it back
+    public Lease acquire() throws SQLException {
+        acquisitions.increment();
+        Connection connection = idleConnections.poll();
+        if (connection == null) {
+            long start = System.nanoTime();
+            try {
+                connection = idleConnections.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a pooled connection", e);
+            }
+            recordWait(System.nanoTime() - start);
+        }
+        return new Lease(connection);
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    // Acquisitions that found no idle connection and had to wait
+    public long getWaitedAcquisitions() {
+        return waitedAcquisitions.sum();
+    }
+
+    public long getTotalWaitNanos() {
+        return totalWaitNanos.sum();
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    public double getAverageWaitMicros() {
+        long count = acquisitions.sum();
+        return count == 0 ? 0.0 : totalWaitNanos.sum() / 1000.0 / count;
+    }
+
+    public int getIdleCount() {
+        return idleConnections.size();
+    }
+
+    @Override
+    public void close() {
+        for (Connection connection : writerConnections) {
+            release(connection);
+        }
+        for (Connection connection : pooledConnections) {
+            release(connection);
+        }
+    }
+
+    private void release(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        statementCache.evict(connection);
+        if (ownsConnections) {
+            H2DatabaseUtil.closeConnection(connection);
+        }
+    }
+
+    private void recordWait(long nanos) {
+        waitedAcquisitions.increment();
+        totalWaitNanos.add(nanos);
+        long max;
+        while (nanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, nanos)) {
+            // Retry until our wait is recorded or a longer one already is
+        }
+    }
+
+    // A borrowed pooled connection; meant for try-with-resources around one unit of work
+    public final class Lease implements AutoCloseable {
+        private Connection connection;
+
+        private Lease(Connection connection) {
+            this.connection = connection;
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        // A cached statement for this connection; valid until the lease is closed, and not to be closed itself
+        public PreparedStatement prepareStatement(String sql) throws SQLException {
+            return statementCache.prepare(connection, sql);
+        }
+
+        @Override
+        public void close() {
+            if (connection != null) {
+                idleConnections.add(connection);
+                connection = null;
+            }
+        }
+    }
+}
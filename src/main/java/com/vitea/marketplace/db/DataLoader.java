@@ -22,7 +22,7 @@ public class DataLoader {
     public DataLoader(ItemService itemService, UserService userService, OrderService orderService, Connection connection) {
         this.itemService = itemService;
         this.userService = userService;
-        this.orderService = new OrderService(connection); // Instantiate OrderService with connection
+        this.orderService = orderService; // Seed orders must rest in the same engines the CLI queries and cancels through
     }
 
     public void loadSeedData() {
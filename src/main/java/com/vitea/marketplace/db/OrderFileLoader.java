@@ -0,0 +1,293 @@
+package com.vitea.marketplace.db;
+
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderType;
+import com.vitea.marketplace.models.Side;
+import com.vitea.marketplace.services.OrderService;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.ToIntFunction;
+
+// Streams a large order file through an OrderService: orders are parsed as the file is read, pushed
+// into the matching shards without waiting for each one, and awaited a batch at a time, so the shards
+// match in parallel while the persistence pipelines write every batch in a single commit. Nothing is
+// printed per order.
+//
+// CSV: one order per line, user,item,side,order_type,price,quantity[,timestamp]. User and item are ids
+// or names (each distinct name is looked up once), the price is empty or NULL for OPEN orders without
+// one, and the optional timestamp is ISO-8601 local time. A first line starting with "user" is a header.
+//
+// Binary: the int MAGIC and VERSION, then fixed-width big-endian records of RECORD_BYTES: int user id,
+// int item id, byte side (0 BUY, 1 SELL), byte order type (0 AT_PRICE, 1 OPEN), double price (NaN for
+// none), int quantity and long timestamp in epoch milliseconds (0 for the time of loading).
+public class OrderFileLoader {
+
+    public enum Format {
+        CSV,
+        BINARY
+    }
+
+    public static final int MAGIC = 0x564D4F31; // "VMO1"
+    public static final int VERSION = 1;
+    public static final int RECORD_BYTES = 2 * Integer.BYTES + 2 + Double.BYTES + Integer.BYTES + Long.BYTES;
+    public static final int DEFAULT_BATCH_SIZE = 4096;
+
+    private static final int MAX_REPORTED_ERRORS = 10;
+    private static final Side[] SIDES = Side.values();
+    private static final OrderType[] ORDER_TYPES = OrderType.values();
+
+    // What a load did, for the end-of-run report
+    public static final class Result {
+        private final long orders;
+        private final long rejected;
+        private final long filled; // Orders that left the book filled, counted as two per trade
+        private final long trades;
+        private final long elapsedNanos;
+
+        Result(long orders, long rejected, long trades, long elapsedNanos) {
+            this.orders = orders;
+            this.rejected = rejected;
+            this.filled = trades * 2;
+            this.trades = trades;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getOrders() {
+            return orders;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getFilled() {
+            return filled;
+        }
+
+        public long getTrades() {
+            return trades;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getOrdersPerSecond() {
+            return elapsedNanos == 0 ? 0.0 : orders * 1_000_000_000.0 / elapsedNanos;
+        }
+    }
+
+    private final OrderService orderService;
+    private final ToIntFunction<String> userIds; // Name to id, -1 if unknown
+    private final ToIntFunction<String> itemIds;
+    private final int batchSize;
+    private final Map<String, Integer> resolvedUsers = new HashMap<>();
+    private final Map<String, Integer> resolvedItems = new HashMap<>();
+    private final CompletableFuture<Order>[] batch;
+    private int batched;
+    private long orders;
+    private long rejected;
+
+    public OrderFileLoader(OrderService orderService, ToIntFunction<String> userIds, ToIntFunction<String> itemIds) {
+        this(orderService, userIds, itemIds, DEFAULT_BATCH_SIZE);
+    }
+
+    public OrderFileLoader(OrderService orderService, ToIntFunction<String> userIds, ToIntFunction<String> itemIds, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+        }
+        this.orderService = orderService;
+        this.userIds = userIds;
+        this.itemIds = itemIds;
+        this.batchSize = batchSize;
+        this.batch = newBatch(batchSize);
+    }
+
+    // Generic arrays cannot be created directly; the array only ever holds CompletableFuture<Order>
+    @SuppressWarnings("unchecked")
+    private static CompletableFuture<Order>[] newBatch(int size) {
+        return (CompletableFuture<Order>[]) new CompletableFuture<?>[size];
+    }
+
+    // .bin files are binary, anything else CSV
+    public static Format formatOf(Path path) {
+        return path.getFileName().toString().toLowerCase().endsWith(".bin") ? Format.BINARY : Format.CSV;
+    }
+
+    public Result load(Path path, Format format) throws IOException {
+        long trades = orderService.getTotalExecutedTrades();
+        long start = System.nanoTime();
+        orders = 0;
+        rejected = 0;
+        if (format == Format.BINARY) {
+            loadBinary(path);
+        } else {
+            loadCsv(path);
+        }
+        awaitBatch();
+        orderService.flush(); // Every order, status and trade of the file is written
+        return new Result(orders, rejected, orderService.getTotalExecutedTrades() - trades, System.nanoTime() - start);
+    }
+
+    private void loadCsv(Path path) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            long lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank() || (lineNumber == 1 && line.regionMatches(true, 0, "user", 0, 4))) {
+                    continue;
+                }
+                try {
+                    submitCsv(line);
+                } catch (IllegalArgumentException | DateTimeParseException e) {
+                    reject("Line " + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void submitCsv(String line) {
+        String[] fields = line.split(",", -1);
+        if (fields.length != 6 && fields.length != 7) {
+            throw new IllegalArgumentException("Expected 6 or 7 fields, found " + fields.length);
+        }
+        int userId = resolve(fields[0].trim(), resolvedUsers, userIds, "user");
+        int itemId = resolve(fields[1].trim(), resolvedItems, itemIds, "item");
+        Side side = Side.valueOf(fields[2].trim().toUpperCase());
+        OrderType orderType = OrderType.valueOf(fields[3].trim().toUpperCase());
+        String priceField = fields[4].trim();
+        Double price = priceField.isEmpty() || priceField.equalsIgnoreCase("NULL") ? null : Double.valueOf(priceField);
+        int quantity = Integer.parseInt(fields[5].trim());
+        LocalDateTime timestamp = fields.length == 7 && !fields[6].isBlank() ? LocalDateTime.parse(fields[6].trim()) : null;
+        submit(userId, itemId, side, orderType, price, quantity, timestamp);
+    }
+
+    // Reads the file through a large buffer a chunk at a time; records never need copying out of it
+    private void loadBinary(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_BYTES * 8192);
+            readFully(channel, buffer, 2 * Integer.BYTES);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException(path + " is not a binary order file");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(path + " has unsupported order file version " + version);
+            }
+            buffer.compact();
+            long record = 0;
+            while (channel.read(buffer) >= 0 || buffer.position() > 0) {
+                buffer.flip();
+                if (buffer.remaining() < RECORD_BYTES) {
+                    if (channel.position() == channel.size()) {
+                        reject("Record " + (record + 1) + ": truncated, " + buffer.remaining() + " bytes left");
+                        break;
+                    }
+                    buffer.compact();
+                    continue;
+                }
+                while (buffer.remaining() >= RECORD_BYTES) {
+                    record++;
+                    int userId = buffer.getInt();
+                    int itemId = buffer.getInt();
+                    int side = buffer.get();
+                    int orderType = buffer.get();
+                    double price = buffer.getDouble();
+                    int quantity = buffer.getInt();
+                    long timestampMillis = buffer.getLong();
+                    if (side < 0 || side >= SIDES.length || orderType < 0 || orderType >= ORDER_TYPES.length) {
+                        reject("Record " + record + ": invalid side or order type");
+                        continue;
+                    }
+                    LocalDateTime timestamp = timestampMillis == 0 ? null
+                            : LocalDateTime.ofInstant(Instant.ofEpochMilli(timestampMillis), ZoneId.systemDefault());
+                    try {
+                        submit(userId, itemId, SIDES[side], ORDER_TYPES[orderType], Double.isNaN(price) ? null : price, quantity, timestamp);
+                    } catch (IllegalArgumentException e) {
+                        reject("Record " + record + ": " + e.getMessage());
+                    }
+                }
+                buffer.compact();
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        buffer.limit(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Order file ends inside its header");
+            }
+        }
+        buffer.flip();
+    }
+
+    private void submit(int userId, int itemId, Side side, OrderType orderType, Double price, int quantity, LocalDateTime timestamp) {
+        if (quantity < 1) {
+            throw new IllegalArgumentException("Quantity must be at least 1: " + quantity);
+        }
+        if (orderType == OrderType.AT_PRICE && price == null) {
+            throw new IllegalArgumentException("AT_PRICE orders require a price");
+        }
+        batch[batched++] = timestamp == null
+                ? orderService.submitOrderAsync(userId, itemId, side, orderType, price, quantity)
+                : orderService.submitOrderAsync(userId, itemId, side, orderType, price, quantity, timestamp);
+        orders++;
+        if (batched == batchSize) {
+            awaitBatch();
+        }
+    }
+
+    // Waits for the batch's orders to be matched and, under group commit, written
+    private void awaitBatch() {
+        for (int i = 0; i < batched; i++) {
+            try {
+                batch[i].join();
+            } catch (CompletionException e) {
+                orders--;
+                reject("Order not accepted: " + e.getCause().getMessage());
+            }
+            batch[i] = null;
+        }
+        batched = 0;
+    }
+
+    private int resolve(String idOrName, Map<String, Integer> resolved, ToIntFunction<String> lookup, String kind) {
+        Integer id = resolved.get(idOrName);
+        if (id == null) {
+            try {
+                id = Integer.parseInt(idOrName);
+            } catch (NumberFormatException e) {
+                id = lookup.applyAsInt(idOrName);
+            }
+            resolved.put(idOrName, id);
+        }
+        if (id == -1) {
+            throw new IllegalArgumentException("Unknown " + kind + ": " + idOrName);
+        }
+        return id;
+    }
+
+    private void reject(String message) {
+        if (rejected < MAX_REPORTED_ERRORS) {
+            System.err.println(message);
+        }
+        rejected++;
+    }
+}
@@ -0,0 +1,435 @@
+package com.vitea.marketplace.db;
+
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderStatus;
+import com.vitea.marketplace.models.Trade;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Persists order and trade events for the OrderService. In SYNC mode every write is executed and
+// auto-committed on the caller's thread, as the services always did. In GROUP_COMMIT and ASYNC mode
+// writes are queued and a writer thread drains them into JDBC batches on its own connection, one
+// commit per batch, so matching threads never wait on H2. flush() returns a future that completes
+// once everything queued so far has been committed; GROUP_COMMIT uses it to hold back a command's
+// result until its writes are durable, ASYNC does not wait at all. If the writer thread stops on an
+// error, pending and later flushes fail with it and later writes are dropped instead of queued.
+public class PersistencePipeline {
+
+    public enum DurabilityMode {
+        SYNC,         // Write and commit inline before returning
+        GROUP_COMMIT, // Queue the write; results are released once the batch containing it commits
+        ASYNC         // Queue the write; results are released immediately
+    }
+
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int MAX_BATCH_SIZE = 512;
+
+    public static final String INSERT_ORDER_SQL = "INSERT INTO ORDERS (ID, USER_ID, ITEM_ID, SIDE, ORDER_TYPE, PRICE, STATUS, TIMESTAMP, QUANTITY, PRICE_TICKS, SEQUENCE) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE_ORDER_STATUS_SQL = "UPDATE ORDERS SET STATUS = ? WHERE ID = ?";
+    public static final String INSERT_TRADE_SQL = "INSERT INTO TRADES (ID, BUYER_ID, BUY_ORDER_ID, SELLER_ID, SELL_ORDER_ID, ITEM_ID, PRICE, TIMESTAMP, QUANTITY, PRICE_TICKS) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private enum EventType {
+        INSERT_ORDER,
+        UPDATE_ORDER_STATUS,
+        INSERT_TRADE
+    }
+
+    // Events are recycled: the writer hands each one back to freeEvents once its batch is written, so a
+    // steady stream of writes does not allocate on the matching thread. A trade is copied into the
+    // event's own Trade because the matching engine reuses its Trade for the next fill.
+    private static final class Event {
+        EventType type;
+        Order order;
+        long orderId;
+        OrderStatus status; // Captured when queued; the Order itself keeps changing on the matching thread
+        final Trade trade = new Trade(0, 0, 0L, 0, 0L, 0, 0L, 0.0, null, 0);
+    }
+
+    // A reusable alternative to flush() for a caller that flushes from one thread only, so its targets
+    // only ever increase and callbacks can wait in a plain queue: nothing is allocated per flush.
+    // committed runs on the writer thread, or on the caller's if the writes are already committed, with
+    // null or with the error the writer stopped on.
+    public abstract static class CommitCallback {
+        private long target;
+
+        protected abstract void committed(RuntimeException failure);
+    }
+
+    private static final class PendingAck implements Comparable<PendingAck> {
+        final long sequence;
+        final CompletableFuture<Void> future;
+
+        PendingAck(long sequence, CompletableFuture<Void> future) {
+            this.sequence = sequence;
+            this.future = future;
+        }
+
+        @Override
+        public int compareTo(PendingAck other) {
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final DurabilityMode mode;
+    private final Connection connection;
+    private final StatementCache statementCache;
+    private final BlockingQueue<Event> queue;
+    private final BlockingQueue<Event> freeEvents; // Written events waiting to be reused
+    private final Object enqueueLock = new Object(); // Keeps sequence numbers in queue order
+    private final PriorityQueue<PendingAck> pendingAcks; // Guarded by itself
+    private final ArrayDeque<CommitCallback> pendingCallbacks; // Guarded by pendingAcks, in target order
+    private long enqueuedSequence; // Guarded by enqueueLock
+    private volatile long committedSequence;
+    private volatile boolean running;
+    private volatile RuntimeException failure; // Why the writer thread stopped, if it stopped on an error
+    private final Thread writerThread;
+
+    // The connection must not be used by anyone else: in SYNC mode the matching thread writes on it,
+    // otherwise the writer thread turns auto-commit off to commit whole batches. The caller owns it.
+    public PersistencePipeline(Connection connection, StatementCache statementCache, DurabilityMode mode, String name) {
+        this.mode = mode;
+        this.connection = connection;
+        this.statementCache = statementCache;
+        this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.freeEvents = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.pendingAcks = new PriorityQueue<>();
+        this.pendingCallbacks = new ArrayDeque<>();
+        this.enqueuedSequence = 0;
+        this.committedSequence = 0;
+        this.running = true;
+        if (mode == DurabilityMode.SYNC) {
+            this.writerThread = null;
+        } else {
+            this.writerThread = new Thread(this::drain, name);
+            this.writerThread.setDaemon(true);
+            this.writerThread.start();
+        }
+    }
+
+    public DurabilityMode getMode() {
+        return mode;
+    }
+
+    public long getCommittedSequence() {
+        return committedSequence;
+    }
+
+    public void insertOrder(Order order) {
+        if (mode == DurabilityMode.SYNC) {
+            try {
+                PreparedStatement pstmt = statementCache.prepare(connection, INSERT_ORDER_SQL);
+                bindOrder(pstmt, order, order.getStatus());
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                System.err.println("Error inserting order " + order.getId() + ": " + e.getMessage());
+            }
+            return;
+        }
+        Event event = obtainEvent(EventType.INSERT_ORDER, order.getId(), order.getStatus());
+        event.order = order;
+        enqueue(event);
+    }
+
+    public void updateOrderStatus(long orderId, OrderStatus status) {
+        if (mode == DurabilityMode.SYNC) {
+            try {
+                PreparedStatement pstmt = statementCache.prepare(connection, UPDATE_ORDER_STATUS_SQL);
+                bindStatus(pstmt, orderId, status);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                System.err.println("Error updating status for order " + orderId + ": " + e.getMessage());
+            }
+            return;
+        }
+        enqueue(obtainEvent(EventType.UPDATE_ORDER_STATUS, orderId, status));
+    }
+
+    public void insertTrade(Trade trade) {
+        if (mode == DurabilityMode.SYNC) {
+            try {
+                PreparedStatement pstmt = statementCache.prepare(connection, INSERT_TRADE_SQL);
+                bindTrade(pstmt, trade);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                System.err.println("Error inserting trade " + trade.getId() + ": " + e.getMessage());
+            }
+            return;
+        }
+        Event event = obtainEvent(EventType.INSERT_TRADE, trade.getId(), null);
+        event.trade.copyFrom(trade);
+        enqueue(event);
+    }
+
+    // Error the writer thread stopped on, or null while it is healthy
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    // Completes once every write queued before this call has been committed, or exceptionally once the
+    // writer thread has stopped on an error
+    public CompletableFuture<Void> flush() {
+        long target;
+        synchronized (enqueueLock) {
+            target = enqueuedSequence;
+        }
+        synchronized (pendingAcks) {
+            if (failure != null) {
+                return CompletableFuture.failedFuture(failure); // Writes since the failure were dropped
+            }
+            if (committedSequence >= target) {
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            pendingAcks.add(new PendingAck(target, future));
+            return future;
+        }
+    }
+
+    // Calls back once every write queued before this call has been committed; see CommitCallback
+    public void flush(CommitCallback callback) {
+        synchronized (enqueueLock) {
+            callback.target = enqueuedSequence;
+        }
+        RuntimeException failed;
+        synchronized (pendingAcks) {
+            failed = failure;
+            if (failed == null && committedSequence < callback.target) {
+                pendingCallbacks.addLast(callback);
+                return;
+            }
+        }
+        callback.committed(failed);
+    }
+
+    // Writes out everything already queued, then stops the writer thread
+    public void shutdown() {
+        if (writerThread == null || !running) {
+            return;
+        }
+        running = false;
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Event obtainEvent(EventType type, long orderId, OrderStatus status) {
+        Event event = freeEvents.poll();
+        if (event == null) {
+            event = new Event(); // Only until the pool has grown to the number of events in flight
+        }
+        event.type = type;
+        event.orderId = orderId;
+        event.status = status;
+        return event;
+    }
+
+    private void recycle(List<Event> batch) {
+        for (Event event : batch) {
+            event.order = null;
+            freeEvents.offer(event);
+        }
+    }
+
+    private void enqueue(Event event) {
+        synchronized (enqueueLock) {
+            if (failure != null) {
+                System.err.println("Dropping " + event.type + " for " + event.orderId + ": " + failure.getMessage());
+                return;
+            }
+            try {
+                queue.put(event); // Blocks the producer if the writer has fallen a full queue behind
+                enqueuedSequence++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.err.println("Interrupted while queueing " + event.type + " for " + event.orderId);
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            connection.setAutoCommit(false);
+        } catch (SQLException e) {
+            System.err.println("Error disabling auto-commit on persistence connection: " + e.getMessage());
+        }
+        List<Event> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        try {
+            PreparedStatement insertOrder = statementCache.prepare(connection, INSERT_ORDER_SQL);
+            PreparedStatement updateStatus = statementCache.prepare(connection, UPDATE_ORDER_STATUS_SQL);
+            PreparedStatement insertTrade = statementCache.prepare(connection, INSERT_TRADE_SQL);
+            while (true) {
+                Event first = queue.poll(10, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (!running) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                writeBatch(batch, insertOrder, updateStatus, insertTrade);
+                int written = batch.size();
+                recycle(batch); // Before the acknowledgement, so a flushed pipeline has every event back in the pool
+                batch.clear();
+                acknowledge(committedSequence + written);
+            }
+        } catch (SQLException e) {
+            System.err.println("Error preparing persistence statements: " + e.getMessage());
+            fail(new IllegalStateException("Persistence writer stopped: " + e.getMessage(), e));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(new IllegalStateException("Persistence writer interrupted", e));
+        } catch (RuntimeException e) {
+            System.err.println("Error in persistence writer: " + e.getMessage());
+            fail(e);
+        }
+    }
+
+    // Nothing is committed after the writer stops: fails the flushes waiting for it and empties the
+    // queue, so a producer blocked on a full queue gets through and later writes are dropped.
+    private void fail(RuntimeException cause) {
+        synchronized (pendingAcks) {
+            failure = cause;
+            while (!pendingAcks.isEmpty()) {
+                pendingAcks.poll().future.completeExceptionally(cause);
+            }
+            while (!pendingCallbacks.isEmpty()) {
+                pendingCallbacks.pollFirst().committed(cause);
+            }
+        }
+        queue.clear();
+    }
+
+    private void writeBatch(List<Event> batch, PreparedStatement insertOrder, PreparedStatement updateStatus, PreparedStatement insertTrade) {
+        try {
+            // Orders first, then status changes, then trades, so every row a later statement refers to exists
+            for (Event event : batch) {
+                if (event.type == EventType.INSERT_ORDER) {
+                    bindOrder(insertOrder, event.order, event.status);
+                    insertOrder.addBatch();
+                }
+            }
+            insertOrder.executeBatch();
+            for (Event event : batch) {
+                if (event.type == EventType.UPDATE_ORDER_STATUS) {
+                    bindStatus(updateStatus, event.orderId, event.status);
+                    updateStatus.addBatch();
+                }
+            }
+            updateStatus.executeBatch();
+            for (Event event : batch) {
+                if (event.type == EventType.INSERT_TRADE) {
+                    bindTrade(insertTrade, event.trade);
+                    insertTrade.addBatch();
+                }
+            }
+            insertTrade.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            // One bad row fails the whole batch; fall back to writing events one at a time so only it is lost
+            rollback();
+            writeIndividually(batch, insertOrder, updateStatus, insertTrade);
+        }
+    }
+
+    private void writeIndividually(List<Event> batch, PreparedStatement insertOrder, PreparedStatement updateStatus, PreparedStatement insertTrade) {
+        for (Event event : batch) {
+            try {
+                insertOrder.clearBatch();
+                updateStatus.clearBatch();
+                insertTrade.clearBatch();
+                switch (event.type) {
+                    case INSERT_ORDER:
+                        bindOrder(insertOrder, event.order, event.status);
+                        insertOrder.executeUpdate();
+                        break;
+                    case UPDATE_ORDER_STATUS:
+                        bindStatus(updateStatus, event.orderId, event.status);
+                        updateStatus.executeUpdate();
+                        break;
+                    case INSERT_TRADE:
+                        bindTrade(insertTrade, event.trade);
+                        insertTrade.executeUpdate();
+                        break;
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                System.err.println("Error persisting " + event.type + " for " + event.orderId + ": " + e.getMessage());
+                rollback();
+            }
+        }
+    }
+
+    private void rollback() {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            System.err.println("Error rolling back persistence batch: " + e.getMessage());
+        }
+    }
+
+    private void acknowledge(long sequence) {
+        synchronized (pendingAcks) {
+            committedSequence = sequence;
+            while (!pendingAcks.isEmpty() && pendingAcks.peek().sequence <= sequence) {
+                pendingAcks.poll().future.complete(null);
+            }
+            while (!pendingCallbacks.isEmpty() && pendingCallbacks.peekFirst().target <= sequence) {
+                pendingCallbacks.pollFirst().committed(null);
+            }
+        }
+    }
+
+    // The row binders are shared with journal recovery, which rebuilds the same tables in bulk
+    public static void bindOrder(PreparedStatement pstmt, Order order, OrderStatus status) throws SQLException {
+        pstmt.setLong(1, order.getId());
+        pstmt.setInt(2, order.getUserId());
+        pstmt.setInt(3, order.getItemId());
+        pstmt.setString(4, order.getSide().name());
+        pstmt.setString(5, order.getOrderType().name());
+        if (order.getPrice() != null) {
+            pstmt.setDouble(6, order.getPrice());
+        } else {
+            pstmt.setNull(6, java.sql.Types.DOUBLE);
+        }
+        pstmt.setString(7, status.name());
+        pstmt.setTimestamp(8, java.sql.Timestamp.valueOf(order.getTimestamp()));
+        pstmt.setInt(9, order.getQuantity());
+        if (order.hasPrice()) {
+            pstmt.setLong(10, order.getPriceTicks());
+        } else {
+            pstmt.setNull(10, java.sql.Types.BIGINT);
+        }
+        pstmt.setLong(11, order.getSequence());
+    }
+
+    private static void bindStatus(PreparedStatement pstmt, long orderId, OrderStatus status) throws SQLException {
+        pstmt.setString(1, status.name());
+        pstmt.setLong(2, orderId);
+    }
+
+    public static void bindTrade(PreparedStatement pstmt, Trade trade) throws SQLException {
+        pstmt.setLong(1, trade.getId());
+        pstmt.setInt(2, trade.getBuyerId());
+        pstmt.setLong(3, trade.getBuyOrderId());
+        pstmt.setInt(4, trade.getSellerId());
+        pstmt.setLong(5, trade.getSellOrderId());
+        pstmt.setInt(6, trade.getItemId());
+        pstmt.setDouble(7, trade.getPrice());
+        pstmt.setTimestamp(8, java.sql.Timestamp.valueOf(trade.getTimestamp()));
+        pstmt.setInt(9, trade.getQuantity());
+        pstmt.setLong(10, trade.getPriceTicks());
+    }
+}
@@ -0,0 +1,140 @@
+package com.vitea.marketplace.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+// Brings the schema up to the latest version in place. Every migration has a version number and is
+// applied at most once; the versions already applied are recorded in SCHEMA_VERSION. A database that
+// is already current is left untouched, and existing rows are kept.
+public class SchemaMigrations {
+
+    private static final class Migration {
+        final int version;
+        final String description;
+        final String[] statements;
+
+        Migration(int version, String description, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = statements;
+        }
+    }
+
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+        new Migration(1, "Create items, users, orders and trades",
+            "CREATE TABLE IF NOT EXISTS items (\n" +
+            "    id INT PRIMARY KEY AUTO_INCREMENT,\n" +
+            "    name VARCHAR(255) NOT NULL\n" +
+            ")",
+            "CREATE TABLE IF NOT EXISTS users (\n" +
+            "    id INT PRIMARY KEY AUTO_INCREMENT,\n" +
+            "    name VARCHAR(255) NOT NULL\n" +
+            ")",
+            "CREATE TABLE IF NOT EXISTS orders (\n" +
+            "    id BIGINT PRIMARY KEY AUTO_INCREMENT,\n" +
+            "    user_id INT NOT NULL,\n" +
+            "    item_id INT NOT NULL,\n" +
+            "    side VARCHAR(10) NOT NULL,\n" +
+            "    order_type VARCHAR(20) NOT NULL,\n" +
+            "    price DOUBLE,\n" +
+            "    status VARCHAR(20) NOT NULL,\n" +
+            "    timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP,\n" +
+            "    quantity INT NOT NULL,\n" +
+            "    FOREIGN KEY (user_id) REFERENCES users(id),\n" +
+            "    FOREIGN KEY (item_id) REFERENCES items(id)\n" +
+            ")",
+            "CREATE TABLE IF NOT EXISTS trades (\n" +
+            "    id BIGINT PRIMARY KEY AUTO_INCREMENT,\n" +
+            "    buyer_id INT NOT NULL,\n" +
+            "    buy_order_id BIGINT NOT NULL,\n" +
+            "    seller_id INT NOT NULL,\n" +
+            "    sell_order_id BIGINT NOT NULL,\n" +
+            "    item_id INT NOT NULL,\n" +
+            "    price DOUBLE NOT NULL,\n" +
+            "    timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP,\n" +
+            "    quantity INT NOT NULL,\n" +
+            "    FOREIGN KEY (buyer_id) REFERENCES users(id),\n" +
+            "    FOREIGN KEY (buy_order_id) REFERENCES orders(id),\n" +
+            "    FOREIGN KEY (seller_id) REFERENCES users(id),\n" +
+            "    FOREIGN KEY (sell_order_id) REFERENCES orders(id),\n" +
+            "    FOREIGN KEY (item_id) REFERENCES items(id)\n" +
+            ")"),
+        // Open-book queries filter on item, status and side and sort by price then time; counts filter
+        // on item and status (or status alone); trade history is read per item newest first
+        new Migration(2, "Index open-order and trade-history lookups",
+            "CREATE INDEX IF NOT EXISTS idx_orders_book ON orders (item_id, status, side, price, timestamp)",
+            "CREATE INDEX IF NOT EXISTS idx_orders_status ON orders (status)",
+            "CREATE INDEX IF NOT EXISTS idx_trades_item_time ON trades (item_id, timestamp DESC)"),
+        // Name lookups are case-insensitive; a generated lower-case key lets them use an index
+        new Migration(3, "Add indexed normalized name keys to users and items",
+            "ALTER TABLE users ADD COLUMN IF NOT EXISTS name_key VARCHAR(255) GENERATED ALWAYS AS (LOWER(name))",
+            "CREATE INDEX IF NOT EXISTS idx_users_name_key ON users (name_key)",
+            "ALTER TABLE items ADD COLUMN IF NOT EXISTS name_key VARCHAR(255) GENERATED ALWAYS AS (LOWER(name))",
+            "CREATE INDEX IF NOT EXISTS idx_items_name_key ON items (name_key)"),
+        // Prices are matched as whole ticks of a per-item tick size, and time priority is a sequence
+        // number rather than the timestamp. Existing rows are backfilled with the default cent tick and
+        // their ids, which were issued in arrival order; the book index now sorts on the new keys.
+        new Migration(4, "Add tick sizes, price ticks and order sequence numbers",
+            "ALTER TABLE items ADD COLUMN IF NOT EXISTS tick_size DOUBLE DEFAULT 0.01 NOT NULL",
+            "ALTER TABLE orders ADD COLUMN IF NOT EXISTS price_ticks BIGINT",
+            "ALTER TABLE orders ADD COLUMN IF NOT EXISTS sequence BIGINT DEFAULT 0 NOT NULL",
+            "ALTER TABLE trades ADD COLUMN IF NOT EXISTS price_ticks BIGINT DEFAULT 0 NOT NULL",
+            "UPDATE orders SET price_ticks = ROUND(price * 100), sequence = id WHERE sequence = 0",
+            "UPDATE trades SET price_ticks = ROUND(price * 100)",
+            "DROP INDEX IF EXISTS idx_orders_book",
+            "CREATE INDEX IF NOT EXISTS idx_orders_book ON orders (item_id, status, side, price_ticks, sequence)"),
+        // Migration 1 creates its tables only if they are missing, so a database from before migrations
+        // keeps the INT ids it was created with. Widening is a no-op on columns that are already BIGINT.
+        new Migration(5, "Widen order and trade ids to BIGINT",
+            "ALTER TABLE trades ALTER COLUMN buy_order_id SET DATA TYPE BIGINT",
+            "ALTER TABLE trades ALTER COLUMN sell_order_id SET DATA TYPE BIGINT",
+            "ALTER TABLE orders ALTER COLUMN id SET DATA TYPE BIGINT",
+            "ALTER TABLE trades ALTER COLUMN id SET DATA TYPE BIGINT")
+    );
+
+    public static int latestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+    }
+
+    // Applies every migration newer than the database's current version, in order. Returns the number applied.
+    public static synchronized int migrate(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS schema_version (\n" +
+                         "    version INT PRIMARY KEY,\n" +
+                         "    description VARCHAR(255) NOT NULL,\n" +
+                         "    applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP\n" +
+                         ")");
+            int current = currentVersion(connection);
+            int applied = 0;
+            for (Migration migration : MIGRATIONS) {
+                if (migration.version <= current) {
+                    continue;
+                }
+                for (String sql : migration.statements) {
+                    stmt.execute(sql);
+                }
+                try (PreparedStatement pstmt = connection.prepareStatement("INSERT INTO schema_version (version, description) VALUES (?, ?)")) {
+                    pstmt.setInt(1, migration.version);
+                    pstmt.setString(2, migration.description);
+                    pstmt.executeUpdate();
+                }
+                System.out.println("Applied schema migration " + migration.version + ": " + migration.description);
+                applied++;
+            }
+            return applied;
+        }
+    }
+
+    public static int currentVersion(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.vitea.marketplace.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Keeps prepared statements open per connection and SQL string so that H2 parses and plans each
+// statement once per connection instead of on every call. Statements handed out here belong to the
+// cache: callers must not close them, and like their connection they are used by one thread at a
+// time. The services only use a fixed set of SQL strings, so the cache stays small without eviction.
+public class StatementCache {
+
+    private final Map<Connection, Map<String, PreparedStatement>> statements;
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    public StatementCache() {
+        this.statements = new ConcurrentHashMap<>();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+    }
+
+    public PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        // The inner map is only touched by the thread currently holding the connection
+        Map<String, PreparedStatement> byConnection = statements.computeIfAbsent(connection, c -> new HashMap<>());
+        PreparedStatement statement = byConnection.get(sql);
+        if (statement != null && !statement.isClosed()) {
+            hits.increment();
+            return statement;
+        }
+        misses.increment();
+        statement = connection.prepareStatement(sql);
+        byConnection.put(sql, statement);
+        return statement;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Map<String, PreparedStatement> byConnection : statements.values()) {
+            size += byConnection.size();
+        }
+        return size;
+    }
+
+    // Closes and forgets every statement prepared on the connection, e.g. before the connection is closed
+    public void evict(Connection connection) {
+        Map<String, PreparedStatement> byConnection = statements.remove(connection);
+        if (byConnection == null) {
+            return;
+        }
+        for (PreparedStatement statement : byConnection.values()) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                System.err.println("Error closing cached statement: " + e.getMessage());
+            }
+        }
+    }
+}
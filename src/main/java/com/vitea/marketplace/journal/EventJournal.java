@@ -0,0 +1,471 @@
+package com.vitea.marketplace.journal;
+
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderStatus;
+import com.vitea.marketplace.models.OrderType;
+import com.vitea.marketplace.models.Side;
+import com.vitea.marketplace.models.Trade;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.zip.CRC32;
+
+// Append-only binary journal of everything that changes market state: users and items as they are
+// created, tick sizes, every accepted order, every order status change and every trade, in the order
+// the services applied them. The file is written through memory-mapped segments, so an append is a
+// copy into the page cache rather than a JDBC round trip; the FsyncPolicy decides when the mapped
+// pages are forced to disk. A process crash loses nothing that was appended, only a machine crash
+// can lose what was not yet forced.
+//
+// Every segment starts with a magic number, the format version and the number of records written
+// before it. Each record is an int body length, the body (a type byte followed by the fields) and an
+// int CRC32 of the body. The length is written last, so a record torn by a crash reads as length 0 or
+// fails its checksum, and the journal ends before it. A record never spans two segments: when it does
+// not fit, a SKIP length sends readers on to the start of the next segment.
+//
+// A record's position is its byte offset in the file, which only grows. Opening a journal reads only
+// its last segment, and replay can start at any position, so a restart from a MarketSnapshot never
+// reads the records the snapshot already covers.
+public class EventJournal implements AutoCloseable {
+
+    public enum FsyncPolicy {
+        NONE,        // Leave flushing to the operating system
+        BATCH,       // Force once per matching batch, before the batch's results are released
+        EVERY_EVENT  // Force after every record
+    }
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    private static final int MAGIC = 0x564D4A31; // "VMJ1"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 2 * Integer.BYTES + Long.BYTES; // Magic, version, records before the segment
+    private static final int SKIP = -1;
+    private static final int MAX_BODY_BYTES = 4096;
+    private static final int MAX_NAME_BYTES = 1024;
+
+    private static final byte USER = 1;
+    private static final byte ITEM = 2;
+    private static final byte TICK_SIZE = 3;
+    private static final byte ORDER = 4;
+    private static final byte STATUS = 5;
+    private static final byte TRADE = 6;
+
+    private static final Side[] SIDES = Side.values();
+    private static final OrderType[] ORDER_TYPES = OrderType.values();
+    private static final OrderStatus[] STATUSES = OrderStatus.values();
+
+    private final Path path;
+    private final FsyncPolicy fsyncPolicy;
+    private final int segmentSize;
+    private final FileChannel channel;
+    private final ByteBuffer body; // The record being appended, checksummed before it is copied in
+    private final CRC32 crc;
+    private MappedByteBuffer segment;
+    private int segmentIndex;
+    private int writePosition; // Within the current segment
+    private long eventCount;
+    private boolean closed;
+
+    private EventJournal(Path path, FsyncPolicy fsyncPolicy, int segmentSize) throws IOException {
+        if (segmentSize < MAX_BODY_BYTES * 2) {
+            throw new IllegalArgumentException("Journal segments must hold at least " + (MAX_BODY_BYTES * 2) + " bytes: " + segmentSize);
+        }
+        this.path = path;
+        this.fsyncPolicy = fsyncPolicy;
+        this.segmentSize = segmentSize;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.body = ByteBuffer.allocate(MAX_BODY_BYTES);
+        this.crc = new CRC32();
+    }
+
+    public static EventJournal open(Path path, FsyncPolicy fsyncPolicy) throws IOException {
+        return open(path, fsyncPolicy, DEFAULT_SEGMENT_SIZE);
+    }
+
+    // Opens or creates the journal and positions it after its last intact record
+    public static EventJournal open(Path path, FsyncPolicy fsyncPolicy, int segmentSize) throws IOException {
+        EventJournal journal = new EventJournal(path, fsyncPolicy, segmentSize);
+        try {
+            journal.recoverEnd();
+        } catch (IOException | RuntimeException e) {
+            journal.channel.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    public synchronized long getEventCount() {
+        return eventCount;
+    }
+
+    public synchronized boolean isEmpty() {
+        return eventCount == 0;
+    }
+
+    // Where the next record will be written. Every record appended from now on is at this position or
+    // after it, and every record appended before is below it.
+    public synchronized long getPosition() {
+        return (long) segmentIndex * segmentSize + writePosition;
+    }
+
+    public synchronized void appendUser(int userId, String name) {
+        body.clear();
+        body.put(USER);
+        body.putInt(userId);
+        putName(name);
+        append();
+    }
+
+    public synchronized void appendItem(int itemId, String name) {
+        body.clear();
+        body.put(ITEM);
+        body.putInt(itemId);
+        putName(name);
+        append();
+    }
+
+    public synchronized void appendTickSize(int itemId, double tickSize) {
+        body.clear();
+        body.put(TICK_SIZE);
+        body.putInt(itemId);
+        body.putDouble(tickSize);
+        append();
+    }
+
+    // An accepted order, with its matching keys (price ticks and sequence) already assigned
+    public synchronized void appendOrder(Order order) {
+        body.clear();
+        body.put(ORDER);
+        body.putLong(order.getId());
+        body.putInt(order.getUserId());
+        body.putInt(order.getItemId());
+        body.put((byte) order.getSide().ordinal());
+        body.put((byte) order.getOrderType().ordinal());
+        body.put((byte) order.getStatus().ordinal());
+        body.putLong(order.getPriceTicks());
+        body.putDouble(order.hasPrice() ? order.getPrice() : Double.NaN);
+        body.putLong(order.getSequence());
+        LocalDateTime timestamp = order.getTimestamp();
+        body.putLong(timestamp.toEpochSecond(ZoneOffset.UTC));
+        body.putInt(timestamp.getNano());
+        body.putInt(order.getQuantity());
+        append();
+    }
+
+    public synchronized void appendStatus(int itemId, long orderId, OrderStatus status) {
+        body.clear();
+        body.put(STATUS);
+        body.putInt(itemId);
+        body.putLong(orderId);
+        body.put((byte) status.ordinal());
+        append();
+    }
+
+    public synchronized void appendTrade(Trade trade) {
+        body.clear();
+        body.put(TRADE);
+        body.putLong(trade.getId());
+        body.putInt(trade.getBuyerId());
+        body.putLong(trade.getBuyOrderId());
+        body.putInt(trade.getSellerId());
+        body.putLong(trade.getSellOrderId());
+        body.putInt(trade.getItemId());
+        body.putLong(trade.getPriceTicks());
+        body.putDouble(trade.getPrice());
+        body.putLong(trade.getTimestampMillis());
+        body.putInt(trade.getQuantity());
+        append();
+    }
+
+    // Called by the matching shards at the end of every batch
+    public void endBatch() {
+        if (fsyncPolicy == FsyncPolicy.BATCH) {
+            force();
+        }
+    }
+
+    public synchronized void force() {
+        if (!closed) {
+            segment.force();
+        }
+    }
+
+    // Feeds every record, oldest first, to the handler. Returns the number of records read.
+    public synchronized long replay(JournalHandler handler) throws IOException {
+        return replay(handler, 0);
+    }
+
+    // Feeds the records at or after the given position (see getPosition) to the handler, oldest first.
+    // Segments before the position are not read. Returns the number of records read.
+    public synchronized long replay(JournalHandler handler, long fromPosition) throws IOException {
+        Cursor cursor = new Cursor();
+        cursor.index = (int) (fromPosition / segmentSize);
+        cursor.position = Math.max((int) (fromPosition % segmentSize), HEADER_BYTES);
+        long count = 0;
+        while (cursor.index <= segmentIndex) {
+            cursor.segment = cursor.index == segmentIndex ? segment.duplicate() : map(cursor.index);
+            readSegment(cursor, handler);
+            count += cursor.count;
+            if (!cursor.skip) {
+                break;
+            }
+            cursor.index++;
+            cursor.position = HEADER_BYTES;
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (fsyncPolicy != FsyncPolicy.NONE) {
+            segment.force();
+        }
+        closed = true;
+        segment = null;
+        channel.close();
+    }
+
+    private void putName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Name is too long to journal: " + bytes.length + " bytes");
+        }
+        body.putShort((short) bytes.length);
+        body.put(bytes);
+    }
+
+    private void append() {
+        if (closed) {
+            throw new IllegalStateException("Journal " + path + " is closed");
+        }
+        int length = body.position();
+        crc.reset();
+        crc.update(body.array(), 0, length);
+        int recordBytes = Integer.BYTES + length + Integer.BYTES;
+        if (writePosition + recordBytes + Integer.BYTES > segmentSize) {
+            // Leaves room for the terminating length word; readers skip to the next segment
+            segment.putInt(writePosition, SKIP);
+            if (fsyncPolicy != FsyncPolicy.NONE) {
+                segment.force(); // A later force only covers the new segment
+            }
+            try {
+                MappedByteBuffer next = map(segmentIndex + 1);
+                writeHeader(next, eventCount);
+                segment = next;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error extending journal " + path, e);
+            }
+            segmentIndex++;
+            writePosition = HEADER_BYTES;
+        }
+        segment.position(writePosition + Integer.BYTES);
+        segment.put(body.array(), 0, length);
+        segment.putInt((int) crc.getValue());
+        segment.putInt(writePosition, length); // Publishes the record
+        writePosition += recordBytes;
+        eventCount++;
+        if (fsyncPolicy == FsyncPolicy.EVERY_EVENT) {
+            segment.force();
+        }
+    }
+
+    // Finds the end of the intact records by reading the last segment only; earlier segments were
+    // closed with a SKIP and forced before the next one was started. A torn or corrupt tail is zeroed
+    // and cut off so that new records are never followed by stale bytes that could be read as a record.
+    private void recoverEnd() throws IOException {
+        if (channel.size() == 0) {
+            segment = map(0);
+            writeHeader(segment, 0);
+            segment.force();
+            segmentIndex = 0;
+            writePosition = HEADER_BYTES;
+            eventCount = 0;
+            return;
+        }
+        checkHeader(map(0), 0);
+        int last = (int) ((channel.size() - 1) / segmentSize);
+        MappedByteBuffer current = map(last);
+        if (last > 0 && current.getInt(0) == 0) {
+            // The file was extended but the crash came before the new segment's header was written
+            Cursor previous = new Cursor();
+            previous.segment = map(last - 1);
+            previous.position = HEADER_BYTES;
+            readSegment(previous, null);
+            writeHeader(current, previous.segment.getLong(2 * Integer.BYTES) + previous.count);
+            current.force();
+        }
+        checkHeader(current, last);
+        Cursor cursor = new Cursor();
+        cursor.segment = current;
+        cursor.index = last;
+        cursor.position = HEADER_BYTES;
+        readSegment(cursor, null);
+        segment = current;
+        segmentIndex = last;
+        writePosition = cursor.position;
+        eventCount = current.getLong(2 * Integer.BYTES) + cursor.count;
+        if (cursor.torn || cursor.skip) {
+            // A SKIP with no segment after it is as good as the end
+            for (int i = writePosition; i < segmentSize; i++) {
+                segment.put(i, (byte) 0);
+            }
+            segment.force();
+            channel.truncate((long) (segmentIndex + 1) * segmentSize);
+        }
+    }
+
+    private static void writeHeader(MappedByteBuffer segment, long recordsBefore) {
+        segment.putInt(0, MAGIC);
+        segment.putInt(Integer.BYTES, VERSION);
+        segment.putLong(2 * Integer.BYTES, recordsBefore);
+    }
+
+    private void checkHeader(MappedByteBuffer segment, int index) throws IOException {
+        if (segment.getInt(0) != MAGIC) {
+            throw new IOException(path + " is not a marketplace journal (segment " + index + ")");
+        }
+        if (segment.getInt(Integer.BYTES) != VERSION) {
+            throw new IOException(path + " has unsupported journal version " + segment.getInt(Integer.BYTES));
+        }
+    }
+
+    // A read position within one segment, and what reading it found
+    private static final class Cursor {
+        ByteBuffer segment;
+        int index;
+        int position;
+        long count; // Records read from this segment
+        boolean skip; // Stopped at a SKIP: the records carry on in the next segment
+        boolean torn; // Stopped at a torn or corrupt record
+    }
+
+    // Reads records from the cursor's position to the end of its segment's records, passing them to
+    // the handler if there is one. Leaves the cursor after the last intact record.
+    private void readSegment(Cursor cursor, JournalHandler handler) throws IOException {
+        ByteBuffer current = cursor.segment;
+        byte[] record = new byte[MAX_BODY_BYTES];
+        CRC32 check = new CRC32();
+        int position = cursor.position;
+        cursor.count = 0;
+        cursor.skip = false;
+        cursor.torn = false;
+        while (true) {
+            int length = current.getInt(position);
+            if (length == SKIP) {
+                cursor.skip = true;
+                break;
+            }
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || length > MAX_BODY_BYTES || position + Integer.BYTES + length + Integer.BYTES > segmentSize) {
+                cursor.torn = true;
+                break;
+            }
+            current.position(position + Integer.BYTES);
+            current.get(record, 0, length);
+            check.reset();
+            check.update(record, 0, length);
+            if (current.getInt() != (int) check.getValue()) {
+                cursor.torn = true;
+                break;
+            }
+            if (handler != null) {
+                handler.onRecord((long) cursor.index * segmentSize + position);
+                dispatch(ByteBuffer.wrap(record, 0, length), handler);
+            }
+            position += Integer.BYTES + length + Integer.BYTES;
+            cursor.count++;
+        }
+        cursor.position = position;
+    }
+
+    private static void dispatch(ByteBuffer record, JournalHandler handler) throws IOException {
+        byte type = record.get();
+        switch (type) {
+            case USER:
+                handler.onUser(record.getInt(), getName(record));
+                break;
+            case ITEM:
+                handler.onItem(record.getInt(), getName(record));
+                break;
+            case TICK_SIZE:
+                handler.onTickSize(record.getInt(), record.getDouble());
+                break;
+            case ORDER:
+                handler.onOrder(readOrder(record));
+                break;
+            case STATUS:
+                handler.onStatus(record.getInt(), record.getLong(), STATUSES[record.get()]);
+                break;
+            case TRADE:
+                handler.onTrade(readTrade(record));
+                break;
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    private static String getName(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Order readOrder(ByteBuffer record) {
+        long id = record.getLong();
+        int userId = record.getInt();
+        int itemId = record.getInt();
+        Side side = SIDES[record.get()];
+        OrderType orderType = ORDER_TYPES[record.get()];
+        OrderStatus status = STATUSES[record.get()];
+        long priceTicks = record.getLong();
+        double price = record.getDouble();
+        long sequence = record.getLong();
+        LocalDateTime timestamp = LocalDateTime.ofEpochSecond(record.getLong(), record.getInt(), ZoneOffset.UTC);
+        int quantity = record.getInt();
+        Order order = new Order(id, userId, itemId, side, orderType, Double.isNaN(price) ? null : price, status, timestamp, quantity);
+        order.setPriceTicks(priceTicks);
+        order.setSequence(sequence);
+        return order;
+    }
+
+    private static Trade readTrade(ByteBuffer record) {
+        long id = record.getLong();
+        int buyerId = record.getInt();
+        long buyOrderId = record.getLong();
+        int sellerId = record.getInt();
+        long sellOrderId = record.getLong();
+        int itemId = record.getInt();
+        long priceTicks = record.getLong();
+        double price = record.getDouble();
+        long timestampMillis = record.getLong();
+        int quantity = record.getInt();
+        Trade trade = new Trade(id, buyerId, buyOrderId, sellerId, sellOrderId, itemId, priceTicks, price, null, quantity);
+        trade.setTimestampMillis(timestampMillis);
+        return trade;
+    }
+
+    private MappedByteBuffer map(int index) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, (long) index * segmentSize, segmentSize);
+    }
+}
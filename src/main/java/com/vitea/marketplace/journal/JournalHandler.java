@@ -0,0 +1,32 @@
+package com.vitea.marketplace.journal;
+
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderStatus;
+import com.vitea.marketplace.models.Trade;
+
+// Receives the records of an EventJournal during replay, in the order they were appended
+public interface JournalHandler {
+
+    // Called with each record's position (see EventJournal.getPosition) just before the record itself
+    default void onRecord(long position) {
+    }
+
+    default void onUser(int userId, String name) {
+    }
+
+    default void onItem(int itemId, String name) {
+    }
+
+    default void onTickSize(int itemId, double tickSize) {
+    }
+
+    // The order as it was accepted; later status changes and trades follow as their own records
+    default void onOrder(Order order) {
+    }
+
+    default void onStatus(int itemId, long orderId, OrderStatus status) {
+    }
+
+    default void onTrade(Trade trade) {
+    }
+}
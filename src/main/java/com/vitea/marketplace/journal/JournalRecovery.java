@@ -0,0 +1,215 @@
+package com.vitea.marketplace.journal;
+
+import com.vitea.marketplace.db.ConnectionPool;
+import com.vitea.marketplace.db.PersistencePipeline;
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderStatus;
+import com.vitea.marketplace.models.Trade;
+import com.vitea.marketplace.services.OrderColumns;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Rebuilds the database from an EventJournal at startup, before the services are created. The
+// journal is replayed in order and folded into its end state: users, items and tick sizes, every
+// order with the last status recorded for it, and every trade. Those rows are then written in JDBC
+// batches, parents first. The services seed their ids, statistics and tick sizes from the rebuilt
+// tables as they always do, and OrderService.restoreOpenOrders() rests the orders that are still
+// open in their engines, in sequence order and without re-matching them, so the books come back
+// exactly as they were and replay never creates trades of its own.
+//
+// Given a MarketSnapshot, recovery starts from the snapshot's users, items and resting orders, which
+// are not folded again: the records the snapshot covers only add the trades and finished orders from
+// before it, so the history tables, and the statistics and last traded prices the services rebuild
+// from them, are the same as after a full replay. OrderService.restoreOpenOrders(snapshot) then
+// carries the snapshot's id counters over.
+public class JournalRecovery implements JournalHandler {
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final Map<Integer, String> users = new LinkedHashMap<>();
+    private final Map<Integer, String> items = new LinkedHashMap<>();
+    private final Map<Integer, Double> tickSizes = new LinkedHashMap<>();
+    private final Map<Long, Order> orders = new LinkedHashMap<>();
+    private final List<Trade> trades = new ArrayList<>();
+    private final MarketSnapshot snapshot; // null for a replay from the start of the journal
+    private long position; // Of the record being replayed
+    private long events;
+
+    private JournalRecovery(MarketSnapshot snapshot) {
+        this.snapshot = snapshot;
+        if (snapshot != null) {
+            users.putAll(snapshot.getUsers());
+            items.putAll(snapshot.getItems());
+            tickSizes.putAll(snapshot.getTickSizes());
+            for (MarketSnapshot.ItemState state : snapshot.getItemStates()) {
+                OrderColumns openOrders = state.getOpenOrders();
+                for (int row = 0; row < openOrders.size(); row++) {
+                    orders.put(openOrders.getId(row), openOrders.toOrder(row)); // Newer records change their status
+                }
+            }
+        }
+    }
+
+    // Replays the journal into the (empty) database behind the pool
+    public static JournalRecovery recover(EventJournal journal, ConnectionPool connectionPool) throws IOException, SQLException {
+        return recover(journal, null, connectionPool);
+    }
+
+    // Loads the snapshot, if there is one, and replays the journal on top of it. The whole journal is
+    // read either way, since the trades and finished orders before the snapshot are only kept there.
+    public static JournalRecovery recover(EventJournal journal, MarketSnapshot snapshot, ConnectionPool connectionPool) throws IOException, SQLException {
+        JournalRecovery recovery = new JournalRecovery(snapshot);
+        recovery.events = journal.replay(recovery);
+        if (recovery.events > 0 || snapshot != null) {
+            recovery.writeTo(connectionPool);
+        }
+        return recovery;
+    }
+
+    public boolean isFromSnapshot() {
+        return snapshot != null;
+    }
+
+    public long getEventCount() {
+        return events;
+    }
+
+    public int getOrderCount() {
+        return orders.size();
+    }
+
+    public int getTradeCount() {
+        return trades.size();
+    }
+
+    public long getOpenOrderCount() {
+        return orders.values().stream().filter(order -> order.getStatus() == OrderStatus.OPEN).count();
+    }
+
+    @Override
+    public void onRecord(long position) {
+        this.position = position;
+    }
+
+    @Override
+    public void onUser(int userId, String name) {
+        if (isNewReference()) {
+            users.put(userId, name);
+        }
+    }
+
+    @Override
+    public void onItem(int itemId, String name) {
+        if (isNewReference()) {
+            items.put(itemId, name);
+        }
+    }
+
+    @Override
+    public void onTickSize(int itemId, double tickSize) {
+        if (isNewReference()) {
+            tickSizes.put(itemId, tickSize);
+        }
+    }
+
+    // An order the snapshot holds as resting keeps the snapshot's copy; any other order from before the
+    // snapshot is history, and replayed like the orders after it
+    @Override
+    public void onOrder(Order order) {
+        if (isNew(order.getItemId())) {
+            orders.put(order.getId(), order);
+        } else {
+            orders.putIfAbsent(order.getId(), order);
+        }
+    }
+
+    // Orders resting in the snapshot had no status change before it, so every status applies
+    @Override
+    public void onStatus(int itemId, long orderId, OrderStatus status) {
+        Order order = orders.get(orderId);
+        if (order != null) {
+            order.setStatus(status);
+        }
+    }
+
+    @Override
+    public void onTrade(Trade trade) {
+        trades.add(trade);
+    }
+
+    // Whether the record being replayed is one the snapshot does not already cover
+    private boolean isNewReference() {
+        return snapshot == null || position >= snapshot.getReferencePosition();
+    }
+
+    private boolean isNew(int itemId) {
+        return snapshot == null || position >= snapshot.getPositionFor(itemId);
+    }
+
+    private void writeTo(ConnectionPool connectionPool) throws SQLException {
+        try (ConnectionPool.Lease lease = connectionPool.acquire()) {
+            Connection connection = lease.getConnection();
+            connection.setAutoCommit(false);
+            try {
+                PreparedStatement insertUser = lease.prepareStatement("INSERT INTO USERS (ID, NAME) VALUES (?, ?)");
+                for (Map.Entry<Integer, String> user : users.entrySet()) {
+                    insertUser.setInt(1, user.getKey());
+                    insertUser.setString(2, user.getValue());
+                    insertUser.addBatch();
+                }
+                insertUser.executeBatch();
+
+                PreparedStatement insertItem = lease.prepareStatement("INSERT INTO ITEMS (ID, NAME) VALUES (?, ?)");
+                for (Map.Entry<Integer, String> item : items.entrySet()) {
+                    insertItem.setInt(1, item.getKey());
+                    insertItem.setString(2, item.getValue());
+                    insertItem.addBatch();
+                }
+                insertItem.executeBatch();
+
+                PreparedStatement updateTickSize = lease.prepareStatement("UPDATE ITEMS SET TICK_SIZE = ? WHERE ID = ?");
+                for (Map.Entry<Integer, Double> tickSize : tickSizes.entrySet()) {
+                    updateTickSize.setDouble(1, tickSize.getValue());
+                    updateTickSize.setInt(2, tickSize.getKey());
+                    updateTickSize.addBatch();
+                }
+                updateTickSize.executeBatch();
+
+                PreparedStatement insertOrder = lease.prepareStatement(PersistencePipeline.INSERT_ORDER_SQL);
+                int batched = 0;
+                for (Order order : orders.values()) {
+                    PersistencePipeline.bindOrder(insertOrder, order, order.getStatus());
+                    insertOrder.addBatch();
+                    if (++batched % BATCH_SIZE == 0) {
+                        insertOrder.executeBatch();
+                    }
+                }
+                insertOrder.executeBatch();
+
+                PreparedStatement insertTrade = lease.prepareStatement(PersistencePipeline.INSERT_TRADE_SQL);
+                batched = 0;
+                for (Trade trade : trades) {
+                    PersistencePipeline.bindTrade(insertTrade, trade);
+                    insertTrade.addBatch();
+                    if (++batched % BATCH_SIZE == 0) {
+                        insertTrade.executeBatch();
+                    }
+                }
+                insertTrade.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.vitea.marketplace.journal;
+
+import com.vitea.marketplace.models.OrderType;
+import com.vitea.marketplace.models.Side;
+import com.vitea.marketplace.services.OrderColumns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// A point-in-time image of the market state a restart would otherwise fold from the journal: users,
+// items and their tick sizes, the resting orders of every item, and the id counters. Restarting from
+// a snapshot loads it instead of folding the records it covers; those records are still replayed for
+// the trades and finished orders before the snapshot, which are only kept in the journal, so the
+// trade history, and the statistics and last traded prices rebuilt from it, survive the restart.
+//
+// Each matching shard captures its engines on its own thread, between two commands, and records the
+// journal position at that moment: every record of its items below that position is in the snapshot,
+// every record at or after it is not. Users and items are read after noting a reference position, so
+// their records from that position on are replayed (harmlessly, if they were already read).
+//
+// On disk: magic, version, the fields below, then a CRC32 of all of it. The file is written next to
+// its final path and moved into place, so a crash mid-write leaves the previous snapshot intact.
+public class MarketSnapshot {
+
+    private static final int MAGIC = 0x564D5331; // "VMS1"
+    private static final int VERSION = 3;
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final Side[] SIDES = Side.values();
+    private static final OrderType[] ORDER_TYPES = OrderType.values();
+
+    // One matching shard's engines, as captured on its matching thread
+    public static final class ShardState {
+        private final long position;
+        private final List<ItemState> items;
+
+        public ShardState(long position, List<ItemState> items) {
+            this.position = position;
+            this.items = items;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public List<ItemState> getItems() {
+            return items;
+        }
+    }
+
+    // One engine: its resting orders in sequence order. They are a column copy, taken and written
+    // without building an Order per resting order.
+    public static final class ItemState {
+        private final int itemId;
+        private final OrderColumns openOrders;
+
+        public ItemState(int itemId, OrderColumns openOrders) {
+            this.itemId = itemId;
+            this.openOrders = openOrders;
+        }
+
+        public int getItemId() {
+            return itemId;
+        }
+
+        public OrderColumns getOpenOrders() {
+            return openOrders;
+        }
+    }
+
+    private final long createdAtMillis;
+    private final long referencePosition; // Users, items and tick sizes are complete up to here
+    private final long[] shardPositions; // Per shard of the service that took the snapshot
+    private final long lastOrderId;
+    private final long lastTradeId;
+    private final Map<Integer, String> users;
+    private final Map<Integer, String> items;
+    private final Map<Integer, Double> tickSizes;
+    private final List<ItemState> itemStates;
+
+    public MarketSnapshot(long createdAtMillis, long referencePosition, long[] shardPositions, long lastOrderId, long lastTradeId,
+                          Map<Integer, String> users, Map<Integer, String> items, Map<Integer, Double> tickSizes, List<ItemState> itemStates) {
+        if (shardPositions.length == 0) {
+            throw new IllegalArgumentException("A snapshot needs the position of at least one shard");
+        }
+        this.createdAtMillis = createdAtMillis;
+        this.referencePosition = referencePosition;
+        this.shardPositions = shardPositions.clone();
+        this.lastOrderId = lastOrderId;
+        this.lastTradeId = lastTradeId;
+        this.users = Collections.unmodifiableMap(users);
+        this.items = Collections.unmodifiableMap(items);
+        this.tickSizes = Collections.unmodifiableMap(tickSizes);
+        this.itemStates = Collections.unmodifiableList(itemStates);
+    }
+
+    public long getCreatedAtMillis() {
+        return createdAtMillis;
+    }
+
+    public long getReferencePosition() {
+        return referencePosition;
+    }
+
+    // Journal position from which the item's orders, status changes and trades are not in the snapshot.
+    // Items are pinned to shards by id, as EngineRuntime does, using the shard count of the service
+    // that took the snapshot.
+    public long getPositionFor(int itemId) {
+        return shardPositions[Math.floorMod(itemId, shardPositions.length)];
+    }
+
+    public long getLastOrderId() {
+        return lastOrderId;
+    }
+
+    public long getLastTradeId() {
+        return lastTradeId;
+    }
+
+    public Map<Integer, String> getUsers() {
+        return users;
+    }
+
+    public Map<Integer, String> getItems() {
+        return items;
+    }
+
+    public Map<Integer, Double> getTickSizes() {
+        return tickSizes;
+    }
+
+    public List<ItemState> getItemStates() {
+        return itemStates;
+    }
+
+    public int getOpenOrderCount() {
+        return itemStates.stream().mapToInt(state -> state.getOpenOrders().size()).sum();
+    }
+
+    // Writes the snapshot to a temporary file beside the path, then moves it over the path
+    public void write(Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16)) {
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(file, crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(createdAtMillis);
+            out.writeLong(referencePosition);
+            out.writeInt(shardPositions.length);
+            for (long position : shardPositions) {
+                out.writeLong(position);
+            }
+            out.writeLong(lastOrderId);
+            out.writeLong(lastTradeId);
+            out.writeInt(users.size());
+            for (Map.Entry<Integer, String> user : users.entrySet()) {
+                out.writeInt(user.getKey());
+                out.writeUTF(user.getValue());
+            }
+            out.writeInt(items.size());
+            for (Map.Entry<Integer, String> item : items.entrySet()) {
+                out.writeInt(item.getKey());
+                out.writeUTF(item.getValue());
+            }
+            out.writeInt(tickSizes.size());
+            for (Map.Entry<Integer, Double> tickSize : tickSizes.entrySet()) {
+                out.writeInt(tickSize.getKey());
+                out.writeDouble(tickSize.getValue());
+            }
+            out.writeInt(itemStates.size());
+            for (ItemState state : itemStates) {
+                out.writeInt(state.itemId);
+                out.writeInt(state.openOrders.size());
+                for (int row = 0; row < state.openOrders.size(); row++) {
+                    writeOrder(out, state.openOrders, row);
+                }
+            }
+            out.flush();
+            new DataOutputStream(file).writeInt((int) crc.getValue()); // Outside the checksum
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static MarketSnapshot read(Path path) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream file = new BufferedInputStream(Files.newInputStream(path), 1 << 16)) {
+            DataInputStream in = new DataInputStream(new CheckedInputStream(file, crc));
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + " is not a marketplace snapshot");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(path + " has unsupported snapshot version " + version);
+            }
+            long createdAtMillis = in.readLong();
+            long referencePosition = in.readLong();
+            long[] shardPositions = new long[in.readInt()];
+            for (int i = 0; i < shardPositions.length; i++) {
+                shardPositions[i] = in.readLong();
+            }
+            long lastOrderId = in.readLong();
+            long lastTradeId = in.readLong();
+            Map<Integer, String> users = new LinkedHashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                users.put(in.readInt(), in.readUTF());
+            }
+            Map<Integer, String> items = new LinkedHashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                items.put(in.readInt(), in.readUTF());
+            }
+            Map<Integer, Double> tickSizes = new LinkedHashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                tickSizes.put(in.readInt(), in.readDouble());
+            }
+            int itemCount = in.readInt();
+            List<ItemState> itemStates = new ArrayList<>(itemCount);
+            for (int i = 0; i < itemCount; i++) {
+                int itemId = in.readInt();
+                int orderCount = in.readInt();
+                OrderColumns.Builder openOrders = new OrderColumns.Builder(itemId, orderCount);
+                for (int j = 0; j < orderCount; j++) {
+                    readOrder(in, openOrders);
+                }
+                itemStates.add(new ItemState(itemId, openOrders.build()));
+            }
+            int expected = (int) crc.getValue();
+            if (new DataInputStream(file).readInt() != expected) {
+                throw new IOException(path + " is corrupt: checksum mismatch");
+            }
+            return new MarketSnapshot(createdAtMillis, referencePosition, shardPositions, lastOrderId, lastTradeId,
+                    users, items, tickSizes, itemStates);
+        }
+    }
+
+    // Resting orders are always OPEN, so the status is not stored
+    private static void writeOrder(DataOutputStream out, OrderColumns orders, int row) throws IOException {
+        out.writeLong(orders.getId(row));
+        out.writeInt(orders.getUserId(row));
+        out.writeByte(orders.getSide(row).ordinal());
+        out.writeByte(orders.getOrderType(row).ordinal());
+        out.writeLong(orders.getPriceTicks(row));
+        out.writeDouble(orders.getPrice(row));
+        out.writeLong(orders.getSequence(row));
+        long nanos = orders.getTimestampNanos(row);
+        out.writeLong(Math.floorDiv(nanos, NANOS_PER_SECOND));
+        out.writeInt((int) Math.floorMod(nanos, NANOS_PER_SECOND));
+        out.writeInt(orders.getQuantity(row));
+    }
+
+    private static void readOrder(DataInputStream in, OrderColumns.Builder into) throws IOException {
+        long id = in.readLong();
+        int userId = in.readInt();
+        Side side = SIDES[in.readByte()];
+        OrderType orderType = ORDER_TYPES[in.readByte()];
+        long priceTicks = in.readLong();
+        double price = in.readDouble();
+        long sequence = in.readLong();
+        long nanos = in.readLong() * NANOS_PER_SECOND + in.readInt();
+        int quantity = in.readInt();
+        into.add(id, userId, side, orderType, priceTicks, price, sequence, nanos, quantity);
+    }
+}
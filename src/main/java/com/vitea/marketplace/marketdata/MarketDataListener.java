@@ -0,0 +1,27 @@
+package com.vitea.marketplace.marketdata;
+
+import com.vitea.marketplace.models.Side;
+
+// Receives an item's market data as its MatchingEngine produces it: a level update whenever the
+// aggregated quantity or order count at a price changes, and a print for every trade. Calls arrive on
+// the item's matching thread, in sequence order, and take only primitives and enum constants, so a
+// listener that does not allocate keeps matching allocation-free. Listeners must not block.
+//
+// Sequence numbers count every event of one item, starting at 1 when its engine is created; a gap
+// means events were missed (or conflated, on a feed that conflates).
+public interface MarketDataListener {
+
+    enum LevelAction {
+        ADDED,
+        CHANGED,
+        REMOVED
+    }
+
+    // The level's totals after the change; quantity and orderCount are 0 when it was removed.
+    // Unpriced OPEN orders rest outside the price levels and produce no level updates.
+    default void onLevel(int itemId, long sequence, LevelAction action, Side side, double price, long quantity, int orderCount) {
+    }
+
+    default void onTrade(int itemId, long sequence, long tradeId, double price, int quantity, long timestampMillis) {
+    }
+}
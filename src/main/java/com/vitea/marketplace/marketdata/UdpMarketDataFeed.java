@@ -0,0 +1,347 @@
+package com.vitea.marketplace.marketdata;
+
+import com.vitea.marketplace.models.Side;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Publishes market data as UDP datagrams to any number of subscribers: unicast addresses (typically
+// loopback ports) or multicast groups. Register the feed with OrderService.addMarketDataListener.
+//
+// The matching threads only copy each event into a queue and never wait; if the queue is full the
+// event is dropped and counted. A publisher thread fans events out to the subscribers. Each subscriber
+// has a conflation interval: level updates for the same item, side and price that arrive within it
+// are merged into the latest one, so a slow consumer receives the current state of every level it
+// missed instead of every intermediate change. Trade prints are never merged; each subscriber keeps
+// at most MAX_PENDING_TRADES of them and drops the oldest beyond that. With an interval of 0 nothing
+// is merged: every event is sent, in the order it was published, as soon as the publisher thread sees
+// it; such a subscriber keeps at most MAX_PENDING_EVENTS and drops the oldest beyond that. Conflated
+// or dropped events show up as gaps in the per-item sequence numbers.
+//
+// Datagram: int MAGIC, long packet sequence (per subscriber, from 1), short event count, then that many
+// EVENT_BYTES events, big-endian:
+//   LEVEL  type @0, byte action @1 (LevelAction ordinal), byte side @2, int item id @3, long sequence @7,
+//          double price @15, long quantity @23, int order count @31
+//   TRADE  type @0, int item id @3, long sequence @7, double price @15, int quantity @23, long trade id @27,
+//          long timestamp in epoch milliseconds @35
+// decode() reads a datagram back into MarketDataListener calls.
+public class UdpMarketDataFeed implements MarketDataListener, AutoCloseable {
+
+    public static final int MAGIC = 0x564D4D44; // "VMMD"
+    public static final byte LEVEL = 1;
+    public static final byte TRADE = 2;
+    public static final int EVENT_BYTES = 48;
+    public static final int HEADER_BYTES = Integer.BYTES + Long.BYTES + Short.BYTES;
+    public static final int MAX_DATAGRAM_BYTES = 1400; // Below a typical Ethernet MTU, so datagrams are not fragmented
+    public static final int MAX_EVENTS_PER_DATAGRAM = (MAX_DATAGRAM_BYTES - HEADER_BYTES) / EVENT_BYTES;
+    public static final int MAX_PENDING_TRADES = 10_000;
+    public static final int MAX_PENDING_EVENTS = 10_000;
+
+    private static final int QUEUE_CAPACITY = 1 << 20;
+    private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final MarketDataListener.LevelAction[] ACTIONS = MarketDataListener.LevelAction.values();
+    private static final Side[] SIDES = Side.values();
+    private static final Comparator<Event> SEND_ORDER = Comparator.<Event>comparingInt(event -> event.itemId).thenComparingLong(event -> event.sequence);
+
+    // One event, copied off the matching thread
+    private static final class Event {
+        final byte type;
+        final int itemId;
+        final long sequence;
+        final byte action;
+        final byte side;
+        final double price;
+        final long quantity;
+        final int orderCount;
+        final long tradeId;
+        final long timestampMillis;
+        LevelKey key; // Set by the publisher thread for level updates
+
+        Event(byte type, int itemId, long sequence, byte action, byte side, double price, long quantity, int orderCount, long tradeId, long timestampMillis) {
+            this.type = type;
+            this.itemId = itemId;
+            this.sequence = sequence;
+            this.action = action;
+            this.side = side;
+            this.price = price;
+            this.quantity = quantity;
+            this.orderCount = orderCount;
+            this.tradeId = tradeId;
+            this.timestampMillis = timestampMillis;
+        }
+    }
+
+    // The level an update is about, for conflation
+    private static final class LevelKey {
+        final int itemId;
+        final byte side;
+        final double price;
+
+        LevelKey(int itemId, byte side, double price) {
+            this.itemId = itemId;
+            this.side = side;
+            this.price = price;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof LevelKey)) {
+                return false;
+            }
+            LevelKey key = (LevelKey) other;
+            return itemId == key.itemId && side == key.side && Double.compare(price, key.price) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(itemId, side, price);
+        }
+    }
+
+    // Events waiting for a subscriber's next send; only touched by the publisher thread
+    private static final class Subscriber {
+        final InetSocketAddress address;
+        final long conflationNanos;
+        final Map<LevelKey, Event> levels = new HashMap<>(); // Only used when conflating
+        final ArrayDeque<Event> trades = new ArrayDeque<>(); // Only used when conflating
+        final ArrayDeque<Event> unconflated = new ArrayDeque<>(); // Every event in arrival order, at an interval of 0
+        long nextSendNanos;
+        long packetSequence;
+
+        Subscriber(InetSocketAddress address, long conflationNanos) {
+            this.address = address;
+            this.conflationNanos = conflationNanos;
+            this.nextSendNanos = System.nanoTime(); // Due now; nanoTime has no fixed origin, so not 0
+        }
+
+        boolean conflates() {
+            return conflationNanos > 0;
+        }
+
+        boolean hasPending() {
+            return !levels.isEmpty() || !trades.isEmpty() || !unconflated.isEmpty();
+        }
+    }
+
+    private final DatagramChannel channel;
+    private final BlockingQueue<Event> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final ByteBuffer datagram = ByteBuffer.allocateDirect(MAX_DATAGRAM_BYTES);
+    private final Thread publisher;
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final AtomicLong conflatedUpdates = new AtomicLong();
+    private final AtomicLong droppedTrades = new AtomicLong();
+    private final AtomicLong datagramsSent = new AtomicLong();
+    private volatile boolean running = true;
+
+    public UdpMarketDataFeed() throws IOException {
+        this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1); // Multicast stays on the local network
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true); // And reaches receivers on this host
+        this.publisher = new Thread(this::publish, "market-data-publisher");
+        publisher.setDaemon(true);
+        publisher.start();
+    }
+
+    // Starts sending to the address; 0 ms sends every update as soon as possible
+    public void addSubscriber(InetSocketAddress address, long conflationMillis) {
+        if (conflationMillis < 0) {
+            throw new IllegalArgumentException("Conflation interval cannot be negative: " + conflationMillis);
+        }
+        subscribers.add(new Subscriber(address, TimeUnit.MILLISECONDS.toNanos(conflationMillis)));
+    }
+
+    // Events the queue had no room for, plus those an unconflated subscriber fell too far behind on
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    public long getConflatedUpdates() {
+        return conflatedUpdates.get();
+    }
+
+    public long getDroppedTrades() {
+        return droppedTrades.get();
+    }
+
+    public long getDatagramsSent() {
+        return datagramsSent.get();
+    }
+
+    @Override
+    public void onLevel(int itemId, long sequence, LevelAction action, Side side, double price, long quantity, int orderCount) {
+        offer(new Event(LEVEL, itemId, sequence, (byte) action.ordinal(), (byte) side.ordinal(), price, quantity, orderCount, 0, 0));
+    }
+
+    @Override
+    public void onTrade(int itemId, long sequence, long tradeId, double price, int quantity, long timestampMillis) {
+        offer(new Event(TRADE, itemId, sequence, (byte) 0, (byte) 0, price, quantity, 0, tradeId, timestampMillis));
+    }
+
+    private void offer(Event event) {
+        if (!running || !queue.offer(event)) {
+            droppedEvents.incrementAndGet();
+        }
+    }
+
+    // Sends what is still queued and stops the publisher thread. Deregister the feed from the service first.
+    @Override
+    public void close() throws IOException {
+        running = false; // Not an interrupt, which would close the channel under a send
+        try {
+            publisher.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void publish() {
+        while (true) {
+            try {
+                Event event = running ? queue.poll(nanosUntilNextSend(), TimeUnit.NANOSECONDS) : queue.poll();
+                while (event != null) {
+                    dispatch(event);
+                    event = queue.poll();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.hasPending() && (now - subscriber.nextSendNanos >= 0 || !running)) {
+                    send(subscriber);
+                    subscriber.nextSendNanos = now + subscriber.conflationNanos;
+                }
+            }
+            if (!running && queue.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    private long nanosUntilNextSend() {
+        long now = System.nanoTime();
+        long wait = IDLE_WAIT_NANOS;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.hasPending()) {
+                wait = Math.max(0, Math.min(wait, subscriber.nextSendNanos - now));
+            }
+        }
+        return wait;
+    }
+
+    private void dispatch(Event event) {
+        for (Subscriber subscriber : subscribers) {
+            if (!subscriber.conflates()) {
+                subscriber.unconflated.add(event);
+                if (subscriber.unconflated.size() > MAX_PENDING_EVENTS) {
+                    subscriber.unconflated.poll();
+                    droppedEvents.incrementAndGet();
+                }
+            } else if (event.type == LEVEL) {
+                if (event.key == null) {
+                    event.key = new LevelKey(event.itemId, event.side, event.price);
+                }
+                if (subscriber.levels.put(event.key, event) != null) {
+                    conflatedUpdates.incrementAndGet();
+                }
+            } else {
+                subscriber.trades.add(event);
+                if (subscriber.trades.size() > MAX_PENDING_TRADES) {
+                    subscriber.trades.poll();
+                    droppedTrades.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    // Sends the subscriber's pending events in sequence order per item, packed into as few datagrams as
+    // fit. Unconflated events are already in that order: each item's events come from one matching thread.
+    private void send(Subscriber subscriber) {
+        List<Event> events;
+        if (subscriber.conflates()) {
+            events = new ArrayList<>(subscriber.levels.size() + subscriber.trades.size());
+            events.addAll(subscriber.levels.values());
+            events.addAll(subscriber.trades);
+            subscriber.levels.clear();
+            subscriber.trades.clear();
+            events.sort(SEND_ORDER);
+        } else {
+            events = new ArrayList<>(subscriber.unconflated);
+            subscriber.unconflated.clear();
+        }
+        for (int start = 0; start < events.size(); start += MAX_EVENTS_PER_DATAGRAM) {
+            int count = Math.min(MAX_EVENTS_PER_DATAGRAM, events.size() - start);
+            datagram.clear();
+            datagram.putInt(MAGIC).putLong(++subscriber.packetSequence).putShort((short) count);
+            for (int i = start; i < start + count; i++) {
+                encode(events.get(i));
+            }
+            datagram.flip();
+            try {
+                channel.send(datagram, subscriber.address);
+                datagramsSent.incrementAndGet();
+            } catch (IOException e) {
+                System.err.println("Error sending market data to " + subscriber.address + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void encode(Event event) {
+        int start = datagram.position();
+        for (int i = 0; i < EVENT_BYTES; i += Long.BYTES) {
+            datagram.putLong(start + i, 0L);
+        }
+        datagram.put(start, event.type).putInt(start + 3, event.itemId).putLong(start + 7, event.sequence).putDouble(start + 15, event.price);
+        if (event.type == LEVEL) {
+            datagram.put(start + 1, event.action).put(start + 2, event.side).putLong(start + 23, event.quantity).putInt(start + 31, event.orderCount);
+        } else {
+            datagram.putInt(start + 23, (int) event.quantity).putLong(start + 27, event.tradeId).putLong(start + 35, event.timestampMillis);
+        }
+        datagram.position(start + EVENT_BYTES);
+    }
+
+    // Reads one datagram of the feed into listener calls and returns its packet sequence number
+    public static long decode(ByteBuffer datagram, MarketDataListener listener) throws IOException {
+        int start = datagram.position();
+        if (datagram.remaining() < HEADER_BYTES || datagram.getInt(start) != MAGIC) {
+            throw new IOException("Not a market data datagram");
+        }
+        long packetSequence = datagram.getLong(start + 4);
+        int count = datagram.getShort(start + 12);
+        if (datagram.remaining() < HEADER_BYTES + count * EVENT_BYTES) {
+            throw new IOException("Truncated market data datagram");
+        }
+        for (int i = 0; i < count; i++) {
+            int event = start + HEADER_BYTES + i * EVENT_BYTES;
+            int itemId = datagram.getInt(event + 3);
+            long sequence = datagram.getLong(event + 7);
+            double price = datagram.getDouble(event + 15);
+            if (datagram.get(event) == LEVEL) {
+                listener.onLevel(itemId, sequence, ACTIONS[datagram.get(event + 1)], SIDES[datagram.get(event + 2)], price,
+                        datagram.getLong(event + 23), datagram.getInt(event + 31));
+            } else {
+                listener.onTrade(itemId, sequence, datagram.getLong(event + 27), price, datagram.getInt(event + 23), datagram.getLong(event + 35));
+            }
+        }
+        datagram.position(start + HEADER_BYTES + count * EVENT_BYTES);
+        return packetSequence;
+    }
+}
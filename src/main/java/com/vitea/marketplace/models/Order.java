@@ -3,7 +3,9 @@ package com.vitea.marketplace.models;
 import java.time.LocalDateTime;
 
 public class Order {
-    private int id;
+    public static final long NO_PRICE = Long.MIN_VALUE; // priceTicks of an order without a price
+
+    private long id;
     private int userId;
     private int itemId;
     private Side side;
@@ -12,8 +14,12 @@ public class Order {
     private OrderStatus status;
     private LocalDateTime timestamp;
     private int quantity;
+    // Matching keys: the price in whole ticks of the item's tick size, and a monotonic sequence number
+    // for time priority that is unique even when two orders share a clock tick
+    private long priceTicks;
+    private long sequence;
 
-    public Order(int id, int userId, int itemId, Side side, OrderType orderType, Double price, OrderStatus status, LocalDateTime timestamp, int quantity) {
+    public Order(long id, int userId, int itemId, Side side, OrderType orderType, Double price, OrderStatus status, LocalDateTime timestamp, int quantity) {
         this.id = id;
         this.userId = userId;
         this.itemId = itemId;
@@ -23,13 +29,14 @@ public class Order {
         this.status = status;
         this.timestamp = timestamp;
         this.quantity = quantity;
+        this.priceTicks = (price == null) ? NO_PRICE : TickSize.DEFAULT.toTicks(price);
     }
 
-    public int getId() {
+    public long getId() {
         return id;
     }
 
-    public void setId(int id) {
+    public void setId(long id) {
         this.id = id;
     }
 
@@ -69,8 +76,43 @@ public class Order {
         return price;
     }
 
-    public void setPrice(Double price) {
+    // The price is snapped onto the tick grid of the order's item, which the caller must supply
+    public void setPrice(Double price, TickSize tickSize) {
         this.price = price;
+        applyTickSize(tickSize);
+    }
+
+    public long getPriceTicks() {
+        return priceTicks;
+    }
+
+    public void setPriceTicks(long priceTicks) {
+        this.priceTicks = priceTicks;
+    }
+
+    public boolean hasPrice() {
+        return priceTicks != NO_PRICE;
+    }
+
+    // Snaps the price onto the item's tick grid
+    public void applyTickSize(TickSize tickSize) {
+        if (price != null) {
+            priceTicks = tickSize.toTicks(price);
+            double snapped = tickSize.toPrice(priceTicks);
+            if (snapped != price) {
+                price = snapped; // Only re-box the price when snapping actually moved it
+            }
+        } else {
+            priceTicks = NO_PRICE;
+        }
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
     }
 
     public OrderStatus getStatus() {
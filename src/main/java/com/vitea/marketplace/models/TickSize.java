@@ -0,0 +1,39 @@
+package com.vitea.marketplace.models;
+
+// Converts between an item's prices and whole price ticks. The matching engine compares, stores and
+// indexes prices as long ticks; the double price is only kept for display and the PRICE columns.
+public final class TickSize {
+
+    public static final double DEFAULT_TICK = 0.01;
+    public static final TickSize DEFAULT = new TickSize(DEFAULT_TICK);
+
+    private final double tick;
+    private final double ticksPerUnit; // 1 / tick, rounded when the tick divides 1 so conversions are exact
+
+    public TickSize(double tick) {
+        if (!(tick > 0) || Double.isInfinite(tick)) {
+            throw new IllegalArgumentException("Tick size must be positive: " + tick);
+        }
+        this.tick = tick;
+        double inverse = 1.0 / tick;
+        this.ticksPerUnit = Math.abs(inverse - Math.rint(inverse)) < 1e-9 ? Math.rint(inverse) : inverse;
+    }
+
+    public double getTick() {
+        return tick;
+    }
+
+    // Nearest whole number of ticks; prices between ticks are rounded onto the grid
+    public long toTicks(double price) {
+        return Math.round(price * ticksPerUnit);
+    }
+
+    public double toPrice(long ticks) {
+        return tick < 1 ? ticks / ticksPerUnit : ticks * tick;
+    }
+
+    @Override
+    public String toString() {
+        return Double.toString(tick);
+    }
+}
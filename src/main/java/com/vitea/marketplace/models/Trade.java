@@ -1,19 +1,28 @@
 package com.vitea.marketplace.models;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 
 public class Trade {
-    private int id;
+    private long id;
     private int buyerId;
-    private int buyOrderId;
+    private long buyOrderId;
     private int sellerId;
-    private int sellOrderId;
+    private long sellOrderId;
     private int itemId;
     private double price;
     private LocalDateTime timestamp;
     private int quantity; // Added quantity field
+    private long priceTicks; // The price in ticks of the item's tick size
+    private long timestampMillis; // Epoch millis from setTimestampMillis; timestamp is built from it on first read
 
-    public Trade(int id, int buyerId, int buyOrderId, int sellerId, int sellOrderId, int itemId, double price, LocalDateTime timestamp, int quantity) {
+    public Trade(long id, int buyerId, long buyOrderId, int sellerId, long sellOrderId, int itemId, double price, LocalDateTime timestamp, int quantity) {
+        this(id, buyerId, buyOrderId, sellerId, sellOrderId, itemId, TickSize.DEFAULT.toTicks(price), price, timestamp, quantity);
+    }
+
+    public Trade(long id, int buyerId, long buyOrderId, int sellerId, long sellOrderId, int itemId, long priceTicks, double price, LocalDateTime timestamp, int quantity) {
+        this.priceTicks = priceTicks;
         this.id = id;
         this.buyerId = buyerId;
         this.buyOrderId = buyOrderId;
@@ -25,11 +34,11 @@ public class Trade {
         this.quantity = quantity; // Initialize quantity
     }
 
-    public int getId() {
+    public long getId() {
         return id;
     }
 
-    public void setId(int id) {
+    public void setId(long id) {
         this.id = id;
     }
 
@@ -41,11 +50,11 @@ public class Trade {
         this.buyerId = buyerId;
     }
 
-    public int getBuyOrderId() {
+    public long getBuyOrderId() {
         return buyOrderId;
     }
 
-    public void setBuyOrderId(int buyOrderId) {
+    public void setBuyOrderId(long buyOrderId) {
         this.buyOrderId = buyOrderId;
     }
 
@@ -57,11 +66,11 @@ public class Trade {
         this.sellerId = sellerId;
     }
 
-    public int getSellOrderId() {
+    public long getSellOrderId() {
         return sellOrderId;
     }
 
-    public void setSellOrderId(int sellOrderId) {
+    public void setSellOrderId(long sellOrderId) {
         this.sellOrderId = sellOrderId;
     }
 
@@ -77,16 +86,54 @@ public class Trade {
         return price;
     }
 
-    public void setPrice(double price) {
-        this.price = price;
-    }
-
     public LocalDateTime getTimestamp() {
+        if (timestamp == null && timestampMillis != 0) {
+            timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestampMillis), ZoneId.systemDefault());
+        }
         return timestamp;
     }
 
     public void setTimestamp(LocalDateTime timestamp) {
         this.timestamp = timestamp;
+        this.timestampMillis = 0;
+    }
+
+    // Stamps the trade without building a LocalDateTime; the matching engine reuses one Trade per fill
+    public void setTimestampMillis(long timestampMillis) {
+        this.timestampMillis = timestampMillis;
+        this.timestamp = null;
+    }
+
+    // Epoch millis of the trade time, without building a LocalDateTime if the trade was stamped that way
+    public long getTimestampMillis() {
+        if (timestampMillis != 0 || timestamp == null) {
+            return timestampMillis;
+        }
+        return timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    public long getPriceTicks() {
+        return priceTicks;
+    }
+
+    public void setPrice(long priceTicks, double price) {
+        this.priceTicks = priceTicks;
+        this.price = price;
+    }
+
+    // Overwrites every field with the other trade's, so a pooled Trade can outlive the one it copies
+    public void copyFrom(Trade other) {
+        this.id = other.id;
+        this.buyerId = other.buyerId;
+        this.buyOrderId = other.buyOrderId;
+        this.sellerId = other.sellerId;
+        this.sellOrderId = other.sellOrderId;
+        this.itemId = other.itemId;
+        this.price = other.price;
+        this.priceTicks = other.priceTicks;
+        this.timestamp = other.timestamp;
+        this.timestampMillis = other.timestampMillis;
+        this.quantity = other.quantity;
     }
 
     public int getQuantity() { // Added quantity getter
@@ -107,7 +154,7 @@ public class Trade {
                ", sellOrderId=" + sellOrderId +
                ", itemId=" + itemId +
                ", price=" + price +
-               ", timestamp=" + timestamp +
+               ", timestamp=" + getTimestamp() +
                ", quantity=" + quantity + // Added quantity to toString
                '}';
     }
@@ -0,0 +1,103 @@
+package com.vitea.marketplace.services;
+
+import com.vitea.marketplace.models.Side;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// An immutable copy of one item's aggregated depth: per side and price level, the total resting
+// quantity and the number of resting orders, best price first. Built by the item's MatchingEngine on
+// the first read after the book changed, like its OrderBookSnapshot, but copied from the engine's
+// running PriceLevelTotals, so a copy costs one pass over the levels and reading the best N costs
+// O(N), whatever the number of orders.
+// Unpriced OPEN orders are not in any price level and are left out.
+public final class DepthSnapshot {
+
+    public static final class Level {
+        private final double price;
+        private final long quantity;
+        private final int orderCount;
+
+        Level(double price, long quantity, int orderCount) {
+            this.price = price;
+            this.quantity = quantity;
+            this.orderCount = orderCount;
+        }
+
+        public double getPrice() {
+            return price;
+        }
+
+        public long getQuantity() {
+            return quantity;
+        }
+
+        public int getOrderCount() {
+            return orderCount;
+        }
+
+        @Override
+        public String toString() {
+            return "Level{price=" + price + ", quantity=" + quantity + ", orderCount=" + orderCount + "}";
+        }
+    }
+
+    private static final double[] NO_PRICES = new double[0];
+    private static final long[] NO_QUANTITIES = new long[0];
+    private static final int[] NO_COUNTS = new int[0];
+
+    private final int itemId;
+    private final long version;
+    private final double[] bidPrices; // Highest first
+    private final long[] bidQuantities;
+    private final int[] bidOrderCounts;
+    private final double[] askPrices; // Lowest first
+    private final long[] askQuantities;
+    private final int[] askOrderCounts;
+
+    DepthSnapshot(int itemId, long version, double[] bidPrices, long[] bidQuantities, int[] bidOrderCounts,
+                  double[] askPrices, long[] askQuantities, int[] askOrderCounts) {
+        this.itemId = itemId;
+        this.version = version;
+        this.bidPrices = bidPrices;
+        this.bidQuantities = bidQuantities;
+        this.bidOrderCounts = bidOrderCounts;
+        this.askPrices = askPrices;
+        this.askQuantities = askQuantities;
+        this.askOrderCounts = askOrderCounts;
+    }
+
+    public static DepthSnapshot empty(int itemId) {
+        return empty(itemId, 0);
+    }
+
+    static DepthSnapshot empty(int itemId, long version) {
+        return new DepthSnapshot(itemId, version, NO_PRICES, NO_QUANTITIES, NO_COUNTS, NO_PRICES, NO_QUANTITIES, NO_COUNTS);
+    }
+
+    public int getItemId() {
+        return itemId;
+    }
+
+    // The book version the depth was copied at; an OrderBookSnapshot of the same version holds the same book
+    public long getVersion() {
+        return version;
+    }
+
+    public int getLevelCount(Side side) {
+        return side == Side.BUY ? bidPrices.length : askPrices.length;
+    }
+
+    // The best `levels` price levels of a side, best first
+    public List<Level> getLevels(Side side, int levels) {
+        double[] prices = side == Side.BUY ? bidPrices : askPrices;
+        long[] quantities = side == Side.BUY ? bidQuantities : askQuantities;
+        int[] orderCounts = side == Side.BUY ? bidOrderCounts : askOrderCounts;
+        int count = Math.min(levels, prices.length);
+        List<Level> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(new Level(prices[i], quantities[i], orderCounts[i]));
+        }
+        return result;
+    }
+}
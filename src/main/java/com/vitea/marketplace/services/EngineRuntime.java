@@ -0,0 +1,118 @@
+package com.vitea.marketplace.services;
+
+import com.vitea.marketplace.journal.MarketSnapshot;
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderStatus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// Runs the MatchingEngines of an OrderService on a fixed set of worker shards. Every item id is
+// pinned to one shard, and each shard is an OrderSequencer with its own bounded ring and matching
+// thread, so engines on different shards match in parallel while each engine still sees a single
+// writer. When a shard falls behind, its BackpressurePolicy decides whether producers wait or are
+// rejected.
+public class EngineRuntime {
+
+    private final OrderService orderService;
+    private final OrderSequencer[] shards;
+    private final Map<Integer, MatchingEngine> engines;
+
+    public EngineRuntime(OrderService orderService, int shardCount, int ringSize, OrderSequencer.BackpressurePolicy backpressurePolicy) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1: " + shardCount);
+        }
+        this.orderService = orderService;
+        this.shards = new OrderSequencer[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new OrderSequencer(i, orderService, ringSize, backpressurePolicy);
+        }
+        this.engines = new ConcurrentHashMap<>();
+    }
+
+    public static int defaultShardCount() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public int shardIndexFor(int itemId) {
+        return Math.floorMod(itemId, shards.length);
+    }
+
+    public OrderSequencer getShard(int shardIndex) {
+        return shards[shardIndex];
+    }
+
+    public MatchingEngine getEngine(int itemId) {
+        // Engines are created on first use; only their shard's matching thread mutates them afterwards
+        return engines.computeIfAbsent(itemId, id -> new MatchingEngine(id, orderService, shards[shardIndexFor(id)].getTradeIds()));
+    }
+
+    // Existing engine for the item, or null; unlike getEngine this never creates one
+    public MatchingEngine findEngine(int itemId) {
+        return engines.get(itemId);
+    }
+
+    public Collection<MatchingEngine> getEngines() {
+        return engines.values();
+    }
+
+    public CompletableFuture<Order> submit(Order order) {
+        MatchingEngine engine = getEngine(order.getItemId());
+        return shards[shardIndexFor(order.getItemId())].submit(new RestingOrder(order, engine));
+    }
+
+    // Rests an order recovered from storage in its engine without matching it
+    public CompletableFuture<Order> restore(Order order) {
+        MatchingEngine engine = getEngine(order.getItemId());
+        return shards[shardIndexFor(order.getItemId())].restore(new RestingOrder(order, engine));
+    }
+
+    public CompletableFuture<Boolean> cancel(RestingOrder entry) {
+        MatchingEngine engine = entry.getEngine();
+        return shards[shardIndexFor(engine.getItemId())].cancel(engine, entry.getId());
+    }
+
+    public CompletableFuture<Boolean> retire(RestingOrder entry, OrderStatus status) {
+        MatchingEngine engine = entry.getEngine();
+        return shards[shardIndexFor(engine.getItemId())].retire(engine, entry.getId(), status);
+    }
+
+    // Runs a read-only function against the engine on its shard's matching thread, between two commands
+    public <T> CompletableFuture<T> read(MatchingEngine engine, Function<MatchingEngine, T> reader) {
+        return shards[shardIndexFor(engine.getItemId())].read(engine, reader);
+    }
+
+    // Runs the action after the batch its item's shard is applying has been released; see OrderSequencer.afterBatch
+    public void afterBatch(int itemId, Runnable action) {
+        shards[shardIndexFor(itemId)].afterBatch(action);
+    }
+
+    // Captures the engines of every shard for a MarketSnapshot; the shards capture in parallel
+    public List<MarketSnapshot.ShardState> capture() {
+        List<CompletableFuture<MarketSnapshot.ShardState>> captures = new ArrayList<>(shards.length);
+        for (OrderSequencer shard : shards) {
+            captures.add(shard.capture());
+        }
+        List<MarketSnapshot.ShardState> states = new ArrayList<>(shards.length);
+        for (CompletableFuture<MarketSnapshot.ShardState> capture : captures) {
+            states.add(capture.join());
+        }
+        return states;
+    }
+
+    // Drains and stops every shard's matching thread
+    public void shutdown() {
+        for (OrderSequencer shard : shards) {
+            shard.shutdown();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.vitea.marketplace.services;
+
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderType;
+import com.vitea.marketplace.models.Side;
+
+import java.util.Arrays;
+
+// Tracks the best open AT_PRICE sell and buy prices of one item across every quantity, for the
+// OPEN-order fallback price. Each side is a price -> order count multiset held in sorted primitive
+// arrays with the best price last, so lookups are O(1), updates near the top of the book touch only
+// a few slots, and nothing is boxed. Prices are in ticks; Order.NO_PRICE means there is none.
+public class FallbackPriceTracker {
+
+    // Open AT_PRICE order counts per price. Keys are prices, negated when the lowest price is best,
+    // so the array is ascending either way and the best price is always the last key.
+    private static final class PriceCounts {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final boolean lowestIsBest;
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private int[] counts = new int[INITIAL_CAPACITY];
+        private int size;
+
+        PriceCounts(boolean lowestIsBest) {
+            this.lowestIsBest = lowestIsBest;
+        }
+
+        long best() {
+            return size == 0 ? Order.NO_PRICE : priceOf(keys[size - 1]);
+        }
+
+        void add(long price) {
+            long key = keyOf(price);
+            int index = Arrays.binarySearch(keys, 0, size, key);
+            if (index >= 0) {
+                counts[index]++;
+                return;
+            }
+            index = -index - 1;
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(counts, index, counts, index + 1, size - index);
+            keys[index] = key;
+            counts[index] = 1;
+            size++;
+        }
+
+        void remove(long price) {
+            int index = Arrays.binarySearch(keys, 0, size, keyOf(price));
+            if (index < 0) {
+                return;
+            }
+            if (--counts[index] == 0) {
+                size--;
+                System.arraycopy(keys, index + 1, keys, index, size - index);
+                System.arraycopy(counts, index + 1, counts, index, size - index);
+            }
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        private long keyOf(long price) {
+            return lowestIsBest ? -price : price;
+        }
+
+        private long priceOf(long key) {
+            return lowestIsBest ? -key : key;
+        }
+    }
+
+    private final PriceCounts sellPrices;
+    private final PriceCounts buyPrices;
+
+    public FallbackPriceTracker() {
+        this.sellPrices = new PriceCounts(true); // Lowest open AT_PRICE sell price is best
+        this.buyPrices = new PriceCounts(false); // Highest open AT_PRICE buy price is best
+    }
+
+    public long getBestSellPrice() {
+        return sellPrices.best();
+    }
+
+    public long getBestBuyPrice() {
+        return buyPrices.best();
+    }
+
+    public void orderAdded(RestingOrder order) {
+        if (isTracked(order)) {
+            (order.getSide() == Side.SELL ? sellPrices : buyPrices).add(order.getPriceTicks());
+        }
+    }
+
+    public void orderRemoved(RestingOrder order) {
+        if (isTracked(order)) {
+            (order.getSide() == Side.SELL ? sellPrices : buyPrices).remove(order.getPriceTicks());
+        }
+    }
+
+    public void clear() {
+        sellPrices.clear();
+        buyPrices.clear();
+    }
+
+    private static boolean isTracked(RestingOrder order) {
+        return order.getOrderType() == OrderType.AT_PRICE && order.hasPrice();
+    }
+}
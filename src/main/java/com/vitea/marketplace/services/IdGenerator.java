@@ -0,0 +1,73 @@
+package com.vitea.marketplace.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hands out 64-bit ids without touching the database. The only shared state is an atomic high-water
+// mark: callers either take single ids from it, or reserve a whole block and number from the block
+// with no further coordination. Each matching shard draws its trade ids from a block of its own,
+// so engines matching in parallel never contend or race on ids.
+public class IdGenerator {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private final AtomicLong highWater; // Last id handed out or reserved
+    private final int blockSize;
+
+    public IdGenerator(long lastUsedId, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be at least 1: " + blockSize);
+        }
+        this.highWater = new AtomicLong(lastUsedId);
+        this.blockSize = blockSize;
+    }
+
+    public long nextId() {
+        return highWater.incrementAndGet();
+    }
+
+    // Makes sure ids handed out later are above an id that was assigned elsewhere (e.g. seed data)
+    public void advanceTo(long usedId) {
+        while (true) {
+            long current = highWater.get();
+            if (usedId <= current || highWater.compareAndSet(current, usedId)) {
+                return;
+            }
+        }
+    }
+
+    public long getLastReservedId() {
+        return highWater.get();
+    }
+
+    public void reset(long lastUsedId) {
+        highWater.set(lastUsedId);
+    }
+
+    public Block newBlock() {
+        return new Block(this);
+    }
+
+    private long reserveBlock() {
+        return highWater.getAndAdd(blockSize) + 1;
+    }
+
+    // A run of ids reserved from the generator. Not thread-safe: a block belongs to one matching thread.
+    // Ids left unused in a block when it is dropped are simply skipped.
+    public static final class Block {
+        private final IdGenerator generator;
+        private long next;
+        private long end; // Exclusive
+
+        private Block(IdGenerator generator) {
+            this.generator = generator;
+        }
+
+        public long nextId() {
+            if (next == end) {
+                next = generator.reserveBlock();
+                end = next + generator.blockSize;
+            }
+            return next++;
+        }
+    }
+}
@@ -1,25 +1,31 @@
 package com.vitea.marketplace.services;
 
+import com.vitea.marketplace.db.ConnectionPool;
+import com.vitea.marketplace.journal.EventJournal;
 import com.vitea.marketplace.models.Item;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.Statement;
 import java.sql.SQLException;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class ItemService {
-    private final Connection connection;
+    private final ConnectionPool connectionPool;
     private final AtomicInteger itemIdCounter;
+    private volatile EventJournal journal; // null unless items are journaled
 
     public ItemService(Connection connection) {
-        this.connection = connection;
+        this(new ConnectionPool(connection)); // Calls take turns on the one connection
+    }
+
+    public ItemService(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
         this.itemIdCounter = new AtomicInteger(0);
         // Initialize counter based on existing items in DB
-        try (Statement stmt = connection.createStatement()) {
-            ResultSet rs = stmt.executeQuery("SELECT MAX(ID) FROM ITEMS");
+        try (ConnectionPool.Lease lease = connectionPool.acquire();
+             ResultSet rs = lease.prepareStatement("SELECT MAX(ID) FROM ITEMS").executeQuery()) {
             if (rs.next()) {
                 itemIdCounter.set(rs.getInt(1));
             }
@@ -34,6 +40,15 @@ public class ItemService {
         itemIdCounter.set(0);
     }
 
+    public EventJournal getJournal() {
+        return journal;
+    }
+
+    // Records every item created from now on
+    public void setJournal(EventJournal journal) {
+        this.journal = journal;
+    }
+
     public Item createItem(String name) {
         String lowerCaseName = name.toLowerCase();
         // Check if item already exists in DB
@@ -44,11 +59,16 @@ public class ItemService {
 
         int newId = itemIdCounter.incrementAndGet();
         String sql = "INSERT INTO ITEMS (ID, NAME) VALUES (?, ?)";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (ConnectionPool.Lease lease = connectionPool.acquire()) {
+            PreparedStatement pstmt = lease.prepareStatement(sql);
             pstmt.setInt(1, newId);
             pstmt.setString(2, name);
             pstmt.executeUpdate();
             Item item = new Item(newId, name);
+            EventJournal journal = this.journal;
+            if (journal != null) {
+                journal.appendItem(newId, name);
+            }
             System.out.println("Created item: " + item.getName() + " with ID: " + item.getId());
             return item;
         } catch (SQLException e) {
@@ -60,11 +80,13 @@ public class ItemService {
 
     public Optional<Item> getItemById(int id) {
         String sql = "SELECT ID, NAME FROM ITEMS WHERE ID = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (ConnectionPool.Lease lease = connectionPool.acquire()) {
+            PreparedStatement pstmt = lease.prepareStatement(sql);
             pstmt.setInt(1, id);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return Optional.of(new Item(rs.getInt("ID"), rs.getString("NAME")));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return Optional.of(new Item(rs.getInt("ID"), rs.getString("NAME")));
+                }
             }
         } catch (SQLException e) {
             System.err.println("Error getting item by ID " + id + ": " + e.getMessage());
@@ -73,12 +95,14 @@ public class ItemService {
     }
 
     public Optional<Item> getItemByName(String name) {
-        String sql = "SELECT ID, NAME FROM ITEMS WHERE LOWER(NAME) = LOWER(?)";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        String sql = "SELECT ID, NAME FROM ITEMS USE INDEX (IDX_ITEMS_NAME_KEY) WHERE NAME_KEY = LOWER(?)";
+        try (ConnectionPool.Lease lease = connectionPool.acquire()) {
+            PreparedStatement pstmt = lease.prepareStatement(sql);
             pstmt.setString(1, name);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return Optional.of(new Item(rs.getInt("ID"), rs.getString("NAME")));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return Optional.of(new Item(rs.getInt("ID"), rs.getString("NAME")));
+                }
             }
         } catch (SQLException e) {
             System.err.println("Error getting item by name \'" + name + "\': " + e.getMessage());
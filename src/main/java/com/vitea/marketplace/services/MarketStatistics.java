@@ -0,0 +1,156 @@
+package com.vitea.marketplace.services;
+
+import com.vitea.marketplace.models.OrderStatus;
+import com.vitea.marketplace.models.Trade;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+// Trade and open-order statistics kept up to date as trades execute and orders change state, so the
+// metrics queries are O(1) reads instead of aggregate scans over ORDERS and TRADES. Updated on the
+// matching threads of every shard at once, hence the striped adders; readers may see a trade counted
+// a moment before its price is added, which is fine for a dashboard.
+public class MarketStatistics {
+
+    public static final class ItemStatistics {
+        private final LongAdder tradeCount = new LongAdder();
+        private final DoubleAdder priceSum = new DoubleAdder(); // For the plain average, as AVG(PRICE) had it
+        private final DoubleAdder notional = new DoubleAdder(); // Sum of price * quantity, for VWAP
+        private final LongAdder volume = new LongAdder(); // Sum of traded quantity
+        private final LongAdder openOrders = new LongAdder();
+
+        public long getTradeCount() {
+            return tradeCount.sum();
+        }
+
+        public double getAveragePrice() {
+            long count = tradeCount.sum();
+            return count == 0 ? 0.0 : priceSum.sum() / count;
+        }
+
+        public double getVolumeWeightedAveragePrice() {
+            long traded = volume.sum();
+            return traded == 0 ? 0.0 : notional.sum() / traded;
+        }
+
+        public long getVolume() {
+            return volume.sum();
+        }
+
+        public double getPriceSum() {
+            return priceSum.sum();
+        }
+
+        // Sum of price * quantity over the item's trades
+        public double getNotional() {
+            return notional.sum();
+        }
+
+        public long getOpenOrders() {
+            return openOrders.sum();
+        }
+    }
+
+    private static final ItemStatistics EMPTY = new ItemStatistics(); // Returned for items never seen; never updated
+    private static final int MAX_INDEXED_ITEM_ID = 1 << 16;
+
+    // Item ids are small sequential integers, so statistics are indexed by id in a copy-on-grow array
+    // and looked up without boxing; ids outside it fall back to the map
+    private volatile ItemStatistics[] byItemId = new ItemStatistics[0];
+    private final Map<Integer, ItemStatistics> items = new ConcurrentHashMap<>();
+    private final LongAdder totalTrades = new LongAdder();
+    private final LongAdder totalOpenOrders = new LongAdder();
+
+    public ItemStatistics forItem(int itemId) {
+        ItemStatistics[] table = byItemId;
+        if (itemId >= 0 && itemId < table.length) {
+            ItemStatistics stats = table[itemId];
+            return stats != null ? stats : EMPTY;
+        }
+        return items.getOrDefault(itemId, EMPTY);
+    }
+
+    public long getTotalTrades() {
+        return totalTrades.sum();
+    }
+
+    public long getTotalOpenOrders() {
+        return totalOpenOrders.sum();
+    }
+
+    void tradeExecuted(Trade trade) {
+        ItemStatistics stats = itemStatistics(trade.getItemId());
+        stats.tradeCount.increment();
+        stats.priceSum.add(trade.getPrice());
+        stats.notional.add(trade.getPrice() * trade.getQuantity());
+        stats.volume.add(trade.getQuantity());
+        totalTrades.increment();
+    }
+
+    void orderOpened(int itemId) {
+        itemStatistics(itemId).openOrders.increment();
+        totalOpenOrders.increment();
+    }
+
+    void orderClosed(int itemId) {
+        itemStatistics(itemId).openOrders.decrement();
+        totalOpenOrders.decrement();
+    }
+
+    // An order's status changed from previous to current; only moves into or out of OPEN matter
+    void orderTransition(int itemId, OrderStatus previous, OrderStatus current) {
+        if (previous != OrderStatus.OPEN && current == OrderStatus.OPEN) {
+            orderOpened(itemId);
+        } else if (previous == OrderStatus.OPEN && current != OrderStatus.OPEN) {
+            orderClosed(itemId);
+        }
+    }
+
+    // Seeds an item from the aggregates already in storage
+    void load(int itemId, long trades, double priceSum, double notional, long volume) {
+        ItemStatistics stats = itemStatistics(itemId);
+        stats.tradeCount.add(trades);
+        stats.priceSum.add(priceSum);
+        stats.notional.add(notional);
+        stats.volume.add(volume);
+        totalTrades.add(trades);
+    }
+
+    void loadOpenOrders(int itemId, long openOrders) {
+        itemStatistics(itemId).openOrders.add(openOrders);
+        totalOpenOrders.add(openOrders);
+    }
+
+    synchronized void clear() {
+        byItemId = new ItemStatistics[0];
+        items.clear();
+        totalTrades.reset();
+        totalOpenOrders.reset();
+    }
+
+    private ItemStatistics itemStatistics(int itemId) {
+        ItemStatistics[] table = byItemId;
+        if (itemId >= 0 && itemId < table.length && table[itemId] != null) {
+            return table[itemId];
+        }
+        if (itemId < 0 || itemId >= MAX_INDEXED_ITEM_ID) {
+            return items.computeIfAbsent(itemId, id -> new ItemStatistics());
+        }
+        return addIndexed(itemId);
+    }
+
+    private synchronized ItemStatistics addIndexed(int itemId) {
+        ItemStatistics[] table = byItemId;
+        if (itemId < table.length && table[itemId] != null) {
+            return table[itemId]; // Another shard added it first
+        }
+        ItemStatistics[] grown = Arrays.copyOf(table, Math.max(table.length, Integer.highestOneBit(itemId | 1) << 1));
+        ItemStatistics stats = new ItemStatistics();
+        grown[itemId] = stats;
+        byItemId = grown;
+        return stats;
+    }
+}
@@ -1,264 +1,515 @@
 package com.vitea.marketplace.services;
 
+import com.vitea.marketplace.journal.MarketSnapshot;
+import com.vitea.marketplace.marketdata.MarketDataListener;
 import com.vitea.marketplace.models.Order;
 import com.vitea.marketplace.models.Side;
+import com.vitea.marketplace.models.TickSize;
 import com.vitea.marketplace.models.OrderType;
 import com.vitea.marketplace.models.OrderStatus;
 import com.vitea.marketplace.models.Trade;
 
 import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
 
+// Matches orders for one item. The engine is single-writer: OrderService drives every mutation
+// (submit, cancel, retire) through the matching thread of the shard the item is pinned to, so none
+// of the book state below is locked.
 public class MatchingEngine {
 
-    private final int itemId;
-    private final PriorityBlockingQueue<Order> buyOrders;
-    private final PriorityBlockingQueue<Order> sellOrders;
-    private final Map<Integer, Order> allOpenOrders; // Still keep for quick in-memory lookup during matching
-    // private final List<Trade> tradeHistory; // No longer managed directly by MatchingEngine
+    // Where resting orders keep their fields. OFF_HEAP copies each order into the engine's
+    // OffHeapOrderStore when it comes to rest, for books too deep to hold as Order objects.
+    public enum BookStorage {
+        HEAP,
+        OFF_HEAP
+    }
 
-    private volatile Double lastTradedPrice;
+    private static final int STAMP_TIE_BITS = 10; // Low bits of a sequence number that order orders with equal timestamps
+    private static final int MAX_STAMP_TIE = (1 << STAMP_TIE_BITS) - 1;
+
+    private final int itemId;
+    private final QuantityIndexedSide buyOrders;
+    private final QuantityIndexedSide sellOrders;
+    private final OrderDirectory allOpenOrders; // Handles into the book for O(1) cancel, keyed without boxing
+    private final FallbackPriceTracker fallbackPrices; // Best open AT_PRICE prices, kept up to date as orders come and go
+    private final PriceLevelTotals levelTotals; // Quantity and order count per price, for depth and market data
+    private long marketDataSequence; // Last market data event of this item
+
+    private final TickSize tickSize; // Every price below is in ticks of this size
+    private final long defaultFallbackPrice; // $1000 in ticks
+    private final OffHeapOrderStore offHeapStore; // null when resting orders stay on the heap
+    private volatile long lastTradedPrice; // Order.NO_PRICE until the first trade
     private final AtomicInteger totalExecutedTrades;
     private final OrderService orderService; // Dependency injection of OrderService
+    private final OrderDirectory orderDirectory; // Authoritative live-order state shared by all engines of the service
+    private final IdGenerator.Block tradeIds; // Shared with the other engines on the same shard
+    private final Trade fill; // Reused for every trade; persistence copies what it keeps
+    private long lastStampMicros = Long.MIN_VALUE; // Latest order timestamp seen, for tie-breaking; matching thread only
+    private int stampTies; // Orders so far stamped lastStampMicros, less one
+    private volatile long bookVersion; // Bumped by the matching thread for every command that changes the book
+    private volatile OrderBookSnapshot snapshot; // Last snapshot built; current while its version is bookVersion
+    private volatile DepthSnapshot depth; // Last depth built, likewise
 
     public MatchingEngine(int itemId, OrderService orderService) {
+        this(itemId, orderService, orderService.getTradeIdGenerator().newBlock());
+    }
+
+    public MatchingEngine(int itemId, OrderService orderService, IdGenerator.Block tradeIds) {
         this.itemId = itemId;
+        this.tradeIds = tradeIds;
+        this.tickSize = orderService.getTickSize(itemId);
+        this.defaultFallbackPrice = tickSize.toTicks(1000.0);
+        this.offHeapStore = orderService.getBookStorage() == BookStorage.OFF_HEAP ? new OffHeapOrderStore(itemId, tickSize) : null;
         this.orderService = orderService; // Initialize orderService
-        // Max heap for buy orders (highest price first, then earliest timestamp)
-        this.buyOrders = new PriorityBlockingQueue<>(
-                11, (o1, o2) -> {
-            int priceComparison = Double.compare(o2.getPrice() != null ? o2.getPrice() : Double.MIN_VALUE,
-                                                 o1.getPrice() != null ? o1.getPrice() : Double.MIN_VALUE);
-            if (priceComparison == 0) {
-                return o1.getTimestamp().compareTo(o2.getTimestamp());
-            }
-            return priceComparison;
-        });
-        // Min heap for sell orders (lowest price first, then earliest timestamp)
-        this.sellOrders = new PriorityBlockingQueue<>(
-                11, (o1, o2) -> {
-            int priceComparison = Double.compare(o1.getPrice() != null ? o1.getPrice() : Double.MAX_VALUE,
-                                                 o2.getPrice() != null ? o2.getPrice() : Double.MAX_VALUE);
-            if (priceComparison == 0) {
-                return o1.getTimestamp().compareTo(o2.getTimestamp());
-            }
-            return priceComparison;
-        });
-        this.allOpenOrders = new ConcurrentHashMap<>();
-        // this.tradeHistory = new ArrayList<>(); // Removed
-        this.lastTradedPrice = null;
+        this.orderDirectory = orderService.getOrderDirectory();
+        // Per quantity: buy levels highest price first, sell levels lowest price first; lowest sequence first within a level
+        this.buyOrders = new QuantityIndexedSide(Side.BUY);
+        this.sellOrders = new QuantityIndexedSide(Side.SELL);
+        this.allOpenOrders = new OrderDirectory();
+        this.fallbackPrices = new FallbackPriceTracker();
+        this.levelTotals = new PriceLevelTotals();
+        this.lastTradedPrice = Order.NO_PRICE;
         this.totalExecutedTrades = new AtomicInteger(0);
+        this.fill = new Trade(0, 0, 0L, 0, 0L, itemId, 0L, 0.0, null, 0);
+        this.snapshot = OrderBookSnapshot.empty(itemId);
+        this.depth = DepthSnapshot.empty(itemId);
     }
 
     public int getItemId() {
         return itemId;
     }
 
+    public TickSize getTickSize() {
+        return tickSize;
+    }
+
+    // The off-heap record store, or null if this engine keeps resting orders on the heap
+    public OffHeapOrderStore getOffHeapStore() {
+        return offHeapStore;
+    }
+
     public void reset() {
+        allOpenOrders.forEachId(orderDirectory::remove);
         buyOrders.clear();
         sellOrders.clear();
         allOpenOrders.clear();
-        // tradeHistory.clear(); // Removed
-        lastTradedPrice = null;
+        fallbackPrices.clear();
+        levelTotals.clear();
+        if (offHeapStore != null) {
+            offHeapStore.clear(); // Handles still in the directory were removed above
+        }
+        lastTradedPrice = Order.NO_PRICE;
         totalExecutedTrades.set(0);
+        lastStampMicros = Long.MIN_VALUE;
+        stampTies = 0;
+        bookVersion++;
+        snapshot = OrderBookSnapshot.empty(itemId, bookVersion);
+        depth = DepthSnapshot.empty(itemId, bookVersion);
         // The database will be truncated by OrderService.reset()
     }
 
-    public synchronized Order submitOrder(Order newOrder) {
+    public Order submitOrder(Order newOrder) {
+        return submitOrder(new RestingOrder(newOrder, this));
+    }
+
+    // For callers that create the order's handle themselves, e.g. to keep allocation off this path
+    public Order submitOrder(RestingOrder entry) {
+        prepare(entry.getOrder());
+        return submit(entry);
+    }
+
+    // Gives a new order its matching keys before it is persisted or matched: the price snapped to this
+    // item's ticks and its time-priority sequence number, taken from its timestamp.
+    void prepare(Order order) {
+        order.applyTickSize(tickSize);
+        if (order.getSequence() == 0) {
+            order.setSequence(nextSequence(order.getTimestamp()));
+        } else {
+            observeSequence(order.getSequence()); // Restored or replayed; later orders must tie-break after it
+        }
+    }
+
+    // Time-priority sequence number: the order's timestamp in microseconds since the epoch, shifted left
+    // to make room for a tie-break counter. An order stamped earlier ranks ahead of one stamped later
+    // whatever order they arrive in, as seed data and the timestamps of a load-orders file expect.
+    // Orders stamped in the same microsecond as the latest one rank in arrival order through the counter;
+    // a backdated order takes the highest tie so it ranks after those already stamped like it, and a level
+    // appends an order after any with an equal sequence, so arrival order holds there as well.
+    private long nextSequence(LocalDateTime timestamp) {
+        long micros = Math.floorDiv(OrderColumns.toEpochNanos(timestamp), 1000L);
+        int tie;
+        if (micros > lastStampMicros) {
+            lastStampMicros = micros;
+            stampTies = 0;
+            tie = 0;
+        } else if (micros == lastStampMicros && stampTies < MAX_STAMP_TIE) {
+            tie = ++stampTies;
+        } else {
+            tie = MAX_STAMP_TIE;
+        }
+        return micros << STAMP_TIE_BITS | tie;
+    }
+
+    private void observeSequence(long sequence) {
+        long micros = sequence >> STAMP_TIE_BITS;
+        int tie = (int) (sequence & MAX_STAMP_TIE);
+        if (micros > lastStampMicros) {
+            lastStampMicros = micros;
+            stampTies = tie;
+        } else if (micros == lastStampMicros) {
+            stampTies = Math.max(stampTies, tie);
+        }
+    }
+
+    Order submit(RestingOrder entry) {
+        Order newOrder = entry.getOrder();
         if (newOrder.getStatus() == OrderStatus.CANCELLED) {
+            orderDirectory.remove(newOrder.getId());
             return newOrder; // Return the cancelled order itself
         }
 
-        allOpenOrders.put(newOrder.getId(), newOrder);
+        allOpenOrders.put(newOrder.getId(), entry);
+        orderDirectory.put(newOrder.getId(), entry);
+        fallbackPrices.orderAdded(entry);
 
         // No longer need to pass executedTrades list, as trades are inserted directly to DB
 
         if (newOrder.getSide() == Side.BUY) {
-            buyOrders.offer(newOrder);
-            matchOrders(newOrder, sellOrders);
+            matchOrders(entry, sellOrders);
+            if (newOrder.getStatus() == OrderStatus.OPEN) {
+                rest(entry, buyOrders);
+            }
         } else {
-            sellOrders.offer(newOrder);
-            matchOrders(newOrder, buyOrders);
+            matchOrders(entry, buyOrders);
+            if (newOrder.getStatus() == OrderStatus.OPEN) {
+                rest(entry, sellOrders);
+            }
         }
-        return newOrder;
+        return newOrder; // Once resting off-heap, later fills show in the store, not in this object
     }
 
-    private void matchOrders(Order newOrder, PriorityBlockingQueue<Order> opposingOrders) {
-        List<Order> skippedOrders = new ArrayList<>();
-        while (!opposingOrders.isEmpty() && newOrder.getStatus() == OrderStatus.OPEN) {
-            Order opposingOrder = opposingOrders.poll(); // Use poll to remove the order from the queue
-            if (opposingOrder == null) {
-                break; // Should not happen with !isEmpty(), but for safety
-            }
+    // Rests an order recovered from storage without matching it. It was matched against the book when
+    // it was first submitted; matching it again could trade against a different fallback price.
+    void restore(RestingOrder entry) {
+        allOpenOrders.put(entry.getId(), entry);
+        orderDirectory.put(entry.getId(), entry);
+        fallbackPrices.orderAdded(entry);
+        rest(entry, entry.getSide() == Side.BUY ? buyOrders : sellOrders);
+    }
 
-            // Skip if the opposing order is already cancelled (from DB perspective, or by another engine)
-            if (orderService.getOrderStatus(opposingOrder.getId()) == OrderStatus.CANCELLED) { // Check DB status
-                continue; // Try to match with the next best opposing order
-            }
+    // Called before any order is restored, while the engine is still idle
+    void restoreLastTradedPrice(long priceTicks) {
+        lastTradedPrice = priceTicks;
+    }
 
-            // Ensure the opposing order is still open and not already filled by another process/engine
-            if (orderService.getOrderStatus(opposingOrder.getId()) != OrderStatus.OPEN) {
-                continue;
-            }
+    private void rest(RestingOrder entry, QuantityIndexedSide side) {
+        if (offHeapStore != null) {
+            entry.moveOffHeap(offHeapStore);
+        }
+        side.add(entry);
+        if (entry.hasPrice()) {
+            levelTotals.add(entry.getSide(), entry.getPriceTicks(), entry.getQuantity());
+            publishLevel(entry.getSide(), entry.getPriceTicks(),
+                    levelTotals.getLastOrderCount() == 1 ? MarketDataListener.LevelAction.ADDED : MarketDataListener.LevelAction.CHANGED);
+        }
+    }
 
-            // Check for quantity match (exact quantity match required)
-            if (newOrder.getQuantity() != opposingOrder.getQuantity()) {
-                skippedOrders.add(opposingOrder); // Add to skipped, will be re-added later
-                continue; // Continue to the next opposing order if quantities don't match
+    private void matchOrders(RestingOrder newEntry, QuantityIndexedSide opposingSide) {
+        Order newOrder = newEntry.getOrder();
+        // Exact quantity match is required, so only opposing orders of the same quantity are candidates
+        OrderBookSide opposingOrders = opposingSide.bookFor(newOrder.getQuantity());
+        if (opposingOrders == null) {
+            return;
+        }
+        // Walk the opposing side in price/time priority. Orders that do not match stay where they are,
+        // so nothing has to be removed and re-inserted to keep looking past them.
+        RestingOrder candidate = opposingOrders.first();
+        while (candidate != null && newOrder.getStatus() == OrderStatus.OPEN) {
+            RestingOrder nextCandidate = opposingOrders.next(candidate);
+
+            // The in-memory status is authoritative; cancelled or filled orders are unlinked when they
+            // change state, so this only guards against a stale entry
+            if (candidate.getStatus() != OrderStatus.OPEN) {
+                removeFromBook(candidate);
+                candidate = nextCandidate;
+                continue; // Try to match with the next best opposing order
             }
 
-            // Price checks
+            // Price checks, all in ticks. The earlier order (lower sequence) sets an AT_PRICE trade's price.
+            // The opposing order is read through its handle, which may point into the off-heap store.
             boolean priceMatch = false;
-            double tradePrice = 0.0;
-
-            if (newOrder.getOrderType() == OrderType.AT_PRICE && opposingOrder.getOrderType() == OrderType.AT_PRICE) {
-                if (newOrder.getSide() == Side.BUY) { // New order is BUY AT_PRICE
-                    if (newOrder.getPrice() != null && opposingOrder.getPrice() != null && newOrder.getPrice() >= opposingOrder.getPrice()) {
+            long tradePrice = 0;
+            OrderType opposingType = candidate.getOrderType();
+
+            if (newOrder.getOrderType() == OrderType.AT_PRICE && opposingType == OrderType.AT_PRICE) {
+                if (newOrder.hasPrice() && candidate.hasPrice()) {
+                    long newPrice = newOrder.getPriceTicks();
+                    long opposingPrice = candidate.getPriceTicks();
+                    if (newOrder.getSide() == Side.BUY ? newPrice >= opposingPrice : newPrice <= opposingPrice) {
                         priceMatch = true;
-                        tradePrice = newOrder.getTimestamp().isBefore(opposingOrder.getTimestamp()) ? newOrder.getPrice() : opposingOrder.getPrice();
-                    }
-                } else if (newOrder.getSide() == Side.SELL) { // New order is SELL AT_PRICE
-                    if (newOrder.getPrice() != null && opposingOrder.getPrice() != null && newOrder.getPrice() <= opposingOrder.getPrice()) {
-                        priceMatch = true;
-                        tradePrice = newOrder.getTimestamp().isBefore(opposingOrder.getTimestamp()) ? newOrder.getPrice() : opposingOrder.getPrice();
+                        tradePrice = newOrder.getSequence() < candidate.getSequence() ? newPrice : opposingPrice;
                     }
                 }
-            } else if (newOrder.getOrderType() == OrderType.OPEN || opposingOrder.getOrderType() == OrderType.OPEN) {
+            } else if (newOrder.getOrderType() == OrderType.OPEN || opposingType == OrderType.OPEN) {
                 // One or both orders are OPEN. Price needs to be determined by fallback or explicit AtPrice order.
                 tradePrice = determineFallbackPrice();
                 priceMatch = true; // An OPEN order always matches on price if quantities align.
 
-                // Additional validation for AT_PRICE vs OPEN scenario.
-                // If new order is AT_PRICE and opposing is OPEN, ensure AT_PRICE conditions are met against fallback.
-                if (newOrder.getOrderType() == OrderType.AT_PRICE && newOrder.getPrice() != null) {
-                    if (newOrder.getSide() == Side.BUY && newOrder.getPrice() < tradePrice) {
-                        priceMatch = false;
-                    } else if (newOrder.getSide() == Side.SELL && newOrder.getPrice() > tradePrice) {
-                        priceMatch = false;
-                    }
-                }
-                if (opposingOrder.getOrderType() == OrderType.AT_PRICE && opposingOrder.getPrice() != null) {
-                    if (opposingOrder.getSide() == Side.BUY && opposingOrder.getPrice() < tradePrice) {
-                        priceMatch = false;
-                    } else if (opposingOrder.getSide() == Side.SELL && opposingOrder.getPrice() > tradePrice) {
-                        priceMatch = false;
-                    }
+                // Additional validation for AT_PRICE vs OPEN scenario: a priced AT_PRICE order on either
+                // side must accept the fallback price.
+                if (!acceptsPrice(newOrder.getOrderType(), newOrder.getSide(), newOrder.getPriceTicks(), tradePrice)
+                        || !acceptsPrice(opposingType, candidate.getSide(), candidate.getPriceTicks(), tradePrice)) {
+                    priceMatch = false;
                 }
             }
 
             if (priceMatch) {
                 // Matched successfully, update statuses in DB via OrderService
-                orderService.updateOrderStatus(newOrder.getId(), OrderStatus.FILLED);
-                orderService.updateOrderStatus(opposingOrder.getId(), OrderStatus.FILLED);
+                orderService.persistOrderStatus(itemId, newOrder.getId(), OrderStatus.FILLED);
+                orderService.persistOrderStatus(itemId, candidate.getId(), OrderStatus.FILLED);
 
                 newOrder.setStatus(OrderStatus.FILLED); // Update in-memory for immediate return value
-                opposingOrder.setStatus(OrderStatus.FILLED); // Update in-memory for consistency within engine
-
-                allOpenOrders.remove(newOrder.getId());
-                allOpenOrders.remove(opposingOrder.getId());
+                candidate.setStatus(OrderStatus.FILLED); // Update in-memory for consistency within engine
 
                 totalExecutedTrades.incrementAndGet();
                 lastTradedPrice = tradePrice;
 
-                // No longer need to remove from individual queues here; they are managed by allOpenOrders and DB queries
+                // Filled in before the opposing order leaves the book, which frees its off-heap record
+                Trade trade = recordFill(newOrder, candidate, tradePrice);
+                publishTrade(trade);
+
+                removeFromBook(newEntry);
+                removeFromBook(candidate);
 
-                Trade trade = createTrade(newOrder, opposingOrder, tradePrice);
                 orderService.insertTrade(trade); // Persist trade to DB
-                // executedTrades.add(trade); // Removed
+            } else if (newOrder.getOrderType() == OrderType.AT_PRICE && opposingType == OrderType.AT_PRICE
+                    && newOrder.hasPrice() && candidate.hasPrice() && !opposingOrders.hasPricedOpenOrders()) {
+                // Every later price level is worse, so no other AT_PRICE order can cross either.
+                // Only the unpriced OPEN orders behind the levels are left to try.
+                candidate = opposingOrders.firstUnpriced();
             } else {
-                skippedOrders.add(opposingOrder); // Add to skipped, will be re-added later
-                // Continue the loop to check for other matches
+                candidate = nextCandidate; // Continue the loop to check for other matches
             }
         }
-        // Re-add any skipped orders back to the opposing queue
-        for (Order skippedOrder : skippedOrders) {
-            opposingOrders.offer(skippedOrder);
+    }
+
+    private void removeFromBook(RestingOrder entry) {
+        boolean leavesLevel = entry.isResting() && entry.hasPrice(); // An incoming order that trades never rested
+        allOpenOrders.remove(entry.getId());
+        orderDirectory.remove(entry.getId());
+        fallbackPrices.orderRemoved(entry);
+        if (entry.getSide() == Side.BUY) {
+            buyOrders.remove(entry);
+        } else {
+            sellOrders.remove(entry);
+        }
+        if (leavesLevel) {
+            levelTotals.remove(entry.getSide(), entry.getPriceTicks(), entry.getQuantity());
+            publishLevel(entry.getSide(), entry.getPriceTicks(),
+                    levelTotals.getLastOrderCount() == 0 ? MarketDataListener.LevelAction.REMOVED : MarketDataListener.LevelAction.CHANGED);
         }
+        entry.release(); // Last, since the handle may read from the off-heap record
     }
 
-    private double determineFallbackPrice() {
+    // Tells the service's market data listeners the level's totals as they are after the last change
+    private void publishLevel(Side side, long priceTicks, MarketDataListener.LevelAction action) {
+        long sequence = ++marketDataSequence;
+        MarketDataListener[] listeners = orderService.getMarketDataListeners();
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onLevel(itemId, sequence, action, side, tickSize.toPrice(priceTicks), levelTotals.getLastQuantity(), levelTotals.getLastOrderCount());
+        }
+    }
+
+    private void publishTrade(Trade trade) {
+        long sequence = ++marketDataSequence;
+        MarketDataListener[] listeners = orderService.getMarketDataListeners();
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onTrade(itemId, sequence, trade.getId(), trade.getPrice(), trade.getQuantity(), trade.getTimestampMillis());
+        }
+    }
+
+    private static boolean acceptsPrice(OrderType orderType, Side side, long priceTicks, long price) {
+        if (orderType != OrderType.AT_PRICE || priceTicks == Order.NO_PRICE) {
+            return true;
+        }
+        return side == Side.BUY ? priceTicks >= price : priceTicks <= price;
+    }
+
+    private long determineFallbackPrice() {
         // 1. Last traded price for the item
-        // The lastTradedPrice should ideally be queried from the DB for consistency
-        // For now, we will keep the in-memory lastTradedPrice. This is a potential area for future refinement if strict DB consistency is needed here.
-        if (lastTradedPrice != null) {
+        if (lastTradedPrice != Order.NO_PRICE) {
             return lastTradedPrice;
         }
 
-        // Filter open AT_PRICE orders from allOpenOrders
-        List<Order> openAtPriceOrders = allOpenOrders.values().stream()
-                .filter(order -> order.getStatus() == OrderStatus.OPEN && order.getOrderType() == OrderType.AT_PRICE && order.getPrice() != null)
-                .collect(Collectors.toList());
-
-        // 2. Earliest AtPrice sell order price (considering active orders only)
-        // Find the lowest priced sell order among active AT_PRICE orders
-        Double earliestSellPrice = openAtPriceOrders.stream()
-                .filter(order -> order.getSide() == Side.SELL)
-                .min(Comparator.comparing(Order::getPrice).thenComparing(Order::getTimestamp))
-                .map(Order::getPrice)
-                .orElse(null);
-
-        if (earliestSellPrice != null) {
-            return earliestSellPrice;
+        // 2. Best AtPrice sell order price (considering active orders only)
+        long bestSellPrice = fallbackPrices.getBestSellPrice();
+        if (bestSellPrice != Order.NO_PRICE) {
+            return bestSellPrice;
         }
 
-        // 3. Earliest AtPrice buy order price (considering active orders only)
-        // Find the highest priced buy order among active AT_PRICE orders
-        Double earliestBuyPrice = openAtPriceOrders.stream()
-                .filter(order -> order.getSide() == Side.BUY)
-                .max(Comparator.comparing(Order::getPrice).thenComparing(Order::getTimestamp).reversed())
-                .map(Order::getPrice)
-                .orElse(null);
-
-        if (earliestBuyPrice != null) {
-            return earliestBuyPrice;
+        // 3. Best AtPrice buy order price (considering active orders only)
+        long bestBuyPrice = fallbackPrices.getBestBuyPrice();
+        if (bestBuyPrice != Order.NO_PRICE) {
+            return bestBuyPrice;
         }
 
         // 4. System default $1000
-        return 1000.0;
-    }
-
-    // This method is now responsible for generating a unique trade ID if needed, or rely on DB auto-increment
-    private Trade createTrade(Order newOrder, Order opposingOrder, double price) {
-        int buyerId = (newOrder.getSide() == Side.BUY) ? newOrder.getUserId() : opposingOrder.getUserId();
-        int buyOrderId = (newOrder.getSide() == Side.BUY) ? newOrder.getId() : opposingOrder.getId();
-        int sellerId = (newOrder.getSide() == Side.SELL) ? newOrder.getUserId() : opposingOrder.getUserId();
-        int sellOrderId = (newOrder.getSide() == Side.SELL) ? newOrder.getId() : opposingOrder.getId();
-        int tradeId = orderService.getNewTradeId(); // Get a new trade ID from OrderService
-        return new Trade(tradeId, buyerId, buyOrderId, sellerId, sellOrderId, itemId, price, LocalDateTime.now(), newOrder.getQuantity()); // Assuming trade quantity is newOrder.getQuantity()
-    }
-
-    public synchronized boolean cancelOrder(int orderId) {
-        Order order = allOpenOrders.get(orderId);
-        if (order != null) {
-            // Update in-memory status
-            order.setStatus(OrderStatus.CANCELLED);
-            allOpenOrders.remove(orderId);
-            // Do not remove from buyOrders/sellOrders here, as they are implicitly managed by allOpenOrders
-            // and will be re-populated by DB queries when getOrderBook is called.
-            if (order.getSide() == Side.BUY) {
-                buyOrders.remove(order);
-            } else {
-                sellOrders.remove(order);
-            }
+        return defaultFallbackPrice;
+    }
+
+    // Fills in the engine's reusable Trade for this match. It is only valid until the next fill, so
+    // everything that keeps a trade (the persistence queue) copies it.
+    private Trade recordFill(Order newOrder, RestingOrder opposingOrder, long priceTicks) {
+        boolean newOrderBuys = newOrder.getSide() == Side.BUY;
+        fill.setId(tradeIds.nextId()); // From this shard's block; no database round trip
+        fill.setBuyerId(newOrderBuys ? newOrder.getUserId() : opposingOrder.getUserId());
+        fill.setBuyOrderId(newOrderBuys ? newOrder.getId() : opposingOrder.getId());
+        fill.setSellerId(newOrderBuys ? opposingOrder.getUserId() : newOrder.getUserId());
+        fill.setSellOrderId(newOrderBuys ? opposingOrder.getId() : newOrder.getId());
+        fill.setPrice(priceTicks, tickSize.toPrice(priceTicks));
+        fill.setTimestampMillis(System.currentTimeMillis()); // LocalDateTime.now() would allocate per fill
+        fill.setQuantity(newOrder.getQuantity()); // Assuming trade quantity is newOrder.getQuantity()
+        return fill;
+    }
+
+    public boolean cancelOrder(long orderId) {
+        return retireOrder(orderId, OrderStatus.CANCELLED);
+    }
+
+    // Takes a live order out of the book with the given final status. Returns false if the order is
+    // no longer open in this engine (already filled, cancelled or never submitted here).
+    public boolean retireOrder(long orderId, OrderStatus status) {
+        RestingOrder entry = allOpenOrders.get(orderId);
+        if (entry != null) {
+            // Update in-memory status and unlink the order from its price level
+            entry.setStatus(status);
+            removeFromBook(entry);
 
-            // Notify OrderService to update DB
-            // This call is redundant as OrderService.cancelOrder already updates DB
-            // orderService.updateOrderStatus(orderId, OrderStatus.CANCELLED);
+            // The caller (OrderService) persists the new status to the DB
             return true;
         }
         return false;
     }
 
+    // The open orders of the last snapshot built, in book order. This is not a live view: the snapshot
+    // is only rebuilt when a query asks the matching thread for one, so it can miss any number of changes
+    // since. OrderService.queryOrderBook returns the current book.
     public List<Order> getOrderBook() {
-        // This method will now query the DB via OrderService
-        return orderService.getOpenOrdersByItem(itemId);
+        return snapshot.getOrders();
+    }
+
+    // The last snapshot built. It may be older than the book; OrderService compares its version with
+    // getBookVersion() and asks the matching thread for a new one when they differ.
+    public OrderBookSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    // The last depth built, likewise
+    public DepthSnapshot getDepth() {
+        return depth;
+    }
+
+    public long getBookVersion() {
+        return bookVersion;
+    }
+
+    // Called by the matching thread for every command that changes the book, before its result goes out
+    void bookChanged() {
+        bookVersion++;
+    }
+
+    // The current book, copied if it changed since the last copy. Matching thread only.
+    OrderBookSnapshot snapshot() {
+        long version = bookVersion;
+        OrderBookSnapshot current = snapshot;
+        if (current.getVersion() == version) {
+            return current;
+        }
+        OrderColumns.Builder buys = new OrderColumns.Builder(itemId, buyOrders.size());
+        OrderColumns.Builder sells = new OrderColumns.Builder(itemId, sellOrders.size());
+        OrderColumns.Builder unpriced = new OrderColumns.Builder(itemId, 16);
+        buyOrders.copyOrders(buys, unpriced);
+        sellOrders.copyOrders(sells, unpriced);
+        current = new OrderBookSnapshot(itemId, version, buys.buildInBookOrder(Side.BUY), sells.buildInBookOrder(Side.SELL),
+                unpriced.buildInTimeOrder(), buyOrders.size() + sellOrders.size());
+        snapshot = current;
+        return current;
+    }
+
+    // The best `levels` price levels of each side. The prices come from the level totals and only the
+    // orders resting at them are copied, so the cost follows the size of those levels, not of the book.
+    // Matching thread only.
+    OrderBookSnapshot topLevels(int levels) {
+        long version = bookVersion;
+        OrderBookSnapshot current = snapshot;
+        if (current.getVersion() == version) {
+            return current.topLevels(levels);
+        }
+        return new OrderBookSnapshot(itemId, version, copyTopLevels(Side.BUY, buyOrders, levels), copyTopLevels(Side.SELL, sellOrders, levels),
+                OrderColumns.empty(itemId), buyOrders.size() + sellOrders.size());
+    }
+
+    private OrderColumns copyTopLevels(Side side, QuantityIndexedSide orders, int levels) {
+        int count = Math.min(levels, levelTotals.getLevelCount(side));
+        long[] prices = new long[count];
+        long[] quantities = new long[count];
+        int[] orderCounts = new int[count];
+        levelTotals.copyLevels(side, count, prices, quantities, orderCounts);
+        int rows = 0;
+        for (int orderCount : orderCounts) {
+            rows += orderCount;
+        }
+        OrderColumns.Builder top = new OrderColumns.Builder(itemId, rows);
+        for (long price : prices) {
+            orders.copyLevel(price, top);
+        }
+        return top.buildInBookOrder(side);
+    }
+
+    // The current depth, copied if the book changed since the last copy. Matching thread only.
+    DepthSnapshot depth() {
+        long version = bookVersion;
+        DepthSnapshot current = depth;
+        if (current.getVersion() == version) {
+            return current;
+        }
+        current = copyDepth(version);
+        depth = current;
+        return current;
+    }
+
+    // One pass over the running level totals; no orders are visited
+    private DepthSnapshot copyDepth(long version) {
+        int bidLevels = levelTotals.getLevelCount(Side.BUY);
+        int askLevels = levelTotals.getLevelCount(Side.SELL);
+        long[] bidTicks = new long[bidLevels];
+        long[] bidQuantities = new long[bidLevels];
+        int[] bidOrderCounts = new int[bidLevels];
+        long[] askTicks = new long[askLevels];
+        long[] askQuantities = new long[askLevels];
+        int[] askOrderCounts = new int[askLevels];
+        levelTotals.copyLevels(Side.BUY, bidLevels, bidTicks, bidQuantities, bidOrderCounts);
+        levelTotals.copyLevels(Side.SELL, askLevels, askTicks, askQuantities, askOrderCounts);
+        return new DepthSnapshot(itemId, version, toPrices(bidTicks), bidQuantities, bidOrderCounts,
+                toPrices(askTicks), askQuantities, askOrderCounts);
+    }
+
+    private double[] toPrices(long[] ticks) {
+        double[] prices = new double[ticks.length];
+        for (int i = 0; i < ticks.length; i++) {
+            prices[i] = tickSize.toPrice(ticks[i]);
+        }
+        return prices;
+    }
+
+    // The engine's part of a MarketSnapshot: resting orders oldest first, so restoring them in list order
+    // keeps their time priority. Runs on the matching thread, between two commands.
+    MarketSnapshot.ItemState captureState() {
+        OrderColumns.Builder copy = new OrderColumns.Builder(itemId, buyOrders.size() + sellOrders.size());
+        buyOrders.copyOrders(copy, copy);
+        sellOrders.copyOrders(copy, copy);
+        return new MarketSnapshot.ItemState(itemId, copy.buildInTimeOrder());
     }
 
     public List<Trade> getTradeHistory() {
@@ -0,0 +1,218 @@
+package com.vitea.marketplace.services;
+
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderStatus;
+import com.vitea.marketplace.models.OrderType;
+import com.vitea.marketplace.models.Side;
+import com.vitea.marketplace.models.TickSize;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+// Resting orders of one engine kept as fixed-width records outside the Java heap. Records are laid
+// out as a struct of arrays: every field is a column in a direct ByteBuffer, allocated in chunks of
+// CHUNK_SIZE records as the book grows. Freed records go on a free list threaded through the id
+// column and are reused first; chunks are kept when the book shrinks or is cleared, so a deep book
+// costs the collector a handful of buffers instead of millions of Order objects.
+//
+// Only the engine's matching thread reads and writes records; see RestingOrder for what other threads
+// may read. A record is addressed by its slot number, and its fields are read one by one without
+// materializing an Order.
+public class OffHeapOrderStore {
+
+    static final int CHUNK_BITS = 16;
+    public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    // Bytes per record: id, price ticks, sequence, timestamp, user id, quantity, flags
+    static final int RECORD_BYTES = 4 * Long.BYTES + 2 * Integer.BYTES + 1;
+
+    // flags: bit 0 side (1 = SELL), bit 1 order type (1 = OPEN), bits 2-3 status ordinal
+    private static final int SELL_FLAG = 1;
+    private static final int OPEN_TYPE_FLAG = 2;
+    private static final int STATUS_SHIFT = 2;
+    private static final int STATUS_MASK = 3 << STATUS_SHIFT;
+    private static final OrderStatus[] STATUSES = OrderStatus.values();
+
+    private static final int NO_SLOT = -1;
+
+    private static final class Chunk {
+        final LongBuffer ids;
+        final LongBuffer priceTicks;
+        final LongBuffer sequences;
+        final LongBuffer timestamps; // Nanoseconds since the epoch, UTC
+        final IntBuffer userIds;
+        final IntBuffer quantities;
+        final ByteBuffer flags;
+
+        Chunk() {
+            this.ids = allocate(Long.BYTES).asLongBuffer();
+            this.priceTicks = allocate(Long.BYTES).asLongBuffer();
+            this.sequences = allocate(Long.BYTES).asLongBuffer();
+            this.timestamps = allocate(Long.BYTES).asLongBuffer();
+            this.userIds = allocate(Integer.BYTES).asIntBuffer();
+            this.quantities = allocate(Integer.BYTES).asIntBuffer();
+            this.flags = allocate(1);
+        }
+
+        private static ByteBuffer allocate(int width) {
+            return ByteBuffer.allocateDirect(CHUNK_SIZE * width).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private final int itemId;
+    private final TickSize tickSize;
+    private final List<Chunk> chunks;
+    private int highWater; // Slots below this have been handed out at least once
+    private int freeHead; // First free slot, or NO_SLOT
+    private int size;
+
+    public OffHeapOrderStore(int itemId, TickSize tickSize) {
+        this.itemId = itemId;
+        this.tickSize = tickSize;
+        this.chunks = new ArrayList<>();
+        this.highWater = 0;
+        this.freeHead = NO_SLOT;
+        this.size = 0;
+    }
+
+    // Live records
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return chunks.size() * CHUNK_SIZE;
+    }
+
+    public long getReservedBytes() {
+        return (long) capacity() * RECORD_BYTES;
+    }
+
+    // Copies the order into a free record and returns its slot
+    public int add(Order order) {
+        int slot = allocate();
+        Chunk chunk = chunk(slot);
+        int i = slot & CHUNK_MASK;
+        chunk.ids.put(i, order.getId());
+        chunk.priceTicks.put(i, order.getPriceTicks());
+        chunk.sequences.put(i, order.getSequence());
+        LocalDateTime timestamp = order.getTimestamp();
+        chunk.timestamps.put(i, timestamp.toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L + timestamp.getNano());
+        chunk.userIds.put(i, order.getUserId());
+        chunk.quantities.put(i, order.getQuantity());
+        int flags = (order.getSide() == Side.SELL ? SELL_FLAG : 0)
+                | (order.getOrderType() == OrderType.OPEN ? OPEN_TYPE_FLAG : 0)
+                | (order.getStatus().ordinal() << STATUS_SHIFT);
+        chunk.flags.put(i, (byte) flags);
+        size++;
+        return slot;
+    }
+
+    // Returns the record to the free list; the slot must not be read afterwards
+    public void free(int slot) {
+        chunk(slot).ids.put(slot & CHUNK_MASK, freeHead);
+        freeHead = slot;
+        size--;
+    }
+
+    // Forgets every record but keeps the chunks for reuse
+    public void clear() {
+        highWater = 0;
+        freeHead = NO_SLOT;
+        size = 0;
+    }
+
+    public long getId(int slot) {
+        return chunk(slot).ids.get(slot & CHUNK_MASK);
+    }
+
+    public long getPriceTicks(int slot) {
+        return chunk(slot).priceTicks.get(slot & CHUNK_MASK);
+    }
+
+    public long getSequence(int slot) {
+        return chunk(slot).sequences.get(slot & CHUNK_MASK);
+    }
+
+    public int getUserId(int slot) {
+        return chunk(slot).userIds.get(slot & CHUNK_MASK);
+    }
+
+    public int getQuantity(int slot) {
+        return chunk(slot).quantities.get(slot & CHUNK_MASK);
+    }
+
+    public Side getSide(int slot) {
+        return (flags(slot) & SELL_FLAG) != 0 ? Side.SELL : Side.BUY;
+    }
+
+    public OrderType getOrderType(int slot) {
+        return (flags(slot) & OPEN_TYPE_FLAG) != 0 ? OrderType.OPEN : OrderType.AT_PRICE;
+    }
+
+    public OrderStatus getStatus(int slot) {
+        return STATUSES[(flags(slot) & STATUS_MASK) >>> STATUS_SHIFT];
+    }
+
+    public void setStatus(int slot, OrderStatus status) {
+        Chunk chunk = chunk(slot);
+        int i = slot & CHUNK_MASK;
+        int flags = (chunk.flags.get(i) & ~STATUS_MASK) | (status.ordinal() << STATUS_SHIFT);
+        chunk.flags.put(i, (byte) flags);
+    }
+
+    // Nanoseconds since the epoch, UTC
+    public long getTimestampNanos(int slot) {
+        return chunk(slot).timestamps.get(slot & CHUNK_MASK);
+    }
+
+    public LocalDateTime getTimestamp(int slot) {
+        long nanos = getTimestampNanos(slot);
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L), (int) Math.floorMod(nanos, 1_000_000_000L), ZoneOffset.UTC);
+    }
+
+    // A heap copy of the record, for callers outside the matching hot path
+    public Order toOrder(int slot) {
+        long priceTicks = getPriceTicks(slot);
+        Double price = (priceTicks == Order.NO_PRICE) ? null : tickSize.toPrice(priceTicks);
+        Order order = new Order(getId(slot), getUserId(slot), itemId, getSide(slot), getOrderType(slot), price,
+                getStatus(slot), getTimestamp(slot), getQuantity(slot));
+        order.setPriceTicks(priceTicks);
+        order.setSequence(getSequence(slot));
+        return order;
+    }
+
+    // Appends the record to a column copy, field by field; no Order is built
+    public void copyTo(int slot, OrderColumns.Builder into) {
+        long priceTicks = getPriceTicks(slot);
+        into.add(getId(slot), getUserId(slot), getSide(slot), getOrderType(slot), priceTicks,
+                priceTicks == Order.NO_PRICE ? Double.NaN : tickSize.toPrice(priceTicks), getSequence(slot), getTimestampNanos(slot),
+                getQuantity(slot));
+    }
+
+    private int allocate() {
+        if (freeHead != NO_SLOT) {
+            int slot = freeHead;
+            freeHead = (int) chunk(slot).ids.get(slot & CHUNK_MASK);
+            return slot;
+        }
+        if (highWater == capacity()) {
+            chunks.add(new Chunk());
+        }
+        return highWater++;
+    }
+
+    private Chunk chunk(int slot) {
+        return chunks.get(slot >>> CHUNK_BITS);
+    }
+
+    private int flags(int slot) {
+        return chunk(slot).flags.get(slot & CHUNK_MASK);
+    }
+}
@@ -0,0 +1,178 @@
+package com.vitea.marketplace.services;
+
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderType;
+import com.vitea.marketplace.models.Side;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+// One side of an item's order book: price levels sorted by price, each holding its orders in time
+// priority. OPEN orders without a price rest behind every price level, in time order, which is where
+// the old heap comparators placed them. QuantityIndexedSide keeps one of these per quantity.
+//
+// Levels are kept in a sorted array, worst price first, so the best level is the last element: the
+// levels near the top of the book, where almost every insert and removal happens, move only a few
+// array slots. Keys are prices in ticks, negated on the sell side so the array is always ascending
+// and can be binary searched without boxing. Emptied levels are recycled.
+public class OrderBookSide {
+    private static final int INITIAL_LEVELS = 16;
+    private static final int MAX_SPARE_LEVELS = 64;
+
+    private final Side side;
+    private long[] keys;
+    private PriceLevel[] levels;
+    private int levelCount;
+    private final ArrayDeque<PriceLevel> spareLevels;
+    private final PriceLevel unpricedOrders;
+    private int size;
+    private int pricedOpenOrders; // OPEN orders that were given a price and therefore sit in a price level
+
+    public OrderBookSide(Side side) {
+        this.side = side;
+        // Buy levels are walked from the highest price down, sell levels from the lowest price up
+        this.keys = new long[INITIAL_LEVELS];
+        this.levels = new PriceLevel[INITIAL_LEVELS];
+        this.levelCount = 0;
+        this.spareLevels = new ArrayDeque<>();
+        this.unpricedOrders = new PriceLevel(Order.NO_PRICE);
+        this.size = 0;
+        this.pricedOpenOrders = 0;
+    }
+
+    public Side getSide() {
+        return side;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void add(RestingOrder entry) {
+        PriceLevel level = entry.hasPrice() ? levelFor(entry.getPriceTicks()) : unpricedOrders;
+        level.append(entry);
+        size++;
+        if (level != unpricedOrders && entry.getOrderType() == OrderType.OPEN) {
+            pricedOpenOrders++;
+        }
+    }
+
+    public void remove(RestingOrder entry) {
+        PriceLevel level = entry.level;
+        if (level == null) {
+            return; // Not resting in this book
+        }
+        level.unlink(entry);
+        if (level.isEmpty() && level != unpricedOrders) {
+            removeLevel(indexOf(level.getPrice()));
+        }
+        size--;
+        if (level != unpricedOrders && entry.getOrderType() == OrderType.OPEN) {
+            pricedOpenOrders--;
+        }
+    }
+
+    // True if some OPEN order rests in a price level rather than behind them
+    public boolean hasPricedOpenOrders() {
+        return pricedOpenOrders > 0;
+    }
+
+    // Best resting order in price/time priority, or null if this side is empty
+    public RestingOrder first() {
+        if (levelCount > 0) {
+            return levels[levelCount - 1].head;
+        }
+        return unpricedOrders.head;
+    }
+
+    // The order after the given one in price/time priority, or null at the end of the book
+    public RestingOrder next(RestingOrder entry) {
+        if (entry.next != null) {
+            return entry.next;
+        }
+        PriceLevel level = entry.level;
+        if (level == null || level == unpricedOrders) {
+            return null;
+        }
+        int worse = indexOf(level.getPrice()) - 1;
+        if (worse >= 0) {
+            return levels[worse].head;
+        }
+        return unpricedOrders.head;
+    }
+
+    // First OPEN order without a price, skipping every price level
+    public RestingOrder firstUnpriced() {
+        return unpricedOrders.head;
+    }
+
+    // The level at this price, or null if no order rests there
+    PriceLevel levelAt(long priceTicks) {
+        int index = Arrays.binarySearch(keys, 0, levelCount, keyOf(priceTicks));
+        return index >= 0 ? levels[index] : null;
+    }
+
+    public void clear() {
+        while (levelCount > 0) {
+            PriceLevel level = levels[levelCount - 1];
+            while (level.head != null) {
+                level.unlink(level.head);
+            }
+            removeLevel(levelCount - 1);
+        }
+        while (unpricedOrders.head != null) {
+            unpricedOrders.unlink(unpricedOrders.head);
+        }
+        size = 0;
+        pricedOpenOrders = 0;
+    }
+
+    private long keyOf(long priceTicks) {
+        return side == Side.BUY ? priceTicks : -priceTicks;
+    }
+
+    // Index of the level at this price; the level must exist
+    private int indexOf(long priceTicks) {
+        return Arrays.binarySearch(keys, 0, levelCount, keyOf(priceTicks));
+    }
+
+    private PriceLevel levelFor(long priceTicks) {
+        long key = keyOf(priceTicks);
+        int index = Arrays.binarySearch(keys, 0, levelCount, key);
+        if (index >= 0) {
+            return levels[index];
+        }
+        index = -index - 1;
+        if (levelCount == levels.length) {
+            keys = Arrays.copyOf(keys, levelCount * 2);
+            levels = Arrays.copyOf(levels, levelCount * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, levelCount - index);
+        System.arraycopy(levels, index, levels, index + 1, levelCount - index);
+        PriceLevel level = spareLevels.poll();
+        if (level == null) {
+            level = new PriceLevel(priceTicks);
+        } else {
+            level.reuse(priceTicks);
+        }
+        keys[index] = key;
+        levels[index] = level;
+        levelCount++;
+        return level;
+    }
+
+    private void removeLevel(int index) {
+        PriceLevel level = levels[index];
+        levelCount--;
+        System.arraycopy(keys, index + 1, keys, index, levelCount - index);
+        System.arraycopy(levels, index + 1, levels, index, levelCount - index);
+        levels[levelCount] = null;
+        if (spareLevels.size() < MAX_SPARE_LEVELS) {
+            spareLevels.push(level);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.vitea.marketplace.services;
+
+import com.vitea.marketplace.models.Order;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+// An immutable, versioned copy of one item's open orders. The item's MatchingEngine builds it on its
+// matching thread the first time it is read after the book changed, so a batch of commands that nobody
+// reads the book between costs no copy at all, and later reads of an unchanged book share it. The
+// orders are held as OrderColumns, copied without building an Order per resting order; the Orders a
+// reader asks for are made from them on the reader's thread, and later fills and cancels do not show
+// through.
+//
+// A snapshot built for the top levels of a book holds only those levels, and no unpriced orders.
+public final class OrderBookSnapshot {
+
+    // Primitive keys only: price ticks, then sequence number; no unboxing or LocalDateTime compares
+    static final Comparator<Order> TIME_PRIORITY = (a, b) -> Long.compare(a.getSequence(), b.getSequence());
+
+    private final int itemId;
+    private final long version;
+    private final OrderColumns buyOrders; // Priced, highest price first
+    private final OrderColumns sellOrders; // Priced, lowest price first
+    private final OrderColumns unpricedOrders; // OPEN orders without a price, both sides, oldest first
+    private final int orderCount; // Open orders in the book, including any this snapshot leaves out
+    private volatile List<Order> orders; // Built on first use
+
+    OrderBookSnapshot(int itemId, long version, OrderColumns buyOrders, OrderColumns sellOrders, OrderColumns unpricedOrders, int orderCount) {
+        this.itemId = itemId;
+        this.version = version;
+        this.buyOrders = buyOrders;
+        this.sellOrders = sellOrders;
+        this.unpricedOrders = unpricedOrders;
+        this.orderCount = orderCount;
+    }
+
+    public static OrderBookSnapshot empty(int itemId) {
+        return empty(itemId, 0);
+    }
+
+    static OrderBookSnapshot empty(int itemId, long version) {
+        OrderColumns none = OrderColumns.empty(itemId);
+        return new OrderBookSnapshot(itemId, version, none, none, none, 0);
+    }
+
+    public int getItemId() {
+        return itemId;
+    }
+
+    // Increases every time the book changes; equal versions hold the same orders
+    public long getVersion() {
+        return version;
+    }
+
+    public List<Order> getBuyOrders() {
+        return buyOrders.toOrders();
+    }
+
+    public List<Order> getSellOrders() {
+        return sellOrders.toOrders();
+    }
+
+    public List<Order> getUnpricedOrders() {
+        return unpricedOrders.toOrders();
+    }
+
+    // Every order in the snapshot in the same order query-orderbook has always listed them
+    public List<Order> getOrders() {
+        List<Order> all = orders;
+        if (all == null) {
+            List<Order> copy = new ArrayList<>(buyOrders.size() + sellOrders.size() + unpricedOrders.size());
+            copy.addAll(buyOrders.toOrders());
+            copy.addAll(sellOrders.toOrders());
+            copy.addAll(unpricedOrders.toOrders());
+            all = Collections.unmodifiableList(copy);
+            orders = all; // Two readers racing here build equal lists
+        }
+        return all;
+    }
+
+    // Open orders in the book when the snapshot was taken, also those a top-levels snapshot leaves out
+    public int getOrderCount() {
+        return orderCount;
+    }
+
+    // Orders in the best `levels` price levels of each side, buys then sells. Unpriced OPEN orders are
+    // not in any price level and are left out. Only the Orders returned are built.
+    public List<Order> getTopLevels(int levels) {
+        List<Order> top = new ArrayList<>();
+        top.addAll(buyOrders.toOrders(0, buyOrders.rowsInFirstLevels(levels)));
+        top.addAll(sellOrders.toOrders(0, sellOrders.rowsInFirstLevels(levels)));
+        return top;
+    }
+
+    // This snapshot cut down to the best `levels` price levels of each side, at the same version
+    OrderBookSnapshot topLevels(int levels) {
+        return new OrderBookSnapshot(itemId, version, buyOrders.head(buyOrders.rowsInFirstLevels(levels)),
+                sellOrders.head(sellOrders.rowsInFirstLevels(levels)), OrderColumns.empty(itemId), orderCount);
+    }
+}
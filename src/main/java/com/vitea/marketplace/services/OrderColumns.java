@@ -0,0 +1,291 @@
+package com.vitea.marketplace.services;
+
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderStatus;
+import com.vitea.marketplace.models.OrderType;
+import com.vitea.marketplace.models.Side;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// An immutable copy of resting orders of one item, held column by column in primitive arrays. Copying
+// a book this way allocates a few arrays instead of an Order and a LocalDateTime per order, and reads
+// off-heap records field by field. Orders are only built when a reader asks for them, on its own thread.
+// Every order in a copy was resting, so each one comes back OPEN.
+public final class OrderColumns {
+
+    private static final int SELL_FLAG = 1;
+    private static final int OPEN_TYPE_FLAG = 2;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final int itemId;
+    private final int size;
+    private final long[] ids;
+    private final int[] userIds;
+    private final byte[] flags; // bit 0 side (1 = SELL), bit 1 order type (1 = OPEN), as in OffHeapOrderStore
+    private final long[] priceTicks;
+    private final double[] prices; // NaN for an order without a price
+    private final long[] sequences;
+    private final long[] timestamps; // Nanoseconds since the epoch, UTC
+    private final int[] quantities;
+
+    private OrderColumns(int itemId, int size, long[] ids, int[] userIds, byte[] flags, long[] priceTicks, double[] prices,
+                         long[] sequences, long[] timestamps, int[] quantities) {
+        this.itemId = itemId;
+        this.size = size;
+        this.ids = ids;
+        this.userIds = userIds;
+        this.flags = flags;
+        this.priceTicks = priceTicks;
+        this.prices = prices;
+        this.sequences = sequences;
+        this.timestamps = timestamps;
+        this.quantities = quantities;
+    }
+
+    public static OrderColumns empty(int itemId) {
+        return new Builder(itemId, 0).build();
+    }
+
+    public int getItemId() {
+        return itemId;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getId(int row) {
+        return ids[row];
+    }
+
+    public int getUserId(int row) {
+        return userIds[row];
+    }
+
+    public Side getSide(int row) {
+        return (flags[row] & SELL_FLAG) != 0 ? Side.SELL : Side.BUY;
+    }
+
+    public OrderType getOrderType(int row) {
+        return (flags[row] & OPEN_TYPE_FLAG) != 0 ? OrderType.OPEN : OrderType.AT_PRICE;
+    }
+
+    public long getPriceTicks(int row) {
+        return priceTicks[row];
+    }
+
+    // NaN for an order without a price
+    public double getPrice(int row) {
+        return prices[row];
+    }
+
+    public long getSequence(int row) {
+        return sequences[row];
+    }
+
+    public long getTimestampNanos(int row) {
+        return timestamps[row];
+    }
+
+    public int getQuantity(int row) {
+        return quantities[row];
+    }
+
+    // A new heap Order for one row
+    public Order toOrder(int row) {
+        long nanos = timestamps[row];
+        LocalDateTime timestamp = LocalDateTime.ofEpochSecond(Math.floorDiv(nanos, NANOS_PER_SECOND), (int) Math.floorMod(nanos, NANOS_PER_SECOND), ZoneOffset.UTC);
+        Double price = priceTicks[row] == Order.NO_PRICE ? null : prices[row];
+        Order order = new Order(ids[row], userIds[row], itemId, getSide(row), getOrderType(row), price, OrderStatus.OPEN, timestamp, quantities[row]);
+        order.setPriceTicks(priceTicks[row]);
+        order.setSequence(sequences[row]);
+        return order;
+    }
+
+    // Orders for the rows from `from` up to, not including, `to`, in row order
+    public List<Order> toOrders(int from, int to) {
+        List<Order> orders = new ArrayList<>(to - from);
+        for (int row = from; row < to; row++) {
+            orders.add(toOrder(row));
+        }
+        return Collections.unmodifiableList(orders);
+    }
+
+    public List<Order> toOrders() {
+        return toOrders(0, size);
+    }
+
+    // The first rows, up to and including the last row of the `levels`-th distinct price
+    public int rowsInFirstLevels(int levels) {
+        int seen = 0;
+        for (int row = 0; row < size; row++) {
+            if (row == 0 || priceTicks[row] != priceTicks[row - 1]) {
+                if (++seen > levels) {
+                    return row;
+                }
+            }
+        }
+        return size;
+    }
+
+    // A copy of the first rows only
+    public OrderColumns head(int rows) {
+        if (rows >= size) {
+            return this;
+        }
+        return new OrderColumns(itemId, rows, Arrays.copyOf(ids, rows), Arrays.copyOf(userIds, rows), Arrays.copyOf(flags, rows),
+                Arrays.copyOf(priceTicks, rows), Arrays.copyOf(prices, rows), Arrays.copyOf(sequences, rows),
+                Arrays.copyOf(timestamps, rows), Arrays.copyOf(quantities, rows));
+    }
+
+    public static long toEpochNanos(LocalDateTime timestamp) {
+        return timestamp.toEpochSecond(ZoneOffset.UTC) * NANOS_PER_SECOND + timestamp.getNano();
+    }
+
+    // Collects rows in any order, then builds the columns as added, in time order or in book order.
+    // Not thread-safe.
+    public static final class Builder {
+        private final int itemId;
+        private int size;
+        private long[] ids;
+        private int[] userIds;
+        private byte[] flags;
+        private long[] priceTicks;
+        private double[] prices;
+        private long[] sequences;
+        private long[] timestamps;
+        private int[] quantities;
+
+        public Builder(int itemId, int capacity) {
+            this.itemId = itemId;
+            this.ids = new long[capacity];
+            this.userIds = new int[capacity];
+            this.flags = new byte[capacity];
+            this.priceTicks = new long[capacity];
+            this.prices = new double[capacity];
+            this.sequences = new long[capacity];
+            this.timestamps = new long[capacity];
+            this.quantities = new int[capacity];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void add(long id, int userId, Side side, OrderType orderType, long priceTicks, double price, long sequence,
+                        long timestampNanos, int quantity) {
+            if (size == ids.length) {
+                grow();
+            }
+            ids[size] = id;
+            userIds[size] = userId;
+            flags[size] = (byte) ((side == Side.SELL ? SELL_FLAG : 0) | (orderType == OrderType.OPEN ? OPEN_TYPE_FLAG : 0));
+            this.priceTicks[size] = priceTicks;
+            prices[size] = priceTicks == Order.NO_PRICE ? Double.NaN : price;
+            sequences[size] = sequence;
+            timestamps[size] = timestampNanos;
+            quantities[size] = quantity;
+            size++;
+        }
+
+        public void add(Order order) {
+            add(order.getId(), order.getUserId(), order.getSide(), order.getOrderType(), order.getPriceTicks(),
+                    order.hasPrice() ? order.getPrice() : Double.NaN, order.getSequence(), toEpochNanos(order.getTimestamp()), order.getQuantity());
+        }
+
+        // Rows in the order they were added
+        public OrderColumns build() {
+            return new OrderColumns(itemId, size, Arrays.copyOf(ids, size), Arrays.copyOf(userIds, size), Arrays.copyOf(flags, size),
+                    Arrays.copyOf(priceTicks, size), Arrays.copyOf(prices, size), Arrays.copyOf(sequences, size),
+                    Arrays.copyOf(timestamps, size), Arrays.copyOf(quantities, size));
+        }
+
+        // Oldest (lowest sequence) first
+        public OrderColumns buildInTimeOrder() {
+            return build(sortRows(new long[size]));
+        }
+
+        // Price/time priority for one side: best price first, lowest sequence first within a price
+        public OrderColumns buildInBookOrder(Side side) {
+            long[] keys = new long[size];
+            for (int row = 0; row < size; row++) {
+                keys[row] = side == Side.BUY ? -priceTicks[row] : priceTicks[row];
+            }
+            return build(sortRows(keys));
+        }
+
+        private OrderColumns build(int[] rows) {
+            Builder sorted = new Builder(itemId, size);
+            for (int row : rows) {
+                sorted.ids[sorted.size] = ids[row];
+                sorted.userIds[sorted.size] = userIds[row];
+                sorted.flags[sorted.size] = flags[row];
+                sorted.priceTicks[sorted.size] = priceTicks[row];
+                sorted.prices[sorted.size] = prices[row];
+                sorted.sequences[sorted.size] = sequences[row];
+                sorted.timestamps[sorted.size] = timestamps[row];
+                sorted.quantities[sorted.size] = quantities[row];
+                sorted.size++;
+            }
+            return new OrderColumns(itemId, size, sorted.ids, sorted.userIds, sorted.flags, sorted.priceTicks, sorted.prices,
+                    sorted.sequences, sorted.timestamps, sorted.quantities);
+        }
+
+        // Row numbers ordered by key, then by sequence. A stable bottom-up merge sort on primitives, so
+        // sorting neither boxes nor goes through a Comparator.
+        private int[] sortRows(long[] keys) {
+            int[] rows = new int[size];
+            for (int row = 0; row < size; row++) {
+                rows[row] = row;
+            }
+            int[] merged = new int[size];
+            for (int width = 1; width < size; width *= 2) {
+                for (int low = 0; low < size; low += 2 * width) {
+                    int middle = Math.min(low + width, size);
+                    int high = Math.min(low + 2 * width, size);
+                    int left = low;
+                    int right = middle;
+                    int out = low;
+                    while (left < middle && right < high) {
+                        merged[out++] = before(rows[right], rows[left], keys) ? rows[right++] : rows[left++];
+                    }
+                    while (left < middle) {
+                        merged[out++] = rows[left++];
+                    }
+                    while (right < high) {
+                        merged[out++] = rows[right++];
+                    }
+                }
+                int[] swap = rows;
+                rows = merged;
+                merged = swap;
+            }
+            return rows;
+        }
+
+        private boolean before(int a, int b, long[] keys) {
+            return keys[a] != keys[b] ? keys[a] < keys[b] : sequences[a] < sequences[b];
+        }
+
+        private void grow() {
+            int capacity = Math.max(16, ids.length * 2);
+            ids = Arrays.copyOf(ids, capacity);
+            userIds = Arrays.copyOf(userIds, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            priceTicks = Arrays.copyOf(priceTicks, capacity);
+            prices = Arrays.copyOf(prices, capacity);
+            sequences = Arrays.copyOf(sequences, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            quantities = Arrays.copyOf(quantities, capacity);
+        }
+    }
+}
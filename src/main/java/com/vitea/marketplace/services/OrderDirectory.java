@@ -0,0 +1,178 @@
+package com.vitea.marketplace.services;
+
+import java.util.function.LongConsumer;
+
+// In-memory directory of live (OPEN) orders across every engine of an OrderService, keyed by the
+// primitive order id. Each entry is the order's RestingOrder handle, which carries the order's
+// current state and its owning MatchingEngine. Matching and cancel routing consult this directory
+// instead of reading order rows back from the database.
+//
+// The table is split into independently locked segments, each an open-addressing long-keyed hash
+// table with linear probing, so lookups do not box keys or allocate.
+public class OrderDirectory {
+
+    private static final int SEGMENT_BITS = 4;
+    private static final int SEGMENT_COUNT = 1 << SEGMENT_BITS;
+    private static final int INITIAL_SEGMENT_CAPACITY = 64;
+
+    private final Segment[] segments;
+
+    public OrderDirectory() {
+        this.segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(INITIAL_SEGMENT_CAPACITY);
+        }
+    }
+
+    public RestingOrder get(long orderId) {
+        int hash = hash(orderId);
+        return segmentFor(hash).get(orderId, hash);
+    }
+
+    public void put(long orderId, RestingOrder entry) {
+        int hash = hash(orderId);
+        segmentFor(hash).put(orderId, hash, entry);
+    }
+
+    public RestingOrder remove(long orderId) {
+        int hash = hash(orderId);
+        return segmentFor(hash).remove(orderId, hash);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    // Visits every order id, one segment at a time
+    public void forEachId(LongConsumer action) {
+        for (Segment segment : segments) {
+            segment.forEachId(action);
+        }
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> (32 - SEGMENT_BITS)];
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L; // Fibonacci hashing spreads sequential ids across segments and slots
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static final class Segment {
+        private long[] keys;
+        private RestingOrder[] values; // A null value marks an empty slot
+        private int mask;
+        private int size;
+
+        Segment(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            values = new RestingOrder[capacity];
+            mask = capacity - 1;
+        }
+
+        synchronized RestingOrder get(long key, int hash) {
+            for (int i = hash & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        synchronized void put(long key, int hash, RestingOrder value) {
+            int i = hash & mask;
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
+            }
+            keys[i] = key;
+            values[i] = value;
+            if (++size * 2 > values.length) {
+                rehash(values.length * 2);
+            }
+        }
+
+        synchronized RestingOrder remove(long key, int hash) {
+            int i = hash & mask;
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    RestingOrder removed = values[i];
+                    deleteSlot(i);
+                    size--;
+                    return removed;
+                }
+            }
+            return null;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void forEachId(LongConsumer action) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    action.accept(keys[i]);
+                }
+            }
+        }
+
+        synchronized void clear() {
+            allocate(INITIAL_SEGMENT_CAPACITY);
+            size = 0;
+        }
+
+        // Backward-shift deletion keeps probe sequences intact without tombstones
+        private void deleteSlot(int hole) {
+            values[hole] = null;
+            int i = hole;
+            while (true) {
+                i = (i + 1) & mask;
+                if (values[i] == null) {
+                    return;
+                }
+                int home = hash(keys[i]) & mask;
+                boolean movable = (hole <= i) ? (home <= hole || home > i) : (home <= hole && home > i);
+                if (movable) {
+                    keys[hole] = keys[i];
+                    values[hole] = values[i];
+                    values[i] = null;
+                    hole = i;
+                }
+            }
+        }
+
+        private void rehash(int capacity) {
+            long[] oldKeys = keys;
+            RestingOrder[] oldValues = values;
+            allocate(capacity);
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != null) {
+                    int j = hash(oldKeys[i]) & mask;
+                    while (values[j] != null) {
+                        j = (j + 1) & mask;
+                    }
+                    keys[j] = oldKeys[i];
+                    values[j] = oldValues[i];
+                }
+            }
+        }
+    }
+}
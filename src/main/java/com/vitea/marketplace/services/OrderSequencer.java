@@ -0,0 +1,461 @@
+package com.vitea.marketplace.services;
+
+import com.vitea.marketplace.db.PersistencePipeline;
+import com.vitea.marketplace.journal.EventJournal;
+import com.vitea.marketplace.journal.MarketSnapshot;
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderStatus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.concurrent.locks.LockSupport;
+
+// Single-writer front end for one engine shard. Producers claim a slot in a pre-allocated, bounded
+// ring buffer, fill it in and publish it; one matching thread drains the ring in sequence order and
+// is the only thread that ever mutates the MatchingEngines pinned to this shard, so the engines need
+// no lock. Each command carries a CompletableFuture that is completed on the matching thread once
+// the command has been applied. Commands are applied in batches of whatever is queued (up to
+// MAX_BATCH_SIZE) and the batch's futures are completed at the end of it. Every command that changes a
+// book bumps its engine's version before its future completes; book snapshots are only copied when a
+// reader finds the version moved on, by a read command queued behind the commands it has seen
+// acknowledged, so a caller that sees its order acknowledged also sees it in query-orderbook.
+public class OrderSequencer {
+
+    public static final int DEFAULT_RING_SIZE = 1024;
+    static final int MAX_BATCH_SIZE = 256;
+    private static final Runnable[] NO_ACTIONS = new Runnable[0];
+
+    // What a producer does when the shard's ring is full because the matching thread has fallen behind
+    public enum BackpressurePolicy {
+        BLOCK,  // Wait for the matching thread to free a slot
+        REJECT  // Fail the command's future with a RejectedExecutionException straight away
+    }
+
+    private enum CommandType {
+        SUBMIT,
+        CANCEL,
+        RETIRE,
+        RESTORE,
+        CAPTURE,
+        READ
+    }
+
+    // Ring slots are allocated once and reused; sequence is published last so the consumer never sees
+    // a half-written command
+    private static final class Slot {
+        volatile long sequence = -1;
+        CommandType type;
+        MatchingEngine engine;
+        RestingOrder entry;
+        long orderId;
+        OrderStatus status;
+        Function<MatchingEngine, ?> reader;
+        CompletableFuture<Object> future;
+    }
+
+    private final int shardId;
+    private final OrderService orderService;
+    private final BackpressurePolicy backpressurePolicy;
+    private final Slot[] ring;
+    private final int mask;
+    private final AtomicLong claimSequence;
+    private final AtomicLong rejectedCommands;
+    private volatile long consumedSequence;
+    private volatile boolean consumerParked;
+    private volatile boolean running;
+    private final Thread matchingThread;
+    private final IdGenerator.Block tradeIds; // Only the matching thread draws from this block
+    private final PersistencePipeline persistence; // Writes for the engines on this shard
+    // Current batch, only touched by the matching thread
+    private final CompletableFuture<Object>[] batchFutures = newFutures(MAX_BATCH_SIZE);
+    private final Object[] batchResults = new Object[MAX_BATCH_SIZE];
+    private int batchSize;
+    private final List<Runnable> batchActions = new ArrayList<>(); // Run after the batch's futures, see afterBatch
+    private final BlockingQueue<BatchRelease> freeReleases; // Released batches waiting to be reused, see release
+
+    // One batch's futures, results and actions, held until its writes commit under group commit. The
+    // writer thread completes them and hands the holder back to freeReleases, so once there are as many
+    // holders as batches in flight, releasing a batch allocates nothing.
+    private final class BatchRelease extends PersistencePipeline.CommitCallback {
+        final CompletableFuture<Object>[] futures = newFutures(MAX_BATCH_SIZE);
+        final Object[] results = new Object[MAX_BATCH_SIZE];
+        final List<Runnable> actions = new ArrayList<>();
+        int size;
+
+        @Override
+        protected void committed(RuntimeException failure) {
+            if (failure == null) {
+                complete(futures, results, size);
+            } else {
+                fail(futures, size, failure);
+            }
+            for (int i = 0; i < actions.size(); i++) {
+                run(actions.get(i));
+            }
+            Arrays.fill(futures, 0, size, null);
+            Arrays.fill(results, 0, size, null);
+            actions.clear();
+            size = 0;
+            freeReleases.offer(this);
+        }
+    }
+
+    public OrderSequencer(int shardId, OrderService orderService, int ringSize, BackpressurePolicy backpressurePolicy) {
+        if (Integer.bitCount(ringSize) != 1) {
+            throw new IllegalArgumentException("Ring size must be a power of two: " + ringSize);
+        }
+        this.shardId = shardId;
+        this.orderService = orderService;
+        this.backpressurePolicy = backpressurePolicy;
+        this.ring = new Slot[ringSize];
+        for (int i = 0; i < ringSize; i++) {
+            ring[i] = new Slot();
+        }
+        this.mask = ringSize - 1;
+        this.claimSequence = new AtomicLong(-1);
+        this.rejectedCommands = new AtomicLong(0);
+        this.tradeIds = orderService.getTradeIdGenerator().newBlock();
+        this.persistence = orderService.getPersistence(shardId);
+        this.freeReleases = new ArrayBlockingQueue<>(ringSize);
+        this.consumedSequence = -1;
+        this.running = true;
+        this.matchingThread = new Thread(this::drain, "matching-shard-" + shardId);
+        this.matchingThread.setDaemon(true);
+        this.matchingThread.start();
+    }
+
+    public int getShardId() {
+        return shardId;
+    }
+
+    // Commands published but not yet applied by the matching thread
+    public long getQueueDepth() {
+        return claimSequence.get() - consumedSequence;
+    }
+
+    public long getRejectedCommands() {
+        return rejectedCommands.get();
+    }
+
+    // Trade ids for the engines pinned to this shard
+    public IdGenerator.Block getTradeIds() {
+        return tradeIds;
+    }
+
+    public CompletableFuture<Order> submit(RestingOrder entry) {
+        Order order = entry.getOrder();
+        // Register the order before it is sequenced, so a cancel sent right behind it finds its engine
+        orderService.getOrderDirectory().put(order.getId(), entry);
+        CompletableFuture<Order> future = publish(CommandType.SUBMIT, entry.getEngine(), entry, order.getId(), null, null);
+        if (future.isCompletedExceptionally()) {
+            orderService.getOrderDirectory().remove(order.getId());
+        }
+        return future;
+    }
+
+    public CompletableFuture<Order> restore(RestingOrder entry) {
+        return publish(CommandType.RESTORE, entry.getEngine(), entry, entry.getId(), null, null);
+    }
+
+    // Captures every engine pinned to this shard for a MarketSnapshot, in order with the other commands
+    public CompletableFuture<MarketSnapshot.ShardState> capture() {
+        return publish(CommandType.CAPTURE, null, null, 0, null, null);
+    }
+
+    public CompletableFuture<Boolean> cancel(MatchingEngine engine, long orderId) {
+        return publish(CommandType.CANCEL, engine, null, orderId, OrderStatus.CANCELLED, null);
+    }
+
+    public CompletableFuture<Boolean> retire(MatchingEngine engine, long orderId, OrderStatus status) {
+        return publish(CommandType.RETIRE, engine, null, orderId, status, null);
+    }
+
+    // Runs a read-only function against an engine on the matching thread, between two commands. The
+    // future completes as soon as it has run rather than with the batch: a read changes nothing, so
+    // there is nothing to wait for. Once the shard has shut down nothing mutates the engine any more,
+    // and the caller runs the function itself.
+    public <T> CompletableFuture<T> read(MatchingEngine engine, Function<MatchingEngine, T> reader) {
+        if (!running) {
+            awaitTermination();
+            return CompletableFuture.completedFuture(reader.apply(engine));
+        }
+        return publish(CommandType.READ, engine, null, 0, null, reader);
+    }
+
+    // Runs the action once the futures of the batch being applied have completed, on the thread that
+    // completes them: under group commit that is after the batch has been committed. For listeners called
+    // while a command is applied (e.g. a TradeListener) that must not report anything ahead of the
+    // command's own result. Matching thread only.
+    public void afterBatch(Runnable action) {
+        if (Thread.currentThread() != matchingThread) {
+            throw new IllegalStateException("Batch actions can only be added on the matching thread of shard " + shardId);
+        }
+        batchActions.add(action);
+    }
+
+    // Stops accepting commands, lets the matching thread apply everything already published, then waits
+    // for it. Commands published after the matching thread's last look at the ring are failed instead.
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(matchingThread);
+        awaitTermination();
+        for (long sequence = consumedSequence + 1; sequence <= claimSequence.get(); sequence++) {
+            Slot slot = ring[(int) (sequence & mask)];
+            CompletableFuture<Object> future = slot.future;
+            if (slot.sequence == sequence && future != null) {
+                future.completeExceptionally(shutDown());
+            }
+        }
+    }
+
+    private void awaitTermination() {
+        try {
+            matchingThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> publish(CommandType type, MatchingEngine engine, RestingOrder entry, long orderId, OrderStatus status,
+                                            Function<MatchingEngine, ?> reader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        if (!running) {
+            future.completeExceptionally(shutDown());
+            return (CompletableFuture<T>) (CompletableFuture<?>) future;
+        }
+        long sequence;
+        while (true) {
+            long claimed = claimSequence.get();
+            if (claimed + 1 - ring.length > consumedSequence) {
+                // Ring is full: the matching thread has fallen behind
+                if (backpressurePolicy == BackpressurePolicy.REJECT) {
+                    rejectedCommands.incrementAndGet();
+                    future.completeExceptionally(new RejectedExecutionException("Matching shard " + shardId + " is full (" + ring.length + " commands queued)"));
+                    return (CompletableFuture<T>) (CompletableFuture<?>) future;
+                }
+                if (!running) {
+                    future.completeExceptionally(shutDown()); // The ring may never drain again
+                    return (CompletableFuture<T>) (CompletableFuture<?>) future;
+                }
+                LockSupport.parkNanos(1_000L);
+                continue;
+            }
+            if (claimSequence.compareAndSet(claimed, claimed + 1)) {
+                sequence = claimed + 1;
+                break;
+            }
+        }
+        Slot slot = ring[(int) (sequence & mask)];
+        slot.type = type;
+        slot.engine = engine;
+        slot.entry = entry;
+        slot.orderId = orderId;
+        slot.status = status;
+        slot.reader = reader;
+        slot.future = future;
+        slot.sequence = sequence;
+        if (consumerParked) {
+            LockSupport.unpark(matchingThread);
+        }
+        // A command claimed after shutdown began may come after the matching thread's last look at the
+        // ring. Once the thread has stopped, whatever it did not consume is never applied.
+        if (!running && Thread.currentThread() != matchingThread) {
+            awaitTermination();
+            if (consumedSequence < sequence) {
+                future.completeExceptionally(shutDown());
+            }
+        }
+        return (CompletableFuture<T>) (CompletableFuture<?>) future;
+    }
+
+    private IllegalStateException shutDown() {
+        return new IllegalStateException("Matching shard " + shardId + " is shut down");
+    }
+
+    private void drain() {
+        long next = consumedSequence + 1;
+        while (true) {
+            Slot slot = ring[(int) (next & mask)];
+            if (slot.sequence != next) {
+                if (batchSize > 0 || !batchActions.isEmpty()) {
+                    endBatch(); // Nothing more queued right now: publish before waiting
+                    continue;
+                }
+                if (!running && claimSequence.get() < next) {
+                    return; // Shut down and every claimed command has been applied
+                }
+                consumerParked = true;
+                if (slot.sequence != next && running) {
+                    LockSupport.park(this);
+                }
+                consumerParked = false;
+                continue;
+            }
+            apply(slot);
+            slot.engine = null;
+            slot.entry = null;
+            slot.reader = null;
+            slot.future = null;
+            consumedSequence = next++;
+            if (batchSize == MAX_BATCH_SIZE) {
+                endBatch();
+            }
+        }
+    }
+
+    private void apply(Slot slot) {
+        CompletableFuture<Object> future = slot.future;
+        MatchingEngine engine = slot.engine;
+        try {
+            switch (slot.type) {
+                case SUBMIT:
+                    Order order = slot.entry.getOrder();
+                    engine.prepare(order);
+                    orderService.insertOrder(order); // Persist new order to DB
+                    touch(engine);
+                    engine.submit(slot.entry);
+                    defer(future, order);
+                    break;
+                case CANCEL:
+                    boolean cancelled = engine.cancelOrder(slot.orderId);
+                    if (cancelled) {
+                        touch(engine);
+                        orderService.persistOrderStatus(engine.getItemId(), slot.orderId, OrderStatus.CANCELLED); // Update DB
+                    }
+                    defer(future, cancelled);
+                    break;
+                case RETIRE:
+                    boolean retired = engine.retireOrder(slot.orderId, slot.status);
+                    if (retired) {
+                        touch(engine);
+                        orderService.persistOrderStatus(engine.getItemId(), slot.orderId, slot.status);
+                    }
+                    defer(future, retired);
+                    break;
+                case RESTORE:
+                    Order restored = slot.entry.getOrder(); // Taken before it rests, which may move it off-heap
+                    touch(engine);
+                    engine.restore(slot.entry);
+                    defer(future, restored);
+                    break;
+                case CAPTURE:
+                    defer(future, capture(orderService.getEngineRuntime()));
+                    break;
+                case READ:
+                    future.complete(slot.reader.apply(engine));
+                    break;
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Error applying " + slot.type + " for order " + slot.orderId + ": " + e.getMessage());
+            if (engine != null && slot.type != CommandType.READ) {
+                touch(engine); // The engine may have changed before the failure
+            }
+            future.completeExceptionally(e);
+        }
+    }
+
+    // Every record this shard has journaled so far is below the position, and nothing it journals from
+    // here on is, so the position marks exactly what the captured engines contain
+    private MarketSnapshot.ShardState capture(EngineRuntime runtime) {
+        EventJournal journal = orderService.getJournal();
+        long position = journal != null ? journal.getPosition() : 0;
+        List<MarketSnapshot.ItemState> items = new ArrayList<>();
+        for (MatchingEngine engine : runtime.getEngines()) {
+            if (runtime.shardIndexFor(engine.getItemId()) == shardId) {
+                items.add(engine.captureState());
+            }
+        }
+        return new MarketSnapshot.ShardState(position, items);
+    }
+
+    private static void touch(MatchingEngine engine) {
+        engine.bookChanged();
+    }
+
+    private void defer(CompletableFuture<Object> future, Object result) {
+        batchFutures[batchSize] = future;
+        batchResults[batchSize] = result;
+        batchSize++;
+    }
+
+    private void endBatch() {
+        EventJournal journal = orderService.getJournal();
+        if (journal != null) {
+            journal.endBatch(); // Forced before the results go out, if the fsync policy asks for it
+        }
+        release();
+        Arrays.fill(batchFutures, 0, batchSize, null);
+        Arrays.fill(batchResults, 0, batchSize, null);
+        batchSize = 0;
+    }
+
+    // Hands a batch's results back once its writes are as durable as the persistence mode promises.
+    // Under group commit the futures complete on the writer thread after the batch commits, so the
+    // matching thread moves on to the next batch without waiting for the database; the batch is copied
+    // into a pooled BatchRelease, since the arrays are reused. If the writer stopped before committing
+    // the batch, the futures fail with its error. Otherwise they complete here, straight from the arrays.
+    // Batch actions run after the futures either way: the commands were applied to the books regardless.
+    private void release() {
+        if (persistence.getMode() == PersistencePipeline.DurabilityMode.GROUP_COMMIT) {
+            BatchRelease release = freeReleases.poll();
+            if (release == null) {
+                release = new BatchRelease(); // Only until the pool has grown to the number of batches in flight
+            }
+            System.arraycopy(batchFutures, 0, release.futures, 0, batchSize);
+            System.arraycopy(batchResults, 0, release.results, 0, batchSize);
+            release.size = batchSize;
+            for (int i = 0; i < batchActions.size(); i++) {
+                release.actions.add(batchActions.get(i));
+            }
+            batchActions.clear();
+            persistence.flush(release);
+        } else {
+            complete(batchFutures, batchResults, batchSize);
+            if (!batchActions.isEmpty()) {
+                Runnable[] actions = batchActions.toArray(NO_ACTIONS);
+                batchActions.clear();
+                run(actions);
+            }
+        }
+    }
+
+    // Generic arrays cannot be created directly; the array only ever holds CompletableFuture<Object>
+    @SuppressWarnings("unchecked")
+    private static CompletableFuture<Object>[] newFutures(int size) {
+        return (CompletableFuture<Object>[]) new CompletableFuture<?>[size];
+    }
+
+    private static void complete(CompletableFuture<Object>[] futures, Object[] results, int count) {
+        for (int i = 0; i < count; i++) {
+            futures[i].complete(results[i]);
+        }
+    }
+
+    private static void fail(CompletableFuture<Object>[] futures, int count, Throwable error) {
+        for (int i = 0; i < count; i++) {
+            futures[i].completeExceptionally(error);
+        }
+    }
+
+    private static void run(Runnable[] actions) {
+        for (Runnable action : actions) {
+            run(action);
+        }
+    }
+
+    private static void run(Runnable action) {
+        try {
+            action.run();
+        } catch (RuntimeException e) {
+            System.err.println("Error running batch action: " + e.getMessage());
+        }
+    }
+}
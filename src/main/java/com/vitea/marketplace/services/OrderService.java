@@ -1,165 +1,420 @@
 package com.vitea.marketplace.services;
 
+import com.vitea.marketplace.db.ConnectionPool;
+import com.vitea.marketplace.db.PersistencePipeline;
+import com.vitea.marketplace.journal.EventJournal;
+import com.vitea.marketplace.journal.MarketSnapshot;
+import com.vitea.marketplace.marketdata.MarketDataListener;
 import com.vitea.marketplace.models.Order;
 import com.vitea.marketplace.models.Side;
 import com.vitea.marketplace.models.OrderType;
 import com.vitea.marketplace.models.OrderStatus;
+import com.vitea.marketplace.models.TickSize;
 import com.vitea.marketplace.models.Trade;
 
 import java.time.LocalDateTime;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.Statement;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class OrderService {
 
-    private final Map<Integer, MatchingEngine> matchingEngines;
-    private final AtomicInteger orderIdCounter;
-    private final Connection connection; // Added for H2 interaction
+    private final int shardCount;
+    private final int ringSize;
+    private final OrderSequencer.BackpressurePolicy backpressurePolicy;
+    private volatile EngineRuntime engineRuntime; // Engines pinned to single-writer matching shards
+    private final OrderDirectory orderDirectory; // Live orders across all engines; never read back from the DB
+    private final IdGenerator orderIds;
+    private final IdGenerator tradeIds; // Each matching shard numbers its trades from a block of its own
+    private final ConnectionPool connectionPool; // Writer connection per shard, pooled connections for queries
+    private final boolean ownsConnectionPool;
+    private final PersistencePipeline[] persistence; // One per shard, writing on that shard's connection
+    private final MarketStatistics statistics; // Maintained as trades and status changes happen
+    private final Map<Integer, TickSize> tickSizes; // Per item, read from ITEMS once
+    private volatile MatchingEngine.BookStorage bookStorage = MatchingEngine.BookStorage.HEAP;
+    private volatile EventJournal journal; // null unless the service journals its events
+    private volatile TradeListener[] tradeListeners = new TradeListener[0]; // Copied on change, read per trade
+    private volatile MarketDataListener[] marketDataListeners = new MarketDataListener[0]; // Read per book change
 
+    public OrderService(ConnectionPool connectionPool) {
+        this(connectionPool, connectionPool.getWriterCount(), OrderSequencer.DEFAULT_RING_SIZE, OrderSequencer.BackpressurePolicy.BLOCK, PersistencePipeline.DurabilityMode.GROUP_COMMIT);
+    }
+
+    public OrderService(ConnectionPool connectionPool, int shardCount, int ringSize, OrderSequencer.BackpressurePolicy backpressurePolicy, PersistencePipeline.DurabilityMode durabilityMode) {
+        this(connectionPool, false, shardCount, ringSize, backpressurePolicy, durabilityMode);
+    }
+
+    // The connection only identifies the database, by the URL and user in its metadata: the service
+    // opens and owns a pool of its own against it, so matching never shares a JDBC connection with the caller
     public OrderService(Connection connection) {
-        this.matchingEngines = new ConcurrentHashMap<>();
-        this.orderIdCounter = new AtomicInteger(0);
-        this.connection = connection;
+        this(connection, EngineRuntime.defaultShardCount(), OrderSequencer.DEFAULT_RING_SIZE, OrderSequencer.BackpressurePolicy.BLOCK);
+    }
+
+    public OrderService(Connection connection, int shardCount, int ringSize, OrderSequencer.BackpressurePolicy backpressurePolicy) {
+        this(connection, shardCount, ringSize, backpressurePolicy, PersistencePipeline.DurabilityMode.GROUP_COMMIT);
+    }
+
+    public OrderService(Connection connection, int shardCount, int ringSize, OrderSequencer.BackpressurePolicy backpressurePolicy, PersistencePipeline.DurabilityMode durabilityMode) {
+        this(openConnectionPool(connection, shardCount), true, shardCount, ringSize, backpressurePolicy, durabilityMode);
+    }
+
+    private OrderService(ConnectionPool connectionPool, boolean ownsConnectionPool, int shardCount, int ringSize, OrderSequencer.BackpressurePolicy backpressurePolicy, PersistencePipeline.DurabilityMode durabilityMode) {
+        if (connectionPool.getWriterCount() < shardCount) {
+            throw new IllegalArgumentException("Connection pool has " + connectionPool.getWriterCount() + " writer connections for " + shardCount + " shards");
+        }
+        this.shardCount = shardCount;
+        this.ringSize = ringSize;
+        this.backpressurePolicy = backpressurePolicy;
+        this.orderDirectory = new OrderDirectory();
+        this.connectionPool = connectionPool;
+        this.ownsConnectionPool = ownsConnectionPool;
+        // Seeded once from the DB; after that no id is ever read back from it
+        this.orderIds = new IdGenerator(getMaxId("ORDERS"), IdGenerator.DEFAULT_BLOCK_SIZE);
+        this.tradeIds = new IdGenerator(getMaxId("TRADES"), IdGenerator.DEFAULT_BLOCK_SIZE);
+        this.statistics = new MarketStatistics();
+        this.tickSizes = new ConcurrentHashMap<>();
+        loadTickSizes();
+        loadStatistics(); // Rebuilt once from storage, then kept current in memory
+        this.persistence = new PersistencePipeline[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            persistence[i] = new PersistencePipeline(connectionPool.getWriterConnection(i), connectionPool.getStatementCache(), durabilityMode, "persistence-writer-" + i);
+        }
+        this.engineRuntime = new EngineRuntime(this, shardCount, ringSize, backpressurePolicy);
     }
 
-    private MatchingEngine getMatchingEngine(int itemId) {
-        // The MatchingEngine will now also need a reference to OrderService to update DB
-        return matchingEngines.computeIfAbsent(itemId, id -> new MatchingEngine(id, this));
+    private static ConnectionPool openConnectionPool(Connection connection, int shardCount) {
+        try {
+            DatabaseMetaData metaData = connection.getMetaData();
+            return new ConnectionPool(metaData.getURL(), metaData.getUserName(), shardCount, ConnectionPool.DEFAULT_POOL_SIZE);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Error opening database connections: " + e.getMessage(), e);
+        }
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public PersistencePipeline getPersistence(int shardIndex) {
+        return persistence[shardIndex];
+    }
+
+    // Orders and trades of an item are written by the pipeline of the shard the item is pinned to
+    private PersistencePipeline persistenceFor(int itemId) {
+        return persistence[engineRuntime.shardIndexFor(itemId)];
+    }
+
+    // Waits until every order and trade write issued so far has been committed
+    public void flush() {
+        for (PersistencePipeline pipeline : persistence) {
+            pipeline.flush().join();
+        }
+    }
+
+    public EngineRuntime getEngineRuntime() {
+        return engineRuntime;
     }
 
     public void reset() {
-        for (MatchingEngine engine : matchingEngines.values()) {
+        engineRuntime.shutdown();
+        for (MatchingEngine engine : engineRuntime.getEngines()) {
             engine.reset();
         }
-        matchingEngines.clear();
-        orderIdCounter.set(0);
+        flush();
+        orderDirectory.clear();
+        orderIds.reset(0);
+        tradeIds.reset(0);
+        statistics.clear();
+        engineRuntime = new EngineRuntime(this, shardCount, ringSize, backpressurePolicy); // Shards take fresh trade-id blocks
         // We should also clear the database tables here if reset means a full reset for in-memory DB
         // The database tables will be truncated by H2DatabaseUtil.resetAllTables() in test setup methods.
     }
 
-    public void setNextOrderId(int nextId) {
-        orderIdCounter.set(nextId);
+    // Stops every matching shard after it has applied the commands already submitted, then writes out
+    // whatever the persistence pipeline still has queued
+    public void shutdown() {
+        engineRuntime.shutdown();
+        for (PersistencePipeline pipeline : persistence) {
+            pipeline.shutdown();
+        }
+        if (ownsConnectionPool) {
+            connectionPool.close();
+        }
     }
 
-    // New method to insert an order into the database
-    public void insertOrder(Order order) {
-        String sql = "INSERT INTO ORDERS (ID, USER_ID, ITEM_ID, SIDE, ORDER_TYPE, PRICE, STATUS, TIMESTAMP, QUANTITY) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setInt(1, order.getId());
-            pstmt.setInt(2, order.getUserId());
-            pstmt.setInt(3, order.getItemId());
-            pstmt.setString(4, order.getSide().name());
-            pstmt.setString(5, order.getOrderType().name());
-            if (order.getPrice() != null) {
-                pstmt.setDouble(6, order.getPrice());
-            } else {
-                pstmt.setNull(6, java.sql.Types.DOUBLE);
-            }
-            pstmt.setString(7, order.getStatus().name());
-            pstmt.setTimestamp(8, java.sql.Timestamp.valueOf(order.getTimestamp()));
-            pstmt.setInt(9, order.getQuantity());
+    public OrderDirectory getOrderDirectory() {
+        return orderDirectory;
+    }
+
+    public void setNextOrderId(long nextId) {
+        orderIds.reset(nextId);
+    }
+
+    public IdGenerator getTradeIdGenerator() {
+        return tradeIds;
+    }
+
+    public MatchingEngine.BookStorage getBookStorage() {
+        return bookStorage;
+    }
+
+    // Where engines created from now on keep their resting orders; engines already running keep theirs
+    public void setBookStorage(MatchingEngine.BookStorage bookStorage) {
+        this.bookStorage = bookStorage;
+    }
+
+    public EventJournal getJournal() {
+        return journal;
+    }
+
+    // Records every accepted order, status change and trade from now on, alongside the database writes
+    public void setJournal(EventJournal journal) {
+        this.journal = journal;
+    }
+
+    public synchronized void addTradeListener(TradeListener listener) {
+        TradeListener[] listeners = Arrays.copyOf(tradeListeners, tradeListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        tradeListeners = listeners;
+    }
+
+    public synchronized void removeTradeListener(TradeListener listener) {
+        tradeListeners = Arrays.stream(tradeListeners).filter(existing -> existing != listener).toArray(TradeListener[]::new);
+    }
+
+    // From a listener running on an item's matching thread: runs the action once the results of the
+    // commands being applied have gone out, after their commit under group commit
+    public void afterBatch(int itemId, Runnable action) {
+        engineRuntime.afterBatch(itemId, action);
+    }
+
+    // Receives every engine's level updates and trade prints from now on, on the matching threads
+    public synchronized void addMarketDataListener(MarketDataListener listener) {
+        MarketDataListener[] listeners = Arrays.copyOf(marketDataListeners, marketDataListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        marketDataListeners = listeners;
+    }
+
+    public synchronized void removeMarketDataListener(MarketDataListener listener) {
+        marketDataListeners = Arrays.stream(marketDataListeners).filter(existing -> existing != listener).toArray(MarketDataListener[]::new);
+    }
+
+    MarketDataListener[] getMarketDataListeners() {
+        return marketDataListeners;
+    }
+
+    public MarketStatistics getStatistics() {
+        return statistics;
+    }
+
+    // Tick sizes are read from ITEMS once at startup and kept in memory, so creating an engine never
+    // waits for a database connection. Items without a configured tick size use the default.
+    public TickSize getTickSize(int itemId) {
+        return tickSizes.getOrDefault(itemId, TickSize.DEFAULT);
+    }
+
+    // Sets an item's tick size. Only allowed before the item has an engine, since resting orders are
+    // already expressed in the old ticks.
+    public void setTickSize(int itemId, double tick) {
+        TickSize tickSize = new TickSize(tick);
+        if (engineRuntime.findEngine(itemId) != null) {
+            throw new IllegalStateException("Item " + itemId + " is already trading; its tick size cannot change");
+        }
+        String sql = "UPDATE ITEMS SET TICK_SIZE = ? WHERE ID = ?";
+        try (ConnectionPool.Lease lease = connectionPool.acquire()) {
+            PreparedStatement pstmt = lease.prepareStatement(sql);
+            pstmt.setDouble(1, tick);
+            pstmt.setInt(2, itemId);
             pstmt.executeUpdate();
         } catch (SQLException e) {
-            System.err.println("Error inserting order " + order.getId() + ": " + e.getMessage());
+            System.err.println("Error setting tick size for item " + itemId + ": " + e.getMessage());
+            return;
+        }
+        tickSizes.put(itemId, tickSize);
+        EventJournal journal = this.journal;
+        if (journal != null) {
+            journal.appendTickSize(itemId, tick);
+        }
+    }
+
+    private void loadTickSizes() {
+        String sql = "SELECT ID, TICK_SIZE FROM ITEMS WHERE TICK_SIZE <> ?";
+        try (ConnectionPool.Lease lease = connectionPool.acquire()) {
+            PreparedStatement pstmt = lease.prepareStatement(sql);
+            pstmt.setDouble(1, TickSize.DEFAULT_TICK);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    tickSizes.put(rs.getInt(1), new TickSize(rs.getDouble(2)));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Error loading tick sizes: " + e.getMessage());
         }
     }
 
-    // New method to update an order's status in the database
-    public void updateOrderStatus(int orderId, OrderStatus status) {
-        String sql = "UPDATE ORDERS SET STATUS = ? WHERE ID = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+    // New method to insert an order into the database
+    public void insertOrder(Order order) {
+        if (order.getStatus() == OrderStatus.OPEN) {
+            statistics.orderOpened(order.getItemId());
+        }
+        EventJournal journal = this.journal;
+        if (journal != null) {
+            journal.appendOrder(order);
+        }
+        persistenceFor(order.getItemId()).insertOrder(order);
+    }
+
+    // Updates an order's status from outside the matching engine. A live order is retired through its
+    // engine, which keeps the in-memory directory authoritative and persists the status on the matching
+    // thread. Anything else only has a database row to change.
+    public void updateOrderStatus(long orderId, OrderStatus status) {
+        if (status != OrderStatus.OPEN) {
+            RestingOrder entry = orderDirectory.get(orderId);
+            if (entry != null && engineRuntime.retire(entry, status).join()) {
+                return;
+            }
+        }
+        flush(); // Let the order's queued writes land first so this update is not overwritten
+        String selectSql = "SELECT ITEM_ID, STATUS FROM ORDERS WHERE ID = ?";
+        String updateSql = "UPDATE ORDERS SET STATUS = ? WHERE ID = ?";
+        try (ConnectionPool.Lease lease = connectionPool.acquire()) {
+            PreparedStatement select = lease.prepareStatement(selectSql);
+            select.setLong(1, orderId);
+            int itemId;
+            OrderStatus previous;
+            try (ResultSet rs = select.executeQuery()) {
+                if (!rs.next()) {
+                    return; // No such order
+                }
+                itemId = rs.getInt("ITEM_ID");
+                previous = OrderStatus.valueOf(rs.getString("STATUS"));
+            }
+            PreparedStatement pstmt = lease.prepareStatement(updateSql);
             pstmt.setString(1, status.name());
-            pstmt.setInt(2, orderId);
+            pstmt.setLong(2, orderId);
             pstmt.executeUpdate();
+            statistics.orderTransition(itemId, previous, status);
+            EventJournal journal = this.journal;
+            if (journal != null) {
+                journal.appendStatus(itemId, orderId, status);
+            }
         } catch (SQLException e) {
             System.err.println("Error updating status for order " + orderId + ": " + e.getMessage());
         }
     }
 
+    // Records a live order's final status in the statistics and the database. Used on the matching thread,
+    // which has already updated memory and only ever moves live (OPEN) orders to a final status
+    void persistOrderStatus(int itemId, long orderId, OrderStatus status) {
+        statistics.orderClosed(itemId);
+        EventJournal journal = this.journal;
+        if (journal != null) {
+            journal.appendStatus(itemId, orderId, status);
+        }
+        persistenceFor(itemId).updateOrderStatus(orderId, status);
+        if (status != OrderStatus.FILLED) {
+            TradeListener[] listeners = tradeListeners;
+            for (int i = 0; i < listeners.length; i++) {
+                listeners[i].onOrderRetired(itemId, orderId, status);
+            }
+        }
+    }
+
     // New method to insert a trade into the database
     public void insertTrade(Trade trade) {
-        String sql = "INSERT INTO TRADES (ID, BUYER_ID, BUY_ORDER_ID, SELLER_ID, SELL_ORDER_ID, ITEM_ID, PRICE, TIMESTAMP, QUANTITY) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setInt(1, trade.getId());
-            pstmt.setInt(2, trade.getBuyerId());
-            pstmt.setInt(3, trade.getBuyOrderId());
-            pstmt.setInt(4, trade.getSellerId());
-            pstmt.setInt(5, trade.getSellOrderId());
-            pstmt.setInt(6, trade.getItemId());
-            pstmt.setDouble(7, trade.getPrice());
-            pstmt.setTimestamp(8, java.sql.Timestamp.valueOf(trade.getTimestamp()));
-            pstmt.setInt(9, trade.getQuantity()); // Use new getQuantity()
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
-            System.err.println("Error inserting trade " + trade.getId() + ": " + e.getMessage());
+        statistics.tradeExecuted(trade);
+        EventJournal journal = this.journal;
+        if (journal != null) {
+            journal.appendTrade(trade);
+        }
+        persistenceFor(trade.getItemId()).insertTrade(trade);
+        TradeListener[] listeners = tradeListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onTrade(trade);
         }
     }
 
+    // Takes an order id without submitting anything, for callers that must know an order's id before
+    // its first trade can be reported (see submitOrderAsync with an explicit id)
+    public long reserveOrderId() {
+        return orderIds.nextId();
+    }
+
     // For regular order submissions, generates a new ID
     public Order submitOrder(int userId, int itemId, Side side, OrderType orderType, Double price, int quantity) {
-        int orderId = orderIdCounter.incrementAndGet();
-        Order newOrder = new Order(orderId, userId, itemId, side, orderType, price, OrderStatus.OPEN, LocalDateTime.now(), quantity);
-        insertOrder(newOrder); // Persist new order to DB
-        return getMatchingEngine(itemId).submitOrder(newOrder);
+        return submitOrderAsync(userId, itemId, side, orderType, price, quantity).join();
     }
 
     // For seed data or cases where a specific order ID is required
-    public Order submitOrder(int orderId, int userId, int itemId, Side side, OrderType orderType, Double price, int quantity, LocalDateTime timestamp) {
-        // Update the counter if the provided orderId is higher
-        while (true) {
-            int currentMaxId = orderIdCounter.get();
-            if (orderId > currentMaxId) {
-                if (orderIdCounter.compareAndSet(currentMaxId, orderId)) {
-                    break; // Successfully updated
-                }
-            } else {
-                break; // Provided ID is not higher, or another thread updated it
-            }
-        }
+    public Order submitOrder(long orderId, int userId, int itemId, Side side, OrderType orderType, Double price, int quantity, LocalDateTime timestamp) {
+        return submitOrderAsync(orderId, userId, itemId, side, orderType, price, quantity, timestamp).join();
+    }
+
+    // Queues the order on its item's matching shard and returns without waiting for the match. The future
+    // completes on the matching thread with the order in its resulting state (OPEN or FILLED).
+    public CompletableFuture<Order> submitOrderAsync(int userId, int itemId, Side side, OrderType orderType, Double price, int quantity) {
+        long orderId = orderIds.nextId();
+        Order newOrder = new Order(orderId, userId, itemId, side, orderType, price, OrderStatus.OPEN, LocalDateTime.now(), quantity);
+        return engineRuntime.submit(newOrder); // Persisted to DB on the matching thread
+    }
+
+    // A new order with a generated id and a timestamp of its own, e.g. a listing migrated from elsewhere
+    public CompletableFuture<Order> submitOrderAsync(int userId, int itemId, Side side, OrderType orderType, Double price, int quantity, LocalDateTime timestamp) {
+        long orderId = orderIds.nextId();
         Order newOrder = new Order(orderId, userId, itemId, side, orderType, price, OrderStatus.OPEN, timestamp, quantity);
-        insertOrder(newOrder); // Persist new order to DB
-        return getMatchingEngine(itemId).submitOrder(newOrder);
-    }
-
-    public boolean cancelOrder(int orderId) {
-        // Retrieve order from DB to get itemId, then cancel in engine and update DB
-        Order orderToCancel = null;
-        String selectSql = "SELECT ITEM_ID FROM ORDERS WHERE ID = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(selectSql)) {
-            pstmt.setInt(1, orderId);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                int itemId = rs.getInt("ITEM_ID");
-                MatchingEngine engine = matchingEngines.get(itemId);
-                if (engine != null) {
-                    boolean cancelledInEngine = engine.cancelOrder(orderId);
-                    if (cancelledInEngine) {
-                        updateOrderStatus(orderId, OrderStatus.CANCELLED); // Update DB
-                        return true;
-                    }
-                }
-            }
-        } catch (SQLException e) {
-            System.err.println("Error retrieving order for cancellation " + orderId + ": " + e.getMessage());
+        return engineRuntime.submit(newOrder);
+    }
+
+    public CompletableFuture<Order> submitOrderAsync(long orderId, int userId, int itemId, Side side, OrderType orderType, Double price, int quantity, LocalDateTime timestamp) {
+        orderIds.advanceTo(orderId); // Generated ids continue above the provided one
+        Order newOrder = new Order(orderId, userId, itemId, side, orderType, price, OrderStatus.OPEN, timestamp, quantity);
+        return engineRuntime.submit(newOrder); // Persisted to DB on the matching thread
+    }
+
+    public boolean cancelOrder(long orderId) {
+        return cancelOrderAsync(orderId).join();
+    }
+
+    public CompletableFuture<Boolean> cancelOrderAsync(long orderId) {
+        // Route the cancel through the in-memory directory; orders that are not live (unknown, filled or
+        // already cancelled) cannot be cancelled, so the database does not need to be consulted.
+        // Orders are registered when they are queued, so a cancel right behind its submit is sequenced after it.
+        RestingOrder entry = orderDirectory.get(orderId);
+        if (entry == null) {
+            return CompletableFuture.completedFuture(false);
         }
-        return false;
+        return engineRuntime.cancel(entry); // Updates DB on the matching thread
+    }
+
+    public OrderStatus getOrderStatus(long orderId) {
+        // Live orders are answered from memory; only finished orders need a database lookup
+        RestingOrder entry = orderDirectory.get(orderId);
+        if (entry != null) {
+            return entry.getStatus();
+        }
+        return getPersistedOrderStatus(orderId);
     }
 
     // New method to retrieve order status from the database
-    public OrderStatus getOrderStatus(int orderId) {
+    public OrderStatus getPersistedOrderStatus(long orderId) {
+        flush(); // Read our own writes, even those still queued in ASYNC mode
         String sql = "SELECT STATUS FROM ORDERS WHERE ID = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setInt(1, orderId);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return OrderStatus.valueOf(rs.getString("STATUS"));
+        try (ConnectionPool.Lease lease = connectionPool.acquire()) {
+            PreparedStatement pstmt = lease.prepareStatement(sql);
+            pstmt.setLong(1, orderId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return OrderStatus.valueOf(rs.getString("STATUS"));
+                }
             }
         } catch (SQLException e) {
             System.err.println("Error getting status for order " + orderId + ": " + e.getMessage());
@@ -167,58 +422,132 @@ public class OrderService {
         return null; // Or throw an exception if order not found
     }
 
-    // New method to generate a new unique trade ID (e.g., from DB sequence)
-    public int getNewTradeId() {
-        // In a real system, this would use a database sequence or UUID
-        // For H2, we can query MAX(ID) from TRADES and increment
-        String sql = "SELECT MAX(ID) FROM TRADES";
-        try (Statement stmt = connection.createStatement()) {
-            ResultSet rs = stmt.executeQuery(sql);
-            if (rs.next()) {
-                return rs.getInt(1) + 1;
+    // Highest ID already in the given table, so IDs keep increasing across restarts
+    private long getMaxId(String table) {
+        return getMaxValue(table, "ID");
+    }
+
+    private long getMaxValue(String table, String column) {
+        String sql = "SELECT MAX(" + column + ") FROM " + table;
+        try (ConnectionPool.Lease lease = connectionPool.acquire()) {
+            PreparedStatement pstmt = lease.prepareStatement(sql);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getLong(1);
+                }
             }
         } catch (SQLException e) {
-            System.err.println("Error generating new trade ID: " + e.getMessage());
+            System.err.println("Error reading highest " + column + " from " + table + ": " + e.getMessage());
         }
-        return 1; // Default to 1 if no trades exist
+        return 0; // Default to 0 if the table is empty
     }
 
-    // Existing query methods will be refactored to query H2 directly in later steps
-
+    // The order book is served from a snapshot of the engine's book, never from the database. An
+    // unchanged book is answered from the last snapshot with two volatile reads; otherwise the matching
+    // thread copies the book between two commands.
     public List<Order> queryOrderBook(int itemId) {
-        return getOpenOrdersByItem(itemId);
+        return getOrderBookSnapshot(itemId).getOrders();
+    }
+
+    // Only the orders in the best topLevels price levels of each side
+    public List<Order> queryOrderBook(int itemId, int topLevels) {
+        return getOrderBookSnapshot(itemId, topLevels).getOrders();
+    }
+
+    public OrderBookSnapshot getOrderBookSnapshot(int itemId) {
+        MatchingEngine engine = engineRuntime.findEngine(itemId);
+        if (engine == null) {
+            return OrderBookSnapshot.empty(itemId);
+        }
+        OrderBookSnapshot snapshot = engine.getSnapshot();
+        if (snapshot.getVersion() == engine.getBookVersion()) {
+            return snapshot;
+        }
+        return engineRuntime.read(engine, MatchingEngine::snapshot).join();
+    }
+
+    // A snapshot of the best topLevels price levels of each side only. When the book has changed, just
+    // those levels are copied, found through the engine's level totals rather than by copying the book.
+    public OrderBookSnapshot getOrderBookSnapshot(int itemId, int topLevels) {
+        MatchingEngine engine = engineRuntime.findEngine(itemId);
+        if (engine == null) {
+            return OrderBookSnapshot.empty(itemId);
+        }
+        OrderBookSnapshot snapshot = engine.getSnapshot();
+        if (snapshot.getVersion() == engine.getBookVersion()) {
+            return snapshot.topLevels(topLevels);
+        }
+        return engineRuntime.read(engine, current -> current.topLevels(topLevels)).join();
     }
 
-    // New method to retrieve open orders for a specific item from the database
+    // Aggregated quantity and order count of the best `levels` price levels on one side, best first.
+    // Copied from the totals the engine keeps as orders rest and leave, so the cost depends on the
+    // levels asked for, not on the number of open orders.
+    public List<DepthSnapshot.Level> queryDepth(int itemId, Side side, int levels) {
+        return getDepthSnapshot(itemId).getLevels(side, levels);
+    }
+
+    public DepthSnapshot getDepthSnapshot(int itemId) {
+        MatchingEngine engine = engineRuntime.findEngine(itemId);
+        if (engine == null) {
+            return DepthSnapshot.empty(itemId);
+        }
+        DepthSnapshot depth = engine.getDepth();
+        if (depth.getVersion() == engine.getBookVersion()) {
+            return depth;
+        }
+        return engineRuntime.read(engine, MatchingEngine::depth).join();
+    }
+
+    // Retrieve open orders for a specific item from the database
     public List<Order> getOpenOrdersByItem(int itemId) {
+        flush();
+        // Plans are pinned to the indexes from SchemaMigrations: statements are prepared once and cached,
+        // often while the tables are still empty, when H2 would pick any index on ITEM_ID.
+        // One index range per side, each read in book order: buys highest price first, sells lowest price
+        // first, lowest sequence number first within a price. Unpriced orders of both sides follow by sequence.
+        String buySql = "SELECT * FROM ORDERS USE INDEX (IDX_ORDERS_BOOK) WHERE ITEM_ID = ? AND STATUS = ? AND SIDE = 'BUY' ORDER BY PRICE_TICKS DESC NULLS LAST, SEQUENCE ASC, ID ASC";
+        String sellSql = "SELECT * FROM ORDERS USE INDEX (IDX_ORDERS_BOOK) WHERE ITEM_ID = ? AND STATUS = ? AND SIDE = 'SELL' ORDER BY PRICE_TICKS ASC NULLS LAST, SEQUENCE ASC, ID ASC";
         List<Order> openOrders = new java.util.ArrayList<>();
-        String sql = "SELECT * FROM ORDERS WHERE ITEM_ID = ? AND STATUS = ? ORDER BY CASE WHEN SIDE = 'BUY' THEN PRICE ELSE -PRICE END DESC, TIMESTAMP ASC";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setInt(1, itemId);
-            pstmt.setString(2, OrderStatus.OPEN.name());
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                openOrders.add(createOrderFromResultSet(rs));
-            }
+        List<Order> unpricedOrders = new java.util.ArrayList<>();
+        try (ConnectionPool.Lease lease = connectionPool.acquire()) {
+            readOpenOrders(lease.prepareStatement(buySql), itemId, openOrders, unpricedOrders);
+            readOpenOrders(lease.prepareStatement(sellSql), itemId, openOrders, unpricedOrders);
         } catch (SQLException e) {
             System.err.println("Error querying open orders for item " + itemId + ": " + e.getMessage());
         }
+        unpricedOrders.sort(OrderBookSnapshot.TIME_PRIORITY);
+        openOrders.addAll(unpricedOrders);
         return openOrders;
     }
 
+    private void readOpenOrders(PreparedStatement pstmt, int itemId, List<Order> pricedOrders, List<Order> unpricedOrders) throws SQLException {
+        pstmt.setInt(1, itemId);
+        pstmt.setString(2, OrderStatus.OPEN.name());
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                Order order = createOrderFromResultSet(rs);
+                (order.hasPrice() ? pricedOrders : unpricedOrders).add(order);
+            }
+        }
+    }
+
     public List<Trade> queryTradeHistory(int itemId) {
         return getTradesByItem(itemId);
     }
 
     // New method to retrieve trades for a specific item from the database
     public List<Trade> getTradesByItem(int itemId) {
+        flush();
         List<Trade> trades = new java.util.ArrayList<>();
-        String sql = "SELECT * FROM TRADES WHERE ITEM_ID = ? ORDER BY TIMESTAMP DESC";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        String sql = "SELECT * FROM TRADES USE INDEX (IDX_TRADES_ITEM_TIME) WHERE ITEM_ID = ? ORDER BY TIMESTAMP DESC, ID DESC";
+        try (ConnectionPool.Lease lease = connectionPool.acquire()) {
+            PreparedStatement pstmt = lease.prepareStatement(sql);
             pstmt.setInt(1, itemId);
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                trades.add(createTradeFromResultSet(rs));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    trades.add(createTradeFromResultSet(rs));
+                }
             }
         } catch (SQLException e) {
             System.err.println("Error querying trades for item " + itemId + ": " + e.getMessage());
@@ -226,80 +555,137 @@ public class OrderService {
         return trades;
     }
 
+    // The metrics below are read from MarketStatistics and never touch the database
+
     public double getAverageTradePrice(int itemId) {
-        String sql = "SELECT AVG(PRICE) FROM TRADES WHERE ITEM_ID = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setInt(1, itemId);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getDouble(1);
-            }
-        } catch (SQLException e) {
-            System.err.println("Error calculating average trade price for item " + itemId + ": " + e.getMessage());
-        }
-        return 0.0;
+        return statistics.forItem(itemId).getAveragePrice();
+    }
+
+    public double getVolumeWeightedAveragePrice(int itemId) {
+        return statistics.forItem(itemId).getVolumeWeightedAveragePrice();
     }
 
     public int getUnmatchedOrderCount(int itemId) {
-        String sql = "SELECT COUNT(*) FROM ORDERS WHERE ITEM_ID = ? AND STATUS = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setInt(1, itemId);
-            pstmt.setString(2, OrderStatus.OPEN.name());
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt(1);
-            }
-        } catch (SQLException e) {
-            System.err.println("Error getting unmatched order count for item " + itemId + ": " + e.getMessage());
-        }
-        return 0;
+        return (int) statistics.forItem(itemId).getOpenOrders();
     }
 
-    // New method to get total executed trades for a specific item
     public int getTotalExecutedTradesByItem(int itemId) {
-        String sql = "SELECT COUNT(*) FROM TRADES WHERE ITEM_ID = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setInt(1, itemId);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt(1);
+        return (int) statistics.forItem(itemId).getTradeCount();
+    }
+
+    public int getTotalExecutedTrades() {
+        return (int) statistics.getTotalTrades();
+    }
+
+    public int getTotalUnmatchedOrders() {
+        return (int) statistics.getTotalOpenOrders();
+    }
+
+    // Captures the state a restart needs alongside the journal: users and items, every engine's resting
+    // orders, and the id counters. Matching carries on while the shards take turns capturing, each
+    // between two of its own commands.
+    public MarketSnapshot captureSnapshot() {
+        EventJournal journal = this.journal;
+        if (journal == null) {
+            throw new IllegalStateException("Snapshots need a journal to replay the newer events from");
+        }
+        long referencePosition = journal.getPosition();
+        Map<Integer, String> users = new LinkedHashMap<>();
+        Map<Integer, String> items = new LinkedHashMap<>();
+        Map<Integer, Double> itemTickSizes = new LinkedHashMap<>();
+        try (ConnectionPool.Lease lease = connectionPool.acquire()) {
+            try (ResultSet rs = lease.prepareStatement("SELECT ID, NAME FROM USERS ORDER BY ID").executeQuery()) {
+                while (rs.next()) {
+                    users.put(rs.getInt(1), rs.getString(2));
+                }
+            }
+            try (ResultSet rs = lease.prepareStatement("SELECT ID, NAME, TICK_SIZE FROM ITEMS ORDER BY ID").executeQuery()) {
+                while (rs.next()) {
+                    items.put(rs.getInt(1), rs.getString(2));
+                    itemTickSizes.put(rs.getInt(1), rs.getDouble(3));
+                }
             }
         } catch (SQLException e) {
-            System.err.println("Error getting total executed trades for item " + itemId + ": " + e.getMessage());
+            throw new IllegalStateException("Error reading users and items for a snapshot: " + e.getMessage(), e);
+        }
+        List<MarketSnapshot.ShardState> shards = engineRuntime.capture();
+        long[] shardPositions = new long[shards.size()];
+        List<MarketSnapshot.ItemState> itemStates = new ArrayList<>();
+        for (int i = 0; i < shardPositions.length; i++) {
+            shardPositions[i] = shards.get(i).getPosition();
+            itemStates.addAll(shards.get(i).getItems());
         }
-        return 0;
+        // Read after the capture, so they are at least as high as anything the engines hold
+        return new MarketSnapshot(System.currentTimeMillis(), referencePosition, shardPositions, orderIds.getLastReservedId(),
+                tradeIds.getLastReservedId(), users, items, itemTickSizes, itemStates);
     }
 
-    public int getTotalExecutedTrades() {
-        String sql = "SELECT COUNT(*) FROM TRADES";
-        try (Statement stmt = connection.createStatement()) {
-            ResultSet rs = stmt.executeQuery(sql);
-            if (rs.next()) {
-                return rs.getInt(1);
+    // Puts the orders that are OPEN in the database back into their engines' books, e.g. after the
+    // database was rebuilt from a journal. Orders are rested in sequence order without being matched
+    // again, and each engine's last traded price is restored first so the OPEN-order fallback price
+    // carries on where it left off. Returns the number of orders restored.
+    public int restoreOpenOrders() {
+        return restoreOpenOrders(null);
+    }
+
+    // As above, after a recovery that started from the snapshot. Ids were reserved in blocks, so the
+    // id counters are carried over from the snapshot: ids reserved but unused before it are not reissued.
+    public int restoreOpenOrders(MarketSnapshot snapshot) {
+        if (snapshot != null) {
+            orderIds.advanceTo(snapshot.getLastOrderId());
+            tradeIds.advanceTo(snapshot.getLastTradeId());
+        }
+        String lastTradeSql = "SELECT T.ITEM_ID, T.PRICE_TICKS FROM TRADES T WHERE T.ID = (SELECT MAX(ID) FROM TRADES WHERE ITEM_ID = T.ITEM_ID)";
+        String openOrdersSql = "SELECT * FROM ORDERS USE INDEX (IDX_ORDERS_STATUS) WHERE STATUS = ? ORDER BY SEQUENCE, ID";
+        List<CompletableFuture<Order>> restored = new ArrayList<>();
+        try (ConnectionPool.Lease lease = connectionPool.acquire()) {
+            PreparedStatement lastTrades = lease.prepareStatement(lastTradeSql);
+            try (ResultSet rs = lastTrades.executeQuery()) {
+                while (rs.next()) {
+                    // Trade ids of one item increase in matching order, so its highest id is its last trade
+                    engineRuntime.getEngine(rs.getInt(1)).restoreLastTradedPrice(rs.getLong(2));
+                }
+            }
+            PreparedStatement openOrders = lease.prepareStatement(openOrdersSql);
+            openOrders.setString(1, OrderStatus.OPEN.name());
+            try (ResultSet rs = openOrders.executeQuery()) {
+                while (rs.next()) {
+                    restored.add(engineRuntime.restore(createOrderFromResultSet(rs)));
+                }
             }
         } catch (SQLException e) {
-            System.err.println("Error getting total executed trades: " + e.getMessage());
+            System.err.println("Error restoring open orders: " + e.getMessage());
         }
-        return 0;
+        CompletableFuture.allOf(restored.toArray(new CompletableFuture<?>[0])).join();
+        return restored.size();
     }
 
-    public int getTotalUnmatchedOrders() {
-        String sql = "SELECT COUNT(*) FROM ORDERS WHERE STATUS = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, OrderStatus.OPEN.name());
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt(1);
+    // One pass over each table at startup; from then on the statistics follow the matching threads
+    private void loadStatistics() {
+        String tradeSql = "SELECT ITEM_ID, COUNT(*), SUM(PRICE), SUM(PRICE * QUANTITY), SUM(QUANTITY) FROM TRADES GROUP BY ITEM_ID";
+        String orderSql = "SELECT ITEM_ID, COUNT(*) FROM ORDERS USE INDEX (IDX_ORDERS_STATUS) WHERE STATUS = ? GROUP BY ITEM_ID";
+        try (ConnectionPool.Lease lease = connectionPool.acquire()) {
+            PreparedStatement trades = lease.prepareStatement(tradeSql);
+            try (ResultSet rs = trades.executeQuery()) {
+                while (rs.next()) {
+                    statistics.load(rs.getInt(1), rs.getLong(2), rs.getDouble(3), rs.getDouble(4), rs.getLong(5));
+                }
+            }
+            PreparedStatement orders = lease.prepareStatement(orderSql);
+            orders.setString(1, OrderStatus.OPEN.name());
+            try (ResultSet rs = orders.executeQuery()) {
+                while (rs.next()) {
+                    statistics.loadOpenOrders(rs.getInt(1), rs.getLong(2));
+                }
             }
         } catch (SQLException e) {
-            System.err.println("Error getting total unmatched orders: " + e.getMessage());
+            System.err.println("Error loading trade statistics: " + e.getMessage());
         }
-        return 0;
     }
 
     // Helper method to create an Order object from a ResultSet row
     private Order createOrderFromResultSet(ResultSet rs) throws SQLException {
-        int id = rs.getInt("ID");
+        long id = rs.getLong("ID");
         int userId = rs.getInt("USER_ID");
         int itemId = rs.getInt("ITEM_ID");
         Side side = Side.valueOf(rs.getString("SIDE"));
@@ -311,20 +697,25 @@ public class OrderService {
         OrderStatus status = OrderStatus.valueOf(rs.getString("STATUS"));
         LocalDateTime timestamp = rs.getTimestamp("TIMESTAMP").toLocalDateTime();
         int quantity = rs.getInt("QUANTITY");
-        return new Order(id, userId, itemId, side, orderType, price, status, timestamp, quantity);
+        Order order = new Order(id, userId, itemId, side, orderType, price, status, timestamp, quantity);
+        long priceTicks = rs.getLong("PRICE_TICKS");
+        order.setPriceTicks(rs.wasNull() ? Order.NO_PRICE : priceTicks);
+        order.setSequence(rs.getLong("SEQUENCE"));
+        return order;
     }
 
     // Helper method to create a Trade object from a ResultSet row
     private Trade createTradeFromResultSet(ResultSet rs) throws SQLException {
-        int id = rs.getInt("ID");
+        long id = rs.getLong("ID");
         int buyerId = rs.getInt("BUYER_ID");
-        int buyOrderId = rs.getInt("BUY_ORDER_ID");
+        long buyOrderId = rs.getLong("BUY_ORDER_ID");
         int sellerId = rs.getInt("SELLER_ID");
-        int sellOrderId = rs.getInt("SELL_ORDER_ID");
+        long sellOrderId = rs.getLong("SELL_ORDER_ID");
         int itemId = rs.getInt("ITEM_ID");
         double price = rs.getDouble("PRICE");
         LocalDateTime timestamp = rs.getTimestamp("TIMESTAMP").toLocalDateTime();
         int quantity = rs.getInt("QUANTITY"); // Read quantity from DB
-        return new Trade(id, buyerId, buyOrderId, sellerId, sellOrderId, itemId, price, timestamp, quantity);
+        long priceTicks = rs.getLong("PRICE_TICKS");
+        return new Trade(id, buyerId, buyOrderId, sellerId, sellOrderId, itemId, priceTicks, price, timestamp, quantity);
     }
 }
@@ -0,0 +1,76 @@
+package com.vitea.marketplace.services;
+
+// A FIFO queue of orders at one price, kept in time priority as an intrusive doubly linked list.
+// OrderBookSide recycles emptied levels for new prices instead of allocating fresh ones.
+public class PriceLevel {
+    private long price; // In ticks; Order.NO_PRICE for the level holding OPEN orders without a price
+    RestingOrder head;
+    RestingOrder tail;
+    private int orderCount;
+
+    public PriceLevel(long price) {
+        this.price = price;
+    }
+
+    public long getPrice() {
+        return price;
+    }
+
+    public int getOrderCount() {
+        return orderCount;
+    }
+
+    public boolean isEmpty() {
+        return orderCount == 0;
+    }
+
+    // Readies an empty or cleared level to hold orders at another price
+    void reuse(long price) {
+        this.price = price;
+        this.head = null;
+        this.tail = null;
+        this.orderCount = 0;
+    }
+
+    void append(RestingOrder entry) {
+        // Sequence numbers follow the order timestamps, and most orders are stamped as they arrive, so
+        // walking back from the tail is O(1) in practice. Orders with an earlier timestamp (seed data,
+        // load-orders files, tests) are slotted in place, after any with the same sequence number.
+        long sequence = entry.getSequence();
+        RestingOrder after = tail;
+        while (after != null && after.getSequence() > sequence) {
+            after = after.prev;
+        }
+        entry.level = this;
+        entry.prev = after;
+        entry.next = (after == null) ? head : after.next;
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        } else {
+            tail = entry;
+        }
+        if (after != null) {
+            after.next = entry;
+        } else {
+            head = entry;
+        }
+        orderCount++;
+    }
+
+    void unlink(RestingOrder entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            head = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        } else {
+            tail = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.level = null;
+        orderCount--;
+    }
+}
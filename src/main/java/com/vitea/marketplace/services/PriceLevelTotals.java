@@ -0,0 +1,128 @@
+package com.vitea.marketplace.services;
+
+import com.vitea.marketplace.models.Side;
+
+import java.util.Arrays;
+
+// Aggregated depth of one item's book: per side and price, the total resting quantity and the number
+// of resting orders, across every quantity sub-book. Kept up to date by the engine as orders come to
+// rest and leave, so the state of a level after a change, or the best N levels, is available without
+// walking any orders. Each side is held in sorted primitive arrays with the best price last, like
+// FallbackPriceTracker, so nothing is boxed. Only priced resting orders have a level.
+//
+// Not thread-safe: owned by the engine's matching thread.
+public class PriceLevelTotals {
+
+    private static final class SideTotals {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final boolean lowestIsBest;
+        private long[] keys = new long[INITIAL_CAPACITY]; // Prices, negated when the lowest is best
+        private long[] quantities = new long[INITIAL_CAPACITY];
+        private int[] counts = new int[INITIAL_CAPACITY];
+        private int size;
+
+        SideTotals(boolean lowestIsBest) {
+            this.lowestIsBest = lowestIsBest;
+        }
+
+        int add(long price, int quantity) {
+            long key = lowestIsBest ? -price : price;
+            int index = Arrays.binarySearch(keys, 0, size, key);
+            if (index < 0) {
+                index = -index - 1;
+                if (size == keys.length) {
+                    keys = Arrays.copyOf(keys, size * 2);
+                    quantities = Arrays.copyOf(quantities, size * 2);
+                    counts = Arrays.copyOf(counts, size * 2);
+                }
+                System.arraycopy(keys, index, keys, index + 1, size - index);
+                System.arraycopy(quantities, index, quantities, index + 1, size - index);
+                System.arraycopy(counts, index, counts, index + 1, size - index);
+                keys[index] = key;
+                quantities[index] = 0;
+                counts[index] = 0;
+                size++;
+            }
+            quantities[index] += quantity;
+            counts[index]++;
+            return index;
+        }
+
+        // Returns the level's index, or -1 if the level is gone (or was never there)
+        int remove(long price, int quantity) {
+            int index = Arrays.binarySearch(keys, 0, size, lowestIsBest ? -price : price);
+            if (index < 0) {
+                return -1;
+            }
+            quantities[index] -= quantity;
+            if (--counts[index] == 0) {
+                size--;
+                System.arraycopy(keys, index + 1, keys, index, size - index);
+                System.arraycopy(quantities, index + 1, quantities, index, size - index);
+                System.arraycopy(counts, index + 1, counts, index, size - index);
+                return -1;
+            }
+            return index;
+        }
+
+        long priceAt(int index) {
+            return lowestIsBest ? -keys[index] : keys[index];
+        }
+    }
+
+    private final SideTotals buys = new SideTotals(false); // Highest price is best
+    private final SideTotals sells = new SideTotals(true); // Lowest price is best
+    private long lastQuantity; // The level touched by the last add or remove
+    private int lastOrderCount;
+
+    public void add(Side side, long price, int quantity) {
+        SideTotals totals = totalsFor(side);
+        int index = totals.add(price, quantity);
+        lastQuantity = totals.quantities[index];
+        lastOrderCount = totals.counts[index];
+    }
+
+    public void remove(Side side, long price, int quantity) {
+        SideTotals totals = totalsFor(side);
+        int index = totals.remove(price, quantity);
+        lastQuantity = index < 0 ? 0 : totals.quantities[index];
+        lastOrderCount = index < 0 ? 0 : totals.counts[index];
+    }
+
+    // Total quantity at the level the last add or remove changed; 0 once it is empty
+    public long getLastQuantity() {
+        return lastQuantity;
+    }
+
+    // Orders at the level the last add or remove changed; 0 once it is empty, 1 if it was just created
+    public int getLastOrderCount() {
+        return lastOrderCount;
+    }
+
+    public int getLevelCount(Side side) {
+        return totalsFor(side).size;
+    }
+
+    // Copies up to maxLevels levels of a side, best price first, into the arrays; returns how many
+    public int copyLevels(Side side, int maxLevels, long[] prices, long[] quantities, int[] orderCounts) {
+        SideTotals totals = totalsFor(side);
+        int levels = Math.min(maxLevels, totals.size);
+        for (int i = 0; i < levels; i++) {
+            int index = totals.size - 1 - i;
+            prices[i] = totals.priceAt(index);
+            quantities[i] = totals.quantities[index];
+            orderCounts[i] = totals.counts[index];
+        }
+        return levels;
+    }
+
+    public void clear() {
+        buys.size = 0;
+        sells.size = 0;
+    }
+
+    private SideTotals totalsFor(Side side) {
+        return side == Side.BUY ? buys : sells;
+    }
+}
@@ -0,0 +1,187 @@
+package com.vitea.marketplace.services;
+
+import com.vitea.marketplace.models.Side;
+
+import java.util.ArrayDeque;
+
+// One side of an item's order book, split by quantity. Trades require an exact quantity match, so
+// each quantity gets its own price/time OrderBookSide and matching only looks at orders of the
+// incoming order's size; resting orders of other sizes are never visited.
+//
+// The sub-books live in an open-addressing table keyed by the primitive quantity, with linear
+// probing, so lookups on the matching path neither box nor allocate. Drained sub-books are kept on
+// a short spare list and handed to the next new quantity.
+public class QuantityIndexedSide {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_SPARE_BOOKS = 16;
+
+    private final Side side;
+    private int[] quantities;
+    private OrderBookSide[] books; // A null book marks an empty slot
+    private int mask;
+    private int bookCount;
+    private final ArrayDeque<OrderBookSide> spareBooks;
+    private int size;
+
+    public QuantityIndexedSide(Side side) {
+        this.side = side;
+        allocate(INITIAL_CAPACITY);
+        this.spareBooks = new ArrayDeque<>();
+        this.size = 0;
+    }
+
+    public Side getSide() {
+        return side;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // The price/time book for orders of exactly this quantity, or null if none are resting
+    public OrderBookSide bookFor(int quantity) {
+        for (int i = hash(quantity) & mask; books[i] != null; i = (i + 1) & mask) {
+            if (quantities[i] == quantity) {
+                return books[i];
+            }
+        }
+        return null;
+    }
+
+    public void add(RestingOrder entry) {
+        int quantity = entry.getQuantity();
+        OrderBookSide book = bookFor(quantity);
+        if (book == null) {
+            book = spareBooks.poll();
+            if (book == null) {
+                book = new OrderBookSide(side);
+            }
+            insert(quantity, book);
+        }
+        book.add(entry);
+        size++;
+    }
+
+    public void remove(RestingOrder entry) {
+        if (!entry.isResting()) {
+            return; // Not resting in this book
+        }
+        int quantity = entry.getQuantity();
+        OrderBookSide book = bookFor(quantity);
+        book.remove(entry);
+        if (book.isEmpty()) {
+            delete(quantity); // Drop sub-books for odd lot sizes once they drain
+            if (spareBooks.size() < MAX_SPARE_BOOKS) {
+                spareBooks.push(book);
+            }
+        }
+        size--;
+    }
+
+    // Copies every resting order into the builders, split into priced and unpriced; callers sort them
+    void copyOrders(OrderColumns.Builder pricedOrders, OrderColumns.Builder unpricedOrders) {
+        for (OrderBookSide book : books) {
+            if (book == null) {
+                continue;
+            }
+            for (RestingOrder entry = book.first(); entry != null; entry = book.next(entry)) {
+                entry.copyTo(entry.hasPrice() ? pricedOrders : unpricedOrders);
+            }
+        }
+    }
+
+    // Copies the orders resting at one price, in every quantity's book; only that level is visited
+    void copyLevel(long priceTicks, OrderColumns.Builder into) {
+        for (OrderBookSide book : books) {
+            if (book == null) {
+                continue;
+            }
+            PriceLevel level = book.levelAt(priceTicks);
+            for (RestingOrder entry = level != null ? level.head : null; entry != null; entry = entry.next) {
+                entry.copyTo(into);
+            }
+        }
+    }
+
+    public void clear() {
+        for (OrderBookSide book : books) {
+            if (book != null) {
+                book.clear();
+            }
+        }
+        allocate(INITIAL_CAPACITY);
+        spareBooks.clear();
+        size = 0;
+    }
+
+    private void allocate(int capacity) {
+        quantities = new int[capacity];
+        books = new OrderBookSide[capacity];
+        mask = capacity - 1;
+        bookCount = 0;
+    }
+
+    private static int hash(int quantity) {
+        int h = quantity * 0x9E3779B9; // Fibonacci hashing spreads round lot sizes across slots
+        return h ^ (h >>> 16);
+    }
+
+    private void insert(int quantity, OrderBookSide book) {
+        int i = hash(quantity) & mask;
+        while (books[i] != null) {
+            i = (i + 1) & mask;
+        }
+        quantities[i] = quantity;
+        books[i] = book;
+        if (++bookCount * 2 > books.length) {
+            rehash(books.length * 2);
+        }
+    }
+
+    // Backward-shift deletion keeps probe sequences intact without tombstones
+    private void delete(int quantity) {
+        int hole = hash(quantity) & mask;
+        while (quantities[hole] != quantity || books[hole] == null) {
+            hole = (hole + 1) & mask;
+        }
+        books[hole] = null;
+        bookCount--;
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            if (books[i] == null) {
+                return;
+            }
+            int home = hash(quantities[i]) & mask;
+            boolean movable = (hole <= i) ? (home <= hole || home > i) : (home <= hole && home > i);
+            if (movable) {
+                quantities[hole] = quantities[i];
+                books[hole] = books[i];
+                books[i] = null;
+                hole = i;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        int[] oldQuantities = quantities;
+        OrderBookSide[] oldBooks = books;
+        int count = bookCount;
+        allocate(capacity);
+        for (int i = 0; i < oldBooks.length; i++) {
+            if (oldBooks[i] != null) {
+                int j = hash(oldQuantities[i]) & mask;
+                while (books[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                quantities[j] = oldQuantities[i];
+                books[j] = oldBooks[i];
+            }
+        }
+        bookCount = count;
+    }
+}
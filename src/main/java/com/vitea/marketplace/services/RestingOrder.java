@@ -0,0 +1,140 @@
+package com.vitea.marketplace.services;
+
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderStatus;
+import com.vitea.marketplace.models.OrderType;
+import com.vitea.marketplace.models.Side;
+
+// Handle for a live order and the engine that owns it. The engine keeps these in allOpenOrders so a
+// cancel can unlink the order from its price level directly instead of searching the book, and the
+// OrderService's OrderDirectory maps order ids to them for status lookups and cancel routing.
+//
+// The order's fields live either in its heap Order or, once it rests in an engine using off-heap
+// storage, in a record of that engine's OffHeapOrderStore; the accessors below read whichever holds
+// them. getOrder() on an off-heap order builds a fresh copy, so it is kept off the paths that visit
+// every resting order: book snapshots and market snapshots read the fields through copyTo instead.
+//
+// Only the matching thread of the owning engine's shard reads or writes those fields. getStatus() is the
+// one accessor for other threads: it never reads them, only the volatile final status that the
+// matching thread publishes when the order leaves the book.
+public class RestingOrder {
+    private final long id;
+    private final MatchingEngine engine;
+    private volatile Order order; // null once the order has moved off-heap
+    private OffHeapOrderStore store;
+    private int slot;
+    private boolean released; // Off-heap record freed
+    private volatile OrderStatus finalStatus; // Published once the order is no longer OPEN, for other threads
+    PriceLevel level;
+    RestingOrder prev;
+    RestingOrder next;
+
+    public RestingOrder(Order order, MatchingEngine engine) {
+        this.id = order.getId();
+        this.order = order;
+        this.engine = engine;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Order getOrder() {
+        Order heapOrder = order;
+        return heapOrder != null ? heapOrder : store.toOrder(slot);
+    }
+
+    // Appends the order's fields to a column copy, from the heap Order or straight from its off-heap record
+    void copyTo(OrderColumns.Builder into) {
+        Order heapOrder = order;
+        if (heapOrder != null) {
+            into.add(heapOrder);
+        } else {
+            store.copyTo(slot, into);
+        }
+    }
+
+    public MatchingEngine getEngine() {
+        return engine;
+    }
+
+    public boolean isResting() {
+        return level != null;
+    }
+
+    public boolean isOffHeap() {
+        return order == null;
+    }
+
+    public long getPriceTicks() {
+        Order heapOrder = order;
+        return heapOrder != null ? heapOrder.getPriceTicks() : store.getPriceTicks(slot);
+    }
+
+    public boolean hasPrice() {
+        return getPriceTicks() != Order.NO_PRICE;
+    }
+
+    public long getSequence() {
+        Order heapOrder = order;
+        return heapOrder != null ? heapOrder.getSequence() : store.getSequence(slot);
+    }
+
+    public int getQuantity() {
+        Order heapOrder = order;
+        return heapOrder != null ? heapOrder.getQuantity() : store.getQuantity(slot);
+    }
+
+    public int getUserId() {
+        Order heapOrder = order;
+        return heapOrder != null ? heapOrder.getUserId() : store.getUserId(slot);
+    }
+
+    public Side getSide() {
+        Order heapOrder = order;
+        return heapOrder != null ? heapOrder.getSide() : store.getSide(slot);
+    }
+
+    public OrderType getOrderType() {
+        Order heapOrder = order;
+        return heapOrder != null ? heapOrder.getOrderType() : store.getOrderType(slot);
+    }
+
+    // Safe to call from any thread: OPEN until the matching thread publishes the final status
+    public OrderStatus getStatus() {
+        OrderStatus published = finalStatus;
+        return published != null ? published : OrderStatus.OPEN;
+    }
+
+    void setStatus(OrderStatus status) {
+        Order heapOrder = order;
+        if (heapOrder != null) {
+            heapOrder.setStatus(status);
+        } else {
+            store.setStatus(slot, status);
+        }
+        if (status != OrderStatus.OPEN) {
+            finalStatus = status;
+        }
+    }
+
+    // Copies the order into the store and drops the heap Order; matching thread only
+    void moveOffHeap(OffHeapOrderStore store) {
+        this.store = store;
+        this.slot = store.add(order);
+        this.order = null;
+    }
+
+    // Publishes the final status of an order that has left the book, e.g. one filled through its Order,
+    // and frees its off-heap record
+    void release() {
+        Order heapOrder = order;
+        if (finalStatus == null) {
+            finalStatus = heapOrder != null ? heapOrder.getStatus() : store.getStatus(slot);
+        }
+        if (heapOrder == null && !released) {
+            released = true;
+            store.free(slot);
+        }
+    }
+}
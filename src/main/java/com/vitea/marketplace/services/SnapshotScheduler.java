@@ -0,0 +1,61 @@
+package com.vitea.marketplace.services;
+
+import com.vitea.marketplace.journal.MarketSnapshot;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Writes a MarketSnapshot of an OrderService to one file at a fixed interval, replacing the previous
+// one, and once more when it is closed. Closing must come before the service shuts down, while its
+// matching shards can still capture their engines.
+public class SnapshotScheduler implements AutoCloseable {
+
+    private final OrderService orderService;
+    private final Path path;
+    private final ScheduledExecutorService executor;
+
+    public SnapshotScheduler(OrderService orderService, Path path, long intervalSeconds) {
+        if (intervalSeconds < 1) {
+            throw new IllegalArgumentException("Snapshot interval must be at least one second: " + intervalSeconds);
+        }
+        this.orderService = orderService;
+        this.path = path;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snapshot-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::writeSnapshot, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // Captures and writes a snapshot now. Returns it, or null if it could not be written; the previous
+    // snapshot file is left in place in that case.
+    public synchronized MarketSnapshot writeSnapshot() {
+        try {
+            MarketSnapshot snapshot = orderService.captureSnapshot();
+            snapshot.write(path);
+            return snapshot;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error writing snapshot " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writeSnapshot();
+    }
+}
@@ -0,0 +1,17 @@
+package com.vitea.marketplace.services;
+
+import com.vitea.marketplace.models.OrderStatus;
+import com.vitea.marketplace.models.Trade;
+
+// Told about every trade as it executes, on the matching thread of the trade's item, after the trade
+// has been journaled and queued for the database. The Trade is the engine's reusable instance and
+// only valid during the call, so listeners copy whatever they keep and must not block.
+public interface TradeListener {
+
+    void onTrade(Trade trade);
+
+    // Told when a live order leaves the book without trading, cancelled or retired with another final
+    // status, on the matching thread of its item. Filled orders are reported through onTrade.
+    default void onOrderRetired(int itemId, long orderId, OrderStatus status) {
+    }
+}
@@ -1,25 +1,31 @@
 package com.vitea.marketplace.services;
 
+import com.vitea.marketplace.db.ConnectionPool;
+import com.vitea.marketplace.journal.EventJournal;
 import com.vitea.marketplace.models.User;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.Statement;
 import java.sql.SQLException;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class UserService {
-    private final Connection connection;
+    private final ConnectionPool connectionPool;
     private final AtomicInteger userIdCounter;
+    private volatile EventJournal journal; // null unless users are journaled
 
     public UserService(Connection connection) {
-        this.connection = connection;
+        this(new ConnectionPool(connection)); // Calls take turns on the one connection
+    }
+
+    public UserService(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
         this.userIdCounter = new AtomicInteger(0);
         // Initialize counter based on existing users in DB
-        try (Statement stmt = connection.createStatement()) {
-            ResultSet rs = stmt.executeQuery("SELECT MAX(ID) FROM USERS");
+        try (ConnectionPool.Lease lease = connectionPool.acquire();
+             ResultSet rs = lease.prepareStatement("SELECT MAX(ID) FROM USERS").executeQuery()) {
             if (rs.next()) {
                 userIdCounter.set(rs.getInt(1));
             }
@@ -34,6 +40,15 @@ public class UserService {
         userIdCounter.set(0);
     }
 
+    public EventJournal getJournal() {
+        return journal;
+    }
+
+    // Records every user created from now on
+    public void setJournal(EventJournal journal) {
+        this.journal = journal;
+    }
+
     public User createUser(String name) {
         String lowerCaseName = name.toLowerCase();
         // Check if user already exists in DB
@@ -44,11 +59,16 @@ public class UserService {
 
         int newId = userIdCounter.incrementAndGet();
         String sql = "INSERT INTO USERS (ID, NAME) VALUES (?, ?)";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (ConnectionPool.Lease lease = connectionPool.acquire()) {
+            PreparedStatement pstmt = lease.prepareStatement(sql);
             pstmt.setInt(1, newId);
             pstmt.setString(2, name);
             pstmt.executeUpdate();
             User user = new User(newId, name);
+            EventJournal journal = this.journal;
+            if (journal != null) {
+                journal.appendUser(newId, name);
+            }
             System.out.println("Created user: " + user.getName() + " with ID: " + user.getId());
             return user;
         } catch (SQLException e) {
@@ -60,11 +80,13 @@ public class UserService {
 
     public Optional<User> getUserById(int id) {
         String sql = "SELECT ID, NAME FROM USERS WHERE ID = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (ConnectionPool.Lease lease = connectionPool.acquire()) {
+            PreparedStatement pstmt = lease.prepareStatement(sql);
             pstmt.setInt(1, id);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return Optional.of(new User(rs.getInt("ID"), rs.getString("NAME")));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return Optional.of(new User(rs.getInt("ID"), rs.getString("NAME")));
+                }
             }
         } catch (SQLException e) {
             System.err.println("Error getting user by ID " + id + ": " + e.getMessage());
@@ -73,12 +95,14 @@ public class UserService {
     }
 
     public Optional<User> getUserByName(String name) {
-        String sql = "SELECT ID, NAME FROM USERS WHERE LOWER(NAME) = LOWER(?)";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        String sql = "SELECT ID, NAME FROM USERS USE INDEX (IDX_USERS_NAME_KEY) WHERE NAME_KEY = LOWER(?)";
+        try (ConnectionPool.Lease lease = connectionPool.acquire()) {
+            PreparedStatement pstmt = lease.prepareStatement(sql);
             pstmt.setString(1, name);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return Optional.of(new User(rs.getInt("ID"), rs.getString("NAME")));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return Optional.of(new User(rs.getInt("ID"), rs.getString("NAME")));
+                }
             }
         } catch (SQLException e) {
             System.err.println("Error getting user by name \'" + name + "\': " + e.getMessage());
@@ -0,0 +1,173 @@
+package com.vitea.marketplace.tests;
+
+import com.vitea.marketplace.api.BinaryOrderClient;
+import com.vitea.marketplace.api.BinaryOrderServer;
+import com.vitea.marketplace.api.BinaryProtocol;
+import com.vitea.marketplace.db.H2DatabaseUtil;
+import com.vitea.marketplace.models.OrderStatus;
+import com.vitea.marketplace.models.OrderType;
+import com.vitea.marketplace.models.Side;
+import com.vitea.marketplace.services.ItemService;
+import com.vitea.marketplace.services.OrderService;
+import com.vitea.marketplace.services.UserService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryOrderServerTest {
+
+    private Connection connection;
+    private OrderService orderService;
+    private BinaryOrderServer server;
+    private Thread serverThread;
+
+    // Collects responses as text, e.g. "ACK 1 1 OPEN 1" or "FILL 1 1 1 120.0 1"
+    private static final class Recorder implements BinaryOrderClient.MessageHandler {
+        final List<String> messages = new ArrayList<>();
+
+        @Override
+        public void onAck(long clientOrderId, long orderId, OrderStatus status, int quantity) {
+            messages.add("ACK " + clientOrderId + " " + orderId + " " + status + " " + quantity);
+        }
+
+        @Override
+        public void onFill(long clientOrderId, long orderId, long tradeId, double price, int quantity) {
+            messages.add("FILL " + clientOrderId + " " + orderId + " " + tradeId + " " + price + " " + quantity);
+        }
+
+        @Override
+        public void onReject(long clientOrderId, byte reason) {
+            messages.add("REJECT " + clientOrderId + " " + reason);
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws SQLException, IOException {
+        connection = H2DatabaseUtil.initializeDatabase();
+        H2DatabaseUtil.resetAllTables(connection);
+        UserService userService = new UserService(connection);
+        ItemService itemService = new ItemService(connection);
+        orderService = new OrderService(connection);
+        userService.createUser("Buyer"); // ID 1
+        userService.createUser("Seller"); // ID 2
+        itemService.createItem("Rare Card"); // ID 1
+
+        server = new BinaryOrderServer(0, orderService);
+        serverThread = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                fail(e);
+            }
+        });
+        serverThread.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        server.close();
+        serverThread.join(10_000);
+        orderService.shutdown();
+        connection.close();
+    }
+
+    private static List<String> read(BinaryOrderClient client, int count) throws IOException {
+        Recorder recorder = new Recorder();
+        for (int i = 0; i < count; i++) {
+            client.readMessage(recorder);
+        }
+        return recorder.messages;
+    }
+
+    @Test
+    void testOrdersAreAckedAndBothSidesHearAboutTheFill() throws Exception {
+        try (BinaryOrderClient buyer = new BinaryOrderClient(server.getPort());
+             BinaryOrderClient seller = new BinaryOrderClient(server.getPort())) {
+            assertEquals(1, buyer.newOrder(1, 1, Side.BUY, OrderType.AT_PRICE, 120.0, 1));
+            assertEquals(List.of("ACK 1 1 OPEN 1"), read(buyer, 1));
+
+            seller.newOrder(2, 1, Side.SELL, OrderType.AT_PRICE, 110.0, 1);
+            // The incoming order trades on entry; its fill still follows its ack
+            assertEquals(List.of("ACK 1 2 FILLED 1", "FILL 1 2 1 120.0 1"), read(seller, 2));
+            assertEquals(List.of("FILL 1 1 1 120.0 1"), read(buyer, 1));
+            // Fills are released with their batch, after its group commit
+            assertEquals(1, countRows("SELECT COUNT(*) FROM TRADES"));
+            assertEquals(0, server.getTrackedOrderCount());
+        }
+        assertEquals(1, orderService.getTotalExecutedTrades());
+        orderService.flush();
+        assertEquals(OrderStatus.FILLED, orderService.getPersistedOrderStatus(1));
+    }
+
+    @Test
+    void testCancelsAndRejects() throws Exception {
+        try (BinaryOrderClient client = new BinaryOrderClient(server.getPort())) {
+            client.newOrder(1, 1, Side.BUY, OrderType.OPEN, null, 2);
+            assertEquals(List.of("ACK 1 1 OPEN 2"), read(client, 1));
+
+            client.cancel(1);
+            client.cancel(1);
+            client.newOrder(1, 1, Side.BUY, OrderType.AT_PRICE, null, 1); // AT_PRICE without a price
+            client.newOrder(1, 1, Side.SELL, OrderType.AT_PRICE, 100.0, 0);
+            // Invalid messages are rejected by the selector thread, possibly ahead of the shard's answers
+            assertEquals(Set.of("ACK 2 1 CANCELLED 0", "REJECT 3 " + BinaryProtocol.REJECT_NOT_OPEN,
+                    "REJECT 4 " + BinaryProtocol.REJECT_INVALID, "REJECT 5 " + BinaryProtocol.REJECT_INVALID), new HashSet<>(read(client, 4)));
+        }
+        assertEquals(0, orderService.getTotalUnmatchedOrders());
+    }
+
+    @Test
+    void testOrdersStopBeingTrackedWhenTheyLeaveTheBookOrTheirConnectionCloses() throws Exception {
+        try (BinaryOrderClient client = new BinaryOrderClient(server.getPort())) {
+            client.newOrder(1, 1, Side.BUY, OrderType.AT_PRICE, 100.0, 1);
+            client.newOrder(1, 1, Side.BUY, OrderType.AT_PRICE, 101.0, 1);
+            client.newOrder(1, 1, Side.BUY, OrderType.AT_PRICE, 102.0, 1);
+            assertEquals(3, read(client, 3).size());
+            assertEquals(3, server.getTrackedOrderCount());
+
+            assertTrue(orderService.cancelOrder(1)); // Not through the binary connection
+            assertEquals(2, server.getTrackedOrderCount());
+        }
+        // The server sees the connection close on its selector thread
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (server.getTrackedOrderCount() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, server.getTrackedOrderCount());
+        assertEquals(2, orderService.getTotalUnmatchedOrders()); // Its orders stay in the book
+    }
+
+    @Test
+    void testPipelinedOrdersAreAllAnswered() throws Exception {
+        int pairs = 500;
+        try (BinaryOrderClient client = new BinaryOrderClient(server.getPort())) {
+            for (int i = 0; i < pairs; i++) {
+                client.newOrder(1, 1, Side.BUY, OrderType.AT_PRICE, 100.0, 1);
+                client.newOrder(2, 1, Side.SELL, OrderType.AT_PRICE, 100.0, 1);
+            }
+            long acks = read(client, pairs * 4).stream().filter(message -> message.startsWith("ACK")).count();
+            assertEquals(pairs * 2, acks); // Plus a fill for each side of every trade
+        }
+        assertEquals(pairs, orderService.getTotalExecutedTrades());
+    }
+
+    private int countRows(String sql) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            ResultSet rs = stmt.executeQuery(sql);
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
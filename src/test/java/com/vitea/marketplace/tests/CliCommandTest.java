@@ -1,20 +1,33 @@
 package com.vitea.marketplace.tests;
 
+import com.vitea.marketplace.cli.CommandServer;
 import com.vitea.marketplace.cli.MarketplaceCLI;
+import com.vitea.marketplace.cli.MarketplaceClient;
 import com.vitea.marketplace.db.H2DatabaseUtil;
+import com.vitea.marketplace.db.OrderFileLoader;
+import com.vitea.marketplace.models.OrderStatus;
 import com.vitea.marketplace.services.ItemService;
 import com.vitea.marketplace.services.OrderService;
 import com.vitea.marketplace.services.UserService;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import picocli.CommandLine;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class CliCommandTest {
@@ -52,6 +65,7 @@ public class CliCommandTest {
 
     @AfterEach
     public void tearDown() throws SQLException {
+        orderService.shutdown();
         // Restore original System.out and System.err
         System.setOut(originalOut);
         System.setErr(originalErr);
@@ -113,6 +127,25 @@ public class CliCommandTest {
         assertTrue(outContent.toString().contains("Unmatched Orders: 1"));
     }
 
+    @Test
+    void testQueryDepthCommand() {
+        new CommandLine(new MarketplaceCLI()).execute("create-item", "RareCard"); // Item ID 1
+        new CommandLine(new MarketplaceCLI()).execute("create-user", "Alice"); // User ID 1
+        new CommandLine(new MarketplaceCLI()).execute("submit-order", "Alice", "RareCard", "BUY", "AT_PRICE", "100.0", "1");
+        new CommandLine(new MarketplaceCLI()).execute("submit-order", "Alice", "RareCard", "BUY", "AT_PRICE", "100.0", "2");
+        new CommandLine(new MarketplaceCLI()).execute("submit-order", "Alice", "RareCard", "BUY", "AT_PRICE", "99.0", "1");
+        outContent.reset();
+
+        new CommandLine(new MarketplaceCLI()).execute("query-depth", "RareCard", "--levels", "1");
+        String output = outContent.toString();
+        assertTrue(output.contains("Depth for Item ID: 1"));
+        assertTrue(output.contains("Bids (2 levels):"));
+        assertTrue(output.contains("100.00  quantity 3  orders 2"));
+        assertFalse(output.contains("99.00"));
+        assertTrue(output.contains("Asks (0 levels):"));
+        assertEquals(1, new CommandLine(new MarketplaceCLI()).execute("query-depth", "RareCard", "--levels", "0"));
+    }
+
     @Test
     void testQueryTradeHistoryCommandWithItemName() {
         new CommandLine(new MarketplaceCLI()).execute("create-user", "Buyer"); // User ID 1
@@ -130,4 +163,83 @@ public class CliCommandTest {
         // Verify that trade is in the history
         assertTrue(outContent.toString().contains("Trade{id=1, buyerId=1, buyOrderId=1, sellerId=2, sellOrderId=2, itemId=1, price=150.0, timestamp="));
     }
+
+    @Test
+    void testLoadOrdersCommandStreamsCsv(@TempDir Path tempDir) throws IOException {
+        new CommandLine(new MarketplaceCLI()).execute("create-user", "Buyer"); // User ID 1
+        new CommandLine(new MarketplaceCLI()).execute("create-user", "Seller"); // User ID 2
+        new CommandLine(new MarketplaceCLI()).execute("create-item", "Gem"); // Item ID 1
+        StringBuilder csv = new StringBuilder("user,item,side,order_type,price,quantity,timestamp\n");
+        for (int i = 0; i < 1000; i++) {
+            csv.append("Buyer,Gem,BUY,AT_PRICE,").append(100 + i).append(",1,2025-09-27T10:00:00\n");
+            csv.append("2,1,SELL,AT_PRICE,").append(100 + i).append(",1,\n");
+        }
+        csv.append("Seller,Gem,SELL,OPEN,NULL,5\n"); // Rests: nothing else has quantity 5
+        csv.append("Nobody,Gem,BUY,AT_PRICE,10,1\n"); // Rejected
+        Path file = tempDir.resolve("orders.csv");
+        Files.writeString(file, csv);
+        outContent.reset();
+
+        int exitCode = new CommandLine(new MarketplaceCLI()).execute("load-orders", file.toString(), "--batch-size", "64");
+        assertEquals(1, exitCode); // One line was rejected
+        assertTrue(outContent.toString().contains("Loaded 2001 orders in "));
+        assertTrue(outContent.toString().contains("Trades: 1000, orders filled: 2000, rejected: 1"));
+        assertTrue(errContent.toString().contains("Line 2003: Unknown user: Nobody"));
+        assertEquals(1000, orderService.getTotalExecutedTrades());
+        assertEquals(1, orderService.getTotalUnmatchedOrders());
+        assertEquals(OrderStatus.FILLED, orderService.getOrderStatus(1));
+    }
+
+    @Test
+    void testLoadOrdersCommandStreamsBinaryRecords(@TempDir Path tempDir) throws IOException {
+        new CommandLine(new MarketplaceCLI()).execute("create-user", "Buyer");
+        new CommandLine(new MarketplaceCLI()).execute("create-user", "Seller");
+        new CommandLine(new MarketplaceCLI()).execute("create-item", "Gem");
+        ByteBuffer records = ByteBuffer.allocate(2 * Integer.BYTES + 3 * OrderFileLoader.RECORD_BYTES);
+        records.putInt(OrderFileLoader.MAGIC).putInt(OrderFileLoader.VERSION);
+        records.putInt(1).putInt(1).put((byte) 0).put((byte) 0).putDouble(150.0).putInt(2).putLong(0); // BUY AT_PRICE 150 x 2
+        records.putInt(2).putInt(1).put((byte) 1).put((byte) 1).putDouble(Double.NaN).putInt(2).putLong(1_758_967_200_000L); // SELL OPEN x 2
+        records.putInt(2).putInt(1).put((byte) 1).put((byte) 0).putDouble(160.0).putInt(1).putLong(0); // SELL AT_PRICE 160 x 1, rests
+        Path file = tempDir.resolve("orders.bin");
+        Files.write(file, records.array());
+        outContent.reset();
+
+        int exitCode = new CommandLine(new MarketplaceCLI()).execute("load-orders", file.toString());
+        assertEquals(0, exitCode);
+        assertTrue(outContent.toString().contains("Loaded 3 orders in "));
+        assertTrue(outContent.toString().contains("Trades: 1, orders filled: 2, rejected: 0"));
+        assertEquals(150.0, orderService.getTradesByItem(1).get(0).getPrice());
+        assertEquals(1, orderService.queryOrderBook(1).size());
+    }
+
+    @Test
+    void testServeModeRunsCommandsFromClients() throws Exception {
+        Thread serverThread = new Thread(() -> new CommandLine(new MarketplaceCLI()).execute("serve", "--port", "0"));
+        serverThread.start();
+        Pattern serving = Pattern.compile("Serving on 127\\.0\\.0\\.1:(\\d+)");
+        Matcher matcher = serving.matcher("");
+        for (int i = 0; i < 500 && !matcher.reset(outContent.toString()).find(); i++) {
+            Thread.sleep(10);
+        }
+        int port = Integer.parseInt(matcher.group(1));
+
+        try (MarketplaceClient client = new MarketplaceClient(port)) {
+            assertEquals(0, client.send("create-user Buyer").getExitCode());
+            client.send("create-user Seller");
+            client.send("create-item \"Rare Card\"");
+            MarketplaceClient.Response queued = client.send("submit-order Buyer \"Rare Card\" BUY AT_PRICE 120.0 1");
+            assertTrue(queued.getOutput().contains("Order 1 submitted successfully and QUEUED"));
+            assertTrue(client.send("submit-order Seller \"Rare Card\" SELL AT_PRICE 110.0 1").getOutput().contains("immediately FILLED"));
+            assertEquals(2, client.send("cancel-order").getExitCode()); // Usage errors come back too
+        }
+        // A second connection sees the same warm market
+        try (MarketplaceClient client = new MarketplaceClient(port)) {
+            String metrics = client.send("query-metrics").getOutput();
+            assertTrue(metrics.contains("Total Executed Trades: 1"));
+            assertTrue(client.send(CommandServer.STOP_COMMAND).getOutput().contains("Server stopping."));
+        }
+        serverThread.join(10_000);
+        assertFalse(serverThread.isAlive());
+        assertEquals(1, orderService.getTotalExecutedTrades());
+    }
 }
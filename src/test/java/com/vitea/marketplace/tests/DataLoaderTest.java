@@ -51,6 +51,7 @@ public class DataLoaderTest {
 
     @AfterEach
     void tearDown() throws SQLException {
+        orderService.shutdown();
         if (connection != null && !connection.isClosed()) {
             connection.close();
         }
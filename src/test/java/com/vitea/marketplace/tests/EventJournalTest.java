@@ -0,0 +1,282 @@
+package com.vitea.marketplace.tests;
+
+import com.vitea.marketplace.db.ConnectionPool;
+import com.vitea.marketplace.db.H2DatabaseUtil;
+import com.vitea.marketplace.journal.EventJournal;
+import com.vitea.marketplace.journal.JournalHandler;
+import com.vitea.marketplace.journal.JournalRecovery;
+import com.vitea.marketplace.journal.MarketSnapshot;
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderStatus;
+import com.vitea.marketplace.models.OrderType;
+import com.vitea.marketplace.models.Side;
+import com.vitea.marketplace.models.Trade;
+import com.vitea.marketplace.services.ItemService;
+import com.vitea.marketplace.services.OrderService;
+import com.vitea.marketplace.services.UserService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EventJournalTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Connection connection;
+    private OrderService orderService;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        connection = H2DatabaseUtil.initializeDatabase();
+        H2DatabaseUtil.resetAllTables(connection);
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        if (orderService != null) {
+            orderService.shutdown();
+        }
+        connection.close();
+    }
+
+    @Test
+    void testRecordsSpanSegmentsAndATornTailIsCutOff() throws IOException {
+        Path path = tempDir.resolve("events.journal");
+        LocalDateTime timestamp = LocalDateTime.of(2025, 9, 27, 10, 0, 0, 123_456_789);
+        try (EventJournal journal = EventJournal.open(path, EventJournal.FsyncPolicy.NONE, 8192)) {
+            journal.appendItem(1, "Replica A");
+            for (int i = 1; i <= 500; i++) { // Several 8 KB segments' worth
+                Order order = new Order(i, 2, 1, Side.SELL, OrderType.AT_PRICE, 10.0 + i, OrderStatus.OPEN, timestamp, 3);
+                order.setSequence(1000 + i);
+                journal.appendOrder(order);
+            }
+            journal.appendStatus(1, 7, OrderStatus.CANCELLED);
+            journal.appendTrade(new Trade(9, 1, 8, 2, 5, 1, 1500L, 15.0, timestamp, 3));
+            assertEquals(503, journal.getEventCount());
+        }
+
+        List<Order> orders = new ArrayList<>();
+        List<Trade> trades = new ArrayList<>();
+        try (EventJournal journal = EventJournal.open(path, EventJournal.FsyncPolicy.NONE, 8192)) {
+            assertEquals(503, journal.getEventCount());
+            journal.replay(new JournalHandler() {
+                @Override
+                public void onOrder(Order order) {
+                    orders.add(order);
+                }
+
+                @Override
+                public void onTrade(Trade trade) {
+                    trades.add(trade);
+                }
+            });
+        }
+        assertEquals(500, orders.size());
+        Order last = orders.get(499);
+        assertEquals(500L, last.getId());
+        assertEquals(510.0, last.getPrice());
+        assertEquals(51000L, last.getPriceTicks());
+        assertEquals(1500L, last.getSequence());
+        assertEquals(timestamp, last.getTimestamp());
+        assertEquals(15.0, trades.get(0).getPrice());
+        assertEquals(timestamp.withNano(123_000_000), trades.get(0).getTimestamp()); // Trades keep millisecond time
+
+        // A crash in the middle of a record leaves a checksum that does not match; the journal ends before it
+        Path torn = tempDir.resolve("torn.journal");
+        try (EventJournal journal = EventJournal.open(torn, EventJournal.FsyncPolicy.NONE)) {
+            for (int i = 1; i <= 3; i++) {
+                journal.appendStatus(1, i, OrderStatus.CANCELLED);
+            }
+        }
+        int statusRecordBytes = 4 + 14 + 4; // Length, body, checksum
+        try (RandomAccessFile file = new RandomAccessFile(torn.toFile(), "rw")) {
+            file.seek(16 + 2 * statusRecordBytes + 4 + 5); // Into the third record's order id
+            file.write(0x7F);
+        }
+        try (EventJournal journal = EventJournal.open(torn, EventJournal.FsyncPolicy.NONE)) {
+            assertEquals(2, journal.getEventCount());
+            journal.appendStatus(1, 4, OrderStatus.FILLED);
+        }
+        List<Long> statusOrders = new ArrayList<>();
+        try (EventJournal journal = EventJournal.open(torn, EventJournal.FsyncPolicy.NONE)) {
+            journal.replay(new JournalHandler() {
+                @Override
+                public void onStatus(int itemId, long orderId, OrderStatus status) {
+                    statusOrders.add(orderId);
+                }
+            });
+        }
+        assertEquals(List.of(1L, 2L, 4L), statusOrders);
+    }
+
+    @Test
+    void testServiceStateIsRebuiltFromTheJournal() throws IOException, SQLException {
+        Path path = tempDir.resolve("market.journal");
+        LocalDateTime start = LocalDateTime.now().minusMinutes(1);
+        List<Long> bookBefore;
+        try (EventJournal journal = EventJournal.open(path, EventJournal.FsyncPolicy.BATCH)) {
+            UserService userService = new UserService(connection);
+            ItemService itemService = new ItemService(connection);
+            orderService = new OrderService(connection);
+            userService.setJournal(journal);
+            itemService.setJournal(journal);
+            orderService.setJournal(journal);
+            userService.createUser("Alice");
+            userService.createUser("Bob");
+            itemService.createItem("Replica A");
+            itemService.createItem("Replica B");
+            orderService.setTickSize(2, 0.5);
+
+            orderService.submitOrder(1, 1, 1, Side.BUY, OrderType.AT_PRICE, 100.0, 10, start);
+            orderService.submitOrder(2, 2, 1, Side.SELL, OrderType.AT_PRICE, 99.0, 10, start.plusSeconds(1)); // Trades at 100
+            orderService.submitOrder(3, 1, 1, Side.BUY, OrderType.AT_PRICE, 95.0, 5, start.plusSeconds(2));
+            orderService.submitOrder(4, 1, 1, Side.BUY, OrderType.AT_PRICE, 96.0, 5, start.plusSeconds(3));
+            orderService.submitOrder(5, 2, 1, Side.SELL, OrderType.AT_PRICE, 105.0, 5, start.plusSeconds(4));
+            orderService.submitOrder(6, 1, 2, Side.BUY, OrderType.AT_PRICE, 20.2, 1, start.plusSeconds(5)); // Snapped to 20.0
+            assertTrue(orderService.cancelOrder(4));
+            bookBefore = bookIds(1);
+            orderService.shutdown();
+            orderService = null;
+        }
+
+        // Restart: an empty database and fresh services, rebuilt from the journal alone
+        H2DatabaseUtil.resetAllTables(connection);
+        try (EventJournal journal = EventJournal.open(path, EventJournal.FsyncPolicy.BATCH)) {
+            JournalRecovery recovery = JournalRecovery.recover(journal, new ConnectionPool(connection));
+            assertEquals(6, recovery.getOrderCount());
+            assertEquals(1, recovery.getTradeCount());
+            assertEquals(3, recovery.getOpenOrderCount());
+
+            UserService userService = new UserService(connection);
+            orderService = new OrderService(connection);
+            orderService.setJournal(journal);
+            assertEquals(3, orderService.restoreOpenOrders());
+
+            assertEquals(bookBefore, bookIds(1));
+            assertEquals(OrderStatus.CANCELLED, orderService.getOrderStatus(4));
+            assertEquals(OrderStatus.FILLED, orderService.getOrderStatus(2));
+            assertEquals(1, orderService.getTotalExecutedTrades());
+            assertEquals(0.5, orderService.getTickSize(2).getTick());
+            assertEquals(20.0, orderService.queryOrderBook(2).get(0).getPrice());
+            assertEquals("Bob", userService.getUserById(2).get().getName());
+
+            // An OPEN pair trades at the last traded price recovered from the journal, not at the best ask
+            orderService.submitOrder(1, 1, Side.BUY, OrderType.OPEN, null, 7);
+            orderService.submitOrder(2, 1, Side.SELL, OrderType.OPEN, null, 7);
+            assertEquals(100.0, orderService.getTradesByItem(1).get(0).getPrice());
+
+            // The restored book keeps matching: the best resting buy fills
+            Order sell = orderService.submitOrder(2, 1, Side.SELL, OrderType.AT_PRICE, 90.0, 5);
+            assertEquals(OrderStatus.FILLED, sell.getStatus());
+            assertEquals(OrderStatus.FILLED, orderService.getOrderStatus(3));
+            assertEquals(95.0, orderService.getTradesByItem(1).get(0).getPrice());
+            assertTrue(sell.getId() > 6); // Ids carry on past the recovered ones
+        }
+    }
+
+    @Test
+    void testRestartFromSnapshotKeepsBooksAndHistory() throws IOException, SQLException {
+        Path path = tempDir.resolve("snapshot.journal");
+        Path snapshotPath = tempDir.resolve("market.snapshot");
+        long restingA;
+        long restingB;
+        List<Long> itemTwoBook;
+        List<String> itemOneHistory;
+        List<String> itemTwoHistory;
+        try (EventJournal journal = EventJournal.open(path, EventJournal.FsyncPolicy.NONE, 8192)) {
+            UserService userService = new UserService(connection);
+            ItemService itemService = new ItemService(connection);
+            orderService = new OrderService(connection);
+            userService.setJournal(journal);
+            itemService.setJournal(journal);
+            orderService.setJournal(journal);
+            userService.createUser("Alice");
+            userService.createUser("Bob");
+            itemService.createItem("Replica A");
+            itemService.createItem("Replica B");
+
+            // History the snapshot summarizes: 150 trades on item 1, one on item 2
+            for (int i = 1; i <= 150; i++) {
+                orderService.submitOrder(1, 1, Side.BUY, OrderType.AT_PRICE, 100.0 + i, 1);
+                orderService.submitOrder(2, 1, Side.SELL, OrderType.AT_PRICE, 100.0 + i, 1);
+            }
+            orderService.submitOrder(1, 2, Side.BUY, OrderType.AT_PRICE, 50.0, 2);
+            orderService.submitOrder(2, 2, Side.SELL, OrderType.AT_PRICE, 50.0, 2);
+            restingA = orderService.submitOrder(1, 1, Side.BUY, OrderType.AT_PRICE, 90.0, 3).getId();
+            restingB = orderService.submitOrder(1, 1, Side.BUY, OrderType.AT_PRICE, 80.0, 3).getId();
+            orderService.submitOrder(2, 2, Side.SELL, OrderType.AT_PRICE, 70.0, 4);
+
+            MarketSnapshot snapshot = orderService.captureSnapshot();
+            snapshot.write(snapshotPath);
+            assertEquals(3, snapshot.getOpenOrderCount());
+
+            // Newer events, replayed on top of the snapshot
+            assertTrue(orderService.cancelOrder(restingA));
+            orderService.submitOrder(2, 1, Side.SELL, OrderType.AT_PRICE, 75.0, 3); // Fills resting B at 80
+            userService.createUser("Carol");
+            orderService.submitOrder(3, 2, Side.BUY, OrderType.AT_PRICE, 60.0, 4);
+            itemTwoBook = bookIds(2);
+            itemOneHistory = tradeHistory(1);
+            itemTwoHistory = tradeHistory(2);
+            orderService.shutdown();
+            orderService = null;
+        }
+
+        H2DatabaseUtil.resetAllTables(connection);
+        try (EventJournal journal = EventJournal.open(path, EventJournal.FsyncPolicy.NONE, 8192)) {
+            MarketSnapshot snapshot = MarketSnapshot.read(snapshotPath);
+            JournalRecovery recovery = JournalRecovery.recover(journal, snapshot, new ConnectionPool(connection));
+            assertEquals(journal.getEventCount(), recovery.getEventCount());
+
+            UserService userService = new UserService(connection);
+            orderService = new OrderService(connection);
+            orderService.setJournal(journal);
+            assertEquals(2, orderService.restoreOpenOrders(snapshot));
+
+            assertEquals(itemTwoBook, bookIds(2));
+            assertTrue(bookIds(1).isEmpty());
+            assertEquals(OrderStatus.CANCELLED, orderService.getOrderStatus(restingA));
+            assertEquals(OrderStatus.FILLED, orderService.getOrderStatus(restingB));
+            // Trades from before the snapshot are back in the history, with the statistics built from it
+            assertEquals(itemOneHistory, tradeHistory(1));
+            assertEquals(itemTwoHistory, tradeHistory(2));
+            assertEquals(152, orderService.getTotalExecutedTrades());
+            assertEquals(151, orderService.getTotalExecutedTradesByItem(1));
+            assertEquals(2, orderService.getTotalUnmatchedOrders());
+            assertEquals("Carol", userService.getUserById(3).get().getName());
+
+            // Last traded prices: item 2 from its trade before the snapshot, item 1 from the one after it
+            orderService.submitOrder(1, 2, Side.BUY, OrderType.OPEN, null, 9);
+            orderService.submitOrder(2, 2, Side.SELL, OrderType.OPEN, null, 9);
+            assertEquals(50.0, orderService.getTradesByItem(2).get(0).getPrice());
+            orderService.submitOrder(1, 1, Side.BUY, OrderType.OPEN, null, 9);
+            Order sell = orderService.submitOrder(2, 1, Side.SELL, OrderType.OPEN, null, 9);
+            assertEquals(80.0, orderService.getTradesByItem(1).get(0).getPrice());
+            assertTrue(sell.getId() > restingB + 3); // Ids carry on past the recovered ones
+        }
+    }
+
+    private List<String> tradeHistory(int itemId) {
+        return orderService.queryTradeHistory(itemId).stream()
+                .map(trade -> trade.getId() + ":" + trade.getBuyOrderId() + ":" + trade.getSellOrderId() + ":" + trade.getPrice() + ":" + trade.getQuantity())
+                .collect(Collectors.toList());
+    }
+
+    private List<Long> bookIds(int itemId) {
+        return orderService.queryOrderBook(itemId).stream().map(Order::getId).collect(Collectors.toList());
+    }
+}
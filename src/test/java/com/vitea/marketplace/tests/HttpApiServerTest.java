@@ -0,0 +1,124 @@
+package com.vitea.marketplace.tests;
+
+import com.vitea.marketplace.api.HttpApiServer;
+import com.vitea.marketplace.db.H2DatabaseUtil;
+import com.vitea.marketplace.services.ItemService;
+import com.vitea.marketplace.services.OrderService;
+import com.vitea.marketplace.services.UserService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HttpApiServerTest {
+
+    private Connection connection;
+    private OrderService orderService;
+    private HttpApiServer server;
+    private HttpClient client;
+
+    @BeforeEach
+    void setUp() throws SQLException, IOException {
+        connection = H2DatabaseUtil.initializeDatabase();
+        H2DatabaseUtil.resetAllTables(connection);
+        UserService userService = new UserService(connection);
+        ItemService itemService = new ItemService(connection);
+        orderService = new OrderService(connection);
+        userService.createUser("Buyer"); // ID 1
+        userService.createUser("Seller"); // ID 2
+        itemService.createItem("Rare Card"); // ID 1
+
+        server = new HttpApiServer(0, orderService, userService, itemService);
+        server.start();
+        client = HttpClient.newHttpClient();
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        server.close();
+        orderService.shutdown();
+        connection.close();
+    }
+
+    private HttpResponse<String> send(String method, String path, String body) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.getPort() + path));
+        request.method(method, body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(body));
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    @Test
+    void testSubmitMatchCancelAndQuery() throws Exception {
+        HttpResponse<String> queued = send("POST", "/orders",
+                "{\"user\": \"Buyer\", \"item\": \"Rare Card\", \"side\": \"BUY\", \"orderType\": \"AT_PRICE\", \"price\": 120.0, \"quantity\": 1}");
+        assertEquals(201, queued.statusCode());
+        assertTrue(queued.body().contains("\"id\":1,"));
+        assertTrue(queued.body().contains("\"status\":\"OPEN\""));
+
+        HttpResponse<String> book = send("GET", "/orderbook/Rare%20Card", null);
+        assertEquals(200, book.statusCode());
+        assertTrue(book.body().contains("\"unmatchedOrders\":1}"));
+
+        HttpResponse<String> filled = send("POST", "/orders",
+                "{\"user\": 2, \"item\": 1, \"side\": \"SELL\", \"orderType\": \"AT_PRICE\", \"price\": 110.0, \"quantity\": 1}");
+        assertEquals(201, filled.statusCode());
+        assertTrue(filled.body().contains("\"status\":\"FILLED\""));
+
+        HttpResponse<String> trades = send("GET", "/trades/1", null);
+        assertEquals(200, trades.statusCode());
+        assertTrue(trades.body().contains("\"buyOrderId\":1,"));
+        assertTrue(trades.body().contains("\"price\":120.0"));
+
+        HttpResponse<String> open = send("POST", "/orders",
+                "{\"user\": \"Seller\", \"item\": \"Rare Card\", \"side\": \"SELL\", \"orderType\": \"OPEN\", \"price\": null, \"quantity\": 2}");
+        assertEquals(201, open.statusCode());
+        assertEquals(200, send("DELETE", "/orders/3", null).statusCode());
+        assertEquals(404, send("DELETE", "/orders/3", null).statusCode()); // Already cancelled
+
+        HttpResponse<String> metrics = send("GET", "/metrics", null);
+        assertEquals("{\"totalExecutedTrades\":1,\"totalUnmatchedOrders\":0}", metrics.body());
+    }
+
+    @Test
+    void testInvalidRequestsGetJsonErrors() throws Exception {
+        HttpResponse<String> noPrice = send("POST", "/orders",
+                "{\"user\": \"Buyer\", \"item\": \"Rare Card\", \"side\": \"BUY\", \"orderType\": \"AT_PRICE\", \"quantity\": 1}");
+        assertEquals(400, noPrice.statusCode());
+        assertEquals("{\"error\":\"AT_PRICE orders require a price\"}", noPrice.body());
+
+        assertEquals(400, send("POST", "/orders", "{\"user\": \"Buyer\"").statusCode()); // Malformed JSON
+        assertEquals(404, send("GET", "/orderbook/Unknown", null).statusCode());
+        assertEquals(405, send("PUT", "/metrics", null).statusCode());
+        assertEquals(404, send("GET", "/metricsx", null).statusCode());
+        assertEquals(0, orderService.getTotalUnmatchedOrders());
+    }
+
+    @Test
+    void testConcurrentSubmissionsAreAllMatched() throws Exception {
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String side = i % 2 == 0 ? "BUY" : "SELL";
+            String body = "{\"user\": " + (i % 2 + 1) + ", \"item\": 1, \"side\": \"" + side + "\", \"orderType\": \"AT_PRICE\", \"price\": 100.0, \"quantity\": 1}";
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.getPort() + "/orders"))
+                    .POST(HttpRequest.BodyPublishers.ofString(body)).build();
+            responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+        }
+        for (CompletableFuture<HttpResponse<String>> response : responses) {
+            assertEquals(201, response.join().statusCode());
+        }
+        assertEquals(Runtime.version().feature() >= 21, server.usesVirtualThreads());
+        assertEquals(100, orderService.getTotalExecutedTrades());
+        assertEquals(0, orderService.getTotalUnmatchedOrders());
+    }
+}
@@ -0,0 +1,159 @@
+package com.vitea.marketplace.tests;
+
+import com.vitea.marketplace.db.H2DatabaseUtil;
+import com.vitea.marketplace.marketdata.MarketDataListener;
+import com.vitea.marketplace.marketdata.UdpMarketDataFeed;
+import com.vitea.marketplace.models.Order;
+import com.vitea.marketplace.models.OrderType;
+import com.vitea.marketplace.models.Side;
+import com.vitea.marketplace.services.ItemService;
+import com.vitea.marketplace.services.OrderService;
+import com.vitea.marketplace.services.UserService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MarketDataTest {
+
+    private Connection connection;
+    private OrderService orderService;
+
+    // Records events as text, e.g. "1 LEVEL ADDED BUY 100.0 1 1" or "3 TRADE 100.0 1"
+    private static final class Recorder implements MarketDataListener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public synchronized void onLevel(int itemId, long sequence, LevelAction action, Side side, double price, long quantity, int orderCount) {
+            events.add(sequence + " LEVEL " + action + " " + side + " " + price + " " + quantity + " " + orderCount);
+        }
+
+        @Override
+        public synchronized void onTrade(int itemId, long sequence, long tradeId, double price, int quantity, long timestampMillis) {
+            events.add(sequence + " TRADE " + price + " " + quantity);
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        connection = H2DatabaseUtil.initializeDatabase();
+        H2DatabaseUtil.resetAllTables(connection);
+        UserService userService = new UserService(connection);
+        ItemService itemService = new ItemService(connection);
+        orderService = new OrderService(connection);
+        userService.createUser("Buyer"); // ID 1
+        userService.createUser("Seller"); // ID 2
+        itemService.createItem("Rare Card"); // ID 1
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        orderService.shutdown();
+        connection.close();
+    }
+
+    @Test
+    void testLevelUpdatesAndTradePrintsInSequence() {
+        Recorder recorder = new Recorder();
+        orderService.addMarketDataListener(recorder);
+
+        orderService.submitOrder(1, 1, Side.BUY, OrderType.AT_PRICE, 100.0, 1);
+        Order resting = orderService.submitOrder(1, 1, Side.BUY, OrderType.AT_PRICE, 100.0, 2);
+        orderService.submitOrder(2, 1, Side.SELL, OrderType.AT_PRICE, 105.0, 3);
+        orderService.submitOrder(2, 1, Side.SELL, OrderType.OPEN, null, 5); // No price, no level
+        orderService.submitOrder(2, 1, Side.SELL, OrderType.AT_PRICE, 99.0, 1); // Trades with the first buy
+        orderService.cancelOrder(resting.getId());
+
+        assertEquals(List.of(
+                "1 LEVEL ADDED BUY 100.0 1 1",
+                "2 LEVEL CHANGED BUY 100.0 3 2",
+                "3 LEVEL ADDED SELL 105.0 3 1",
+                "4 TRADE 100.0 1",
+                "5 LEVEL CHANGED BUY 100.0 2 1",
+                "6 LEVEL REMOVED BUY 100.0 0 0"), recorder.events);
+
+        orderService.removeMarketDataListener(recorder);
+        orderService.submitOrder(1, 1, Side.BUY, OrderType.AT_PRICE, 101.0, 1);
+        assertEquals(6, recorder.events.size());
+    }
+
+    @Test
+    void testUdpFeedDeliversEveryEventWithoutConflation() throws Exception {
+        try (DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             UdpMarketDataFeed feed = new UdpMarketDataFeed()) {
+            receiver.setSoTimeout(5000);
+            feed.addSubscriber(new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getLocalPort()), 0);
+            orderService.addMarketDataListener(feed);
+
+            // A burst that adds and removes the same level over and over: however the publisher thread
+            // happens to batch it, none of the updates may be merged away
+            int rounds = 20;
+            List<CompletableFuture<Order>> orders = new ArrayList<>();
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < rounds; i++) {
+                orders.add(orderService.submitOrderAsync(1, 1, Side.BUY, OrderType.AT_PRICE, 100.0, 1));
+                orders.add(orderService.submitOrderAsync(2, 1, Side.SELL, OrderType.AT_PRICE, 100.0, 1));
+                expected.add((3 * i + 1) + " LEVEL ADDED BUY 100.0 1 1");
+                expected.add((3 * i + 2) + " TRADE 100.0 1");
+                expected.add((3 * i + 3) + " LEVEL REMOVED BUY 100.0 0 0");
+            }
+            orders.forEach(CompletableFuture::join);
+
+            Recorder recorder = new Recorder();
+            long packetSequence = 0;
+            while (recorder.events.size() < expected.size()) {
+                long next = receive(receiver, recorder);
+                assertEquals(packetSequence + 1, next);
+                packetSequence = next;
+            }
+            assertEquals(expected, recorder.events);
+            assertEquals(0, feed.getConflatedUpdates());
+            orderService.removeMarketDataListener(feed);
+        }
+    }
+
+    @Test
+    void testSlowSubscriberGetsConflatedLevels() throws Exception {
+        try (DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             UdpMarketDataFeed feed = new UdpMarketDataFeed()) {
+            receiver.setSoTimeout(5000);
+            feed.addSubscriber(new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getLocalPort()), 500);
+            orderService.addMarketDataListener(feed);
+
+            List<CompletableFuture<Order>> orders = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                orders.add(orderService.submitOrderAsync(1, 1, Side.BUY, OrderType.AT_PRICE, 100.0, 1));
+            }
+            orders.forEach(CompletableFuture::join);
+
+            // The first update may go out at once; the rest arrive merged into the level's latest state
+            Recorder recorder = new Recorder();
+            while (recorder.events.isEmpty() || !recorder.events.get(recorder.events.size() - 1).endsWith(" 50 50")) {
+                receive(receiver, recorder);
+            }
+            assertTrue(recorder.events.size() <= 2, recorder.events.toString());
+            assertTrue(recorder.events.get(recorder.events.size() - 1).startsWith("50 LEVEL CHANGED BUY 100.0"));
+            assertTrue(feed.getConflatedUpdates() >= 48);
+            orderService.removeMarketDataListener(feed);
+        }
+    }
+
+    private static long receive(DatagramSocket receiver, MarketDataListener listener) throws IOException {
+        DatagramPacket packet = new DatagramPacket(new byte[UdpMarketDataFeed.MAX_DATAGRAM_BYTES], UdpMarketDataFeed.MAX_DATAGRAM_BYTES);
+        receiver.receive(packet);
+        return UdpMarketDataFeed.decode(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()), listener);
+    }
+}
@@ -1,6 +1,8 @@
 package com.vitea.marketplace.tests;
 
 import com.vitea.marketplace.db.H2DatabaseUtil;
+import com.vitea.marketplace.db.PersistencePipeline;
+import com.vitea.marketplace.marketdata.MarketDataListener;
 import com.vitea.marketplace.models.Order;
 import com.vitea.marketplace.models.OrderStatus;
 import com.vitea.marketplace.models.OrderType;
@@ -8,18 +10,24 @@ import com.vitea.marketplace.models.Side;
 import com.vitea.marketplace.models.Trade;
 import com.vitea.marketplace.services.ItemService;
 import com.vitea.marketplace.services.MatchingEngine;
+import com.vitea.marketplace.services.OffHeapOrderStore;
+import com.vitea.marketplace.services.OrderColumns;
+import com.vitea.marketplace.services.OrderSequencer;
 import com.vitea.marketplace.services.OrderService;
 import com.vitea.marketplace.services.UserService;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.lang.management.ManagementFactory;
 import java.time.LocalDateTime;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class MatchingEngineTest {
 
@@ -33,6 +41,8 @@ public class MatchingEngineTest {
     private final int USER_BOB_ID = 2;
     private final int USER_CHARLIE_ID = 3;
     private final int ITEM_REPLICA_A_ID = 1;
+    private static final Double ASK = 100.0;
+    private static final Double ABOVE_ASK = 101.0;
     
     @BeforeEach
     void setUp() throws SQLException {
@@ -58,6 +68,7 @@ public class MatchingEngineTest {
 
     @AfterEach
     void tearDown() throws SQLException {
+        orderService.shutdown();
         if (connection != null && !connection.isClosed()) {
             connection.close();
         }
@@ -78,6 +89,55 @@ public class MatchingEngineTest {
         assertEquals(100.0, trades.get(0).getPrice());
     }
 
+    @Test
+    void testOffHeapBookStorage() {
+        orderService.setBookStorage(MatchingEngine.BookStorage.OFF_HEAP);
+        LocalDateTime start = LocalDateTime.now().minusMinutes(1);
+        orderService.submitOrder(1, USER_ALICE_ID, ITEM_REPLICA_A_ID, Side.BUY, OrderType.AT_PRICE, 100.0, 10, start);
+        orderService.submitOrder(2, USER_CHARLIE_ID, ITEM_REPLICA_A_ID, Side.BUY, OrderType.AT_PRICE, 101.5, 10, start.plusSeconds(1));
+        orderService.submitOrder(3, USER_ALICE_ID, ITEM_REPLICA_A_ID, Side.BUY, OrderType.OPEN, null, 5, start.plusSeconds(2));
+
+        MatchingEngine engine = orderService.getEngineRuntime().getEngine(ITEM_REPLICA_A_ID);
+        OffHeapOrderStore store = engine.getOffHeapStore();
+        assertNotNull(store);
+        assertEquals(3, store.size());
+        assertEquals(OrderStatus.OPEN, orderService.getOrderStatus(2));
+        Order resting = orderService.getOrderDirectory().get(2).getOrder(); // Read back from the store
+        assertEquals(101.5, resting.getPrice());
+        assertEquals(USER_CHARLIE_ID, resting.getUserId());
+        assertEquals(start.plusSeconds(1), resting.getTimestamp());
+
+        // Fills against the best off-heap buy at its price, then frees the record for reuse
+        Order sell = orderService.submitOrder(4, USER_BOB_ID, ITEM_REPLICA_A_ID, Side.SELL, OrderType.AT_PRICE, 99.0, 10, start.plusSeconds(3));
+        assertEquals(OrderStatus.FILLED, sell.getStatus());
+        assertEquals(OrderStatus.FILLED, orderService.getOrderStatus(2));
+        Trade trade = orderService.getTradesByItem(ITEM_REPLICA_A_ID).get(0);
+        assertEquals(101.5, trade.getPrice());
+        assertEquals(USER_CHARLIE_ID, trade.getBuyerId());
+        assertTrue(orderService.cancelOrder(3));
+        assertEquals(1, store.size());
+
+        orderService.submitOrder(5, USER_BOB_ID, ITEM_REPLICA_A_ID, Side.SELL, OrderType.AT_PRICE, 120.0, 7, start.plusSeconds(4));
+        assertEquals(2, store.size());
+        assertEquals(OffHeapOrderStore.CHUNK_SIZE, store.capacity()); // Freed records were reused
+        List<Order> book = orderService.queryOrderBook(ITEM_REPLICA_A_ID);
+        assertEquals(2, book.size());
+        assertEquals(1L, book.get(0).getId());
+        assertEquals(100.0, book.get(0).getPrice());
+        assertEquals(start, book.get(0).getTimestamp());
+        assertEquals(5L, book.get(1).getId());
+
+        // Captured straight from the records, oldest first
+        OrderColumns captured = orderService.getEngineRuntime().capture().stream().flatMap(shard -> shard.getItems().stream())
+                .filter(state -> state.getItemId() == ITEM_REPLICA_A_ID).findFirst().orElseThrow().getOpenOrders();
+        assertEquals(2, captured.size());
+        assertEquals(1L, captured.getId(0));
+        assertEquals(Side.SELL, captured.getSide(1));
+        assertEquals(120.0, captured.getPrice(1));
+        assertEquals(7, captured.getQuantity(1));
+        assertEquals(start.plusSeconds(4), captured.toOrder(1).getTimestamp());
+    }
+
     @Test
     void testAtPriceOrderNoMatchDifferentQuantity() {
         Order buyOrder = orderService.submitOrder(3, USER_ALICE_ID, ITEM_REPLICA_A_ID, Side.BUY, OrderType.AT_PRICE, 100.0, 10, LocalDateTime.now());
@@ -262,4 +322,170 @@ public class MatchingEngineTest {
         assertEquals(OrderStatus.FILLED, orderService.getOrderStatus(openSellOrder.getId()));
         assertEquals(95.0, trades.get(0).getPrice()); // Should use the AtPrice order's price
     }
+
+    @Test
+    void testCancelledRestingOrderUnlinkedFromPriceLevel() {
+        // Two sells at the same price level, plus a worse level behind them
+        Order firstSell = orderService.submitOrder(34, USER_BOB_ID, ITEM_REPLICA_A_ID, Side.SELL, OrderType.AT_PRICE, 100.0, 10, LocalDateTime.now().minusSeconds(10));
+        Order secondSell = orderService.submitOrder(35, USER_CHARLIE_ID, ITEM_REPLICA_A_ID, Side.SELL, OrderType.AT_PRICE, 100.0, 10, LocalDateTime.now().minusSeconds(8));
+        Order worseSell = orderService.submitOrder(36, USER_BOB_ID, ITEM_REPLICA_A_ID, Side.SELL, OrderType.AT_PRICE, 101.0, 10, LocalDateTime.now().minusSeconds(9));
+
+        assertTrue(orderService.cancelOrder(firstSell.getId()));
+        assertFalse(orderService.cancelOrder(firstSell.getId())); // Already removed from the book
+
+        Order buyOrder = orderService.submitOrder(37, USER_ALICE_ID, ITEM_REPLICA_A_ID, Side.BUY, OrderType.AT_PRICE, 101.0, 10, LocalDateTime.now());
+
+        List<Trade> trades = orderService.getTradesByItem(ITEM_REPLICA_A_ID);
+        assertEquals(1, trades.size());
+        // The next order in time priority at the best level fills, not the worse level
+        assertEquals(secondSell.getId(), trades.get(0).getSellOrderId());
+        assertEquals(OrderStatus.FILLED, orderService.getOrderStatus(buyOrder.getId()));
+        assertEquals(OrderStatus.OPEN, orderService.getOrderStatus(worseSell.getId()));
+        assertEquals(1, orderService.getUnmatchedOrderCount(ITEM_REPLICA_A_ID));
+    }
+
+    @Test
+    void testOnlySameQuantityOrdersAreConsidered() {
+        // Better-priced sells of other sizes must not block or match the size-10 buy
+        orderService.submitOrder(38, USER_BOB_ID, ITEM_REPLICA_A_ID, Side.SELL, OrderType.AT_PRICE, 90.0, 7, LocalDateTime.now().minusSeconds(10));
+        orderService.submitOrder(39, USER_BOB_ID, ITEM_REPLICA_A_ID, Side.SELL, OrderType.AT_PRICE, 91.0, 3, LocalDateTime.now().minusSeconds(9));
+        Order sameSizeSell = orderService.submitOrder(40, USER_CHARLIE_ID, ITEM_REPLICA_A_ID, Side.SELL, OrderType.AT_PRICE, 99.0, 10, LocalDateTime.now().minusSeconds(8));
+
+        Order buyOrder = orderService.submitOrder(41, USER_ALICE_ID, ITEM_REPLICA_A_ID, Side.BUY, OrderType.AT_PRICE, 100.0, 10, LocalDateTime.now());
+
+        List<Trade> trades = orderService.getTradesByItem(ITEM_REPLICA_A_ID);
+        assertEquals(1, trades.size());
+        assertEquals(sameSizeSell.getId(), trades.get(0).getSellOrderId());
+        assertEquals(buyOrder.getId(), trades.get(0).getBuyOrderId());
+        assertEquals(2, orderService.getUnmatchedOrderCount(ITEM_REPLICA_A_ID));
+    }
+
+    @Test
+    void testPricedOpenOrderBehindNonCrossingLevelStillMatches() {
+        // Establish a last traded price of 100 with a different lot size
+        orderService.submitOrder(42, USER_ALICE_ID, ITEM_REPLICA_A_ID, Side.BUY, OrderType.AT_PRICE, 100.0, 1, LocalDateTime.now().minusSeconds(12));
+        orderService.submitOrder(43, USER_BOB_ID, ITEM_REPLICA_A_ID, Side.SELL, OrderType.AT_PRICE, 100.0, 1, LocalDateTime.now().minusSeconds(11));
+
+        // An OPEN sell submitted with a price rests in the 120 level, behind an AT_PRICE sell at 110
+        Order atPriceSell = orderService.submitOrder(44, USER_BOB_ID, ITEM_REPLICA_A_ID, Side.SELL, OrderType.AT_PRICE, 110.0, 10, LocalDateTime.now().minusSeconds(10));
+        Order pricedOpenSell = orderService.submitOrder(45, USER_CHARLIE_ID, ITEM_REPLICA_A_ID, Side.SELL, OrderType.OPEN, 120.0, 10, LocalDateTime.now().minusSeconds(9));
+
+        // The 110 sell does not cross a 105 buy, but the OPEN sell behind it matches at the last traded price
+        Order buyOrder = orderService.submitOrder(46, USER_ALICE_ID, ITEM_REPLICA_A_ID, Side.BUY, OrderType.AT_PRICE, 105.0, 10, LocalDateTime.now());
+
+        List<Trade> trades = orderService.getTradesByItem(ITEM_REPLICA_A_ID);
+        assertEquals(2, trades.size());
+        assertEquals(OrderStatus.FILLED, orderService.getOrderStatus(buyOrder.getId()));
+        assertEquals(OrderStatus.FILLED, orderService.getOrderStatus(pricedOpenSell.getId()));
+        assertEquals(OrderStatus.OPEN, orderService.getOrderStatus(atPriceSell.getId()));
+        assertEquals(100.0, orderService.getAverageTradePrice(ITEM_REPLICA_A_ID));
+    }
+
+    @Test
+    void testBackdatedOrdersTakeTimePriorityAndSetTheTradePrice() {
+        // The second sell arrives later but is stamped earlier, so it is first in the level
+        LocalDateTime now = LocalDateTime.now();
+        Order firstToArrive = orderService.submitOrder(51, USER_BOB_ID, ITEM_REPLICA_A_ID, Side.SELL, OrderType.AT_PRICE, 100.0, 1, now);
+        Order backdated = orderService.submitOrder(52, USER_CHARLIE_ID, ITEM_REPLICA_A_ID, Side.SELL, OrderType.AT_PRICE, 100.0, 1, now.minusSeconds(10));
+        orderService.submitOrder(53, USER_ALICE_ID, ITEM_REPLICA_A_ID, Side.BUY, OrderType.AT_PRICE, 100.0, 1, now);
+
+        assertEquals(OrderStatus.FILLED, orderService.getOrderStatus(backdated.getId()));
+        assertEquals(OrderStatus.OPEN, orderService.getOrderStatus(firstToArrive.getId()));
+        assertEquals(backdated.getId(), orderService.getTradesByItem(ITEM_REPLICA_A_ID).get(0).getSellOrderId());
+
+        // An incoming buy stamped before the resting sell is the earlier order, so its price is the trade price
+        orderService.submitOrder(54, USER_BOB_ID, ITEM_REPLICA_A_ID, Side.SELL, OrderType.AT_PRICE, 90.0, 2, now);
+        orderService.submitOrder(55, USER_ALICE_ID, ITEM_REPLICA_A_ID, Side.BUY, OrderType.AT_PRICE, 100.0, 2, now.minusSeconds(20));
+
+        List<Trade> trades = orderService.getTradesByItem(ITEM_REPLICA_A_ID);
+        assertEquals(2, trades.size());
+        assertEquals(55, trades.get(0).getBuyOrderId()); // Newest first
+        assertEquals(100.0, trades.get(0).getPrice());
+    }
+
+    @Test
+    void testOpenOrderFallbackUsesBestRemainingAtPriceBuy() {
+        // Resting AT_PRICE buys of other sizes provide the fallback price; the best (highest) one wins
+        orderService.submitOrder(47, USER_ALICE_ID, ITEM_REPLICA_A_ID, Side.BUY, OrderType.AT_PRICE, 130.0, 5, LocalDateTime.now().minusSeconds(10));
+        Order bestBuy = orderService.submitOrder(48, USER_CHARLIE_ID, ITEM_REPLICA_A_ID, Side.BUY, OrderType.AT_PRICE, 140.0, 3, LocalDateTime.now().minusSeconds(9));
+        orderService.submitOrder(49, USER_ALICE_ID, ITEM_REPLICA_A_ID, Side.BUY, OrderType.OPEN, null, 10, LocalDateTime.now().minusSeconds(8));
+
+        // Once the best buy is cancelled the tracker falls back to the next best price
+        assertTrue(orderService.cancelOrder(bestBuy.getId()));
+        orderService.submitOrder(50, USER_BOB_ID, ITEM_REPLICA_A_ID, Side.SELL, OrderType.OPEN, null, 10, LocalDateTime.now());
+
+        List<Trade> trades = orderService.getTradesByItem(ITEM_REPLICA_A_ID);
+        assertEquals(1, trades.size());
+        assertEquals(130.0, trades.get(0).getPrice());
+    }
+
+    @Test
+    void testSteadyStateCommandsAllocateOnlyOnTheCallerThread() {
+        assertSteadyStateAllocation(PersistencePipeline.DurabilityMode.ASYNC);
+    }
+
+    @Test
+    void testSteadyStateGroupCommitAllocatesOnlyOnTheCallerThread() {
+        // Batches are handed to the writer thread in pooled holders rather than copies
+        assertSteadyStateAllocation(PersistencePipeline.DurabilityMode.GROUP_COMMIT);
+    }
+
+    private void assertSteadyStateAllocation(PersistencePipeline.DurabilityMode durabilityMode) {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        OrderService service = new OrderService(connection, 1, OrderSequencer.DEFAULT_RING_SIZE, OrderSequencer.BackpressurePolicy.BLOCK,
+                durabilityMode);
+        try {
+            Thread[] matchingThread = new Thread[1];
+            service.addMarketDataListener(new MarketDataListener() {
+                @Override
+                public void onLevel(int itemId, long sequence, LevelAction action, Side side, double price, long quantity, int orderCount) {
+                    matchingThread[0] = Thread.currentThread();
+                }
+            });
+            service.submitOrder(USER_ALICE_ID, ITEM_REPLICA_A_ID, Side.BUY, OrderType.AT_PRICE, 90.0, 10);
+
+            int rounds = 1_000;
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[4 * rounds];
+            LocalDateTime timestamp = LocalDateTime.now();
+            for (int i = 0; i < 5; i++) {
+                runRounds(service, futures, timestamp); // Lets the JIT compile the path and the level, book and event pools fill up
+            }
+            service.flush();
+
+            long matchingThreadId = matchingThread[0].getId();
+            long callerThreadId = Thread.currentThread().getId();
+            long matchingBefore = threads.getThreadAllocatedBytes(matchingThreadId);
+            long callerBefore = threads.getThreadAllocatedBytes(callerThreadId);
+            runRounds(service, futures, timestamp);
+            long callerBytes = threads.getThreadAllocatedBytes(callerThreadId) - callerBefore;
+            long matchingBytes = threads.getThreadAllocatedBytes(matchingThreadId) - matchingBefore;
+
+            // Each round rests a sell, fills it with a buy and cancels a second sell: 4 commands, 1 trade.
+            // The caller builds each new order, its RestingOrder and a future per command. The matching
+            // thread, from sequencer to persistence queue, allocates nothing per command; a byte per
+            // command leaves room for a rare contended lock in the persistence queue.
+            assertTrue(callerBytes < 256L * futures.length, "Caller allocated " + callerBytes + " bytes over " + futures.length + " commands");
+            assertTrue(matchingBytes < futures.length, "Matching thread allocated " + matchingBytes + " bytes over " + futures.length + " commands");
+            assertEquals(6L * rounds, service.getStatistics().forItem(ITEM_REPLICA_A_ID).getTradeCount());
+            assertEquals(1, service.getOrderDirectory().size()); // The buy below the market rested throughout
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    // Queues every command before waiting on any, so the caller does not park on a future mid-round
+    private void runRounds(OrderService service, CompletableFuture<?>[] futures, LocalDateTime timestamp) {
+        for (int i = 0; i < futures.length; i += 4) {
+            futures[i] = service.submitOrderAsync(service.reserveOrderId(), USER_BOB_ID, ITEM_REPLICA_A_ID, Side.SELL, OrderType.AT_PRICE, ASK, 10, timestamp);
+            futures[i + 1] = service.submitOrderAsync(service.reserveOrderId(), USER_CHARLIE_ID, ITEM_REPLICA_A_ID, Side.BUY, OrderType.AT_PRICE, ASK, 10, timestamp);
+            long cancelledId = service.reserveOrderId();
+            futures[i + 2] = service.submitOrderAsync(cancelledId, USER_BOB_ID, ITEM_REPLICA_A_ID, Side.SELL, OrderType.AT_PRICE, ABOVE_ASK, 10, timestamp);
+            futures[i + 3] = service.cancelOrderAsync(cancelledId);
+        }
+        for (CompletableFuture<?> future : futures) {
+            future.join();
+        }
+    }
 }
@@ -1,23 +1,50 @@
 package com.vitea.marketplace.tests;
 
+import com.vitea.marketplace.db.ConnectionPool;
 import com.vitea.marketplace.db.H2DatabaseUtil;
+import com.vitea.marketplace.db.PersistencePipeline;
+import com.vitea.marketplace.db.SchemaMigrations;
+import com.vitea.marketplace.db.StatementCache;
+import com.vitea.marketplace.marketdata.MarketDataListener;
 import com.vitea.marketplace.models.Order;
 import com.vitea.marketplace.models.OrderType;
 import com.vitea.marketplace.models.Side;
+import com.vitea.marketplace.models.Trade;
 import com.vitea.marketplace.models.OrderStatus;
+import com.vitea.marketplace.services.DepthSnapshot;
+import com.vitea.marketplace.services.EngineRuntime;
+import com.vitea.marketplace.services.OrderBookSnapshot;
+import com.vitea.marketplace.services.OrderDirectory;
+import com.vitea.marketplace.services.OrderSequencer;
 import com.vitea.marketplace.services.OrderService;
+import com.vitea.marketplace.services.RestingOrder;
 import com.vitea.marketplace.services.ItemService;
 import com.vitea.marketplace.services.UserService;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.lang.management.ManagementFactory;
 import java.time.LocalDateTime;
 import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class OrderServiceTest {
 
@@ -51,6 +78,7 @@ public class OrderServiceTest {
 
     @AfterEach
     void tearDown() throws SQLException {
+        orderService.shutdown();
         if (connection != null && !connection.isClosed()) {
             connection.close();
         }
@@ -103,6 +131,173 @@ public class OrderServiceTest {
         assertEquals(110.0, orderBook.get(1).getPrice()); // Sell order should come after
     }
 
+    @Test
+    void testOrderBookSnapshotsAreVersionedAndImmutable() {
+        OrderBookSnapshot before = orderService.getOrderBookSnapshot(ITEM_ID_1);
+        assertTrue(before.getOrders().isEmpty());
+
+        orderService.submitOrder(1, USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, 5, LocalDateTime.now().minusMinutes(1));
+        OrderBookSnapshot resting = orderService.getOrderBookSnapshot(ITEM_ID_1);
+        assertTrue(resting.getVersion() > before.getVersion());
+        assertEquals(1, resting.getOrderCount());
+
+        // A fill publishes a new snapshot; the one already handed out keeps showing the order as it was
+        orderService.submitOrder(2, USER_ID_2, ITEM_ID_1, Side.SELL, OrderType.AT_PRICE, 100.0, 5, LocalDateTime.now());
+        OrderBookSnapshot filled = orderService.getOrderBookSnapshot(ITEM_ID_1);
+        assertTrue(filled.getVersion() > resting.getVersion());
+        assertTrue(filled.getOrders().isEmpty());
+        assertEquals(OrderStatus.OPEN, resting.getOrders().get(0).getStatus());
+        assertThrows(UnsupportedOperationException.class, () -> resting.getOrders().clear());
+    }
+
+    @Test
+    void testOrderBookTopLevels() {
+        LocalDateTime start = LocalDateTime.now().minusMinutes(10);
+        orderService.submitOrder(1, USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, 5, start);
+        orderService.submitOrder(2, USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 101.0, 5, start.plusSeconds(1));
+        orderService.submitOrder(3, USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 101.0, 3, start.plusSeconds(2));
+        orderService.submitOrder(4, USER_ID_2, ITEM_ID_1, Side.SELL, OrderType.AT_PRICE, 110.0, 5, start.plusSeconds(3));
+        orderService.submitOrder(5, USER_ID_2, ITEM_ID_1, Side.SELL, OrderType.AT_PRICE, 105.0, 5, start.plusSeconds(4));
+        orderService.submitOrder(6, USER_ID_2, ITEM_ID_1, Side.SELL, OrderType.AT_PRICE, null, 5, start.plusSeconds(5));
+
+        // Full book matches the database view: buys best first, sells best first, then unpriced
+        List<Long> all = new ArrayList<>();
+        orderService.queryOrderBook(ITEM_ID_1).forEach(order -> all.add(order.getId()));
+        List<Long> fromDatabase = new ArrayList<>();
+        orderService.getOpenOrdersByItem(ITEM_ID_1).forEach(order -> fromDatabase.add(order.getId()));
+        assertEquals(List.of(2L, 3L, 1L, 5L, 4L, 6L), all);
+        assertEquals(fromDatabase, all);
+
+        List<Long> top = new ArrayList<>();
+        orderService.queryOrderBook(ITEM_ID_1, 1).forEach(order -> top.add(order.getId()));
+        assertEquals(List.of(2L, 3L, 5L), top);
+        assertTrue(orderService.queryOrderBook(ITEM_ID_2).isEmpty());
+    }
+
+    @Test
+    void testPerCommandCostDoesNotGrowWithBookDepth() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        Thread[] matchingThread = new Thread[1];
+        orderService.addMarketDataListener(new MarketDataListener() {
+            @Override
+            public void onLevel(int itemId, long sequence, LevelAction action, Side side, double price, long quantity, int orderCount) {
+                matchingThread[0] = Thread.currentThread();
+            }
+        });
+
+        // 20,000 bids, one per price level
+        int depth = 20_000;
+        List<CompletableFuture<Order>> resting = new ArrayList<>(depth);
+        for (int i = 0; i < depth; i++) {
+            resting.add(orderService.submitOrderAsync(USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 10.0 + i * 0.01, 1));
+        }
+        resting.forEach(CompletableFuture::join);
+        assertEquals(depth, orderService.getOrderBookSnapshot(ITEM_ID_1).getOrderCount());
+
+        int rounds = 200;
+        runSubmitReadCancelRounds(rounds); // Warm-up
+        long matchingThreadId = matchingThread[0].getId();
+        long callerThreadId = Thread.currentThread().getId();
+        long matchingBefore = threads.getThreadAllocatedBytes(matchingThreadId);
+        long callerBefore = threads.getThreadAllocatedBytes(callerThreadId);
+        runSubmitReadCancelRounds(rounds);
+        long matchingBytes = threads.getThreadAllocatedBytes(matchingThreadId) - matchingBefore;
+        long callerBytes = threads.getThreadAllocatedBytes(callerThreadId) - callerBefore;
+
+        // Copying the book, even as primitive columns, would be hundreds of kilobytes per command at this depth
+        assertTrue(matchingBytes < 8_192L * rounds, "Matching thread allocated " + matchingBytes + " bytes over " + rounds + " rounds");
+        assertTrue(callerBytes < 16_384L * rounds, "Caller allocated " + callerBytes + " bytes over " + rounds + " rounds");
+    }
+
+    // Each round rests an ask above every bid, reads the best level of each side and cancels the ask
+    private void runSubmitReadCancelRounds(int rounds) {
+        for (int i = 0; i < rounds; i++) {
+            Order ask = orderService.submitOrder(USER_ID_2, ITEM_ID_1, Side.SELL, OrderType.AT_PRICE, 1000.0, 1);
+            assertEquals(2, orderService.queryOrderBook(ITEM_ID_1, 1).size());
+            assertTrue(orderService.cancelOrder(ask.getId()));
+        }
+    }
+
+    @Test
+    void testDepthAggregatesEachPriceLevel() {
+        orderService.submitOrder(USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, 5);
+        orderService.submitOrder(USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 101.0, 5);
+        Order partOfLevel = orderService.submitOrder(USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 101.0, 3);
+        orderService.submitOrder(USER_ID_2, ITEM_ID_1, Side.SELL, OrderType.AT_PRICE, 110.0, 5);
+        orderService.submitOrder(USER_ID_2, ITEM_ID_1, Side.SELL, OrderType.AT_PRICE, 105.0, 2);
+        orderService.submitOrder(USER_ID_2, ITEM_ID_1, Side.SELL, OrderType.OPEN, null, 4); // Not in any level
+
+        assertEquals("[Level{price=101.0, quantity=8, orderCount=2}, Level{price=100.0, quantity=5, orderCount=1}]",
+                orderService.queryDepth(ITEM_ID_1, Side.BUY, 10).toString());
+        assertEquals("[Level{price=105.0, quantity=2, orderCount=1}]", orderService.queryDepth(ITEM_ID_1, Side.SELL, 1).toString());
+        DepthSnapshot depth = orderService.getDepthSnapshot(ITEM_ID_1);
+        assertEquals(2, depth.getLevelCount(Side.SELL));
+        assertEquals(orderService.getOrderBookSnapshot(ITEM_ID_1).getVersion(), depth.getVersion());
+
+        // Fills and cancels take quantity out of their levels
+        orderService.submitOrder(USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 105.0, 2);
+        orderService.cancelOrder(partOfLevel.getId());
+        assertEquals("[Level{price=110.0, quantity=5, orderCount=1}]", orderService.queryDepth(ITEM_ID_1, Side.SELL, 10).toString());
+        assertEquals("[Level{price=101.0, quantity=5, orderCount=1}]", orderService.queryDepth(ITEM_ID_1, Side.BUY, 1).toString());
+        assertTrue(orderService.queryDepth(ITEM_ID_2, Side.BUY, 10).isEmpty());
+    }
+
+    @Test
+    void testStatisticsAreRebuiltFromStorage() {
+        orderService.submitOrder(USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, 2);
+        orderService.submitOrder(USER_ID_2, ITEM_ID_1, Side.SELL, OrderType.AT_PRICE, 100.0, 2);
+        orderService.submitOrder(USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 130.0, 1);
+        orderService.submitOrder(USER_ID_2, ITEM_ID_1, Side.SELL, OrderType.AT_PRICE, 130.0, 1);
+        orderService.submitOrder(USER_ID_1, ITEM_ID_2, Side.BUY, OrderType.AT_PRICE, 50.0, 1);
+
+        assertEquals(115.0, orderService.getAverageTradePrice(ITEM_ID_1), 0.001);
+        assertEquals(110.0, orderService.getVolumeWeightedAveragePrice(ITEM_ID_1), 0.001);
+        assertEquals(2, orderService.getTotalExecutedTradesByItem(ITEM_ID_1));
+        assertEquals(1, orderService.getUnmatchedOrderCount(ITEM_ID_2));
+
+        orderService.flush();
+        OrderService restarted = new OrderService(connection, 1, 64, OrderSequencer.BackpressurePolicy.BLOCK);
+        try {
+            assertEquals(115.0, restarted.getAverageTradePrice(ITEM_ID_1), 0.001);
+            assertEquals(110.0, restarted.getVolumeWeightedAveragePrice(ITEM_ID_1), 0.001);
+            assertEquals(2, restarted.getTotalExecutedTrades());
+            assertEquals(0, restarted.getUnmatchedOrderCount(ITEM_ID_1));
+            assertEquals(1, restarted.getTotalUnmatchedOrders());
+        } finally {
+            restarted.shutdown();
+        }
+    }
+
+    @Test
+    void testPricesAreSnappedToTheItemTickSize() {
+        orderService.setTickSize(ITEM_ID_2, 0.05);
+        Order buy = orderService.submitOrder(USER_ID_1, ITEM_ID_2, Side.BUY, OrderType.AT_PRICE, 100.02, 1);
+        assertEquals(2000, buy.getPriceTicks());
+        assertEquals(100.0, buy.getPrice());
+
+        Order sell = orderService.submitOrder(USER_ID_2, ITEM_ID_2, Side.SELL, OrderType.AT_PRICE, 100.01, 1);
+        assertEquals(OrderStatus.FILLED, sell.getStatus()); // Both sit on the 100.00 tick
+        Trade trade = orderService.queryTradeHistory(ITEM_ID_2).get(0);
+        assertEquals(2000, trade.getPriceTicks());
+        assertEquals(100.0, trade.getPrice());
+        assertThrows(IllegalStateException.class, () -> orderService.setTickSize(ITEM_ID_2, 0.01));
+    }
+
+    @Test
+    void testSameTimestampKeepsArrivalOrder() {
+        LocalDateTime tick = LocalDateTime.now();
+        Order first = orderService.submitOrder(1, USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, 5, tick);
+        Order second = orderService.submitOrder(2, USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, 5, tick);
+        assertTrue(first.getSequence() < second.getSequence());
+
+        orderService.submitOrder(3, USER_ID_2, ITEM_ID_1, Side.SELL, OrderType.AT_PRICE, 100.0, 5, tick);
+        assertEquals(OrderStatus.FILLED, orderService.getOrderStatus(1));
+        assertEquals(OrderStatus.OPEN, orderService.getOrderStatus(2));
+        assertEquals(second.getSequence(), orderService.getOpenOrdersByItem(ITEM_ID_1).get(0).getSequence());
+    }
+
     @Test
     void testGetTradeHistory() {
         // Submit orders that will result in a trade
@@ -172,4 +367,319 @@ public class OrderServiceTest {
         orderService.submitOrder(USER_ID_1, ITEM_ID_1, Side.SELL, OrderType.AT_PRICE, 100.0, 10); // 6 arguments
         assertEquals(1, orderService.getTotalUnmatchedOrders()); // Only order 2 remains unmatched
     }
+
+    @Test
+    void testOrderDirectoryTracksLiveOrdersOnly() {
+        orderService.submitOrder(1, USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, 10, LocalDateTime.now().minusSeconds(2));
+        orderService.submitOrder(2, USER_ID_2, ITEM_ID_2, Side.SELL, OrderType.AT_PRICE, 50.0, 5, LocalDateTime.now().minusSeconds(1));
+        assertEquals(2, orderService.getOrderDirectory().size());
+
+        // Filled orders leave the directory
+        orderService.submitOrder(3, USER_ID_2, ITEM_ID_1, Side.SELL, OrderType.AT_PRICE, 100.0, 10, LocalDateTime.now());
+        assertEquals(1, orderService.getOrderDirectory().size());
+        assertNull(orderService.getOrderDirectory().get(1));
+
+        // Cancels are routed to the owning engine through the directory
+        assertFalse(orderService.cancelOrder(1), "Filled orders cannot be cancelled");
+        assertFalse(orderService.cancelOrder(999), "Unknown orders cannot be cancelled");
+        assertTrue(orderService.cancelOrder(2));
+        assertEquals(0, orderService.getOrderDirectory().size());
+        assertEquals(OrderStatus.CANCELLED, orderService.getOrderStatus(2));
+    }
+
+    @Test
+    void testOrderDirectoryManyOrders() {
+        OrderDirectory directory = new OrderDirectory();
+        for (int id = 1; id <= 10000; id++) {
+            Order order = new Order(id, USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, OrderStatus.OPEN, LocalDateTime.now(), 1);
+            directory.put(id, new RestingOrder(order, null));
+        }
+        for (int id = 1; id <= 10000; id += 2) {
+            assertNotNull(directory.remove(id));
+        }
+        assertEquals(5000, directory.size());
+        for (int id = 1; id <= 10000; id++) {
+            RestingOrder entry = directory.get(id);
+            if (id % 2 == 0) {
+                assertEquals(id, entry.getOrder().getId());
+            } else {
+                assertNull(entry);
+            }
+        }
+    }
+
+    @Test
+    void testAsyncSubmitPipelinesOrders() {
+        List<CompletableFuture<Order>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(orderService.submitOrderAsync(USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, 1));
+            futures.add(orderService.submitOrderAsync(USER_ID_2, ITEM_ID_1, Side.SELL, OrderType.AT_PRICE, 100.0, 1));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+
+        // Commands are applied in submission order, so every sell fills the buy queued just before it
+        for (CompletableFuture<Order> future : futures) {
+            assertEquals(OrderStatus.FILLED, future.join().getStatus());
+        }
+        assertEquals(50, orderService.getTotalExecutedTradesByItem(ITEM_ID_1));
+        assertEquals(0, orderService.getUnmatchedOrderCount(ITEM_ID_1));
+    }
+
+    @Test
+    void testAsyncCancelIsSequencedBehindSubmit() {
+        CompletableFuture<Order> submitted = orderService.submitOrderAsync(USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, 10);
+        CompletableFuture<Boolean> cancelled = orderService.cancelOrderAsync(1);
+
+        assertTrue(cancelled.join());
+        assertEquals(OrderStatus.CANCELLED, submitted.join().getStatus());
+        assertEquals(OrderStatus.CANCELLED, orderService.getOrderStatus(1));
+        assertFalse(orderService.cancelOrderAsync(1).join());
+    }
+
+    @Test
+    void testItemsArePinnedToShards() {
+        OrderService shardedService = new OrderService(connection, 4, 64, OrderSequencer.BackpressurePolicy.BLOCK);
+        try {
+            EngineRuntime runtime = shardedService.getEngineRuntime();
+            assertEquals(4, runtime.getShardCount());
+            assertEquals(1, runtime.shardIndexFor(ITEM_ID_1));
+            assertEquals(2, runtime.shardIndexFor(ITEM_ID_2));
+
+            shardedService.submitOrder(1, USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, 10, LocalDateTime.now().minusSeconds(1));
+            shardedService.submitOrder(2, USER_ID_1, ITEM_ID_2, Side.BUY, OrderType.AT_PRICE, 50.0, 5, LocalDateTime.now().minusSeconds(1));
+            shardedService.submitOrder(3, USER_ID_2, ITEM_ID_1, Side.SELL, OrderType.AT_PRICE, 100.0, 10, LocalDateTime.now());
+            shardedService.submitOrder(4, USER_ID_2, ITEM_ID_2, Side.SELL, OrderType.AT_PRICE, 50.0, 5, LocalDateTime.now());
+
+            assertEquals(2, shardedService.getTotalExecutedTrades());
+        } finally {
+            shardedService.shutdown();
+        }
+    }
+
+    @Test
+    void testFullShardRejectsCommands() {
+        OrderService rejectingService = new OrderService(connection, 1, 1, OrderSequencer.BackpressurePolicy.REJECT);
+        try {
+            List<CompletableFuture<Order>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(rejectingService.submitOrderAsync(USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, 1));
+            }
+            int rejected = 0;
+            for (CompletableFuture<Order> future : futures) {
+                try {
+                    assertEquals(OrderStatus.OPEN, future.join().getStatus());
+                } catch (CompletionException e) {
+                    assertTrue(e.getCause() instanceof RejectedExecutionException);
+                    rejected++;
+                }
+            }
+            // A one-slot ring cannot keep up with a tight submit loop, and every rejection is counted
+            assertEquals(rejected, rejectingService.getEngineRuntime().getShard(0).getRejectedCommands());
+            assertEquals(200 - rejected, rejectingService.getUnmatchedOrderCount(ITEM_ID_1));
+        } finally {
+            rejectingService.shutdown();
+        }
+    }
+
+    @Test
+    void testCommandsRacingShutdownAllComplete() throws Exception {
+        // A tiny ring keeps producers waiting for slots while the shard shuts down under them
+        OrderService racingService = new OrderService(connection, 1, 4, OrderSequencer.BackpressurePolicy.BLOCK);
+        Queue<CompletableFuture<Order>> futures = new ConcurrentLinkedQueue<>();
+        List<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread producer = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    futures.add(racingService.submitOrderAsync(USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, 1));
+                }
+            });
+            producers.add(producer);
+            producer.start();
+        }
+        Thread.sleep(20);
+        racingService.shutdown();
+        for (Thread producer : producers) {
+            producer.join(10_000);
+            assertFalse(producer.isAlive());
+        }
+        // Every command was either applied or failed; none is left waiting
+        for (CompletableFuture<Order> future : futures) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        assertEquals(2000, futures.size());
+    }
+
+    @Test
+    void testFlushFailsOnceTheWriterThreadStops() throws Exception {
+        Connection closed = H2DatabaseUtil.getConnection();
+        closed.close(); // The writer cannot prepare its statements on it
+        PersistencePipeline pipeline = new PersistencePipeline(closed, new StatementCache(), PersistencePipeline.DurabilityMode.GROUP_COMMIT, "failing-writer");
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (pipeline.getFailure() == null && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertNotNull(pipeline.getFailure());
+
+            pipeline.updateOrderStatus(1, OrderStatus.FILLED); // Dropped rather than queued behind a dead writer
+            ExecutionException e = assertThrows(ExecutionException.class, () -> pipeline.flush().get(10, TimeUnit.SECONDS));
+            assertSame(pipeline.getFailure(), e.getCause());
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    void testGroupCommitAcknowledgesAfterCommit() throws SQLException {
+        orderService.submitOrderAsync(1, USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, 10, LocalDateTime.now().minusSeconds(1)).join();
+        Order sell = orderService.submitOrderAsync(2, USER_ID_2, ITEM_ID_1, Side.SELL, OrderType.AT_PRICE, 100.0, 10, LocalDateTime.now()).join();
+
+        // Read straight from the DB, bypassing the service's flush: the acknowledged writes must already be committed
+        assertEquals(OrderStatus.FILLED, sell.getStatus());
+        assertEquals(2, countRows("SELECT COUNT(*) FROM ORDERS WHERE STATUS = 'FILLED'"));
+        assertEquals(1, countRows("SELECT COUNT(*) FROM TRADES"));
+    }
+
+    @Test
+    void testAsyncPersistenceFlushWritesQueuedEvents() throws SQLException {
+        OrderService asyncService = new OrderService(connection, 1, 64, OrderSequencer.BackpressurePolicy.BLOCK, PersistencePipeline.DurabilityMode.ASYNC);
+        try {
+            List<CompletableFuture<Order>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(asyncService.submitOrderAsync(USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, 1));
+                futures.add(asyncService.submitOrderAsync(USER_ID_2, ITEM_ID_1, Side.SELL, OrderType.AT_PRICE, 100.0, 1));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+            assertEquals(0, asyncService.getOrderDirectory().size());
+
+            asyncService.flush();
+            assertEquals(200, countRows("SELECT COUNT(*) FROM ORDERS WHERE STATUS = 'FILLED'"));
+            assertEquals(100, countRows("SELECT COUNT(*) FROM TRADES"));
+            assertEquals(100, countRows("SELECT COUNT(DISTINCT ID) FROM TRADES"));
+        } finally {
+            asyncService.shutdown();
+        }
+    }
+
+    @Test
+    void testOrderIdsBeyondIntRange() {
+        long bigId = 3_000_000_000L;
+        Order seeded = orderService.submitOrder(bigId, USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, 10, LocalDateTime.now().minusSeconds(1));
+        Order next = orderService.submitOrder(USER_ID_2, ITEM_ID_1, Side.SELL, OrderType.AT_PRICE, 100.0, 10);
+
+        assertEquals(bigId + 1, next.getId());
+        List<Trade> trades = orderService.getTradesByItem(ITEM_ID_1);
+        assertEquals(1, trades.size());
+        assertEquals(bigId, trades.get(0).getBuyOrderId());
+        assertEquals(bigId + 1, trades.get(0).getSellOrderId());
+        assertEquals(OrderStatus.FILLED, orderService.getPersistedOrderStatus(seeded.getId()));
+    }
+
+    @Test
+    void testTradeIdsAreUniqueAcrossShards() {
+        OrderService shardedService = new OrderService(connection, 2, 64, OrderSequencer.BackpressurePolicy.BLOCK);
+        try {
+            List<CompletableFuture<Order>> futures = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                for (int itemId : new int[]{ITEM_ID_1, ITEM_ID_2}) {
+                    futures.add(shardedService.submitOrderAsync(USER_ID_1, itemId, Side.BUY, OrderType.AT_PRICE, 100.0, 1));
+                    futures.add(shardedService.submitOrderAsync(USER_ID_2, itemId, Side.SELL, OrderType.AT_PRICE, 100.0, 1));
+                }
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+
+            Set<Long> tradeIds = new HashSet<>();
+            for (int itemId : new int[]{ITEM_ID_1, ITEM_ID_2}) {
+                for (Trade trade : shardedService.getTradesByItem(itemId)) {
+                    tradeIds.add(trade.getId());
+                }
+            }
+            assertEquals(100, tradeIds.size());
+        } finally {
+            shardedService.shutdown();
+        }
+    }
+
+    @Test
+    void testMatchingDoesNotWaitForQueryConnections() throws Exception {
+        ConnectionPool pool = new ConnectionPool(1, 1);
+        OrderService pooledService = new OrderService(pool, 1, 64, OrderSequencer.BackpressurePolicy.BLOCK, PersistencePipeline.DurabilityMode.GROUP_COMMIT);
+        try {
+            CompletableFuture<Integer> blockedQuery;
+            try (ConnectionPool.Lease lease = pool.acquire()) {
+                // The only query connection is taken, yet orders still match and commit on the shard's writer
+                pooledService.submitOrder(1, USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, 10, LocalDateTime.now().minusSeconds(1));
+                Order sell = pooledService.submitOrder(2, USER_ID_2, ITEM_ID_1, Side.SELL, OrderType.AT_PRICE, 100.0, 10, LocalDateTime.now());
+                assertEquals(OrderStatus.FILLED, sell.getStatus());
+
+                blockedQuery = CompletableFuture.supplyAsync(() -> pooledService.queryTradeHistory(ITEM_ID_1).size());
+                Thread.sleep(50);
+                assertFalse(blockedQuery.isDone());
+            }
+            assertEquals(1, blockedQuery.get());
+            assertEquals(1, pool.getWaitedAcquisitions());
+            assertTrue(pool.getMaxWaitNanos() > 0);
+            assertEquals(1, pool.getIdleCount());
+        } finally {
+            pooledService.shutdown();
+            pool.close();
+        }
+    }
+
+    @Test
+    void testServiceWritesToTheDatabaseOfTheGivenConnection() throws SQLException {
+        try (Connection other = DriverManager.getConnection("jdbc:h2:mem:marketplace-other;DB_CLOSE_DELAY=-1", "sa", "")) {
+            SchemaMigrations.migrate(other);
+            H2DatabaseUtil.resetAllTables(other);
+            new UserService(other).createUser("OtherUser");
+            new ItemService(other).createItem("OtherItem");
+            OrderService otherService = new OrderService(other, 1, 64, OrderSequencer.BackpressurePolicy.BLOCK, PersistencePipeline.DurabilityMode.SYNC);
+            try {
+                otherService.submitOrder(1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, 10);
+                try (Statement stmt = other.createStatement()) {
+                    ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM ORDERS");
+                    rs.next();
+                    assertEquals(1, rs.getInt(1));
+                }
+                assertEquals(0, countRows("SELECT COUNT(*) FROM ORDERS"));
+            } finally {
+                otherService.shutdown();
+            }
+        }
+    }
+
+    @Test
+    void testStatementsArePreparedOncePerConnection() {
+        OrderService syncService = new OrderService(connection, 1, 64, OrderSequencer.BackpressurePolicy.BLOCK, PersistencePipeline.DurabilityMode.SYNC);
+        try {
+            StatementCache cache = syncService.getConnectionPool().getStatementCache();
+            for (int i = 0; i < 10; i++) {
+                syncService.submitOrder(USER_ID_1, ITEM_ID_1, Side.BUY, OrderType.AT_PRICE, 100.0, 1);
+            }
+            long missesAfterInserts = cache.getMisses();
+            long hitsAfterInserts = cache.getHits();
+            assertTrue(hitsAfterInserts >= 9); // Only the first insert prepares its statement
+
+            for (int i = 0; i < 5; i++) {
+                assertEquals(10, syncService.getOpenOrdersByItem(ITEM_ID_1).size());
+            }
+            // At most two new prepares (one per side) per pooled connection the book query happened to land on
+            assertTrue(cache.getMisses() - missesAfterInserts <= 2 * ConnectionPool.DEFAULT_POOL_SIZE);
+            assertTrue(cache.getHits() > hitsAfterInserts);
+        } finally {
+            syncService.shutdown();
+        }
+    }
+
+    private int countRows(String sql) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            ResultSet rs = stmt.executeQuery(sql);
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
 }
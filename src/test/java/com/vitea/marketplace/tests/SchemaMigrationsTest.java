@@ -0,0 +1,114 @@
+package com.vitea.marketplace.tests;
+
+import com.vitea.marketplace.db.H2DatabaseUtil;
+import com.vitea.marketplace.db.SchemaMigrations;
+import com.vitea.marketplace.services.UserService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SchemaMigrationsTest {
+
+    private Connection connection;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        connection = H2DatabaseUtil.initializeDatabase();
+        H2DatabaseUtil.resetAllTables(connection);
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        if (connection != null && !connection.isClosed()) {
+            connection.close();
+        }
+    }
+
+    @Test
+    void testMigrationsUpgradeInPlaceOnce() throws SQLException {
+        assertEquals(SchemaMigrations.latestVersion(), SchemaMigrations.currentVersion(connection));
+
+        new UserService(connection).createUser("Alice");
+        assertEquals(0, SchemaMigrations.migrate(connection)); // Already current: nothing re-applied
+        H2DatabaseUtil.initializeDatabase().close();
+
+        assertEquals(1, queryInt("SELECT COUNT(*) FROM USERS")); // Rows survive re-initialization
+        assertEquals(SchemaMigrations.latestVersion(), queryInt("SELECT COUNT(*) FROM SCHEMA_VERSION"));
+    }
+
+    @Test
+    void testMigrationsWidenIdsOfATableCreatedBeforeThem() throws SQLException {
+        // The schema as it was created before migrations, with INT ids and no SCHEMA_VERSION table
+        try (Connection legacy = DriverManager.getConnection("jdbc:h2:mem:legacy-schema", "sa", "");
+             Statement stmt = legacy.createStatement()) {
+            stmt.execute("CREATE TABLE items (id INT PRIMARY KEY AUTO_INCREMENT, name VARCHAR(255) NOT NULL)");
+            stmt.execute("CREATE TABLE users (id INT PRIMARY KEY AUTO_INCREMENT, name VARCHAR(255) NOT NULL)");
+            stmt.execute("CREATE TABLE orders (id INT PRIMARY KEY AUTO_INCREMENT, user_id INT NOT NULL, item_id INT NOT NULL, side VARCHAR(10) NOT NULL, "
+                    + "order_type VARCHAR(20) NOT NULL, price DOUBLE, status VARCHAR(20) NOT NULL, timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP, quantity INT NOT NULL, "
+                    + "FOREIGN KEY (user_id) REFERENCES users(id), FOREIGN KEY (item_id) REFERENCES items(id))");
+            stmt.execute("CREATE TABLE trades (id INT PRIMARY KEY AUTO_INCREMENT, buyer_id INT NOT NULL, buy_order_id INT NOT NULL, seller_id INT NOT NULL, "
+                    + "sell_order_id INT NOT NULL, item_id INT NOT NULL, price DOUBLE NOT NULL, timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP, quantity INT NOT NULL, "
+                    + "FOREIGN KEY (buyer_id) REFERENCES users(id), FOREIGN KEY (buy_order_id) REFERENCES orders(id), FOREIGN KEY (seller_id) REFERENCES users(id), "
+                    + "FOREIGN KEY (sell_order_id) REFERENCES orders(id), FOREIGN KEY (item_id) REFERENCES items(id))");
+            stmt.execute("INSERT INTO users (id, name) VALUES (1, 'Alice')");
+            stmt.execute("INSERT INTO items (id, name) VALUES (1, 'Replica A')");
+            stmt.execute("INSERT INTO orders (id, user_id, item_id, side, order_type, price, status, quantity) VALUES (1, 1, 1, 'BUY', 'AT_PRICE', 100.0, 'OPEN', 1)");
+
+            assertEquals(SchemaMigrations.latestVersion(), SchemaMigrations.migrate(legacy));
+
+            // Ids past the INT range fit, and the existing row was kept
+            long bigId = Integer.MAX_VALUE + 1L;
+            stmt.execute("INSERT INTO orders (id, user_id, item_id, side, order_type, price, status, quantity) VALUES (" + bigId + ", 1, 1, 'SELL', 'AT_PRICE', 100.0, 'FILLED', 1)");
+            stmt.execute("INSERT INTO trades (id, buyer_id, buy_order_id, seller_id, sell_order_id, item_id, price, quantity) VALUES (" + bigId + ", 1, 1, 1, " + bigId + ", 1, 100.0, 1)");
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*), MAX(sell_order_id) FROM trades")) {
+                rs.next();
+                assertEquals(1, rs.getInt(1));
+                assertEquals(bigId, rs.getLong(2));
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT sequence FROM orders WHERE id = 1")) {
+                rs.next();
+                assertEquals(1, rs.getLong(1));
+            }
+        }
+    }
+
+    @Test
+    void testHotPathQueriesUseIndexes() throws SQLException {
+        // The same statements OrderService, UserService and ItemService prepare
+        assertUsesIndex("IDX_ORDERS_BOOK", "SELECT * FROM ORDERS USE INDEX (IDX_ORDERS_BOOK) WHERE ITEM_ID = 1 AND STATUS = 'OPEN' AND SIDE = 'BUY' ORDER BY PRICE_TICKS DESC NULLS LAST, SEQUENCE ASC");
+        assertUsesIndex("IDX_ORDERS_BOOK", "SELECT COUNT(*) FROM ORDERS USE INDEX (IDX_ORDERS_BOOK) WHERE ITEM_ID = 1 AND STATUS = 'OPEN'");
+        assertUsesIndex("IDX_TRADES_ITEM_TIME", "SELECT * FROM TRADES USE INDEX (IDX_TRADES_ITEM_TIME) WHERE ITEM_ID = 1 ORDER BY TIMESTAMP DESC");
+        assertUsesIndex("IDX_USERS_NAME_KEY", "SELECT ID, NAME FROM USERS USE INDEX (IDX_USERS_NAME_KEY) WHERE NAME_KEY = LOWER('Alice')");
+        assertUsesIndex("IDX_ITEMS_NAME_KEY", "SELECT ID, NAME FROM ITEMS USE INDEX (IDX_ITEMS_NAME_KEY) WHERE NAME_KEY = LOWER('Replica A')");
+    }
+
+    private void assertUsesIndex(String index, String sql) throws SQLException {
+        String plan = explain(sql);
+        // The index comment shows the index is searched with the query's conditions, not scanned in full
+        assertTrue(plan.contains("/* PUBLIC." + index + ": "), plan);
+    }
+
+    private String explain(String sql) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("EXPLAIN " + sql)) {
+            rs.next();
+            return rs.getString(1).toUpperCase();
+        }
+    }
+
+    private int queryInt(String sql) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}